@@ -1,5 +1,22 @@
 package com.example;
 
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import com.example.model.Delivery;
+import com.example.model.Priority;
+import com.example.model.PushOptions;
+import com.example.model.QueueStats;
+import com.example.util.LeasedChunkSpliterator;
+
 /**
  * Provides generic way to access underlying queue without reliance on implementation specific.
  *
@@ -7,6 +24,16 @@ package com.example;
  */
 public interface QueueService<T> {
 
+    /**
+     * Time default {@link #pullAny(Collection, Duration)} sleeps between rounds over empty queues.
+     */
+    Duration PULL_ANY_POLL_INTERVAL = Duration.ofMillis(10);
+
+    /**
+     * Maximal number of messages default {@link #drain(String)} leases at once.
+     */
+    int DRAIN_CHUNK_SIZE = 100;
+
     /**
      * Pushes message to specified queue. Messages are stored in FIFO manner. The implementor might
      * choose if duplications are allowed.
@@ -16,12 +43,95 @@ public interface QueueService<T> {
      */
     void push(final String queue, String message);
 
+    /**
+     * Pushes message to specified queue with specified options. Implementor must document options it
+     * is unable to honor.
+     *
+     * @param queue   to push message to
+     * @param message string body of a message
+     * @param options delivery options of a message
+     */
+    void push(final String queue, String message, PushOptions options);
+
+    /**
+     * Pushes message to specified queue. Message becomes available for pull only after specified
+     * delay passes, implementor might deliver it later but never earlier.
+     *
+     * @param queue   to push message to
+     * @param message string body of a message
+     * @param delay   time message stays invisible to consumers
+     */
+    default void push(final String queue, String message, Duration delay) {
+        push(queue, message, PushOptions.builder().delay(delay).build());
+    }
+
+    /**
+     * Pushes message to specified queue. Message becomes available for pull at specified time, if
+     * time is already passed message is available immediately.
+     *
+     * @param queue        to push message to
+     * @param message      string body of a message
+     * @param deliveryTime time message becomes visible to consumers
+     */
+    default void push(final String queue, String message, Instant deliveryTime) {
+        final Duration delay = Duration.between(Instant.now(), deliveryTime);
+        push(queue, message, delay.isNegative() ? Duration.ZERO : delay);
+    }
+
+    /**
+     * Pushes message to a priority lane of specified queue. Messages are FIFO within a lane.
+     *
+     * @param queue    to push message to
+     * @param message  string body of a message
+     * @param priority lane to push message to
+     */
+    default void push(final String queue, String message, Priority priority) {
+        push(queue, message, PushOptions.builder().priority(priority).build());
+    }
+
     /**
      * @param queue to pull message from
      * @return fetched message object
      */
     T pull(final String queue);
 
+    /**
+     * Pulls message from any of specified queues, waiting up to specified time for one of them to have
+     * something to pull. Queues are served fairly, so a busy queue does not starve the others.
+     * Implementor should track which queues have messages rather than pull from each of them, default
+     * implementation pulls from every queue in turn starting from a random one and sleeps between
+     * rounds.
+     *
+     * @param queues  to pull message from
+     * @param maxWait time to wait for a message if every queue is empty
+     * @return message together with its queue or null if every queue stayed empty or waiting thread was
+     * interrupted
+     */
+    default Delivery<T> pullAny(final Collection<String> queues, Duration maxWait) {
+        final List<String> candidates = new ArrayList<>(queues);
+        final long deadline = System.nanoTime() + maxWait.toNanos();
+        final int offset = candidates.isEmpty() ? 0 : ThreadLocalRandom.current().nextInt(candidates.size());
+        while (true) {
+            for (int index = 0; index < candidates.size(); index++) {
+                final String queue = candidates.get((offset + index) % candidates.size());
+                final T message = pull(queue);
+                if (Objects.nonNull(message)) {
+                    return Delivery.of(queue, message);
+                }
+            }
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(Math.min(remaining, PULL_ANY_POLL_INTERVAL.toNanos()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
     /**
      * Removes specified message from a specified queue. Implementor must specify the way messages are
      * distinguished from one another.
@@ -30,4 +140,85 @@ public interface QueueService<T> {
      * @param message to delete
      */
     void delete(final String queue, T message);
+
+    /**
+     * Forwards pulled message to the next queue: pushes new payload to the target queue and deletes the
+     * message from the source queue. Implementor should do both in a single step, so the message is
+     * neither lost nor duplicated when service fails in between, and should skip the push if the
+     * message is not in flight anymore. Default implementation pushes and deletes with separate calls.
+     *
+     * @param sourceQueue message was pulled from
+     * @param message     to delete from the source queue
+     * @param targetQueue to push new payload to
+     * @param newPayload  string body of the pushed message
+     * @return false if message was not in flight anymore and nothing was pushed
+     */
+    default boolean moveTo(final String sourceQueue, T message, String targetQueue, String newPayload) {
+        push(targetQueue, newPayload);
+        delete(sourceQueue, message);
+        return true;
+    }
+
+    /**
+     * Streams backlog of specified queue destructively. Messages are leased in chunks and a chunk is
+     * deleted once all of its messages were consumed, so messages of a chunk that was not consumed
+     * entirely, because the stream was short circuited or its action failed, are redelivered after
+     * visibility timeout. Stream may be processed in parallel, in which case chunks are leased ahead for
+     * every thread and messages are consumed in no particular order. Implementor should lease and delete
+     * a chunk with a few operations on underlying store, default implementation pulls and deletes
+     * messages one by one.
+     *
+     * @param queue to drain
+     * @return stream of messages that ends once queue has nothing to pull
+     */
+    default Stream<T> drain(final String queue) {
+        return LeasedChunkSpliterator.stream(LeasedChunkSpliterator.pulling(() -> pull(queue),
+                                                                            message -> delete(queue, message),
+                                                                            DRAIN_CHUNK_SIZE));
+    }
+
+    /**
+     * Makes pulled message invisible for specified time from now instead of the rest of its visibility
+     * timeout, zero timeout returns message to the queue immediately. Implementor must specify whether
+     * lease of a message redelivered to another consumer can be changed.
+     *
+     * @param queue   message was pulled from
+     * @param message to change visibility of
+     * @param timeout time message stays invisible to consumers
+     * @return false if message is not in flight anymore
+     */
+    boolean changeVisibility(final String queue, T message, Duration timeout);
+
+    /**
+     * Changes visibility of every message like {@link #changeVisibility(String, Object, Duration)}.
+     * Implementor might change them with fewer requests to underlying store.
+     *
+     * @param queue    messages were pulled from
+     * @param messages to change visibility of
+     * @param timeout  time messages stay invisible to consumers
+     * @return messages that are not in flight anymore
+     */
+    default List<T> changeVisibilityBatch(final String queue, List<T> messages, Duration timeout) {
+        final List<T> lost = new ArrayList<>();
+        for (T message : messages) {
+            if (!changeVisibility(queue, message, timeout)) {
+                lost.add(message);
+            }
+        }
+        return lost;
+    }
+
+    /**
+     * Describes specified queue without scanning its messages, so it is cheap enough to be polled
+     * frequently.
+     *
+     * @param queue to describe
+     * @return statistics of the queue, statistics of a queue that does not exist are empty
+     */
+    QueueStats stats(final String queue);
+
+    /**
+     * @return names of existing queues in the form accepted by other methods
+     */
+    Set<String> listQueues();
 }
\ No newline at end of file
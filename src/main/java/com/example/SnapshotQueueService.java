@@ -0,0 +1,22 @@
+package com.example;
+
+import java.util.stream.Stream;
+
+/**
+ * {@link QueueService} whose underlying store can read waiting messages without leasing them, which
+ * remote stores such as SQS cannot do.
+ *
+ * @param <T> message type supported by queue
+ */
+public interface SnapshotQueueService<T> extends QueueService<T> {
+
+    /**
+     * Streams messages of specified queue that wait to be pulled without leasing them, in lane order.
+     * Delayed messages that are not due yet and messages in flight are not included. Stream holds
+     * resources until it is closed and may be processed in parallel.
+     *
+     * @param queue to read
+     * @return stream of messages, empty if queue does not exist
+     */
+    Stream<T> snapshot(final String queue);
+}
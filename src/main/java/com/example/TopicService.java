@@ -0,0 +1,57 @@
+package com.example;
+
+import com.example.model.SubscriptionStart;
+
+/**
+ * Provides publish subscribe access to topics. Every message published to a topic is stored once and
+ * is delivered to every subscriber group of the topic. Each group has its own read cursor and its own
+ * set of in flight messages, within a group messages are shared between consumers the same way
+ * {@link QueueService} shares them: pulled message is invisible to other consumers of the group until
+ * it is deleted or its visibility timeout expires.
+ *
+ * @param <T> message type supported by topic
+ */
+public interface TopicService<T> {
+
+    /**
+     * Appends message to the topic log. Topic is created when a message is published to it.
+     *
+     * @param topic   to publish message to
+     * @param message string body of a message
+     */
+    void publish(final String topic, String message);
+
+    /**
+     * Adds subscriber group to the topic. Subscribing a group that already exists keeps its cursor.
+     *
+     * @param topic to subscribe to
+     * @param group name of subscriber group
+     * @param start position the group starts reading from
+     */
+    void subscribe(final String topic, String group, SubscriptionStart start);
+
+    /**
+     * Removes subscriber group together with its cursor and in flight messages.
+     *
+     * @param topic to unsubscribe from
+     * @param group name of subscriber group
+     */
+    void unsubscribe(final String topic, String group);
+
+    /**
+     * @param topic to pull message from
+     * @param group subscriber group consumer belongs to
+     * @return next message of the group or null if group has read every message
+     * @throws com.example.exception.SubscriptionNotFound if group is not subscribed to the topic
+     */
+    T pull(final String topic, String group);
+
+    /**
+     * Acknowledges message for specified group only, other groups still receive it.
+     *
+     * @param topic   to delete message from
+     * @param group   subscriber group message was pulled by
+     * @param message to delete
+     */
+    void delete(final String topic, String group, T message);
+}
@@ -0,0 +1,144 @@
+package com.example.broker;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+import com.example.exception.DeletionFailed;
+import com.example.exception.InvalidMessageBodyContent;
+import com.example.exception.LockTimeoutException;
+import com.example.exception.UnableToAccessUnderlyingStore;
+
+/**
+ * Binary protocol spoken between {@link QueueBroker} and {@link com.example.impl.BrokerQueueService}.
+ * Every frame is prefixed with its length in bytes, numbers are big endian and strings are written as
+ * their UTF-8 byte length followed by the bytes, length of -1 stands for null.
+ * <ul>
+ * <li>request: {@code int length, byte operation, int correlationId, body}</li>
+ * <li>response: {@code int length, int correlationId, byte status, body}</li>
+ * </ul>
+ * Bodies of requests are:
+ * <ul>
+ * <li>{@link #PUSH}: {@code string queue, string payload, long delayMillis, byte priority, string
+ * deduplicationId, string groupId}</li>
+ * <li>{@link #PULL}: {@code string queue}</li>
+ * <li>{@link #DELETE}: {@code string queue, long idMostSigBits, long idLeastSigBits}</li>
+ * <li>{@link #STATS}: {@code string queue}</li>
+ * <li>{@link #LIST}: empty</li>
+ * <li>{@link #CHANGE_VISIBILITY}: {@code string queue, long idMostSigBits, long idLeastSigBits, long
+ * timeoutMillis}</li>
+ * <li>{@link #PULL_ANY}: {@code long maxWaitMillis, int count} followed by queue name strings</li>
+ * <li>{@link #MOVE}: {@code string sourceQueue, long idMostSigBits, long idLeastSigBits, string
+ * targetQueue, string payload}</li>
+ * </ul>
+ * Response with {@link #OK} status to push, pull and delete has a {@code byte} telling whether message
+ * follows, which is only the case for a pull from a non empty queue, followed by {@code long
+ * idMostSigBits, long idLeastSigBits, long creationTimeMillis, string payload}. Response to stats is
+ * {@code long depth, long inFlight, long delayed, long oldestMessageAgeMillis} with age of -1 when
+ * backend does not track it, response to list is {@code int count} followed by queue name strings and
+ * response to change visibility and move is a {@code byte} telling whether message was in flight. Response to
+ * pull any is like response to pull with {@code string queue} in front of the message, broker waits up
+ * to {@code maxWaitMillis} for a message to arrive before it answers that every queue is empty.
+ * Response with any other status carries the error description string. Broker answers requests of a
+ * connection in the order they were sent, except for pull any that has to wait, which is answered
+ * once the wait is over, so client can pipeline requests without waiting for responses and matches
+ * responses to requests by correlation id.
+ */
+public final class BrokerProtocol {
+
+    public static final int MAX_FRAME_SIZE = 4 * 1024 * 1024;
+
+    public static final byte PUSH = 1;
+
+    public static final byte PULL = 2;
+
+    public static final byte DELETE = 3;
+
+    public static final byte STATS = 4;
+
+    public static final byte LIST = 5;
+
+    public static final byte CHANGE_VISIBILITY = 6;
+
+    public static final byte PULL_ANY = 7;
+
+    public static final byte MOVE = 8;
+
+    public static final byte OK = 0;
+
+    public static final byte INVALID_MESSAGE = 1;
+
+    public static final byte LOCK_TIMEOUT = 2;
+
+    public static final byte DELETION_FAILED = 3;
+
+    public static final byte FAILURE = 4;
+
+    private BrokerProtocol() {
+    }
+
+    /**
+     * @return encoded string or null for null string
+     */
+    public static byte[] encode(final String value) {
+        return Objects.isNull(value) ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return number of bytes encoded string takes in a frame
+     */
+    public static int sizeOf(final byte[] encoded) {
+        return Integer.BYTES + (Objects.isNull(encoded) ? 0 : encoded.length);
+    }
+
+    public static void putString(final ByteBuffer buffer, final byte[] encoded) {
+        if (Objects.isNull(encoded)) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(encoded.length).put(encoded);
+        }
+    }
+
+    public static String getString(final ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        final String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+                                        StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    /**
+     * @return status reporting specified failure of a backend
+     */
+    public static byte toStatus(final RuntimeException failure) {
+        if (failure instanceof InvalidMessageBodyContent) {
+            return INVALID_MESSAGE;
+        }
+        if (failure instanceof LockTimeoutException) {
+            return LOCK_TIMEOUT;
+        }
+        if (failure instanceof DeletionFailed) {
+            return DELETION_FAILED;
+        }
+        return FAILURE;
+    }
+
+    /**
+     * @return exception matching specified non {@link #OK} status
+     */
+    public static RuntimeException toException(final byte status, final String message) {
+        switch (status) {
+            case INVALID_MESSAGE:
+                return new InvalidMessageBodyContent(message);
+            case LOCK_TIMEOUT:
+                return new LockTimeoutException(message);
+            case DELETION_FAILED:
+                return new DeletionFailed(message);
+            default:
+                return new UnableToAccessUnderlyingStore(message);
+        }
+    }
+}
@@ -0,0 +1,501 @@
+package com.example.broker;
+
+import static com.example.broker.BrokerProtocol.CHANGE_VISIBILITY;
+import static com.example.broker.BrokerProtocol.DELETE;
+import static com.example.broker.BrokerProtocol.FAILURE;
+import static com.example.broker.BrokerProtocol.LIST;
+import static com.example.broker.BrokerProtocol.MAX_FRAME_SIZE;
+import static com.example.broker.BrokerProtocol.MOVE;
+import static com.example.broker.BrokerProtocol.OK;
+import static com.example.broker.BrokerProtocol.PULL;
+import static com.example.broker.BrokerProtocol.PULL_ANY;
+import static com.example.broker.BrokerProtocol.PUSH;
+import static com.example.broker.BrokerProtocol.STATS;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import com.example.QueueService;
+import com.example.impl.FileQueueService;
+import com.example.impl.InMemoryQueueService;
+import com.example.model.Delivery;
+import com.example.model.Priority;
+import com.example.model.PushOptions;
+import com.example.model.QueueStats;
+import com.example.model.impl.SimpleMessage;
+
+/**
+ * Exposes a {@link QueueService} over TCP using {@link BrokerProtocol}, so that several processes can
+ * share e.g. a single {@link InMemoryQueueService}. Broker runs a single non blocking selector thread,
+ * every readable connection has all complete frames it sent decoded and executed against the backend
+ * in order, responses are gathered in the connection output buffer and written with as few writes as
+ * the socket allows. Reading from a connection is paused while its unsent output exceeds {@value
+ * #MAX_PENDING_OUTPUT} bytes.
+ * <p>
+ * Backend calls run on the selector thread, so backends that block, like {@link FileQueueService}
+ * waiting for a file lock, delay every connection. Pull any that finds every queue empty and is
+ * allowed to wait is the exception: it is handed to a waiter thread that blocks in the backend, and
+ * its response is written by the selector thread once the wait is over, so later requests of the
+ * connection are not held up by it. Backend must identify messages by {@link SimpleMessage#getId()}
+ * only, as delete reaches it with the id alone.
+ */
+public class QueueBroker implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int MAX_PENDING_OUTPUT = 1024 * 1024;
+
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    private final QueueService<SimpleMessage> backend;
+
+    private final Selector selector;
+
+    private final ServerSocketChannel serverChannel;
+
+    private final Thread selectorThread;
+
+    private final ExecutorService waiters;
+
+    /**
+     * Responses of finished waits, written by the selector thread.
+     */
+    private final Queue<Runnable> completedWaits = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean running = true;
+
+    public QueueBroker(final QueueService<SimpleMessage> backend, final InetSocketAddress address) throws IOException {
+        this.backend = backend;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(address);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+        this.selectorThread = new Thread(this::run, "queue-broker");
+        this.waiters = Executors.newCachedThreadPool(task -> {
+            final Thread thread = new Thread(task, "queue-broker-waiter");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts broker as a standalone process. Usage: {@code QueueBroker <port> memory
+     * <visibilityTimeout>} or {@code QueueBroker <port> file <visibilityTimeout> <storagePath>}.
+     */
+    public static void main(final String[] args) throws IOException {
+        final int port = Integer.parseInt(args[0]);
+        final long visibilityTimeout = Long.parseLong(args[2]);
+        final QueueService<SimpleMessage> backend = "file".equals(args[1])
+                ? new FileQueueService(visibilityTimeout, args[3], ".queue", "$", 10_000)
+                : new InMemoryQueueService(visibilityTimeout);
+        final QueueBroker broker = new QueueBroker(backend, new InetSocketAddress(port)).start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                broker.close();
+                if (backend instanceof Closeable) {
+                    ((Closeable) backend).close();
+                }
+            } catch (IOException e) {
+                //Process is shutting down anyway
+            }
+        }));
+    }
+
+    public QueueBroker start() {
+        selectorThread.start();
+        return this;
+    }
+
+    /**
+     * @return address broker listens on, useful when it was bound to an ephemeral port
+     */
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) serverChannel.getLocalAddress();
+    }
+
+    /**
+     * Stops accepting requests, interrupts waiting pulls and closes every connection. Backend is left
+     * open.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        waiters.shutdownNow();
+        if (selectorThread.isAlive()) {
+            selector.wakeup();
+            try {
+                selectorThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else {
+            closeChannels();
+        }
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                selector.select(this::handle);
+                Runnable completedWait;
+                while (Objects.nonNull(completedWait = completedWaits.poll())) {
+                    completedWait.run();
+                }
+            }
+        } catch (IOException e) {
+            //Selector is broken, nothing left to serve connections with
+        } finally {
+            closeChannels();
+        }
+    }
+
+    private void handle(final SelectionKey key) {
+        try {
+            if (key.isAcceptable()) {
+                accept();
+                return;
+            }
+            if (key.isReadable()) {
+                read(key);
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush(key);
+            }
+        } catch (IOException | RuntimeException e) {
+            //Malformed frames and broken sockets drop the connection
+            disconnect(key);
+        }
+    }
+
+    private void accept() throws IOException {
+        final SocketChannel channel = serverChannel.accept();
+        if (Objects.isNull(channel)) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.register(selector, SelectionKey.OP_READ, new Connection());
+    }
+
+    private void read(final SelectionKey key) throws IOException {
+        final Connection connection = (Connection) key.attachment();
+        if (((SocketChannel) key.channel()).read(connection.input) < 0) {
+            disconnect(key);
+            return;
+        }
+        final ByteBuffer input = connection.input.flip();
+        while (input.remaining() >= Integer.BYTES) {
+            final int length = input.getInt(input.position());
+            if (length <= 0 || length > MAX_FRAME_SIZE) {
+                throw new IOException("Invalid frame length " + length + ".");
+            }
+            if (input.remaining() < Integer.BYTES + length) {
+                break;
+            }
+            final int limit = input.limit();
+            final int frameEnd = input.position() + Integer.BYTES + length;
+            input.position(input.position() + Integer.BYTES).limit(frameEnd);
+            execute(key, input);
+            input.limit(limit).position(frameEnd);
+        }
+        input.compact();
+        if (input.position() >= Integer.BYTES && Integer.BYTES + input.getInt(0) > input.capacity()) {
+            connection.input = grow(input, Integer.BYTES + input.getInt(0));
+        }
+        flush(key);
+    }
+
+    private void execute(final SelectionKey key, final ByteBuffer frame) {
+        final Connection connection = (Connection) key.attachment();
+        final byte operation = frame.get();
+        final int correlationId = frame.getInt();
+        try {
+            execute(key, connection, operation, correlationId, frame);
+        } catch (RuntimeException e) {
+            //Backend failures and malformed request bodies fail the request, not the connection
+            fail(connection, correlationId, e);
+        }
+    }
+
+    private void execute(final SelectionKey key,
+                         final Connection connection,
+                         final byte operation,
+                         final int correlationId,
+                         final ByteBuffer frame) {
+        final String queue = operation == LIST || operation == PULL_ANY ? null : BrokerProtocol.getString(frame);
+        switch (operation) {
+            case PUSH:
+                final String payload = BrokerProtocol.getString(frame);
+                final PushOptions options = PushOptions.builder()
+                                                       .delay(Duration.ofMillis(frame.getLong()))
+                                                       .priority(toPriority(frame.get()))
+                                                       .deduplicationId(BrokerProtocol.getString(frame))
+                                                       .groupId(BrokerProtocol.getString(frame))
+                                                       .build();
+                backend.push(queue, payload, options);
+                respond(connection, correlationId, null);
+                break;
+            case PULL:
+                respond(connection, correlationId, backend.pull(queue));
+                break;
+            case DELETE:
+                final UUID id = new UUID(frame.getLong(), frame.getLong());
+                backend.delete(queue, SimpleMessage.of(id, null, null));
+                respond(connection, correlationId, null);
+                break;
+            case CHANGE_VISIBILITY:
+                final UUID leasedId = new UUID(frame.getLong(), frame.getLong());
+                final Duration timeout = Duration.ofMillis(frame.getLong());
+                respondChanged(connection, correlationId,
+                               backend.changeVisibility(queue, SimpleMessage.of(leasedId, null, null), timeout));
+                break;
+            case MOVE:
+                final SimpleMessage moved = SimpleMessage.of(new UUID(frame.getLong(), frame.getLong()), null, null);
+                final String targetQueue = BrokerProtocol.getString(frame);
+                final String newPayload = BrokerProtocol.getString(frame);
+                respondChanged(connection, correlationId, backend.moveTo(queue, moved, targetQueue, newPayload));
+                break;
+            case PULL_ANY:
+                final Duration maxWait = Duration.ofMillis(frame.getLong());
+                final int count = frame.getInt();
+                if (count < 0 || count > frame.remaining() / Integer.BYTES) {
+                    throw new IllegalArgumentException("Invalid queue count " + count + ".");
+                }
+                final List<String> queues = new ArrayList<>(count);
+                for (int index = 0; index < count; index++) {
+                    queues.add(BrokerProtocol.getString(frame));
+                }
+                final Delivery<SimpleMessage> delivery = backend.pullAny(queues, Duration.ZERO);
+                if (Objects.isNull(delivery) && maxWait.toMillis() > 0) {
+                    await(key, correlationId, queues, maxWait);
+                } else {
+                    respondDelivery(connection, correlationId, delivery);
+                }
+                break;
+            case STATS:
+                respondStats(connection, correlationId, backend.stats(queue));
+                break;
+            case LIST:
+                respondQueues(connection, correlationId, backend.listQueues()
+                                                               .stream()
+                                                               .map(BrokerProtocol::encode)
+                                                               .collect(Collectors.toList()));
+                break;
+            default:
+                fail(connection, correlationId, FAILURE, "Unknown operation " + operation + ".");
+        }
+    }
+
+    /**
+     * Waits for a message on a waiter thread, response is written by the selector thread unless the
+     * connection was dropped meanwhile.
+     */
+    private void await(final SelectionKey key,
+                       final int correlationId,
+                       final List<String> queues,
+                       final Duration maxWait) {
+        final Connection connection = (Connection) key.attachment();
+        waiters.execute(() -> {
+            final Runnable response = pullAny(connection, correlationId, queues, maxWait);
+            completedWaits.add(() -> {
+                if (!key.isValid()) {
+                    return;
+                }
+                response.run();
+                try {
+                    flush(key);
+                } catch (IOException e) {
+                    disconnect(key);
+                }
+            });
+            selector.wakeup();
+        });
+    }
+
+    /**
+     * @return writer of the response to a waiting pull any
+     */
+    private Runnable pullAny(final Connection connection,
+                             final int correlationId,
+                             final List<String> queues,
+                             final Duration maxWait) {
+        try {
+            final Delivery<SimpleMessage> delivery = backend.pullAny(queues, maxWait);
+            return () -> respondDelivery(connection, correlationId, delivery);
+        } catch (RuntimeException e) {
+            return () -> fail(connection, correlationId, e);
+        }
+    }
+
+    private static Priority toPriority(final byte ordinal) {
+        if (ordinal < 0 || ordinal >= PRIORITIES.length) {
+            throw new IllegalArgumentException("Unknown priority " + ordinal + ".");
+        }
+        return PRIORITIES[ordinal];
+    }
+
+    /**
+     * Writes successful response, pulled message is written only for pull requests.
+     */
+    private void respond(final Connection connection, final int correlationId, final SimpleMessage message) {
+        if (Objects.isNull(message)) {
+            final ByteBuffer output = connection.reserve(Integer.BYTES * 2 + 2);
+            output.putInt(Integer.BYTES + 2).putInt(correlationId).put(OK).put((byte) 0);
+            return;
+        }
+        final byte[] payload = BrokerProtocol.encode(message.getPayload());
+        final int length = Integer.BYTES + 2 + Long.BYTES * 3 + BrokerProtocol.sizeOf(payload);
+        final ByteBuffer output = connection.reserve(Integer.BYTES + length);
+        output.putInt(length)
+              .putInt(correlationId)
+              .put(OK)
+              .put((byte) 1)
+              .putLong(message.getId().getMostSignificantBits())
+              .putLong(message.getId().getLeastSignificantBits())
+              .putLong(message.getCreationTime().toEpochMilli());
+        BrokerProtocol.putString(output, payload);
+    }
+
+    private void respondDelivery(final Connection connection,
+                                 final int correlationId,
+                                 final Delivery<SimpleMessage> delivery) {
+        if (Objects.isNull(delivery)) {
+            respond(connection, correlationId, null);
+            return;
+        }
+        final SimpleMessage message = delivery.getMessage();
+        final byte[] queue = BrokerProtocol.encode(delivery.getQueue());
+        final byte[] payload = BrokerProtocol.encode(message.getPayload());
+        final int length = Integer.BYTES + 2 + BrokerProtocol.sizeOf(queue) + Long.BYTES * 3
+                + BrokerProtocol.sizeOf(payload);
+        final ByteBuffer output = connection.reserve(Integer.BYTES + length);
+        output.putInt(length).putInt(correlationId).put(OK).put((byte) 1);
+        BrokerProtocol.putString(output, queue);
+        output.putLong(message.getId().getMostSignificantBits())
+              .putLong(message.getId().getLeastSignificantBits())
+              .putLong(message.getCreationTime().toEpochMilli());
+        BrokerProtocol.putString(output, payload);
+    }
+
+    private void respondChanged(final Connection connection, final int correlationId, final boolean changed) {
+        final ByteBuffer output = connection.reserve(Integer.BYTES * 2 + 2);
+        output.putInt(Integer.BYTES + 2).putInt(correlationId).put(OK).put((byte) (changed ? 1 : 0));
+    }
+
+    private void respondStats(final Connection connection, final int correlationId, final QueueStats stats) {
+        final int length = Integer.BYTES + 1 + Long.BYTES * 4;
+        final ByteBuffer output = connection.reserve(Integer.BYTES + length);
+        output.putInt(length)
+              .putInt(correlationId)
+              .put(OK)
+              .putLong(stats.getDepth())
+              .putLong(stats.getInFlight())
+              .putLong(stats.getDelayed())
+              .putLong(Objects.isNull(stats.getOldestMessageAge()) ? -1 : stats.getOldestMessageAge().toMillis());
+    }
+
+    private void respondQueues(final Connection connection, final int correlationId, final List<byte[]> queues) {
+        final int length = Integer.BYTES + 1 + Integer.BYTES + queues.stream().mapToInt(BrokerProtocol::sizeOf).sum();
+        final ByteBuffer output = connection.reserve(Integer.BYTES + length);
+        output.putInt(length).putInt(correlationId).put(OK).putInt(queues.size());
+        queues.forEach(queue -> BrokerProtocol.putString(output, queue));
+    }
+
+    private void fail(final Connection connection, final int correlationId, final RuntimeException failure) {
+        fail(connection, correlationId, BrokerProtocol.toStatus(failure), failure.getMessage());
+    }
+
+    private void fail(final Connection connection, final int correlationId, final byte status, final String error) {
+        final byte[] description = BrokerProtocol.encode(error);
+        final int length = Integer.BYTES + 1 + BrokerProtocol.sizeOf(description);
+        final ByteBuffer output = connection.reserve(Integer.BYTES + length);
+        output.putInt(length).putInt(correlationId).put(status);
+        BrokerProtocol.putString(output, description);
+    }
+
+    private void flush(final SelectionKey key) throws IOException {
+        final Connection connection = (Connection) key.attachment();
+        connection.output.flip();
+        ((SocketChannel) key.channel()).write(connection.output);
+        connection.output.compact();
+        if (connection.output.position() == 0) {
+            key.interestOps(SelectionKey.OP_READ);
+        } else if (connection.output.position() > MAX_PENDING_OUTPUT) {
+            key.interestOps(SelectionKey.OP_WRITE);
+        } else {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void disconnect(final SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            //Connection is dropped anyway
+        }
+    }
+
+    private void closeChannels() {
+        if (!selector.isOpen()) {
+            return;
+        }
+        for (SelectionKey key : selector.keys()) {
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                //Broker is stopping anyway
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            //Broker is stopping anyway
+        }
+    }
+
+    private static ByteBuffer grow(final ByteBuffer buffer, final int required) {
+        final ByteBuffer grown = ByteBuffer.allocate(Math.max(required, buffer.capacity() * 2));
+        return grown.put(buffer.flip());
+    }
+
+    private static class Connection {
+
+        private ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+
+        private ByteBuffer output = ByteBuffer.allocate(BUFFER_SIZE);
+
+        /**
+         * @return output buffer with at least specified number of bytes remaining
+         */
+        ByteBuffer reserve(final int size) {
+            if (output.remaining() < size) {
+                output = grow(output, output.position() + size);
+            }
+            return output;
+        }
+    }
+}
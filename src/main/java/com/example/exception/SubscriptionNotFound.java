@@ -0,0 +1,15 @@
+package com.example.exception;
+
+public class SubscriptionNotFound extends RuntimeException {
+
+    public SubscriptionNotFound() {
+    }
+
+    public SubscriptionNotFound(String message) {
+        super(message);
+    }
+
+    public SubscriptionNotFound(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,353 @@
+package com.example.impl;
+
+import static com.example.broker.BrokerProtocol.CHANGE_VISIBILITY;
+import static com.example.broker.BrokerProtocol.DELETE;
+import static com.example.broker.BrokerProtocol.LIST;
+import static com.example.broker.BrokerProtocol.MOVE;
+import static com.example.broker.BrokerProtocol.OK;
+import static com.example.broker.BrokerProtocol.PULL;
+import static com.example.broker.BrokerProtocol.PULL_ANY;
+import static com.example.broker.BrokerProtocol.PUSH;
+import static com.example.broker.BrokerProtocol.STATS;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.example.QueueService;
+import com.example.broker.BrokerProtocol;
+import com.example.broker.QueueBroker;
+import com.example.exception.UnableToAccessUnderlyingStore;
+import com.example.model.Delivery;
+import com.example.model.PushOptions;
+import com.example.model.QueueStats;
+import com.example.model.impl.SimpleMessage;
+
+/**
+ * {@link QueueService} client of a {@link QueueBroker}, behaves like the backend queue service of the
+ * broker. Client keeps a single connection that is safe to share between threads: requests of
+ * concurrent callers are pipelined, every caller writes its request and waits for its own response
+ * while a reader thread matches responses to requests by correlation id, so a pull any waiting on the
+ * broker does not hold up responses to other callers.
+ */
+public class BrokerQueueService implements QueueService<SimpleMessage>, Closeable {
+
+    private final Socket socket;
+
+    private final DataOutputStream output;
+
+    private final DataInputStream input;
+
+    private final Map<Integer, CompletableFuture<ByteBuffer>> pendingResponses = new ConcurrentHashMap<>();
+
+    private final Thread reader;
+
+    private int correlationId;
+
+    private volatile IOException failure;
+
+    /**
+     * Connects to a broker.
+     *
+     * @param address of the broker
+     * @throws UnableToAccessUnderlyingStore if broker cannot be reached
+     */
+    public BrokerQueueService(final InetSocketAddress address) {
+        try {
+            this.socket = new Socket(address.getAddress(), address.getPort());
+            socket.setTcpNoDelay(true);
+            this.output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            this.input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        } catch (IOException e) {
+            throw new UnableToAccessUnderlyingStore(e.getMessage(), e);
+        }
+        this.reader = new Thread(this::readResponses, "queue-broker-client");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    @Override
+    public void push(String queue, String message) {
+        push(queue, message, PushOptions.defaults());
+    }
+
+    /**
+     * Pushes message through the broker, every option is passed to the broker backend.
+     *
+     * @param queue   to push message to
+     * @param message string body of a message
+     * @param options delivery options of a message
+     */
+    @Override
+    public void push(String queue, String message, PushOptions options) {
+        final byte[] encodedQueue = BrokerProtocol.encode(queue);
+        final byte[] payload = BrokerProtocol.encode(message);
+        final byte[] deduplicationId = BrokerProtocol.encode(options.getDeduplicationId());
+        final byte[] groupId = BrokerProtocol.encode(options.getGroupId());
+        final ByteBuffer request = newRequest(PUSH, BrokerProtocol.sizeOf(encodedQueue)
+                + BrokerProtocol.sizeOf(payload) + Long.BYTES + 1 + BrokerProtocol.sizeOf(deduplicationId)
+                + BrokerProtocol.sizeOf(groupId));
+        BrokerProtocol.putString(request, encodedQueue);
+        BrokerProtocol.putString(request, payload);
+        request.putLong(options.getDelay().toMillis()).put((byte) options.getPriority().ordinal());
+        BrokerProtocol.putString(request, deduplicationId);
+        BrokerProtocol.putString(request, groupId);
+        call(request);
+    }
+
+    /**
+     * @param queue to pull message from
+     * @return message leased by the broker backend or null if queue is empty
+     */
+    @Override
+    public SimpleMessage pull(String queue) {
+        final byte[] encodedQueue = BrokerProtocol.encode(queue);
+        final ByteBuffer request = newRequest(PULL, BrokerProtocol.sizeOf(encodedQueue));
+        BrokerProtocol.putString(request, encodedQueue);
+        final ByteBuffer response = call(request);
+        return response.get() == 0 ? null : readMessage(response);
+    }
+
+    /**
+     * Asks the broker to pull from any of the queues with a single request, broker backend picks the
+     * queue and the broker waits for a message to arrive.
+     *
+     * @param queues  to pull message from
+     * @param maxWait time to wait for a message if every queue is empty
+     * @return message together with its queue or null if every queue stayed empty
+     */
+    @Override
+    public Delivery<SimpleMessage> pullAny(final Collection<String> queues, final Duration maxWait) {
+        final byte[][] encodedQueues = queues.stream().map(BrokerProtocol::encode).toArray(byte[][]::new);
+        int bodySize = Long.BYTES + Integer.BYTES;
+        for (byte[] encodedQueue : encodedQueues) {
+            bodySize += BrokerProtocol.sizeOf(encodedQueue);
+        }
+        final ByteBuffer request = newRequest(PULL_ANY, bodySize)
+                .putLong(Math.max(0, maxWait.toMillis()))
+                .putInt(encodedQueues.length);
+        for (byte[] encodedQueue : encodedQueues) {
+            BrokerProtocol.putString(request, encodedQueue);
+        }
+        final ByteBuffer response = call(request);
+        if (response.get() == 0) {
+            return null;
+        }
+        final String queue = BrokerProtocol.getString(response);
+        return Delivery.of(queue, readMessage(response));
+    }
+
+    /**
+     * Deletes message by its id.
+     *
+     * @param queue   to delete messages from
+     * @param message to delete
+     */
+    @Override
+    public void delete(String queue, SimpleMessage message) {
+        final byte[] encodedQueue = BrokerProtocol.encode(queue);
+        final ByteBuffer request = newRequest(DELETE, BrokerProtocol.sizeOf(encodedQueue) + Long.BYTES * 2);
+        BrokerProtocol.putString(request, encodedQueue);
+        request.putLong(message.getId().getMostSignificantBits())
+               .putLong(message.getId().getLeastSignificantBits());
+        call(request);
+    }
+
+    /**
+     * Changes visibility of message by its id.
+     *
+     * @param queue   message was pulled from
+     * @param message to change visibility of
+     * @param timeout time message stays invisible to consumers
+     * @return false if message is not in flight anymore
+     * @throws IllegalArgumentException if timeout is negative
+     */
+    @Override
+    public boolean changeVisibility(String queue, SimpleMessage message, Duration timeout) {
+        if (timeout.isNegative()) {
+            throw new IllegalArgumentException("Visibility timeout must not be negative.");
+        }
+        final byte[] encodedQueue = BrokerProtocol.encode(queue);
+        final ByteBuffer request = newRequest(CHANGE_VISIBILITY, BrokerProtocol.sizeOf(encodedQueue) + Long.BYTES * 3);
+        BrokerProtocol.putString(request, encodedQueue);
+        request.putLong(message.getId().getMostSignificantBits())
+               .putLong(message.getId().getLeastSignificantBits())
+               .putLong(timeout.toMillis());
+        return call(request).get() == 1;
+    }
+
+    /**
+     * Asks the broker to move message with a single request, broker backend decides whether the move
+     * is atomic.
+     *
+     * @param sourceQueue message was pulled from
+     * @param message     to delete from the source queue
+     * @param targetQueue to push new payload to
+     * @param newPayload  string body of the pushed message
+     * @return false if message was not in flight anymore and nothing was pushed
+     */
+    @Override
+    public boolean moveTo(String sourceQueue, SimpleMessage message, String targetQueue, String newPayload) {
+        final byte[] encodedSource = BrokerProtocol.encode(sourceQueue);
+        final byte[] encodedTarget = BrokerProtocol.encode(targetQueue);
+        final byte[] payload = BrokerProtocol.encode(newPayload);
+        final ByteBuffer request = newRequest(MOVE, BrokerProtocol.sizeOf(encodedSource) + Long.BYTES * 2
+                + BrokerProtocol.sizeOf(encodedTarget) + BrokerProtocol.sizeOf(payload));
+        BrokerProtocol.putString(request, encodedSource);
+        request.putLong(message.getId().getMostSignificantBits())
+               .putLong(message.getId().getLeastSignificantBits());
+        BrokerProtocol.putString(request, encodedTarget);
+        BrokerProtocol.putString(request, payload);
+        return call(request).get() == 1;
+    }
+
+    /**
+     * @param queue to describe
+     * @return statistics reported by the broker backend
+     */
+    @Override
+    public QueueStats stats(String queue) {
+        final byte[] encodedQueue = BrokerProtocol.encode(queue);
+        final ByteBuffer request = newRequest(STATS, BrokerProtocol.sizeOf(encodedQueue));
+        BrokerProtocol.putString(request, encodedQueue);
+        final ByteBuffer response = call(request);
+        final QueueStats.QueueStatsBuilder stats = QueueStats.builder()
+                                                             .depth(response.getLong())
+                                                             .inFlight(response.getLong())
+                                                             .delayed(response.getLong());
+        final long oldestMessageAge = response.getLong();
+        return stats.oldestMessageAge(oldestMessageAge < 0 ? null : Duration.ofMillis(oldestMessageAge)).build();
+    }
+
+    /**
+     * @return queues of the broker backend
+     */
+    @Override
+    public Set<String> listQueues() {
+        final ByteBuffer response = call(newRequest(LIST, 0));
+        final int count = response.getInt();
+        final Set<String> queues = new HashSet<>(count);
+        for (int queue = 0; queue < count; queue++) {
+            queues.add(BrokerProtocol.getString(response));
+        }
+        return queues;
+    }
+
+    /**
+     * Closes connection, requests waiting for responses fail with {@link UnableToAccessUnderlyingStore}.
+     */
+    @Override
+    public void close() throws IOException {
+        socket.close();
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static SimpleMessage readMessage(final ByteBuffer response) {
+        final UUID id = new UUID(response.getLong(), response.getLong());
+        final Instant creationTime = Instant.ofEpochMilli(response.getLong());
+        return SimpleMessage.of(id, BrokerProtocol.getString(response), creationTime);
+    }
+
+    private static ByteBuffer newRequest(final byte operation, final int bodySize) {
+        final int length = 1 + Integer.BYTES + bodySize;
+        return ByteBuffer.allocate(Integer.BYTES + length)
+                         .putInt(length)
+                         .put(operation)
+                         .putInt(0);
+    }
+
+    /**
+     * Sends request and waits for its response.
+     *
+     * @return response body positioned after the status
+     */
+    private ByteBuffer call(final ByteBuffer request) {
+        final CompletableFuture<ByteBuffer> response = new CompletableFuture<>();
+        synchronized (output) {
+            final int requestId = correlationId++;
+            request.putInt(Integer.BYTES + 1, requestId);
+            pendingResponses.put(requestId, response);
+            if (Objects.nonNull(failure)) {
+                fail(failure);
+            } else {
+                try {
+                    output.write(request.array(), 0, request.position());
+                    output.flush();
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        }
+        final ByteBuffer body;
+        try {
+            body = response.join();
+        } catch (CompletionException e) {
+            throw new UnableToAccessUnderlyingStore(e.getCause().getMessage(), e.getCause());
+        }
+        final byte status = body.get();
+        if (status != OK) {
+            throw BrokerProtocol.toException(status, BrokerProtocol.getString(body));
+        }
+        return body;
+    }
+
+    private void readResponses() {
+        try {
+            while (true) {
+                final byte[] frame = new byte[input.readInt()];
+                input.readFully(frame);
+                final ByteBuffer body = ByteBuffer.wrap(frame);
+                final int responseId = body.getInt();
+                final CompletableFuture<ByteBuffer> pending = pendingResponses.remove(responseId);
+                if (Objects.isNull(pending)) {
+                    throw new IOException("Unexpected response " + responseId + " from broker.");
+                }
+                pending.complete(body);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Fails every pending request. Requests made afterwards see the failure once they are enqueued, so
+     * none of them waits for a response that never comes.
+     */
+    private void fail(final IOException cause) {
+        if (Objects.isNull(failure)) {
+            failure = cause;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            cause.addSuppressed(e);
+        }
+        for (Integer requestId : pendingResponses.keySet()) {
+            final CompletableFuture<ByteBuffer> pending = pendingResponses.remove(requestId);
+            if (Objects.nonNull(pending)) {
+                pending.completeExceptionally(failure);
+            }
+        }
+    }
+}
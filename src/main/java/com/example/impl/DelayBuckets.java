@@ -0,0 +1,179 @@
+package com.example.impl;
+
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Objects;
+
+/**
+ * Delayed messages of a {@link FileQueueService} lane. Messages are appended to time bucket files, each
+ * bucket covers {@value #DELAY_BUCKET} milliseconds and is named after the time it becomes due. Sorted
+ * list of pending buckets is kept in an index file, so only the index head is read to find out whether
+ * any bucket is due and due buckets are moved to the lane file as a whole. Index file is created by the
+ * first delayed push to the lane.
+ * <p>
+ * Buckets are read through the buffers of the queue and guarded by the lane file lock.
+ */
+class DelayBuckets implements Closeable {
+
+    static final long DELAY_BUCKET = 100;
+
+    private final RowBuffers buffers;
+
+    private final String bucketPrefix;
+
+    private final String fileFormat;
+
+    private final OptionalFile index;
+
+    /**
+     * @param bucketPrefix name every bucket file starts with, index file is named with it alone
+     */
+    DelayBuckets(final RowBuffers buffers, final String bucketPrefix, final String fileFormat) {
+        this.buffers = buffers;
+        this.bucketPrefix = bucketPrefix;
+        this.fileFormat = fileFormat;
+        this.index = new OptionalFile(bucketPrefix + fileFormat);
+    }
+
+    /**
+     * @param row encoded message row
+     * @return time the bucket row was appended to becomes due
+     */
+    long push(final String row, final long deliveryTime) throws IOException {
+        final long bucket = toDelayBucket(deliveryTime);
+        try (FileChannel bucketChannel = FileChannel.open(getBucketFile(bucket), APPEND, CREATE)) {
+            addBucket(bucket);
+            bucketChannel.write(ByteBuffer.wrap(row.getBytes(StandardCharsets.UTF_8)), bucketChannel.size());
+        }
+        return bucket;
+    }
+
+    /**
+     * Inserts bucket to its place in the index unless it is already there.
+     */
+    private void addBucket(final long bucket) throws IOException {
+        final FileChannel index = this.index.create();
+        long position = 0;
+        int rowLength;
+        while ((rowLength = buffers.readRow(index, position)) > 0) {
+            final long indexed = parseBucket(buffers.row.array(), rowLength - RowBuffers.LINE_SEPARATOR_LENGTH);
+            if (indexed == bucket) {
+                return;
+            }
+            if (indexed > bucket) {
+                break;
+            }
+            position += rowLength;
+        }
+        buffers.insert(index, position,
+                       ByteBuffer.wrap((bucket + System.lineSeparator()).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * @return time the earliest bucket becomes due or {@link Long#MAX_VALUE} if there is none
+     */
+    long getDueTime() throws IOException {
+        final FileChannel index = this.index.get();
+        final int headLength = Objects.isNull(index) ? 0 : buffers.readRow(index, 0);
+        return headLength == 0
+                ? Long.MAX_VALUE
+                : parseBucket(buffers.row.array(), headLength - RowBuffers.LINE_SEPARATOR_LENGTH);
+    }
+
+    /**
+     * Moves due buckets to the end of the lane file. Only the index head is read unless some bucket is
+     * due.
+     *
+     * @return number of released rows
+     */
+    long release(final FileChannel lane, final long now) throws IOException {
+        if (getDueTime() > now) {
+            return 0;
+        }
+        final FileChannel index = this.index.get();
+        long releasedBytes = 0;
+        long releasedRows = 0;
+        int rowLength;
+        while ((rowLength = buffers.readRow(index, releasedBytes)) > 0) {
+            final long bucket = parseBucket(buffers.row.array(), rowLength - RowBuffers.LINE_SEPARATOR_LENGTH);
+            if (bucket > now) {
+                break;
+            }
+            releasedRows += release(getBucketFile(bucket), lane);
+            releasedBytes += rowLength;
+        }
+        buffers.compact(index, 0, releasedBytes);
+        return releasedRows;
+    }
+
+    private long release(final Path bucketFile, final FileChannel lane) throws IOException {
+        final long rows;
+        try (FileChannel bucketChannel = FileChannel.open(bucketFile, READ)) {
+            long transferred = 0;
+            while (transferred < bucketChannel.size()) {
+                transferred += lane.transferFrom(bucketChannel.position(transferred),
+                                                 lane.size(),
+                                                 bucketChannel.size() - transferred);
+            }
+            rows = buffers.countRows(bucketChannel);
+        }
+        Files.delete(bucketFile);
+        return rows;
+    }
+
+    /**
+     * @return number of rows in every pending bucket
+     */
+    long count() throws IOException {
+        final FileChannel index = this.index.get();
+        if (Objects.isNull(index)) {
+            return 0;
+        }
+        long rows = 0;
+        long position = 0;
+        int rowLength;
+        while ((rowLength = buffers.readRow(index, position)) > 0) {
+            final long bucket = parseBucket(buffers.row.array(), rowLength - RowBuffers.LINE_SEPARATOR_LENGTH);
+            try (FileChannel bucketChannel = FileChannel.open(getBucketFile(bucket), READ)) {
+                rows += buffers.countRows(bucketChannel);
+            }
+            position += rowLength;
+        }
+        return rows;
+    }
+
+    boolean isEmpty() throws IOException {
+        return index.size() == 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        index.close();
+    }
+
+    private Path getBucketFile(final long bucket) {
+        return Paths.get(bucketPrefix + bucket + fileFormat);
+    }
+
+    private static long parseBucket(final byte[] row, final int length) {
+        long bucket = 0;
+        for (int position = 0; position < length; position++) {
+            bucket = bucket * 10 + (row[position] - '0');
+        }
+        return bucket;
+    }
+
+    private static long toDelayBucket(final long deliveryTime) {
+        return (deliveryTime + DELAY_BUCKET - 1) / DELAY_BUCKET * DELAY_BUCKET;
+    }
+}
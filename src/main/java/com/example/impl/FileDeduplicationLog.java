@@ -0,0 +1,125 @@
+package com.example.impl;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Objects;
+
+import com.example.util.DeduplicationWindow;
+
+/**
+ * Process local view of a deduplication file shared by every process working with a queue. File
+ * starts with a generation line followed by {@code id,epochMillis} records appended in push order.
+ * View keeps a {@link DeduplicationWindow} and the offset it has read the file up to, so each check
+ * only reads records appended by other processes since the previous one. When file grows over
+ * {@value #COMPACTION_SIZE} bytes and its oldest record is out of the window file is rewritten with a
+ * new generation, which makes every view to read it from the start.
+ * <p>
+ * Callers must hold the file lock and must not use the same view from several threads at once.
+ */
+class FileDeduplicationLog {
+
+    private static final long COMPACTION_SIZE = 1024 * 1024;
+
+    private static final String DELIMITER = ",";
+
+    private final long window;
+
+    private DeduplicationWindow ids;
+
+    private long generation = -1;
+
+    private long offset;
+
+    FileDeduplicationLog(final long window) {
+        this.window = window;
+    }
+
+    /**
+     * @param channel locked deduplication file
+     * @param id      deduplication id
+     * @param now     current epoch millisecond
+     * @return true if id was appended to the file within the window
+     */
+    boolean contains(final FileChannel channel, final String id, final long now) throws IOException {
+        catchUp(channel, now);
+        return ids.contains(id, now);
+    }
+
+    /**
+     * Appends id to the file, must be preceded by {@link #contains(FileChannel, String, long)} under
+     * the same file lock.
+     *
+     * @param channel locked deduplication file
+     * @param id      deduplication id
+     * @param now     current epoch millisecond
+     */
+    void append(final FileChannel channel, final String id, final long now) throws IOException {
+        channel.write(ByteBuffer.wrap((id + DELIMITER + now + System.lineSeparator()).getBytes()), channel.size());
+        ids.register(id, now);
+        offset = channel.size();
+        if (offset > COMPACTION_SIZE && isOldestRecordExpired(channel, now)) {
+            compact(channel, now);
+        }
+    }
+
+    private void catchUp(final FileChannel channel, final long now) throws IOException {
+        if (channel.size() == 0) {
+            channel.write(ByteBuffer.wrap((now + System.lineSeparator()).getBytes()), 0);
+        }
+        final String header = newReader(channel, 0).readLine();
+        final long fileGeneration = Long.parseLong(header);
+        if (fileGeneration != generation) {
+            generation = fileGeneration;
+            if (Objects.isNull(ids)) {
+                ids = new DeduplicationWindow(window, now);
+            } else {
+                ids.clear(now);
+            }
+            offset = header.length() + System.lineSeparator().length();
+        }
+        if (offset == channel.size()) {
+            return;
+        }
+        final BufferedReader reader = newReader(channel, offset);
+        String record;
+        while (Objects.nonNull(record = reader.readLine())) {
+            final String[] parts = record.split(DELIMITER);
+            ids.register(parts[0], Long.parseLong(parts[1]));
+            offset += record.length() + System.lineSeparator().length();
+        }
+    }
+
+    private boolean isOldestRecordExpired(final FileChannel channel, final long now) throws IOException {
+        final BufferedReader reader = newReader(channel, 0);
+        reader.readLine();
+        final String oldest = reader.readLine();
+        return Objects.nonNull(oldest) && Long.parseLong(oldest.split(DELIMITER)[1]) <= now - window;
+    }
+
+    private void compact(final FileChannel channel, final long now) throws IOException {
+        final BufferedReader reader = newReader(channel, 0);
+        final long oldGeneration = Long.parseLong(reader.readLine());
+        final StringBuilder compacted = new StringBuilder()
+                .append(Math.max(now, oldGeneration + 1))
+                .append(System.lineSeparator());
+        String record;
+        while (Objects.nonNull(record = reader.readLine())) {
+            if (Long.parseLong(record.split(DELIMITER)[1]) > now - window) {
+                compacted.append(record).append(System.lineSeparator());
+            }
+        }
+        final byte[] content = compacted.toString().getBytes();
+        channel.truncate(0);
+        channel.write(ByteBuffer.wrap(content), 0);
+        generation = Math.max(now, oldGeneration + 1);
+        offset = content.length;
+    }
+
+    private static BufferedReader newReader(final FileChannel channel, final long position) throws IOException {
+        return new BufferedReader(Channels.newReader(channel.position(position), Charset.defaultCharset()));
+    }
+}
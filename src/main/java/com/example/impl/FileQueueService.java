@@ -1,34 +1,67 @@
 package com.example.impl;
 
-import static java.nio.file.StandardOpenOption.APPEND;
 import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.DELETE_ON_CLOSE;
 import static java.nio.file.StandardOpenOption.READ;
 import static java.nio.file.StandardOpenOption.WRITE;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.channels.OverlappingFileLockException;
-import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.time.Instant;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.function.Consumer;
-import java.util.function.Predicate;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.IntPredicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import com.example.QueueService;
+import com.example.SnapshotQueueService;
 import com.example.exception.DeletionFailed;
 import com.example.exception.InvalidMessageBodyContent;
 import com.example.exception.LockTimeoutException;
+import com.example.exception.RowMappingException;
 import com.example.exception.UnableToAccessUnderlyingStore;
+import com.example.jfr.FileOpenEvent;
+import com.example.jfr.LockWaitEvent;
+import com.example.jfr.RecordDecodeEvent;
+import com.example.jfr.RecordEncodeEvent;
+import com.example.jfr.RedeliveryEvent;
+import com.example.model.Delivery;
 import com.example.model.Messages;
+import com.example.model.Priority;
+import com.example.model.PushOptions;
+import com.example.model.QueueStats;
 import com.example.model.impl.SimpleMessage;
 import com.example.model.mapper.SimpleMessageMapper;
-import org.apache.commons.lang3.StringUtils;
+import com.example.model.mapper.SimpleMessageView;
+import com.example.util.DeduplicationWindow;
+import com.example.util.LeasedChunkSpliterator;
+import com.example.util.ReadinessSet;
+import com.example.util.WeightedRoundRobin;
+import jdk.jfr.EventType;
 
 /**
  * File based implementation of a {@link QueueService}. Service relies on addition order to ensure
@@ -36,11 +69,139 @@ import org.apache.commons.lang3.StringUtils;
  * timeout starts, upon next pull if time is already expired and message is not deleted service
  * returns it instead in order of attempted pulls. Each queue is stored in a separate file, as well
  * as redelivery queue. Service offers thread and process safe operation as all file operation are
- * guarded with file locks. Service does not cleanup empty queue files.
+ * guarded with file locks. Files of empty queues are deleted only by {@link #evictIdleQueues(Duration)}.
+ * <p>
+ * Every {@link Priority} has a separate lane file, {@link Priority#NORMAL} lane is stored in the
+ * queue file itself while other lanes have level name appended to the queue name. Pull selects the
+ * lane with {@link WeightedRoundRobin} among non empty lanes, selection state is kept per service
+ * instance.
+ * <p>
+ * Delayed messages are appended to time bucket files of their lane, each bucket covers {@value
+ * DelayBuckets#DELAY_BUCKET} milliseconds and is named after the time it becomes due. Sorted list of
+ * pending buckets is kept in a separate index file, so pull only reads the index head to find out
+ * whether any bucket is due and moves due buckets to the lane file as a whole. All delayed files are
+ * guarded by the lane file lock and kept by {@link DelayBuckets} of the lane.
+ * <p>
+ * Deduplication ids of a queue are appended to a deduplication file shared between processes, each
+ * service instance follows it with a {@link FileDeduplicationLog}. Pushes with deduplication id are
+ * serialized by the deduplication file lock.
+ * <p>
+ * Lane and in progress files of a queue are opened once per service instance and are kept open until
+ * {@link #close()}, delay index, extended leases and moves files are created on first use and opened
+ * once they exist, see {@link OptionalFile}, so a queue that never delays, extends or moves a message
+ * keeps none of them open. Rows are read, rewritten and compacted in buffers of the queue or of the lease
+ * shard and looked at through a {@link SimpleMessageView} of the row buffer, which
+ * compares ids as raw bytes and decodes payload only of the leased row, so apart from the file locks
+ * steady state pull and delete allocate only the returned message.
+ * <p>
+ * Leases are striped over {@value #LEASE_SHARDS} shards by message id, each shard has in progress file
+ * of its own with shard number appended to the in progress suffix, except for the first shard, and its
+ * own lock, so deletes and visibility changes of different shards run in parallel and only lock the
+ * shard of the message, see {@link LeaseShard}. Leases whose visibility was changed are moved from
+ * the in progress file to an extended leases file of the shard with {@value
+ * #EXTENDED_LEASES_FILE_SUFFIX} appended, rows of which are kept ordered by lease time, so both files
+ * are ordered and expired leases are found at their heads. Pull sweeps expired leases of every shard
+ * to an expired leases file with in progress suffix followed by {@value #EXPIRED_LEASES_FILE_SUFFIX}
+ * only once the earliest lease it knows of expires and redelivers them from its head, expired leases
+ * file is guarded by the {@link Priority#NORMAL} lane lock. Every lease row carries a sequence number
+ * taken from the counters file under the same lock, shard heads are merged by lease time and then by
+ * sequence, so leases are redelivered in the order they were taken even if they share a millisecond.
+ * <p>
+ * Message counts of a queue are kept in a binary counters file with queue name followed by {@value
+ * #COUNTERS_FILE_SUFFIX}, it holds ready and delayed counts of every lane followed by the in progress
+ * count of every shard, the expired count, the number of visibility changes of every shard and the
+ * groups version followed by the lease sequence. Every count is only updated under the lock that
+ * already guards the file it counts, so counters need no locking of their own and {@link
+ * #stats(String)} reads them without scanning queue files. Counters of a queue created before counters
+ * file existed are rebuilt once by counting rows.
+ * <p>
+ * Grouped messages are appended to a grouped file with queue name followed by {@value
+ * #GROUPED_FILE_SUFFIX} as {@code group,id,payload,epochMillis} rows and counted as ready messages of
+ * the {@link Priority#NORMAL} lane, whose lock guards the file. Group of a leased message is recorded
+ * as {@code group,id} row in a released groups file with in progress suffix followed by {@value
+ * #GROUPED_FILE_SUFFIX}, which is guarded by the same lock, until the message is deleted.
+ * Pull leases the first grouped row whose group is not released, or the normal lane head if it is
+ * older, so a group has at most one message in flight. Grouped rows are scanned only when grouped file
+ * is not empty. Every change of either file bumps a groups version counter, while the version stays
+ * the same each service instance keeps released groups in memory together with the offset of the
+ * first grouped row that might be releasable, so pull neither rereads released groups file nor
+ * rescans grouped rows it already found blocked.
+ * <p>
+ * {@link #moveTo(String, SimpleMessage, String, String)} appends a {@code id,movedId,targetQueue} intent
+ * row to a moves file of the lease shard, named like the in progress file followed by {@value
+ * #MOVES_FILE_SUFFIX}, before it pushes to the target queue and removes the row once the lease is
+ * gone, see {@link MoveJournal}. Intent left by a process that crashed in between is resolved when
+ * queue files are opened: the lease is removed if the target queue holds the moved message and is left
+ * to expire otherwise.
+ * <p>
+ * Queues {@link #pullAny(Collection, Duration)} waits on are watched for as long as it waits: pushes,
+ * pulls and visibility changes of this service report the time such queue next has something to pull
+ * to a {@link ReadinessSet} and queues are taken from it instead of being pulled from one by one.
+ * Changes made by other processes are noticed through the counters file, which every such change
+ * writes to: once in {@value #READINESS_RESCAN_INTERVAL} milliseconds counters of watched queues are
+ * compared with the ones seen last time, and only queues whose counters changed are locked and have
+ * their heads reread.
+ * <p>
+ * {@link #drain(String)} leases and deletes rows in chunks, so every chunk costs a single compaction of
+ * its lane and of the in progress file of each shard instead of one per message.
+ * <p>
+ * Contended file locks, compactions, redeliveries and opening of queue files are recorded as JDK
+ * Flight Recorder events of {@code com.example.jfr} package, row encoding and decoding events are
+ * disabled unless a recording enables them.
  */
-public class FileQueueService implements QueueService<SimpleMessage> {
+public class FileQueueService implements SnapshotQueueService<SimpleMessage>, Closeable {
 
-    private static final int COMPACTION_BUFFER_SIZE = 1024;
+    private static final int LINE_SEPARATOR_LENGTH = System.lineSeparator().length();
+
+    private static final String DELAYED_FILE_SUFFIX = "@";
+
+    private static final String LANE_SEPARATOR = "#";
+
+    private static final String DEDUPLICATION_FILE_SUFFIX = "!";
+
+    private static final String COUNTERS_FILE_SUFFIX = "~";
+
+    private static final String EXTENDED_LEASES_FILE_SUFFIX = "^";
+
+    private static final String GROUPED_FILE_SUFFIX = "%";
+
+    private static final int GROUPED_LANE = Priority.NORMAL.ordinal();
+
+    private static final String GROUP_DELIMITER = ",";
+
+    private static final byte GROUP_DELIMITER_BYTE = ',';
+
+    private static final String EXPIRED_LEASES_FILE_SUFFIX = "+";
+
+    private static final String MOVES_FILE_SUFFIX = "&";
+
+    private static final int LEASE_SHARDS = 8;
+
+    private static final int IN_PROGRESS_COUNTER = Priority.values().length * 2;
+
+    private static final int EXPIRED_COUNTER = IN_PROGRESS_COUNTER + LEASE_SHARDS;
+
+    private static final int VISIBILITY_CHANGE_COUNTER = EXPIRED_COUNTER + 1;
+
+    private static final int GROUPS_VERSION_COUNTER = VISIBILITY_CHANGE_COUNTER + LEASE_SHARDS;
+
+    private static final int LEASE_SEQUENCE_COUNTER = GROUPS_VERSION_COUNTER + 1;
+
+    private static final int COUNTERS = LEASE_SEQUENCE_COUNTER + 1;
+
+    private static final long READINESS_RESCAN_INTERVAL = 100;
+
+    private static final long UNKNOWN_READY_TIME = -1;
+
+    private static final long EVICTED = Long.MIN_VALUE;
+
+    private static final int DRAIN_CHUNK_ROWS = 1_000;
+
+    private static final String SNAPSHOT_FILE_PREFIX = "snapshot";
+
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    private static final EventType DECODE_EVENT = EventType.getEventType(RecordDecodeEvent.class);
 
     private final String storagePath;
 
@@ -52,8 +213,35 @@ public class FileQueueService implements QueueService<SimpleMessage> {
 
     private final long lockTimeout;
 
+    private final long deduplicationWindow;
+
     private final SimpleMessageMapper mapper = new SimpleMessageMapper();
 
+    private final Map<String, QueueFiles> filesByQueue = new ConcurrentHashMap<>();
+
+    private final Map<String, FileDeduplicationLog> deduplicationLogsByQueue = new ConcurrentHashMap<>();
+
+    private final ReadinessSet readiness = new ReadinessSet();
+
+    /**
+     * Number of {@link #pullAny(Collection, Duration)} calls waiting on each watched queue.
+     */
+    private final Map<String, Integer> waitersByQueue = new ConcurrentHashMap<>();
+
+    /**
+     * Removes a waiter of the queue, queue is forgotten atomically with its last waiter, so a new waiter
+     * always rescans it.
+     */
+    private final BiFunction<String, Integer, Integer> removeWaiter = (queue, waiters) -> {
+        if (waiters > 1) {
+            return waiters - 1;
+        }
+        readiness.remove(queue);
+        return null;
+    };
+
+    private final AtomicLong nextReadinessRescan = new AtomicLong();
+
     /**
      * Constructor for {@link FileQueueService}
      *
@@ -67,11 +255,31 @@ public class FileQueueService implements QueueService<SimpleMessage> {
                             final String fileFormat,
                             final String inProgressFileSuffix,
                             final long lockTimeout) {
+        this(visibilityTimeout, storagePath, fileFormat, inProgressFileSuffix, lockTimeout,
+             DeduplicationWindow.DEFAULT_WINDOW);
+    }
+
+    /**
+     * Constructor for {@link FileQueueService}
+     *
+     * @param visibilityTimeout    millisecond timeout for message re delivery if not deleted
+     * @param fileFormat           effectively file suffix, that will be used as underlying storage
+     * @param inProgressFileSuffix suffix for in progress queue is appended after the queue name, but
+     *                             before file format
+     * @param deduplicationWindow  minimal time in milliseconds deduplication id is remembered for
+     */
+    public FileQueueService(final long visibilityTimeout,
+                            final String storagePath,
+                            final String fileFormat,
+                            final String inProgressFileSuffix,
+                            final long lockTimeout,
+                            final long deduplicationWindow) {
         this.storagePath = storagePath;
         this.fileFormat = fileFormat;
         this.inProgressFileSuffix = inProgressFileSuffix;
         this.visibilityTimeout = visibilityTimeout;
         this.lockTimeout = lockTimeout;
+        this.deduplicationWindow = deduplicationWindow;
     }
 
     /**
@@ -86,19 +294,117 @@ public class FileQueueService implements QueueService<SimpleMessage> {
      */
     @Override
     public void push(String queue, String message) {
+        push(queue, message, PushOptions.defaults());
+    }
+
+    /**
+     * Pushes message to a lane of specified queue. Delayed message is stored in a delay bucket until
+     * it is due and might become visible up to {@value DelayBuckets#DELAY_BUCKET} milliseconds later than
+     * requested. Grouped message is stored in the grouped file and is not pulled while another message
+     * of its group is in flight. Message is silently dropped if its deduplication id was pushed to the
+     * same queue within deduplication window by any process.
+     *
+     * @param queue   to push message to
+     * @param message string body of a message
+     * @param options delivery options of a message
+     * @throws LockTimeoutException      if service weren't able to acquire lock by specified timeout
+     * @throws InvalidMessageBodyContent if non allowed symbols were found in message string,
+     *                                   deduplication id or group id
+     */
+    @Override
+    public void push(String queue, String message, PushOptions options) {
         validateMessage(message);
+        if (Objects.nonNull(options.getGroupId())) {
+            validateMessage(options.getGroupId());
+        }
         final SimpleMessage messageObject = Messages.createMessage(message);
-        try (FileChannel queueChannel = FileChannel.open(Paths.get(getFileName(queue)), APPEND, CREATE)) {
-            tryLock(queueChannel);
-            push(queueChannel, messageObject);
+        final String deduplicationId = options.getDeduplicationId();
+        if (Objects.isNull(deduplicationId)) {
+            push(queue, messageObject, options);
+            return;
+        }
+        validateMessage(deduplicationId);
+        try (FileChannel deduplicationChannel = FileChannel
+                .open(Paths.get(getDeduplicationFileName(queue)), READ, WRITE, CREATE)) {
+            tryLock(queue, deduplicationChannel);
+            final FileDeduplicationLog deduplicationLog = deduplicationLogsByQueue
+                    .computeIfAbsent(queue, name -> new FileDeduplicationLog(deduplicationWindow));
+            synchronized (deduplicationLog) {
+                final long now = System.currentTimeMillis();
+                if (deduplicationLog.contains(deduplicationChannel, deduplicationId, now)) {
+                    return;
+                }
+                if (tryPush(queue, messageObject, options)) {
+                    deduplicationLog.append(deduplicationChannel, deduplicationId, now);
+                    return;
+                }
+            }
         } catch (IOException e) {
             throw new UnableToAccessUnderlyingStore(e.getMessage(), e);
         }
+        //Queue was evicted, deduplication file might have been deleted along with it
+        push(queue, messageObject, options);
+    }
+
+    private void push(final String queue, final SimpleMessage messageObject, final PushOptions options) {
+        while (!tryPush(queue, messageObject, options)) {
+            //Files of an evicted queue were dropped, next attempt opens new ones
+        }
+    }
+
+    /**
+     * @return false if the queue was evicted by another process and nothing was pushed
+     */
+    private boolean tryPush(final String queue, final SimpleMessage messageObject, final PushOptions options) {
+        //Grouped rows are counted in and guarded by the grouped lane, options reject delayed groups
+        final int lane = Objects.isNull(options.getGroupId()) ? options.getPriority().ordinal() : GROUPED_LANE;
+        while (true) {
+            final QueueFiles files = getFiles(queue);
+            synchronized (files) {
+                if (files.closed) {
+                    continue;
+                }
+                boolean evicted = false;
+                try {
+                    files.laneLocks[lane] = tryLock(files.queue, files.lanes[lane]);
+                    final long now = System.currentTimeMillis();
+                    final int counter = options.isDelayed() ? getDelayedCounter(lane) : getReadyCounter(lane);
+                    final long count = files.getCounter(counter);
+                    if (count == EVICTED) {
+                        evicted = true;
+                    } else if (options.isDelayed()) {
+                        final long bucket = files.delayed[lane].push(encode(messageObject),
+                                                                     now + options.getDelay().toMillis());
+                        files.setCounter(counter, count + 1);
+                        reportReadiness(queue, files, Math.min(files.readyTime, bucket), now, false);
+                    } else {
+                        if (Objects.isNull(options.getGroupId())) {
+                            push(files.lanes[lane], messageObject);
+                        } else {
+                            push(files.grouped,
+                                 options.getGroupId() + GROUP_DELIMITER + mapper.toString(messageObject));
+                            //Appended row leaves released groups and blocked rows as they are
+                            changeGroups(files);
+                        }
+                        files.setCounter(counter, count + 1);
+                        reportReadiness(queue, files, 0, now, false);
+                    }
+                } catch (IOException e) {
+                    throw new UnableToAccessUnderlyingStore(e.getMessage(), e);
+                } finally {
+                    files.unlock();
+                }
+                if (evicted) {
+                    forget(queue, files);
+                }
+                return !evicted;
+            }
+        }
     }
 
     /**
-     * Pulls message from specified queue in order of addition. If queue is empty or does not exist
-     * returns null.
+     * Pulls message from specified queue in order of addition within a lane. Lanes are selected by
+     * weighted round robin. If queue is empty or does not exist returns null.
      *
      * @param queue to pull message from
      * @return {@link SimpleMessage}
@@ -107,35 +413,137 @@ public class FileQueueService implements QueueService<SimpleMessage> {
      */
     @Override
     public SimpleMessage pull(String queue) {
-        try (FileChannel queueChannel = FileChannel.open(Paths.get(getFileName(queue)), READ, WRITE);
-             FileChannel inProgressQueueChannel = FileChannel
-                     .open(Paths.get(getInProgressFileName(queue)), READ, WRITE, CREATE)) {
-            tryLock(queueChannel);
-            tryLock(inProgressQueueChannel);
-            final SimpleMessage inProgress = pollIf(inProgressQueueChannel,
-                                                    message -> Messages.isExpired(message, visibilityTimeout),
-                                                    message -> push(inProgressQueueChannel,
-                                                                    Messages.createMessage(message)));
-            if (Objects.nonNull(inProgress)) {
-                return inProgress;
-            }
-            final SimpleMessage nextMessage = pollIf(queueChannel,
-                                                     message -> true,
-                                                     message -> push(inProgressQueueChannel,
-                                                                     Messages.createMessage(message)));
-            if (Objects.nonNull(nextMessage)) {
-                return nextMessage;
+        return pull(queue, false);
+    }
+
+    /**
+     * Takes queues from the readiness set, which operations of this service keep up to date, so empty
+     * queues are neither locked nor read. Ready queues are served in round robin manner. Queues are
+     * watched while the call waits on them, queue that is not watched yet has its heads read once when
+     * the call starts, and queues changed by other processes are noticed by comparing their counters
+     * once in {@value #READINESS_RESCAN_INTERVAL} milliseconds.
+     *
+     * @param queues  to pull message from
+     * @param maxWait time to wait for a message if every queue is empty
+     * @return message together with its queue or null if every queue stayed empty or waiting thread was
+     * interrupted
+     * @throws LockTimeoutException if service weren't able to acquire lock by specified timeout
+     */
+    @Override
+    public Delivery<SimpleMessage> pullAny(final Collection<String> queues, final Duration maxWait) {
+        final Set<String> candidates = queues instanceof Set ? (Set<String>) queues : new HashSet<>(queues);
+        final long deadline = System.currentTimeMillis() + maxWait.toMillis();
+        final List<String> newlyWatched = new ArrayList<>();
+        for (String queue : candidates) {
+            if (waitersByQueue.merge(queue, 1, Integer::sum) == 1) {
+                newlyWatched.add(queue);
             }
+        }
+        try {
+            for (String queue : newlyWatched) {
+                rescanReadiness(queue, System.currentTimeMillis(), true);
+            }
+            while (true) {
+                rescanChangedQueues(System.currentTimeMillis());
+                final String queue = readiness.take(candidates, Math.min(deadline, nextReadinessRescan.get()));
+                if (Objects.nonNull(queue)) {
+                    final SimpleMessage message = pull(queue, true);
+                    if (Objects.nonNull(message)) {
+                        return Delivery.of(queue, message);
+                    }
+                } else if (System.currentTimeMillis() >= deadline || Thread.currentThread().isInterrupted()) {
+                    return null;
+                }
+            }
+        } finally {
+            for (String queue : candidates) {
+                waitersByQueue.computeIfPresent(queue, removeWaiter);
+            }
+        }
+    }
+
+    /**
+     * @param taken whether queue was taken from the readiness set, so it has to be reported even if its
+     *              ready time did not change
+     */
+    private SimpleMessage pull(final String queue, final boolean taken) {
+        while (true) {
+            final QueueFiles files = getExistingFiles(queue);
+            if (Objects.isNull(files)) {
+                return null;
+            }
+            synchronized (files) {
+                if (files.closed) {
+                    continue;
+                }
+                boolean reported = false;
+                try {
+                    for (int lane = 0; lane < PRIORITIES.length; lane++) {
+                        files.laneLocks[lane] = tryLock(files.queue, files.lanes[lane]);
+                    }
+                    final SimpleMessage message = pull(files);
+                    //Evicted queue looks empty, so the marker is only checked when nothing was pulled
+                    if (Objects.nonNull(message) || !isEvicted(files)) {
+                        if (taken || waitersByQueue.containsKey(queue)) {
+                            reportReadiness(queue, files, getReadyTime(files), System.currentTimeMillis(), taken);
+                        }
+                        reported = true;
+                        return message;
+                    }
+                } catch (IOException e) {
+                    throw new UnableToAccessUnderlyingStore(e.getMessage(), e);
+                } finally {
+                    files.unlock();
+                    if (taken && !reported) {
+                        //Queue left the readiness set, next rescan puts it back even if counters did not change
+                        files.readyTime = UNKNOWN_READY_TIME;
+                    }
+                }
+                forget(queue, files);
+            }
+        }
+    }
+
+    private SimpleMessage pull(final QueueFiles files) throws IOException {
+        final long now = System.currentTimeMillis();
+        for (int lane = 0; lane < PRIORITIES.length; lane++) {
+            releaseDelayed(files, lane, now);
+            files.nonEmptyLanes[lane] = files.lanes[lane].size() > 0;
+        }
+        if (now >= files.nextReap.get()) {
+            reapExpiredLeases(files, now);
+        }
+        final int expiredRowLength = files.readRow(files.expiredLeases, 0);
+        if (expiredRowLength > 0) {
+            return redeliver(files, expiredRowLength, now);
+        }
+        final long groupedPosition = findReleasableRow(files);
+        final long groupedCreationTime = groupedPosition < 0 ? 0 : getGroupedView(files).getCreationTime();
+        files.nonEmptyLanes[GROUPED_LANE] |= groupedPosition >= 0;
+        final int lane = files.scheduler.next(files.nonEmptyLane);
+        if (lane < 0) {
             return null;
-        } catch (NoSuchFileException e) {
+        }
+        final int rowLength = files.readRow(files.lanes[lane], 0);
+        final SimpleMessage message;
+        if (lane == GROUPED_LANE && groupedPosition >= 0
+                && (rowLength == 0 || files.view(rowLength).getCreationTime() > groupedCreationTime)) {
+            message = leaseGrouped(files, groupedPosition, now);
+        } else if (rowLength > 0) {
+            message = lease(files, files.lanes[lane], rowLength, now);
+        } else {
             return null;
-        } catch (IOException e) {
-            throw new UnableToAccessUnderlyingStore(e.getMessage(), e);
         }
+        files.addToCounter(getReadyCounter(lane), -1);
+        return message;
     }
 
     /**
      * Removes message from specified queue. Also removes message from re-delivery queue.
+     * <p>
+     * Lease is looked up in the lease shard of the message alone, so deletes of messages of different
+     * shards run in parallel. Lanes are locked only if lease was already reaped or queue has leased
+     * messages of groups that have to be released.
      *
      * @param queue   to delete messages from
      * @param message to delete
@@ -144,104 +552,1768 @@ public class FileQueueService implements QueueService<SimpleMessage> {
      */
     @Override
     public void delete(final String queue, final SimpleMessage message) {
-        try (FileChannel inProgressChannel = FileChannel.open(Paths.get(getInProgressFileName(queue)), READ, WRITE)) {
-            tryLock(inProgressChannel);
-            deleteIf(inProgressChannel, line -> {
-                final SimpleMessage mapped = mapper.toMessage(line);
-                return Objects.equals(message.getId(), mapped.getId());
-            });
+        while (true) {
+            final QueueFiles files = getExistingFiles(queue);
+            if (Objects.isNull(files)) {
+                throw new DeletionFailed("Queue " + queue + " does not exist.");
+            }
+            final boolean deleted;
+            try {
+                final LeaseShard shard = lockShard(files, getShard(message.getId()));
+                if (Objects.isNull(shard)) {
+                    continue;
+                }
+                try {
+                    deleted = shard.removeLease(message.getId());
+                } finally {
+                    shard.unlock();
+                }
+            } catch (IOException e) {
+                throw new DeletionFailed(e.getMessage(), e);
+            }
+            if ((!deleted || mightHoldGroups(files)) && !completeDelete(queue, message.getId(), !deleted)) {
+                continue;
+            }
+            return;
+        }
+    }
+
+    /**
+     * Deletes reaped lease of the message from the expired leases file and releases group of the message.
+     *
+     * @param expired whether lease was not found in its shard, so it might have been reaped
+     * @return false if files of the queue were closed meanwhile
+     */
+    private boolean completeDelete(final String queue, final UUID id, final boolean expired) {
+        final QueueFiles files = getExistingFiles(queue);
+        if (Objects.isNull(files)) {
+            return true;
+        }
+        synchronized (files) {
+            if (files.closed) {
+                return false;
+            }
+            try {
+                files.laneLocks[GROUPED_LANE] = tryLock(files.queue, files.lanes[GROUPED_LANE]);
+                if (expired && files.deleteRow(files.expiredLeases, id)) {
+                    files.addToCounter(EXPIRED_COUNTER, -1);
+                } else if (expired && getShard(id) != 0) {
+                    //Leases taken before leases were sharded are all in the first shard
+                    lockShard(files, 0).removeLease(id);
+                }
+                if (releaseGroup(files, id)) {
+                    //Next message of the group might be pullable now
+                    reportReadiness(queue, files, 0, System.currentTimeMillis(), false);
+                }
+                return true;
+            } catch (IOException e) {
+                throw new DeletionFailed(e.getMessage(), e);
+            } finally {
+                files.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return whether queue might have leased messages of groups, which is checked without lanes locked
+     */
+    private static boolean mightHoldGroups(final QueueFiles files) {
+        try {
+            return files.releasedGroups.size() > 0;
         } catch (IOException e) {
-            throw new DeletionFailed(e.getMessage(), e);
+            return true;
         }
     }
 
-    private void push(final FileChannel channel, final SimpleMessage message) {
+    /**
+     * Leases chunks of up to {@value #DRAIN_CHUNK_ROWS} rows from the head of the first non empty lane
+     * with a single append to the in progress file of each lease shard and a single compaction of the
+     * lane, and deletes a consumed chunk with a single compaction per shard as long as its rows are still
+     * there in lease order, so draining a queue does not compact lane once per message. Lanes are drained
+     * in priority order, grouped rows and expired leases are pulled one at a time once lanes are empty.
+     *
+     * @param queue to drain
+     * @return stream of messages that ends once queue has nothing to pull
+     * @throws LockTimeoutException if service weren't able to acquire lock by specified timeout
+     */
+    @Override
+    public Stream<SimpleMessage> drain(final String queue) {
+        return LeasedChunkSpliterator.stream(new FileChunks(queue));
+    }
+
+    /**
+     * Copies lane files and grouped file of the queue to a temporary file under the lane locks and
+     * streams rows of the copy, which is split at row boundaries for parallel processing and deleted
+     * once the stream is closed. Delayed messages are included once a pull moved them to their lane.
+     *
+     * @param queue to read
+     * @return stream of messages that has to be closed, empty if queue does not exist
+     * @throws LockTimeoutException if service weren't able to acquire lock by specified timeout
+     */
+    @Override
+    public Stream<SimpleMessage> snapshot(final String queue) {
+        while (true) {
+            final QueueFiles files = getExistingFiles(queue);
+            if (Objects.isNull(files)) {
+                return Stream.empty();
+            }
+            synchronized (files) {
+                if (files.closed) {
+                    continue;
+                }
+                FileChannel copy = null;
+                try {
+                    for (int lane = 0; lane < PRIORITIES.length; lane++) {
+                        files.laneLocks[lane] = tryLock(files.queue, files.lanes[lane]);
+                    }
+                    copy = FileChannel.open(Files.createTempFile(SNAPSHOT_FILE_PREFIX, fileFormat),
+                                            READ, WRITE, DELETE_ON_CLOSE);
+                    for (FileChannel lane : files.lanes) {
+                        transfer(lane, copy);
+                    }
+                    final long groupedFrom = copy.size();
+                    transfer(files.grouped, copy);
+                    if (copy.size() > 0 || !isEvicted(files)) {
+                        final FileChannel rows = copy;
+                        copy = null;
+                        return StreamSupport.stream(new FileRowSpliterator(rows, 0, rows.size(), groupedFrom), false)
+                                            .onClose(() -> {
+                                                try {
+                                                    rows.close();
+                                                } catch (IOException e) {
+                                                    throw new UnableToAccessUnderlyingStore(e.getMessage(), e);
+                                                }
+                                            });
+                    }
+                } catch (IOException e) {
+                    throw new UnableToAccessUnderlyingStore(e.getMessage(), e);
+                } finally {
+                    files.unlock();
+                    closeQuietly(copy);
+                }
+                forget(queue, files);
+            }
+        }
+    }
+
+    /**
+     * Appends new payload to the {@link Priority#NORMAL} lane of the target queue and removes the message
+     * row from the lease shard files of the source queue while holding the target lane lock and the
+     * source shard lock, files of both queues are locked in queue name order. Pushed message has default
+     * options. Lease that has already expired and was reaped is not moved. Move intent is recorded in the
+     * moves file of the shard for the duration of the move, so a move interrupted by a crash is completed
+     * or rolled back once the source queue files are opened again.
+     *
+     * @param sourceQueue message was pulled from
+     * @param message     to delete from the source queue
+     * @param targetQueue to push new payload to
+     * @param newPayload  string body of the pushed message
+     * @return false if message was not in flight anymore and nothing was pushed
+     * @throws LockTimeoutException      if service weren't able to acquire lock by specified timeout
+     * @throws InvalidMessageBodyContent if non allowed symbols were found in new payload
+     */
+    @Override
+    public boolean moveTo(final String sourceQueue,
+                          final SimpleMessage message,
+                          final String targetQueue,
+                          final String newPayload) {
+        validateMessage(newPayload);
+        final SimpleMessage movedMessage = Messages.createMessage(newPayload);
+        final boolean sourceFirst = sourceQueue.compareTo(targetQueue) <= 0;
+        while (true) {
+            final QueueFiles source = getExistingFiles(sourceQueue);
+            if (Objects.isNull(source)) {
+                return false;
+            }
+            final QueueFiles target = getFiles(targetQueue);
+            synchronized (sourceFirst ? source : target) {
+                synchronized (sourceFirst ? target : source) {
+                    if (source.closed || target.closed) {
+                        continue;
+                    }
+                    boolean evicted = false;
+                    boolean moved = false;
+                    try {
+                        final int shardIndex = getShard(message.getId());
+                        final LeaseShard shard;
+                        if (source == target || !sourceFirst) {
+                            target.laneLocks[GROUPED_LANE] = tryLock(target.queue, target.lanes[GROUPED_LANE]);
+                            shard = lockShard(source, shardIndex);
+                        } else {
+                            shard = lockShard(source, shardIndex);
+                            target.laneLocks[GROUPED_LANE] = tryLock(target.queue, target.lanes[GROUPED_LANE]);
+                        }
+                        FileChannel leases = shard.inProgress;
+                        long position = shard.findRow(leases, message.getId());
+                        if (position < 0) {
+                            leases = shard.extendedLeases.get();
+                            position = Objects.isNull(leases) ? -1 : shard.findRow(leases, message.getId());
+                        }
+                        if (position < 0) {
+                            return false;
+                        }
+                        final int rowLength = shard.row.position();
+                        final long count = target.getCounter(getReadyCounter(GROUPED_LANE));
+                        if (count == EVICTED) {
+                            evicted = true;
+                        } else {
+                            final long journalSize = shard.moves.append(message.getId(), movedMessage.getId(),
+                                                                        targetQueue);
+                            push(target.lanes[GROUPED_LANE], movedMessage);
+                            target.setCounter(getReadyCounter(GROUPED_LANE), count + 1);
+                            shard.compact(leases, position, position + rowLength);
+                            shard.addLeaseCount(-1);
+                            shard.moves.truncate(journalSize);
+                            reportReadiness(targetQueue, target, 0, System.currentTimeMillis(), false);
+                            moved = true;
+                        }
+                    } catch (IOException e) {
+                        throw new UnableToAccessUnderlyingStore(e.getMessage(), e);
+                    } finally {
+                        target.unlock();
+                        source.unlock();
+                    }
+                    if (moved) {
+                        //Group is released under the source lane lock once the target lane lock is released
+                        if (mightHoldGroups(source)) {
+                            completeDelete(sourceQueue, message.getId(), false);
+                        }
+                        return true;
+                    }
+                    if (evicted) {
+                        forget(targetQueue, target);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Rewrites lease time of the message row, so it expires specified time after now, and moves the row
+     * to its place in the extended leases file of its shard. Lease is identified by message id only, so
+     * lease of a message redelivered to another consumer is changed as well. Lease that has already
+     * expired and was reaped is not changed.
+     *
+     * @param queue   message was pulled from
+     * @param message to change visibility of
+     * @param timeout time message stays invisible to consumers
+     * @return false if message is not in flight anymore
+     * @throws IllegalArgumentException if timeout is negative
+     * @throws LockTimeoutException     if service weren't able to acquire lock by specified timeout
+     */
+    @Override
+    public boolean changeVisibility(final String queue, final SimpleMessage message, final Duration timeout) {
+        if (timeout.isNegative()) {
+            throw new IllegalArgumentException("Visibility timeout must not be negative.");
+        }
+        while (true) {
+            final QueueFiles files = getExistingFiles(queue);
+            if (Objects.isNull(files)) {
+                return false;
+            }
+            final long now = System.currentTimeMillis();
+            final long expiry = now + timeout.toMillis();
+            try {
+                final LeaseShard shard = lockShard(files, getShard(message.getId()));
+                if (Objects.isNull(shard)) {
+                    continue;
+                }
+                try {
+                    if (!shard.changeLeaseTime(message.getId(), expiry - visibilityTimeout)) {
+                        return false;
+                    }
+                    //Lets other processes notice the lease might expire earlier than they know of
+                    shard.addToCounter(getVisibilityChangeCounter(shard.index), 1);
+                } finally {
+                    shard.unlock();
+                }
+            } catch (IOException e) {
+                throw new UnableToAccessUnderlyingStore(e.getMessage(), e);
+            }
+            files.nextReap.accumulateAndGet(expiry, Math::min);
+            if (waitersByQueue.containsKey(queue)) {
+                synchronized (files) {
+                    if (!files.closed) {
+                        reportReadiness(queue, files, Math.min(files.readyTime, expiry), now, false);
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Reads message counts from the counters file of the queue and age of the oldest message from the
+     * lane heads. Takes the same locks as pull and every lease shard in turn, so ready counts are
+     * consistent with each other.
+     *
+     * @param queue to describe
+     * @return statistics of the queue
+     * @throws LockTimeoutException if service weren't able to acquire lock by specified timeout
+     */
+    @Override
+    public QueueStats stats(String queue) {
+        while (true) {
+            final QueueFiles files = getExistingFiles(queue);
+            if (Objects.isNull(files)) {
+                return QueueStats.empty();
+            }
+            synchronized (files) {
+                if (files.closed) {
+                    continue;
+                }
+                try {
+                    for (int lane = 0; lane < PRIORITIES.length; lane++) {
+                        files.laneLocks[lane] = tryLock(files.queue, files.lanes[lane]);
+                    }
+                    long inFlight = files.getCounter(EXPIRED_COUNTER);
+                    if (inFlight != EVICTED) {
+                        for (int index = 0; index < LEASE_SHARDS; index++) {
+                            final LeaseShard shard = lockShard(files, index);
+                            try {
+                                inFlight += shard.getLeaseCount();
+                            } finally {
+                                shard.unlock();
+                            }
+                        }
+                        return stats(files, inFlight);
+                    }
+                } catch (IOException e) {
+                    throw new UnableToAccessUnderlyingStore(e.getMessage(), e);
+                } finally {
+                    files.unlock();
+                }
+                forget(queue, files);
+            }
+        }
+    }
+
+    private QueueStats stats(final QueueFiles files, final long inFlight) throws IOException {
+        final long now = System.currentTimeMillis();
+        long depth = 0;
+        long delayed = 0;
+        long oldestCreationTime = now;
+        for (int lane = 0; lane < PRIORITIES.length; lane++) {
+            depth += files.getCounter(getReadyCounter(lane));
+            delayed += files.getCounter(getDelayedCounter(lane));
+            final int rowLength = files.readRow(files.lanes[lane], 0);
+            if (rowLength > 0) {
+                oldestCreationTime = Math.min(oldestCreationTime, files.view(rowLength).getCreationTime());
+            }
+        }
+        final int groupedRowLength = files.readRow(files.grouped, 0);
+        if (groupedRowLength > 0) {
+            files.row.position(groupedRowLength);
+            oldestCreationTime = Math.min(oldestCreationTime, getGroupedView(files).getCreationTime());
+        }
+        return QueueStats.builder()
+                         .depth(depth)
+                         .inFlight(inFlight)
+                         .delayed(delayed)
+                         .oldestMessageAge(Duration.ofMillis(Math.max(now - oldestCreationTime, 0)))
+                         .build();
+    }
+
+    /**
+     * Lists queues by their counters files in the storage directory.
+     *
+     * @return names of queues something was pushed to
+     */
+    @Override
+    public Set<String> listQueues() {
+        final Path probe = Paths.get(storagePath + COUNTERS_FILE_SUFFIX + fileFormat).toAbsolutePath();
+        final String prefix = probe.getFileName().toString()
+                                   .substring(0, probe.getFileName().toString().length()
+                                           - COUNTERS_FILE_SUFFIX.length() - fileFormat.length());
+        final String suffix = COUNTERS_FILE_SUFFIX + fileFormat;
+        try (Stream<Path> files = Files.list(probe.getParent())) {
+            return files.map(file -> file.getFileName().toString())
+                        .filter(name -> name.length() > prefix.length() + suffix.length()
+                                && name.startsWith(prefix) && name.endsWith(suffix))
+                        .map(name -> name.substring(prefix.length(), name.length() - suffix.length()))
+                        .collect(Collectors.toSet());
+        } catch (IOException e) {
+            throw new UnableToAccessUnderlyingStore(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Deletes files of every queue that is empty and was not changed for at least the idle timeout,
+     * queue is recreated by the next push. Queue with deduplication ids is kept until the
+     * deduplication window passes since its last deduplicated push as well. Queue is checked under
+     * the same locks push and pull take, so concurrent operations either happen before the check or
+     * see the queue evicted.
+     * <p>
+     * Evicted queue is marked by {@value #EVICTED} written to each of its counters before its files
+     * are deleted, so other processes that still have them open notice eviction when they push, pull
+     * nothing or read stats and drop their files instead of writing to deleted ones. Eviction is not
+     * scheduled by the service, caller decides how often to run it.
+     *
+     * @param idleTimeout time since the last change queue has to be left alone for to be evicted
+     * @return names of evicted queues
+     * @throws LockTimeoutException if service weren't able to acquire lock by specified timeout
+     */
+    public Set<String> evictIdleQueues(final Duration idleTimeout) {
+        final Set<String> evicted = new HashSet<>();
+        for (String queue : listQueues()) {
+            final Path deduplicationFile = Paths.get(getDeduplicationFileName(queue));
+            try {
+                if (!Files.exists(deduplicationFile)) {
+                    if (evict(queue, idleTimeout.toMillis(), null)) {
+                        evicted.add(queue);
+                    }
+                    continue;
+                }
+                try (FileChannel deduplicationChannel = FileChannel.open(deduplicationFile, READ, WRITE)) {
+                    tryLock(queue, deduplicationChannel);
+                    if (evict(queue, idleTimeout.toMillis(), deduplicationFile)) {
+                        Files.deleteIfExists(deduplicationFile);
+                        deduplicationLogsByQueue.remove(queue);
+                        evicted.add(queue);
+                    }
+                }
+            } catch (NoSuchFileException e) {
+                //Queue was evicted by another process in the meantime
+            } catch (IOException e) {
+                throw new UnableToAccessUnderlyingStore(e.getMessage(), e);
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * @param deduplicationFile locked deduplication file of the queue or null if queue has none
+     * @return true if queue was idle and its files were deleted
+     */
+    private boolean evict(final String queue, final long idleTimeout, final Path deduplicationFile)
+            throws IOException {
+        while (true) {
+            final QueueFiles files = getExistingFiles(queue);
+            if (Objects.isNull(files)) {
+                return false;
+            }
+            synchronized (files) {
+                if (files.closed) {
+                    continue;
+                }
+                boolean stale = false;
+                boolean evicted = false;
+                try {
+                    for (int lane = 0; lane < PRIORITIES.length; lane++) {
+                        files.laneLocks[lane] = tryLock(files.queue, files.lanes[lane]);
+                    }
+                    for (int index = 0; index < LEASE_SHARDS; index++) {
+                        lockShard(files, index);
+                    }
+                    //Stale files of a queue evicted by another process, queue might exist again
+                    stale = isEvicted(files);
+                    if (!stale && isIdle(queue, files, idleTimeout, deduplicationFile)) {
+                        for (int counter = 0; counter <= EXPIRED_COUNTER; counter++) {
+                            files.setCounter(counter, EVICTED);
+                        }
+                        deleteFiles(queue, files);
+                        evicted = true;
+                    }
+                } finally {
+                    files.unlock();
+                }
+                if (!stale && !evicted) {
+                    return false;
+                }
+                forget(queue, files);
+                if (evicted) {
+                    //Queue stays watched only while pull any waits on it, so it is noticed once recreated
+                    readiness.remove(queue);
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Locks of lanes and every lease shard must be held.
+     */
+    private boolean isIdle(final String queue,
+                           final QueueFiles files,
+                           final long idleTimeout,
+                           final Path deduplicationFile) throws IOException {
+        for (int counter = 0; counter <= EXPIRED_COUNTER; counter++) {
+            if (files.getCounter(counter) != 0) {
+                return false;
+            }
+        }
+        for (int lane = 0; lane < PRIORITIES.length; lane++) {
+            if (files.lanes[lane].size() > 0 || !files.delayed[lane].isEmpty()) {
+                return false;
+            }
+        }
+        for (LeaseShard shard : files.shards) {
+            if (!shard.isEmpty()) {
+                return false;
+            }
+        }
+        if (files.expiredLeases.size() > 0 || files.grouped.size() > 0 || files.releasedGroups.size() > 0) {
+            return false;
+        }
+        final long now = System.currentTimeMillis();
+        if (now - Files.getLastModifiedTime(Paths.get(getCountersFileName(queue))).toMillis() < idleTimeout) {
+            return false;
+        }
+        return Objects.isNull(deduplicationFile)
+                || now - Files.getLastModifiedTime(deduplicationFile).toMillis() >= deduplicationWindow;
+    }
+
+    /**
+     * Deletes files of the queue, counters file goes last, so it is listed until the queue is gone.
+     */
+    private void deleteFiles(final String queue, final QueueFiles files) throws IOException {
+        for (int lane = 0; lane < PRIORITIES.length; lane++) {
+            Files.deleteIfExists(Paths.get(getFileName(files.laneNames[lane])));
+            Files.deleteIfExists(Paths.get(getDelayedIndexFileName(files.laneNames[lane])));
+        }
+        for (int index = 0; index < LEASE_SHARDS; index++) {
+            Files.deleteIfExists(Paths.get(getInProgressFileName(queue, index)));
+            Files.deleteIfExists(Paths.get(getExtendedLeasesFileName(queue, index)));
+            Files.deleteIfExists(Paths.get(getMovesFileName(queue, index)));
+        }
+        Files.deleteIfExists(Paths.get(getExpiredLeasesFileName(queue)));
+        Files.deleteIfExists(Paths.get(getGroupedFileName(queue)));
+        Files.deleteIfExists(Paths.get(getReleasedGroupsFileName(queue)));
+        Files.deleteIfExists(Paths.get(getCountersFileName(queue)));
+    }
+
+    /**
+     * Lock of the {@link Priority#NORMAL} lane must be held.
+     *
+     * @return true if queue was evicted while files were open
+     */
+    private boolean isEvicted(final QueueFiles files) throws IOException {
+        return files.getCounter(EXPIRED_COUNTER) == EVICTED;
+    }
+
+    /**
+     * Closes files of an evicted queue, so the next operation opens new ones. Files monitor must be held
+     * and no locks of the files may be held.
+     */
+    private void forget(final String queue, final QueueFiles files) {
+        files.markClosed();
+        filesByQueue.remove(queue, files);
         try {
-            final String messageAsString = mapper.toString(message);
-            channel.position(channel.size());
-            channel.write(ByteBuffer.wrap(messageAsString.getBytes()));
+            files.close();
         } catch (IOException e) {
             throw new UnableToAccessUnderlyingStore(e.getMessage(), e);
         }
     }
 
-    private SimpleMessage pollIf(final FileChannel channel,
-                                 final Predicate<SimpleMessage> predicate,
-                                 final Consumer<SimpleMessage> onSuccessfulPoll) throws IOException {
-        BufferedReader reader = new BufferedReader(
-                Channels.newReader(channel, Charset.defaultCharset()));
-        final String messageAsString = reader.lines().findFirst().orElse(null);
-        if (Objects.nonNull(messageAsString)) {
-            final SimpleMessage message = mapper.toMessage(messageAsString);
-            if (predicate.test(message)) {
-                compact(channel, 0, messageAsString.length() + System.lineSeparator().length());
-                onSuccessfulPoll.accept(message);
-                return message;
+    /**
+     * Closes files of every queue opened by this service, files are opened again on the next
+     * operation with the queue.
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (String queue : filesByQueue.keySet()) {
+            final QueueFiles files = filesByQueue.remove(queue);
+            if (Objects.nonNull(files)) {
+                synchronized (files) {
+                    files.markClosed();
+                    try {
+                        files.close();
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                }
             }
         }
-        return null;
+        if (Objects.nonNull(failure)) {
+            throw failure;
+        }
     }
 
-    private void compact(final FileChannel channel, long from, long to) throws IOException {
-        long bytesToCopy = channel.size() - to;
-        long bufferSize = COMPACTION_BUFFER_SIZE > bytesToCopy
-                ? bytesToCopy
-                : COMPACTION_BUFFER_SIZE;
-        long copiedBytes = 0;
-        long readPosition = to;
-        long writePosition = from;
-        do {
-            ByteBuffer buffer = ByteBuffer.allocate((int) bufferSize);
-            copiedBytes += channel.read(buffer, readPosition);
-            readPosition += copiedBytes;
-            writePosition += channel.write(buffer.flip(), writePosition);
-        } while (bytesToCopy != copiedBytes);
-        //have to trim file size accounting for deleted message
-        channel.truncate(channel.size() - (to - from));
-    }
-
-    private void deleteIf(final FileChannel channel, final Predicate<String> predicate) throws IOException {
-        BufferedReader reader = new BufferedReader(Channels.newReader(channel, Charset.defaultCharset()));
-        long readBytes = 0;
-        String currentLine;
-        do {
-            currentLine = reader.readLine();
-            if (StringUtils.isNotEmpty(currentLine)) {
-                readBytes += currentLine.length() + System.lineSeparator().length();
-            }
-        } while (Objects.nonNull(currentLine) && !predicate.test(currentLine));
-        if (Objects.nonNull(currentLine)) {
-            compact(channel, readBytes - (currentLine.length() + System.lineSeparator().length()), readBytes);
-        }
-    }
-
-    private void tryLock(final FileChannel channel) throws IOException {
-        FileLock lock = null;
-        Instant lockRelease = Instant.now().plusMillis(lockTimeout);
-        while (Objects.isNull(lock)) {
-            try {
-                lock = channel.tryLock();
-            } catch (OverlappingFileLockException e) {
-                //Have to try to lock file again
+    /**
+     * Finds time a pull first has something to lease at: now if any lane has rows, otherwise when the
+     * earliest lease expires or the earliest delay bucket becomes due. Lane locks must be held, lease
+     * shards are locked one at a time.
+     *
+     * @return epoch millisecond or {@link ReadinessSet#NEVER} if queue holds nothing to pull
+     */
+    private long getReadyTime(final QueueFiles files) throws IOException {
+        long readyTime = ReadinessSet.NEVER;
+        for (int lane = 0; lane < PRIORITIES.length; lane++) {
+            if (files.lanes[lane].size() > 0) {
+                return 0;
             }
-            if (Instant.now().isAfter(lockRelease)) {
-                throw new LockTimeoutException("Unable to acquire file lock.");
+            if (files.getCounter(getDelayedCounter(lane)) != 0) {
+                readyTime = Math.min(readyTime, files.delayed[lane].getDueTime());
+            }
+        }
+        if (findReleasableRow(files) >= 0 || files.expiredLeases.size() > 0) {
+            return 0;
+        }
+        long leaseExpiry = ReadinessSet.NEVER;
+        for (int index = 0; index < LEASE_SHARDS; index++) {
+            final LeaseShard shard = lockShard(files, index);
+            try {
+                final long leaseTime = shard.getEarliestLeaseTime();
+                if (leaseTime != Long.MAX_VALUE) {
+                    leaseExpiry = Math.min(leaseExpiry, leaseTime + visibilityTimeout);
+                }
+            } finally {
+                shard.unlock();
             }
         }
+        //Leases changed by other processes are swept as soon as they are found to expire
+        files.nextReap.accumulateAndGet(leaseExpiry, Math::min);
+        return Math.min(readyTime, leaseExpiry);
     }
 
-    private void validateMessage(final String message) {
-        if (message.contains(System.lineSeparator()) || message.contains(",")) {
-            throw new InvalidMessageBodyContent(
-                    "Invalid message contents. Line separators and commas are not allowed.");
+    /**
+     * Updates readiness set with ready time of a queue {@link #pullAny(Collection, Duration)} was asked
+     * to pull from, readiness set is only locked when ready time changes. Files monitor must be held.
+     *
+     * @param force whether queue has to be reported even if its ready time did not change
+     */
+    private void reportReadiness(final String queue,
+                                 final QueueFiles files,
+                                 final long readyTime,
+                                 final long now,
+                                 final boolean force) {
+        if ((readyTime != files.readyTime || force) && waitersByQueue.containsKey(queue)) {
+            files.readyTime = readyTime;
+            readiness.update(queue, readyTime, now);
         }
     }
 
-    private String getFileName(final String queueName) {
-        return storagePath + queueName + fileFormat;
+    /**
+     * Rereads ready time of every watched queue whose counters changed since the last rescan if rescan
+     * is due, only one thread rescans at a time. Counters are compared without taking file locks.
+     */
+    private void rescanChangedQueues(final long now) {
+        final long due = nextReadinessRescan.get();
+        if (now < due || !nextReadinessRescan.compareAndSet(due, now + READINESS_RESCAN_INTERVAL)) {
+            return;
+        }
+        for (String queue : waitersByQueue.keySet()) {
+            final QueueFiles files = getExistingFiles(queue);
+            if (Objects.nonNull(files) && countersChanged(files)) {
+                rescanReadiness(queue, now, false);
+            }
+        }
     }
 
-    private String getInProgressFileName(final String queueName) {
-        return storagePath + queueName + inProgressFileSuffix + fileFormat;
+    /**
+     * Reads counters of the queue into the buffer of the rescanning thread and swaps it with the
+     * counters seen last time.
+     *
+     * @return whether counters changed since the last call or queue is missing from the readiness set
+     */
+    private boolean countersChanged(final QueueFiles files) {
+        synchronized (files) {
+            if (files.closed) {
+                return false;
+            }
+            final ByteBuffer counters = files.rescannedCounters;
+            Arrays.fill(counters.array(), (byte) 0);
+            counters.clear();
+            try {
+                while (counters.hasRemaining() && files.counters.read(counters, counters.position()) > 0) {
+                    //Counters are read in one go unless interrupted
+                }
+            } catch (IOException e) {
+                throw new UnableToAccessUnderlyingStore(e.getMessage(), e);
+            }
+            files.rescannedCounters = files.seenCounters;
+            files.seenCounters = counters;
+            return files.readyTime == UNKNOWN_READY_TIME
+                    || !Arrays.equals(counters.array(), files.rescannedCounters.array());
+        }
+    }
+
+    /**
+     * Rereads ready time of the queue.
+     *
+     * @param force whether queue has to be reported even if its ready time did not change
+     */
+    private void rescanReadiness(final String queue, final long now, final boolean force) {
+        while (true) {
+            final QueueFiles files = getExistingFiles(queue);
+            if (Objects.isNull(files)) {
+                return;
+            }
+            synchronized (files) {
+                if (files.closed) {
+                    continue;
+                }
+                boolean evicted = false;
+                try {
+                    for (int lane = 0; lane < PRIORITIES.length; lane++) {
+                        files.laneLocks[lane] = tryLock(files.queue, files.lanes[lane]);
+                    }
+                    final long readyTime = getReadyTime(files);
+                    evicted = readyTime == ReadinessSet.NEVER && isEvicted(files);
+                    reportReadiness(queue, files, readyTime, now, force);
+                } catch (IOException e) {
+                    throw new UnableToAccessUnderlyingStore(e.getMessage(), e);
+                } finally {
+                    files.unlock();
+                }
+                if (evicted) {
+                    forget(queue, files);
+                }
+                return;
+            }
+        }
+    }
+
+    private void push(final FileChannel channel, final SimpleMessage message) {
+        push(channel, encode(message));
+    }
+
+    private String encode(final SimpleMessage message) {
+        final RecordEncodeEvent event = new RecordEncodeEvent();
+        event.begin();
+        final String row = mapper.toString(message);
+        event.end();
+        if (event.shouldCommit()) {
+            event.bytes = row.length();
+            event.commit();
+        }
+        return row;
+    }
+
+    private void push(final FileChannel channel, final String row) {
+        try {
+            channel.write(ByteBuffer.wrap(row.getBytes(StandardCharsets.UTF_8)), channel.size());
+        } catch (IOException e) {
+            throw new UnableToAccessUnderlyingStore(e.getMessage(), e);
+        }
+    }
+
+    private static void transfer(final FileChannel source, final FileChannel target) throws IOException {
+        final long size = source.size();
+        long position = 0;
+        while (position < size) {
+            position += source.transferTo(position, size - position, target);
+        }
+    }
+
+    private static void closeQuietly(final FileChannel channel) {
+        try {
+            if (Objects.nonNull(channel)) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            //Temporary file is deleted on close anyway
+        }
+    }
+
+    /**
+     * Leases rows from the head of the first non empty lane, or pulls a single message if every lane is
+     * empty. Leases of each shard are appended at once. Locks of every lane must be held.
+     */
+    private LeasedChunk leaseChunk(final QueueFiles files) throws IOException {
+        final long now = System.currentTimeMillis();
+        final LeasedChunk chunk = new LeasedChunk();
+        for (int lane = 0; lane < PRIORITIES.length; lane++) {
+            releaseDelayed(files, lane, now);
+        }
+        for (int lane = 0; lane < PRIORITIES.length && chunk.messages.isEmpty(); lane++) {
+            final ByteArrayOutputStream[] leases = new ByteArrayOutputStream[LEASE_SHARDS];
+            final int[] leaseCounts = new int[LEASE_SHARDS];
+            long sequence = files.getCounter(LEASE_SEQUENCE_COUNTER);
+            long position = 0;
+            int rowLength;
+            while (chunk.messages.size() < DRAIN_CHUNK_ROWS
+                    && (rowLength = files.readRow(files.lanes[lane], position)) > 0) {
+                final SimpleMessage message = decode(files, rowLength);
+                chunk.messages.add(message);
+                final int index = getShard(message.getId());
+                if (Objects.isNull(leases[index])) {
+                    leases[index] = new ByteArrayOutputStream();
+                }
+                final byte[] row = files.row.array();
+                leases[index].write(row, 0, LeaseShard.toLeaseRow(row, rowLength - LINE_SEPARATOR_LENGTH,
+                                                                  sequence++, now));
+                leaseCounts[index]++;
+                position += rowLength;
+            }
+            if (position > 0) {
+                files.setCounter(LEASE_SEQUENCE_COUNTER, sequence);
+                for (int index = 0; index < LEASE_SHARDS; index++) {
+                    if (leaseCounts[index] > 0) {
+                        appendLeases(files, index, leases[index].toByteArray(), leaseCounts[index]);
+                    }
+                }
+                files.nextReap.accumulateAndGet(now + visibilityTimeout, Math::min);
+                files.compact(files.lanes[lane], 0, position);
+                files.addToCounter(getReadyCounter(lane), -chunk.messages.size());
+            }
+        }
+        if (chunk.messages.isEmpty()) {
+            final SimpleMessage message = pull(files);
+            if (Objects.nonNull(message)) {
+                chunk.messages.add(message);
+                chunk.pulled = true;
+            }
+        }
+        return chunk;
+    }
+
+    /**
+     * Appends rows leased at once to the in progress file of the shard.
+     */
+    private void appendLeases(final QueueFiles files, final int index, final byte[] rows, final int rowCount)
+            throws IOException {
+        final LeaseShard shard = lockShard(files, index);
+        try {
+            shard.appendLeases(ByteBuffer.wrap(rows), rowCount);
+        } finally {
+            shard.unlock();
+        }
+    }
+
+    /**
+     * Deletes leases of the chunk that still follow each other in the in progress file of their shard in
+     * lease order with a single compaction per shard.
+     *
+     * @return messages of the chunk that were not deleted
+     */
+    private List<SimpleMessage> deleteChunk(final String queue, final List<SimpleMessage> chunk) {
+        final List<List<SimpleMessage>> byShard = new ArrayList<>();
+        for (int index = 0; index < LEASE_SHARDS; index++) {
+            byShard.add(new ArrayList<>());
+        }
+        for (SimpleMessage message : chunk) {
+            byShard.get(getShard(message.getId())).add(message);
+        }
+        final List<SimpleMessage> left = new ArrayList<>();
+        for (int index = 0; index < LEASE_SHARDS; index++) {
+            final List<SimpleMessage> leased = byShard.get(index);
+            if (!leased.isEmpty()) {
+                final int deleted = deleteLeases(queue, index, leased);
+                left.addAll(leased.subList(deleted, leased.size()));
+            }
+        }
+        return left;
+    }
+
+    /**
+     * @return number of leading messages that were deleted from the in progress file of the shard
+     */
+    private int deleteLeases(final String queue, final int index, final List<SimpleMessage> leased) {
+        while (true) {
+            final QueueFiles files = getExistingFiles(queue);
+            if (Objects.isNull(files)) {
+                return 0;
+            }
+            try {
+                final LeaseShard shard = lockShard(files, index);
+                if (Objects.isNull(shard)) {
+                    continue;
+                }
+                try {
+                    return shard.removeLeases(leased);
+                } finally {
+                    shard.unlock();
+                }
+            } catch (IOException e) {
+                throw new DeletionFailed(e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Moves the first row of a channel to the end of in progress file of its lease shard with lease
+     * time as its creation time. Row must be read into the row buffer.
+     *
+     * @return message of the row with its original creation time
+     */
+    private SimpleMessage lease(final QueueFiles files,
+                                final FileChannel channel,
+                                final int rowLength,
+                                final long now) throws IOException {
+        final SimpleMessage message = decode(files, rowLength);
+        appendLease(files, message.getId(), rowLength, now);
+        files.compact(channel, 0, rowLength);
+        return message;
+    }
+
+    /**
+     * Leases the first row of the expired leases file held in the row buffer again. Lock of the {@link
+     * Priority#NORMAL} lane must be held.
+     */
+    private SimpleMessage redeliver(final QueueFiles files, final int rowLength, final long now) throws IOException {
+        final long leaseTime = files.view(rowLength).getCreationTime();
+        final int messageLength = LeaseShard.toMessageRow(files.row.array(), rowLength - LINE_SEPARATOR_LENGTH)
+                + LINE_SEPARATOR_LENGTH;
+        final SimpleMessage message = decode(files, messageLength);
+        appendLease(files, message.getId(), messageLength, now);
+        files.compact(files.expiredLeases, 0, rowLength);
+        files.addToCounter(EXPIRED_COUNTER, -1);
+        final RedeliveryEvent event = new RedeliveryEvent();
+        if (event.shouldCommit()) {
+            event.queue = files.queue;
+            event.messageId = message.getId().toString();
+            event.overdue = now - leaseTime - visibilityTimeout;
+            event.commit();
+        }
+        return message;
+    }
+
+    /**
+     * Decodes message of the row in the row buffer.
+     */
+    private static SimpleMessage decode(final RowBuffers files, final int rowLength) {
+        //Every leased row is decoded, so event is only created while it is enabled
+        if (!DECODE_EVENT.isEnabled()) {
+            return files.view(rowLength).toMessage();
+        }
+        final RecordDecodeEvent event = new RecordDecodeEvent();
+        event.begin();
+        final SimpleMessage message = files.view(rowLength).toMessage();
+        event.end();
+        if (event.shouldCommit()) {
+            event.queue = files.queue;
+            event.bytes = rowLength;
+            event.commit();
+        }
+        return message;
+    }
+
+    /**
+     * Leases grouped row at specified position and records its group as released.
+     */
+    private SimpleMessage leaseGrouped(final QueueFiles files, final long position, final long now)
+            throws IOException {
+        final int rowLength = files.readRow(files.grouped, position);
+        final byte[] row = files.row.array();
+        final int messageOffset = getGroupLength(row, rowLength) + 1;
+        final byte[] releasedGroup = Arrays.copyOf(row, messageOffset + SimpleMessageMapper.ID_LENGTH
+                + LINE_SEPARATOR_LENGTH);
+        System.arraycopy(System.lineSeparator().getBytes(StandardCharsets.UTF_8), 0, releasedGroup,
+                         messageOffset + SimpleMessageMapper.ID_LENGTH, LINE_SEPARATOR_LENGTH);
+        System.arraycopy(row, messageOffset, row, 0, rowLength - messageOffset);
+        final String group = new String(releasedGroup, 0, messageOffset - 1, StandardCharsets.UTF_8);
+        final SimpleMessage message = decode(files, rowLength - messageOffset);
+        appendLease(files, message.getId(), rowLength - messageOffset, now);
+        files.releasedGroups.write(ByteBuffer.wrap(releasedGroup), files.releasedGroups.size());
+        files.compact(files.grouped, position, position + rowLength);
+        if (changeGroups(files)) {
+            //Rows before the leased one were found blocked and stay blocked
+            files.releasedGroupNames.add(group);
+            files.blockedGroupedRows = position;
+        }
+        return message;
+    }
+
+    /**
+     * Appends message row held in the row buffer to the in progress file of its lease shard as a lease row
+     * with the next lease sequence. Lock of the {@link Priority#NORMAL} lane must be held.
+     */
+    private void appendLease(final QueueFiles files, final UUID id, final int rowLength, final long now)
+            throws IOException {
+        final long sequence = files.getCounter(LEASE_SEQUENCE_COUNTER);
+        files.setCounter(LEASE_SEQUENCE_COUNTER, sequence + 1);
+        files.row.clear().limit(LeaseShard.toLeaseRow(files.row.array(), rowLength - LINE_SEPARATOR_LENGTH,
+                                                      sequence, now));
+        final LeaseShard shard = lockShard(files, getShard(id));
+        try {
+            shard.appendLeases(files.row, 1);
+        } finally {
+            shard.unlock();
+        }
+        files.nextReap.accumulateAndGet(now + visibilityTimeout, Math::min);
+    }
+
+    /**
+     * Moves expired leases from the heads of in progress and extended leases files of every shard to the
+     * expired leases file pull takes them from, merged in lease time and sequence order, so leases are
+     * redelivered in the order they expired and leases that expired together in the order they were taken.
+     * Next sweep is due when the earliest lease seen or taken by this service
+     * expires, leases other processes take after the sweep expire no earlier than visibility timeout from
+     * now. Lane locks must be held, shards are locked in index order for the duration of the sweep.
+     */
+    private void reapExpiredLeases(final QueueFiles files, final long now) throws IOException {
+        files.nextReap.set(now + visibilityTimeout);
+        final FileChannel[] leases = new FileChannel[LEASE_SHARDS * 2];
+        final long[] leaseTimes = new long[leases.length];
+        final long[] sequences = new long[leases.length];
+        final long[] expiredBytes = new long[leases.length];
+        final long[] expiredRows = new long[leases.length];
+        try {
+            for (int index = 0; index < LEASE_SHARDS; index++) {
+                final LeaseShard shard = lockShard(files, index);
+                leases[index * 2] = shard.inProgress;
+                leases[index * 2 + 1] = shard.extendedLeases.get();
+            }
+            for (int file = 0; file < leases.length; file++) {
+                readLeaseHead(files.shards[file / 2], leases[file], 0, file, leaseTimes, sequences);
+            }
+            final ByteArrayOutputStream expired = new ByteArrayOutputStream();
+            while (true) {
+                int earliest = 0;
+                for (int file = 1; file < leases.length; file++) {
+                    if (leaseTimes[file] < leaseTimes[earliest]
+                            || leaseTimes[file] == leaseTimes[earliest] && sequences[file] < sequences[earliest]) {
+                        earliest = file;
+                    }
+                }
+                if (leaseTimes[earliest] > now - visibilityTimeout) {
+                    break;
+                }
+                final LeaseShard shard = files.shards[earliest / 2];
+                final int rowLength = shard.readRow(leases[earliest], expiredBytes[earliest]);
+                expired.write(shard.row.array(), 0, rowLength);
+                expiredBytes[earliest] += rowLength;
+                expiredRows[earliest]++;
+                readLeaseHead(shard, leases[earliest], expiredBytes[earliest], earliest, leaseTimes, sequences);
+                if (expired.size() >= RowBuffers.COMPACTION_BUFFER_SIZE) {
+                    append(files.expiredLeases, expired);
+                }
+            }
+            append(files.expiredLeases, expired);
+            for (int file = 0; file < leases.length; file++) {
+                final LeaseShard shard = files.shards[file / 2];
+                if (expiredRows[file] > 0) {
+                    shard.compact(leases[file], 0, expiredBytes[file]);
+                    shard.addLeaseCount(-expiredRows[file]);
+                    files.addToCounter(EXPIRED_COUNTER, expiredRows[file]);
+                }
+                if (leaseTimes[file] != Long.MAX_VALUE) {
+                    files.nextReap.accumulateAndGet(leaseTimes[file] + visibilityTimeout, Math::min);
+                }
+            }
+        } finally {
+            for (LeaseShard shard : files.shards) {
+                shard.unlock();
+            }
+        }
+    }
+
+    /**
+     * Records lease time and sequence of the lease row at specified position of a lease file, lease time of
+     * a file with no row left or of a file that does not exist is {@link Long#MAX_VALUE}.
+     */
+    private static void readLeaseHead(final LeaseShard shard,
+                                      final FileChannel leases,
+                                      final long position,
+                                      final int file,
+                                      final long[] leaseTimes,
+                                      final long[] sequences) throws IOException {
+        final int rowLength = Objects.isNull(leases) ? 0 : shard.readRow(leases, position);
+        leaseTimes[file] = rowLength > 0 ? shard.view(rowLength).getCreationTime() : Long.MAX_VALUE;
+        sequences[file] = rowLength > 0
+                ? LeaseShard.getSequence(shard.row.array(), rowLength - LINE_SEPARATOR_LENGTH)
+                : 0;
+    }
+
+    /**
+     * Appends buffered rows to the end of the file and empties the buffer.
+     */
+    private static void append(final FileChannel channel, final ByteArrayOutputStream rows) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(rows.toByteArray());
+        long position = channel.size();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        rows.reset();
+    }
+
+    /**
+     * Locks lease shard of the queue, shard guard is taken before the in progress file lock.
+     *
+     * @return locked shard or null if files of the queue were closed
+     */
+    private LeaseShard lockShard(final QueueFiles files, final int index) throws IOException {
+        final LeaseShard shard = files.shards[index];
+        shard.guard.lock();
+        if (shard.closed) {
+            shard.guard.unlock();
+            return null;
+        }
+        try {
+            shard.lock = tryLock(files.queue, shard.inProgress);
+            return shard;
+        } catch (IOException | RuntimeException e) {
+            shard.guard.unlock();
+            throw e;
+        }
+    }
+
+    private static int getShard(final UUID id) {
+        return Math.floorMod(id.hashCode(), LEASE_SHARDS);
+    }
+
+    private static int getLeaseCounter(final int shard) {
+        return IN_PROGRESS_COUNTER + shard;
+    }
+
+    private static int getVisibilityChangeCounter(final int shard) {
+        return VISIBILITY_CHANGE_COUNTER + shard;
+    }
+
+    /**
+     * Finds the first grouped row whose group has no message in flight and leaves it in the row buffer
+     * positioned at the row end. Scan starts after the rows already found blocked, released groups file
+     * is only read if another service instance changed groups since the last scan. Lock of the grouped
+     * lane must be held.
+     *
+     * @return position of the row or -1 if there is no such row
+     */
+    private long findReleasableRow(final QueueFiles files) throws IOException {
+        if (files.grouped.size() == 0) {
+            return -1;
+        }
+        final long version = files.getCounter(GROUPS_VERSION_COUNTER);
+        if (version != files.groupsVersion) {
+            files.releasedGroupNames.clear();
+            long position = 0;
+            int rowLength;
+            while ((rowLength = files.readRow(files.releasedGroups, position)) > 0) {
+                files.releasedGroupNames.add(new String(files.row.array(), 0,
+                                                        getGroupLength(files.row.array(), rowLength),
+                                                        StandardCharsets.UTF_8));
+                position += rowLength;
+            }
+            files.blockedGroupedRows = 0;
+            files.groupsVersion = version;
+        }
+        long position = files.blockedGroupedRows;
+        int rowLength;
+        while ((rowLength = files.readRow(files.grouped, position)) > 0) {
+            final byte[] row = files.row.array();
+            final String group = new String(row, 0, getGroupLength(row, rowLength), StandardCharsets.UTF_8);
+            if (!files.releasedGroupNames.contains(group)) {
+                files.blockedGroupedRows = position;
+                files.row.position(rowLength);
+                return position;
+            }
+            position += rowLength;
+        }
+        files.blockedGroupedRows = position;
+        return -1;
+    }
+
+    /**
+     * Bumps the groups version after grouped or released groups file changed. Lock of the grouped lane
+     * must be held.
+     *
+     * @return whether groups kept in memory were up to date before the change, so the caller has to
+     * apply the change to them
+     */
+    private boolean changeGroups(final QueueFiles files) throws IOException {
+        final long version = files.getCounter(GROUPS_VERSION_COUNTER);
+        files.setCounter(GROUPS_VERSION_COUNTER, version + 1);
+        if (version != files.groupsVersion) {
+            return false;
+        }
+        files.groupsVersion = version + 1;
+        return true;
+    }
+
+    /**
+     * Forgets released group of the deleted message, so the next message of the group can be leased.
+     *
+     * @return whether message belonged to a group
+     */
+    private boolean releaseGroup(final QueueFiles files, final UUID id) throws IOException {
+        if (files.releasedGroups.size() == 0) {
+            return false;
+        }
+        mapper.encodeId(id, files.id);
+        long position = 0;
+        int rowLength;
+        while ((rowLength = files.readRow(files.releasedGroups, position)) > 0) {
+            final byte[] row = files.row.array();
+            final int idOffset = getGroupLength(row, rowLength) + 1;
+            if (Arrays.equals(row, idOffset, idOffset + SimpleMessageMapper.ID_LENGTH,
+                              files.id, 0, SimpleMessageMapper.ID_LENGTH)) {
+                final String group = new String(row, 0, idOffset - 1, StandardCharsets.UTF_8);
+                files.compact(files.releasedGroups, position, position + rowLength);
+                if (changeGroups(files)) {
+                    //Rows of the group might be anywhere among the blocked ones
+                    files.releasedGroupNames.remove(group);
+                    files.blockedGroupedRows = 0;
+                }
+                return true;
+            }
+            position += rowLength;
+        }
+        return false;
+    }
+
+    /**
+     * @param rowLength of the grouped row in the row buffer including line separator
+     * @return view of the message part of the grouped row
+     */
+    private SimpleMessageView getGroupedView(final QueueFiles files) {
+        final int rowLength = files.row.position();
+        final int messageOffset = getGroupLength(files.row.array(), rowLength) + 1;
+        return files.view.wrap(files.row.array(), messageOffset, rowLength - messageOffset - LINE_SEPARATOR_LENGTH);
+    }
+
+    private static int getGroupLength(final byte[] row, final int rowLength) {
+        for (int position = 0; position < rowLength; position++) {
+            if (row[position] == GROUP_DELIMITER_BYTE) {
+                return position;
+            }
+        }
+        throw new RowMappingException("Grouped row has no group delimiter.");
+    }
+
+    private QueueFiles getFiles(final String queue) {
+        final QueueFiles files = filesByQueue.computeIfAbsent(queue, this::openFiles);
+        if (files.unresolvedMoves) {
+            resolveMoves(files);
+        }
+        return files;
+    }
+
+    /**
+     * Resolves move intents found in the moves files when queue files were opened one at a time, first
+     * intent of a shard is read under the shard lock, so it is never an intent of a mover that is still
+     * running.
+     */
+    private void resolveMoves(final QueueFiles files) {
+        files.unresolvedMoves = false;
+        try {
+            for (int index = 0; index < LEASE_SHARDS; index++) {
+                while (true) {
+                    final LeaseShard shard = lockShard(files, index);
+                    if (Objects.isNull(shard)) {
+                        return;
+                    }
+                    final String intent;
+                    try {
+                        intent = shard.moves.read(0);
+                    } finally {
+                        shard.unlock();
+                    }
+                    if (Objects.isNull(intent)) {
+                        break;
+                    }
+                    resolveMove(files, index, intent);
+                }
+            }
+        } catch (IOException e) {
+            files.unresolvedMoves = true;
+            throw new UnableToAccessUnderlyingStore(e.getMessage(), e);
+        } catch (RuntimeException e) {
+            files.unresolvedMoves = true;
+            throw e;
+        }
+    }
+
+    /**
+     * Removes the lease of a move intent from the source queue if the target queue holds the moved
+     * message in its {@link Priority#NORMAL} lane, expired leases or lease shard, so the push happened,
+     * and leaves the lease to expire otherwise, then removes the intent. Files are locked in the same
+     * order {@link #moveTo(String, SimpleMessage, String, String)} locks them. Moved message that was
+     * already deleted from the target queue is not found, so its source lease is redelivered.
+     */
+    private void resolveMove(final QueueFiles source, final int shardIndex, final String intent) {
+        final String[] fields = intent.split(MoveJournal.DELIMITER, 3);
+        final UUID id = UUID.fromString(fields[0]);
+        final UUID movedId = UUID.fromString(fields[1]);
+        final String targetQueue = fields[2];
+        final int movedShardIndex = getShard(movedId);
+        final boolean sourceFirst = source.queue.compareTo(targetQueue) <= 0;
+        while (true) {
+            final QueueFiles target = getFiles(targetQueue);
+            synchronized (sourceFirst ? source : target) {
+                synchronized (sourceFirst ? target : source) {
+                    if (source.closed) {
+                        return;
+                    }
+                    if (target.closed) {
+                        continue;
+                    }
+                    boolean evicted = false;
+                    boolean removed = false;
+                    try {
+                        final LeaseShard shard;
+                        final LeaseShard movedShard;
+                        if (source == target) {
+                            target.laneLocks[GROUPED_LANE] = tryLock(target.queue, target.lanes[GROUPED_LANE]);
+                            lockShard(source, Math.min(shardIndex, movedShardIndex));
+                            if (shardIndex != movedShardIndex) {
+                                lockShard(source, Math.max(shardIndex, movedShardIndex));
+                            }
+                            shard = source.shards[shardIndex];
+                            movedShard = source.shards[movedShardIndex];
+                        } else if (sourceFirst) {
+                            shard = lockShard(source, shardIndex);
+                            target.laneLocks[GROUPED_LANE] = tryLock(target.queue, target.lanes[GROUPED_LANE]);
+                            movedShard = lockShard(target, movedShardIndex);
+                        } else {
+                            target.laneLocks[GROUPED_LANE] = tryLock(target.queue, target.lanes[GROUPED_LANE]);
+                            movedShard = lockShard(target, movedShardIndex);
+                            shard = lockShard(source, shardIndex);
+                        }
+                        final long from = shard.moves.find(intent);
+                        if (from < 0) {
+                            return;
+                        }
+                        final long to = from + shard.row.position();
+                        if (target.getCounter(getReadyCounter(GROUPED_LANE)) == EVICTED) {
+                            evicted = true;
+                        } else {
+                            if (target.findRow(target.lanes[GROUPED_LANE], movedId) >= 0
+                                    || target.findRow(target.expiredLeases, movedId) >= 0
+                                    || movedShard.hasLease(movedId)) {
+                                removed = shard.removeLease(id);
+                            }
+                            shard.moves.remove(from, to);
+                        }
+                    } catch (IOException e) {
+                        throw new UnableToAccessUnderlyingStore(e.getMessage(), e);
+                    } finally {
+                        target.unlock();
+                        source.unlock();
+                    }
+                    if (removed && mightHoldGroups(source)) {
+                        completeDelete(source.queue, id, false);
+                    }
+                    if (!evicted) {
+                        return;
+                    }
+                    forget(targetQueue, target);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return files of the queue or null if nothing was ever pushed to the queue
+     */
+    private QueueFiles getExistingFiles(final String queue) {
+        final QueueFiles files = filesByQueue.get(queue);
+        if (Objects.nonNull(files)) {
+            return files;
+        }
+        for (Priority priority : PRIORITIES) {
+            if (Files.exists(Paths.get(getFileName(getLaneName(queue, priority))))) {
+                return getFiles(queue);
+            }
+        }
+        return null;
+    }
+
+    private QueueFiles openFiles(final String queue) {
+        final FileOpenEvent event = new FileOpenEvent();
+        event.begin();
+        final QueueFiles files = new QueueFiles(queue);
+        try {
+            //Counters file is opened first and deleted last by eviction, so files opened after it are never
+            //files of an evicted queue unless counters hold the eviction marker
+            files.counters = FileChannel.open(Paths.get(getCountersFileName(queue)), READ, WRITE, CREATE);
+            for (Priority priority : PRIORITIES) {
+                final String lane = getLaneName(queue, priority);
+                files.laneNames[priority.ordinal()] = lane;
+                files.lanes[priority.ordinal()] = FileChannel
+                        .open(Paths.get(getFileName(lane)), READ, WRITE, CREATE);
+                files.delayed[priority.ordinal()] = new DelayBuckets(files, storagePath + lane + DELAYED_FILE_SUFFIX,
+                                                                     fileFormat);
+            }
+            for (int index = 0; index < LEASE_SHARDS; index++) {
+                final LeaseShard shard = new LeaseShard(queue, index, getLeaseCounter(index));
+                shard.counters = files.counters;
+                files.shards[index] = shard;
+                shard.inProgress = FileChannel
+                        .open(Paths.get(getInProgressFileName(queue, index)), READ, WRITE, CREATE);
+                shard.extendedLeases = new OptionalFile(getExtendedLeasesFileName(queue, index));
+                shard.moves = new MoveJournal(shard, new OptionalFile(getMovesFileName(queue, index)));
+                if (!shard.moves.isEmpty()) {
+                    files.unresolvedMoves = true;
+                }
+            }
+            files.expiredLeases = FileChannel
+                    .open(Paths.get(getExpiredLeasesFileName(queue)), READ, WRITE, CREATE);
+            files.grouped = FileChannel.open(Paths.get(getGroupedFileName(queue)), READ, WRITE, CREATE);
+            files.releasedGroups = FileChannel
+                    .open(Paths.get(getReleasedGroupsFileName(queue)), READ, WRITE, CREATE);
+            final boolean countersRebuilt = files.counters.size() == 0;
+            if (countersRebuilt) {
+                rebuildCounters(files);
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.queue = queue;
+                event.countersRebuilt = countersRebuilt;
+                event.commit();
+            }
+            return files;
+        } catch (IOException e) {
+            try {
+                files.close();
+            } catch (IOException closeFailure) {
+                e.addSuppressed(closeFailure);
+            }
+            throw new UnableToAccessUnderlyingStore(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Counts rows of every queue file under the same locks pull takes, counters file written by
+     * another process in the meantime is left as is.
+     */
+    private void rebuildCounters(final QueueFiles files) throws IOException {
+        try {
+            for (int lane = 0; lane < PRIORITIES.length; lane++) {
+                files.laneLocks[lane] = tryLock(files.queue, files.lanes[lane]);
+            }
+            for (int index = 0; index < LEASE_SHARDS; index++) {
+                lockShard(files, index);
+            }
+            if (files.counters.size() > 0) {
+                return;
+            }
+            for (int lane = 0; lane < PRIORITIES.length; lane++) {
+                files.setCounter(getReadyCounter(lane), files.countRows(files.lanes[lane])
+                        + (lane == GROUPED_LANE ? files.countRows(files.grouped) : 0));
+                files.setCounter(getDelayedCounter(lane), files.delayed[lane].count());
+            }
+            for (LeaseShard shard : files.shards) {
+                files.setCounter(getLeaseCounter(shard.index), shard.countLeases());
+            }
+            files.setCounter(EXPIRED_COUNTER, files.countRows(files.expiredLeases));
+        } finally {
+            files.unlock();
+        }
+    }
+
+    private static int getReadyCounter(final int lane) {
+        return lane * 2;
+    }
+
+    private static int getDelayedCounter(final int lane) {
+        return lane * 2 + 1;
+    }
+
+    private FileLock tryLock(final String queue, final FileChannel channel) throws IOException {
+        FileLock lock = tryLock(channel);
+        if (Objects.nonNull(lock)) {
+            return lock;
+        }
+        //Event is only created once the lock turns out to be contended
+        final LockWaitEvent event = new LockWaitEvent();
+        event.begin();
+        final long lockRelease = System.currentTimeMillis() + lockTimeout;
+        int attempts = 1;
+        while (Objects.isNull(lock = tryLock(channel))) {
+            attempts++;
+            if (System.currentTimeMillis() > lockRelease) {
+                throw new LockTimeoutException("Unable to acquire file lock.");
+            }
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.queue = queue;
+            event.backend = "file";
+            event.attempts = attempts;
+            event.commit();
+        }
+        return lock;
+    }
+
+    /**
+     * @return lock of the channel or null if it is held by another process or thread
+     */
+    private static FileLock tryLock(final FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            //Have to try to lock file again
+            return null;
+        }
+    }
+
+    /**
+     * Moves due delay buckets of a lane to the lane file.
+     */
+    private void releaseDelayed(final QueueFiles files, final int lane, final long now) throws IOException {
+        //Delay index of a lane with no delayed message is not looked up, it might not even exist
+        if (files.getCounter(getDelayedCounter(lane)) == 0) {
+            return;
+        }
+        final long released = files.delayed[lane].release(files.lanes[lane], now);
+        if (released > 0) {
+            files.addToCounter(getDelayedCounter(lane), -released);
+            files.addToCounter(getReadyCounter(lane), released);
+        }
+    }
+
+    private void validateMessage(final String message) {
+        if (message.contains(System.lineSeparator()) || message.contains(",")) {
+            throw new InvalidMessageBodyContent(
+                    "Invalid message contents. Line separators and commas are not allowed.");
+        }
+    }
+
+    private String getLaneName(final String queueName, final Priority priority) {
+        return priority == Priority.NORMAL
+                ? queueName
+                : queueName + LANE_SEPARATOR + priority.name().toLowerCase();
+    }
+
+    private String getFileName(final String queueName) {
+        return storagePath + queueName + fileFormat;
+    }
+
+    /**
+     * In progress file of the first shard keeps the name of the single in progress file queues had
+     * before leases were sharded.
+     */
+    private String getInProgressFileName(final String queueName, final int shard) {
+        return storagePath + queueName + inProgressFileSuffix + (shard == 0 ? "" : shard) + fileFormat;
+    }
+
+    private String getExtendedLeasesFileName(final String queueName, final int shard) {
+        return storagePath + queueName + inProgressFileSuffix + (shard == 0 ? "" : shard)
+                + EXTENDED_LEASES_FILE_SUFFIX + fileFormat;
+    }
+
+    private String getMovesFileName(final String queueName, final int shard) {
+        return storagePath + queueName + inProgressFileSuffix + (shard == 0 ? "" : shard)
+                + MOVES_FILE_SUFFIX + fileFormat;
+    }
+
+    private String getExpiredLeasesFileName(final String queueName) {
+        return storagePath + queueName + inProgressFileSuffix + EXPIRED_LEASES_FILE_SUFFIX + fileFormat;
+    }
+
+    private String getGroupedFileName(final String queueName) {
+        return storagePath + queueName + GROUPED_FILE_SUFFIX + fileFormat;
+    }
+
+    private String getReleasedGroupsFileName(final String queueName) {
+        return storagePath + queueName + inProgressFileSuffix + GROUPED_FILE_SUFFIX + fileFormat;
+    }
+
+    private String getDeduplicationFileName(final String queueName) {
+        return storagePath + queueName + DEDUPLICATION_FILE_SUFFIX + fileFormat;
+    }
+
+    private String getCountersFileName(final String queueName) {
+        return storagePath + queueName + COUNTERS_FILE_SUFFIX + fileFormat;
+    }
+
+    private String getDelayedIndexFileName(final String queueName) {
+        return storagePath + queueName + DELAYED_FILE_SUFFIX + fileFormat;
+    }
+
+    /**
+     * Chunks of a queue drained by {@link #drain(String)}.
+     */
+    private class FileChunks implements LeasedChunkSpliterator.Chunks<SimpleMessage> {
+
+        private final String queue;
+
+        /**
+         * Chunks of a single pulled message, told apart from lane chunks by identity.
+         */
+        private final Set<List<SimpleMessage>> pulledChunks =
+                Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+
+        FileChunks(final String queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public List<SimpleMessage> next() {
+            while (true) {
+                final QueueFiles files = getExistingFiles(queue);
+                if (Objects.isNull(files)) {
+                    return List.of();
+                }
+                synchronized (files) {
+                    if (files.closed) {
+                        continue;
+                    }
+                    try {
+                        for (int lane = 0; lane < PRIORITIES.length; lane++) {
+                            files.laneLocks[lane] = tryLock(files.queue, files.lanes[lane]);
+                        }
+                        final LeasedChunk chunk = leaseChunk(files);
+                        if (!chunk.messages.isEmpty() || !isEvicted(files)) {
+                            if (waitersByQueue.containsKey(queue)) {
+                                reportReadiness(queue, files, getReadyTime(files), System.currentTimeMillis(), false);
+                            }
+                            if (chunk.pulled) {
+                                pulledChunks.add(chunk.messages);
+                            }
+                            return chunk.messages;
+                        }
+                    } catch (IOException e) {
+                        throw new UnableToAccessUnderlyingStore(e.getMessage(), e);
+                    } finally {
+                        files.unlock();
+                    }
+                    forget(queue, files);
+                }
+            }
+        }
+
+        @Override
+        public void commit(final List<SimpleMessage> chunk) {
+            //Pulled message might be grouped, delete releases its group
+            final List<SimpleMessage> left = pulledChunks.remove(chunk) ? chunk : deleteChunk(queue, chunk);
+            for (SimpleMessage message : left) {
+                delete(queue, message);
+            }
+        }
+    }
+
+    /**
+     * Messages leased together, either rows of a lane head leased at once or a single pulled message.
+     */
+    private static class LeasedChunk {
+
+        private final List<SimpleMessage> messages = new ArrayList<>();
+
+        private boolean pulled;
+    }
+
+    /**
+     * Open files of a queue together with its buffers and lane selection state. Holder is guarded by
+     * its own monitor within the process, file locks taken under the monitor are kept in the holder,
+     * so they are released without allocating. Lease shards are guarded by their own locks, which are
+     * taken after the holder monitor and lane locks.
+     */
+    private static class QueueFiles extends RowBuffers implements Closeable {
+
+        private final String[] laneNames = new String[PRIORITIES.length];
+
+        private final FileChannel[] lanes = new FileChannel[PRIORITIES.length];
+
+        private final DelayBuckets[] delayed = new DelayBuckets[PRIORITIES.length];
+
+        private final FileLock[] laneLocks = new FileLock[PRIORITIES.length];
+
+        private final boolean[] nonEmptyLanes = new boolean[PRIORITIES.length];
+
+        private final IntPredicate nonEmptyLane = lane -> nonEmptyLanes[lane];
+
+        private final WeightedRoundRobin scheduler = new WeightedRoundRobin(Priority.weights());
+
+        private final LeaseShard[] shards = new LeaseShard[LEASE_SHARDS];
+
+        /**
+         * Epoch millisecond the earliest lease this service knows of expires at.
+         */
+        private final AtomicLong nextReap = new AtomicLong();
+
+        private final Set<String> releasedGroupNames = new HashSet<>();
+
+        private FileChannel expiredLeases;
+
+        private FileChannel grouped;
+
+        private FileChannel releasedGroups;
+
+        private boolean closed;
+
+        private long readyTime = ReadinessSet.NEVER;
+
+        /**
+         * Set when moves files held intents once opened, until they are resolved.
+         */
+        private volatile boolean unresolvedMoves;
+
+        /**
+         * Groups version released group names and blocked rows offset were read at, guarded by the
+         * grouped lane lock.
+         */
+        private long groupsVersion = -1;
+
+        /**
+         * Offset of the grouped file every row before which belongs to a released group.
+         */
+        private long blockedGroupedRows;
+
+        /**
+         * Counters seen by the last readiness rescan and the buffer the next one reads them into, owned
+         * by the rescanning thread.
+         */
+        private ByteBuffer seenCounters = ByteBuffer.allocate(COUNTERS * Long.BYTES);
+
+        private ByteBuffer rescannedCounters = ByteBuffer.allocate(COUNTERS * Long.BYTES);
+
+        QueueFiles(final String queue) {
+            super(queue);
+        }
+
+        /**
+         * Releases lane locks and lease shards held by the current thread.
+         */
+        void unlock() {
+            try {
+                for (LeaseShard shard : shards) {
+                    if (Objects.nonNull(shard)) {
+                        shard.unlock();
+                    }
+                }
+                for (int lane = laneLocks.length - 1; lane >= 0; lane--) {
+                    if (Objects.nonNull(laneLocks[lane])) {
+                        final FileLock lock = laneLocks[lane];
+                        laneLocks[lane] = null;
+                        lock.release();
+                    }
+                }
+            } catch (IOException e) {
+                throw new UnableToAccessUnderlyingStore(e.getMessage(), e);
+            }
+        }
+
+        /**
+         * Marks files closed, so operations that hold only a lease shard notice it as well. Holder
+         * monitor must be held.
+         */
+        void markClosed() {
+            closed = true;
+            for (LeaseShard shard : shards) {
+                if (Objects.nonNull(shard)) {
+                    shard.guard.lock();
+                    shard.closed = true;
+                    shard.guard.unlock();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            IOException failure = null;
+            for (FileChannel channel : lanes) {
+                failure = close(channel, failure);
+            }
+            for (DelayBuckets buckets : delayed) {
+                failure = close(buckets, failure);
+            }
+            for (LeaseShard shard : shards) {
+                if (Objects.nonNull(shard)) {
+                    failure = close(shard.inProgress, failure);
+                    failure = close(shard.extendedLeases, failure);
+                    failure = close(shard.moves, failure);
+                }
+            }
+            failure = close(expiredLeases, failure);
+            failure = close(grouped, failure);
+            failure = close(releasedGroups, failure);
+            failure = close(counters, failure);
+            if (Objects.nonNull(failure)) {
+                throw failure;
+            }
+        }
+
+        private static IOException close(final Closeable closeable, final IOException failure) {
+            try {
+                if (Objects.nonNull(closeable)) {
+                    closeable.close();
+                }
+                return failure;
+            } catch (IOException e) {
+                return e;
+            }
+        }
     }
-}
\ No newline at end of file
+}
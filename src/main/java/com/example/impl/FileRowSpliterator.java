@@ -0,0 +1,195 @@
+package com.example.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+import com.example.exception.RowMappingException;
+import com.example.exception.UnableToAccessUnderlyingStore;
+import com.example.model.impl.SimpleMessage;
+import com.example.model.mapper.SimpleMessageView;
+
+/**
+ * Spliterator over a segment of a file of {@code id,payload,epochMillis} rows, rows starting at or
+ * after grouped offset are prefixed with their group followed by a comma. Segment is read sequentially
+ * through a buffer of its own and split in halves at the first row boundary after the middle, so
+ * segments of one file are read in parallel with positional reads of the shared channel.
+ * <p>
+ * File must not change while it is read, spliterator does not close the channel.
+ */
+class FileRowSpliterator implements Spliterator<SimpleMessage> {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private static final int BOUNDARY_SCAN_SIZE = 256;
+
+    private static final int LINE_SEPARATOR_LENGTH = System.lineSeparator().length();
+
+    private static final byte ROW_END = (byte) System.lineSeparator().charAt(LINE_SEPARATOR_LENGTH - 1);
+
+    private static final byte GROUP_DELIMITER = ',';
+
+    private final FileChannel channel;
+
+    private final long end;
+
+    private final long groupedFrom;
+
+    private final SimpleMessageView view = new SimpleMessageView();
+
+    private long position;
+
+    private ByteBuffer buffer;
+
+    /**
+     * File position of the first byte in the buffer.
+     */
+    private long bufferPosition;
+
+    /**
+     * @param channel     of the file to read
+     * @param position    of the first row of the segment
+     * @param end         of the segment, which is the end of its last row
+     * @param groupedFrom position grouped rows start at
+     */
+    FileRowSpliterator(final FileChannel channel, final long position, final long end, final long groupedFrom) {
+        this.channel = channel;
+        this.position = position;
+        this.end = end;
+        this.groupedFrom = groupedFrom;
+    }
+
+    @Override
+    public boolean tryAdvance(final Consumer<? super SimpleMessage> action) {
+        if (position >= end) {
+            return false;
+        }
+        try {
+            final int rowLength = readRow();
+            final byte[] row = buffer.array();
+            int offset = (int) (position - bufferPosition);
+            int length = rowLength - LINE_SEPARATOR_LENGTH;
+            if (position >= groupedFrom) {
+                final int groupLength = getGroupLength(row, offset, length) + 1;
+                offset += groupLength;
+                length -= groupLength;
+            }
+            position += rowLength;
+            action.accept(view.wrap(row, offset, length).toMessage());
+            return true;
+        } catch (IOException e) {
+            throw new UnableToAccessUnderlyingStore(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public Spliterator<SimpleMessage> trySplit() {
+        if (end - position < 2 * BUFFER_SIZE) {
+            return null;
+        }
+        try {
+            final long boundary = findRowEnd(position + (end - position) / 2);
+            if (boundary >= end) {
+                return null;
+            }
+            final FileRowSpliterator prefix = new FileRowSpliterator(channel, position, boundary, groupedFrom);
+            if (buffer != null && position < bufferPosition + buffer.limit()) {
+                //Hands buffered rows over to the prefix, which is read first
+                prefix.buffer = buffer;
+                prefix.bufferPosition = bufferPosition;
+                buffer = null;
+            }
+            position = boundary;
+            return prefix;
+        } catch (IOException e) {
+            throw new UnableToAccessUnderlyingStore(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return number of bytes left, which is an upper bound of the number of rows
+     */
+    @Override
+    public long estimateSize() {
+        return end - position;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL | IMMUTABLE;
+    }
+
+    /**
+     * Makes sure the buffer holds the row at the current position.
+     *
+     * @return length of the row including line separator
+     */
+    private int readRow() throws IOException {
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(BUFFER_SIZE).limit(0);
+            bufferPosition = position;
+        }
+        int offset = (int) (position - bufferPosition);
+        int scanned = offset;
+        while (true) {
+            final byte[] row = buffer.array();
+            for (; scanned < buffer.limit(); scanned++) {
+                if (row[scanned] == ROW_END) {
+                    return scanned + 1 - offset;
+                }
+            }
+            //Moves the incomplete row to the buffer start, growing buffer for rows longer than it
+            final int kept = buffer.limit() - offset;
+            if (kept == buffer.capacity()) {
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+            }
+            System.arraycopy(row, offset, buffer.array(), 0, kept);
+            bufferPosition = position;
+            offset = 0;
+            scanned = kept;
+            final int toRead = (int) Math.min(buffer.capacity() - kept, end - position - kept);
+            if (toRead <= 0) {
+                throw new RowMappingException("Segment ends in the middle of a row.");
+            }
+            buffer.limit(kept + toRead).position(kept);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, bufferPosition + buffer.position()) < 0) {
+                    throw new RowMappingException("Segment ends in the middle of a row.");
+                }
+            }
+        }
+    }
+
+    /**
+     * @return position right after the end of the row that contains specified position
+     */
+    private long findRowEnd(final long from) throws IOException {
+        final ByteBuffer scan = ByteBuffer.allocate(BOUNDARY_SCAN_SIZE);
+        long scanPosition = from;
+        while (scanPosition < end) {
+            scan.clear().limit((int) Math.min(scan.capacity(), end - scanPosition));
+            final int read = channel.read(scan, scanPosition);
+            if (read <= 0) {
+                break;
+            }
+            for (int index = 0; index < read; index++) {
+                if (scan.get(index) == ROW_END) {
+                    return scanPosition + index + 1;
+                }
+            }
+            scanPosition += read;
+        }
+        return end;
+    }
+
+    private static int getGroupLength(final byte[] row, final int offset, final int length) {
+        for (int index = 0; index < length; index++) {
+            if (row[offset + index] == GROUP_DELIMITER) {
+                return index;
+            }
+        }
+        throw new RowMappingException("Grouped row has no group delimiter.");
+    }
+}
@@ -0,0 +1,530 @@
+package com.example.impl;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.example.TopicService;
+import com.example.exception.CorruptedFileException;
+import com.example.exception.DeletionFailed;
+import com.example.exception.InvalidMessageBodyContent;
+import com.example.exception.LockTimeoutException;
+import com.example.exception.SubscriptionNotFound;
+import com.example.exception.UnableToAccessUnderlyingStore;
+import com.example.model.Messages;
+import com.example.model.SubscriptionStart;
+import com.example.model.impl.SimpleMessage;
+import com.example.model.mapper.SimpleMessageMapper;
+
+/**
+ * File based implementation of a {@link TopicService}. Every topic is stored in three kinds of files:
+ * <ul>
+ * <li>log file with topic name followed by {@value #LOG_FILE_SUFFIX}, published messages are appended
+ * to it once regardless of the number of groups</li>
+ * <li>cursors file with topic name followed by {@value #CURSORS_FILE_SUFFIX}, first line holds the
+ * offset of the log file start and every other line holds a group name and its cursor</li>
+ * <li>lease file of every group with topic and group names separated by {@value #LOG_FILE_SUFFIX}
+ * and followed by {@value #LOG_FILE_SUFFIX}, rows hold id, offset and lease time of in flight
+ * messages in order of leasing</li>
+ * </ul>
+ * Offsets are positions in the log counted from the first message ever published, so they survive
+ * dropping the log head. Head is dropped on delete or unsubscribe once the log is at least {@value
+ * #TRIM_THRESHOLD} bytes and every group is done with at least half of it. Log of a topic without
+ * groups is never trimmed.
+ * <p>
+ * Every operation with a topic holds the cursors file lock, so service is thread and process safe.
+ */
+public class FileTopicService implements TopicService<SimpleMessage> {
+
+    private static final String LOG_FILE_SUFFIX = "%";
+
+    private static final String CURSORS_FILE_SUFFIX = "%%";
+
+    private static final String DELIMITER = ",";
+
+    private static final long TRIM_THRESHOLD = 64 * 1024;
+
+    private static final int COMPACTION_BUFFER_SIZE = 8 * 1024;
+
+    private static final int ROW_BUFFER_SIZE = 256;
+
+    private static final int LINE_SEPARATOR_LENGTH = System.lineSeparator().length();
+
+    private static final byte ROW_END = (byte) System.lineSeparator().charAt(LINE_SEPARATOR_LENGTH - 1);
+
+    private final String storagePath;
+
+    private final String fileFormat;
+
+    private final long visibilityTimeout;
+
+    private final long lockTimeout;
+
+    private final SimpleMessageMapper mapper = new SimpleMessageMapper();
+
+    private final Map<String, Object> monitorsByTopic = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor for {@link FileTopicService}
+     *
+     * @param visibilityTimeout millisecond timeout for message re delivery to a group if not deleted
+     * @param fileFormat        effectively file suffix, that will be used as underlying storage
+     */
+    public FileTopicService(final long visibilityTimeout,
+                            final String storagePath,
+                            final String fileFormat,
+                            final long lockTimeout) {
+        this.storagePath = storagePath;
+        this.fileFormat = fileFormat;
+        this.visibilityTimeout = visibilityTimeout;
+        this.lockTimeout = lockTimeout;
+    }
+
+    /**
+     * Appends message to the topic log, nothing is written for subscriber groups.
+     *
+     * @param topic   to publish message to
+     * @param message string body of a message
+     * @throws LockTimeoutException      if service weren't able to acquire lock by specified timeout
+     * @throws InvalidMessageBodyContent if non allowed symbols were found in message string
+     */
+    @Override
+    public void publish(String topic, String message) {
+        validate(message);
+        final byte[] row = mapper.toString(Messages.createMessage(message)).getBytes(StandardCharsets.UTF_8);
+        synchronized (getMonitor(topic)) {
+            try {
+                //Cursors lock is held only to keep trimming from racing the append
+                final LockedChannel cursorsFile = tryLock(FileChannel.open(getCursorsFile(topic), READ, WRITE, CREATE));
+                try (FileChannel log = FileChannel.open(getLogFile(topic), READ, WRITE, CREATE)) {
+                    write(log, ByteBuffer.wrap(row), log.size());
+                } finally {
+                    cursorsFile.close();
+                }
+            } catch (IOException e) {
+                throw new UnableToAccessUnderlyingStore(e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * @param topic to subscribe to
+     * @param group name of subscriber group, line separators, commas and {@value #LOG_FILE_SUFFIX}
+     *              are not allowed
+     * @param start position the group starts reading from
+     * @throws LockTimeoutException      if service weren't able to acquire lock by specified timeout
+     * @throws InvalidMessageBodyContent if non allowed symbols were found in group name
+     */
+    @Override
+    public void subscribe(String topic, String group, SubscriptionStart start) {
+        validateGroup(group);
+        synchronized (getMonitor(topic)) {
+            try (LockedChannel cursorsFile = tryLock(FileChannel.open(getCursorsFile(topic), READ, WRITE, CREATE));
+                 FileChannel log = FileChannel.open(getLogFile(topic), READ, WRITE, CREATE)) {
+                final Cursors cursors = readCursors(cursorsFile.channel);
+                if (cursors.byGroup.containsKey(group)) {
+                    return;
+                }
+                cursors.byGroup.put(group, start == SubscriptionStart.EARLIEST
+                        ? cursors.base
+                        : cursors.base + log.size());
+                Files.deleteIfExists(getLeaseFile(topic, group));
+                writeCursors(cursorsFile.channel, cursors);
+            } catch (IOException e) {
+                throw new UnableToAccessUnderlyingStore(e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * @param topic to unsubscribe from
+     * @param group name of subscriber group
+     * @throws LockTimeoutException if service weren't able to acquire lock by specified timeout
+     */
+    @Override
+    public void unsubscribe(String topic, String group) {
+        synchronized (getMonitor(topic)) {
+            try (LockedChannel cursorsFile = tryLock(FileChannel.open(getCursorsFile(topic), READ, WRITE));
+                 FileChannel log = FileChannel.open(getLogFile(topic), READ, WRITE, CREATE)) {
+                final Cursors cursors = readCursors(cursorsFile.channel);
+                if (Objects.isNull(cursors.byGroup.remove(group))) {
+                    return;
+                }
+                writeCursors(cursorsFile.channel, cursors);
+                Files.deleteIfExists(getLeaseFile(topic, group));
+                trim(topic, cursorsFile.channel, cursors, log);
+            } catch (NoSuchFileException e) {
+                //Topic does not exist, so group is not subscribed already
+            } catch (IOException e) {
+                throw new UnableToAccessUnderlyingStore(e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Pulls the oldest expired message of the group if there is one, otherwise the message after the
+     * group cursor.
+     *
+     * @param topic to pull message from
+     * @param group subscriber group consumer belongs to
+     * @return {@link SimpleMessage} or null if group has read every message
+     * @throws SubscriptionNotFound if group is not subscribed to the topic
+     * @throws LockTimeoutException if service weren't able to acquire lock by specified timeout
+     */
+    @Override
+    public SimpleMessage pull(String topic, String group) {
+        synchronized (getMonitor(topic)) {
+            try (LockedChannel cursorsFile = tryLock(openCursors(topic, group))) {
+                final Cursors cursors = readCursors(cursorsFile.channel);
+                final Long cursor = getCursor(cursors, topic, group);
+                try (FileChannel log = FileChannel.open(getLogFile(topic), READ);
+                     FileChannel leases = FileChannel.open(getLeaseFile(topic, group), READ, WRITE, CREATE)) {
+                    return pull(cursorsFile.channel, cursors, group, cursor, log, leases);
+                }
+            } catch (IOException e) {
+                throw new UnableToAccessUnderlyingStore(e.getMessage(), e);
+            }
+        }
+    }
+
+    private SimpleMessage pull(final FileChannel cursorsChannel,
+                               final Cursors cursors,
+                               final String group,
+                               final long cursor,
+                               final FileChannel log,
+                               final FileChannel leasesChannel) throws IOException {
+        final long now = System.currentTimeMillis();
+        final List<Lease> leases = readLeases(leasesChannel);
+        if (!leases.isEmpty() && now - leases.get(0).time >= visibilityTimeout) {
+            final Lease expired = leases.remove(0);
+            leases.add(new Lease(expired.id, expired.offset, now));
+            writeLeases(leasesChannel, leases);
+            return toMessage(readRow(log, expired.offset - cursors.base));
+        }
+        if (cursor - cursors.base >= log.size()) {
+            return null;
+        }
+        final byte[] row = readRow(log, cursor - cursors.base);
+        final SimpleMessage message = toMessage(row);
+        final byte[] lease = new Lease(message.getId(), cursor, now).toString().getBytes(StandardCharsets.UTF_8);
+        write(leasesChannel, ByteBuffer.wrap(lease), leasesChannel.size());
+        cursors.byGroup.put(group, cursor + row.length);
+        writeCursors(cursorsChannel, cursors);
+        return message;
+    }
+
+    /**
+     * Deletes message from in flight messages of the group by its id.
+     *
+     * @param topic   to delete message from
+     * @param group   subscriber group message was pulled by
+     * @param message to delete
+     * @throws SubscriptionNotFound if group is not subscribed to the topic
+     * @throws DeletionFailed       if for some reasons service cannot delete specified message
+     * @throws LockTimeoutException if service weren't able to acquire lock by specified timeout
+     */
+    @Override
+    public void delete(String topic, String group, SimpleMessage message) {
+        synchronized (getMonitor(topic)) {
+            try (LockedChannel cursorsFile = tryLock(openCursors(topic, group))) {
+                final Cursors cursors = readCursors(cursorsFile.channel);
+                getCursor(cursors, topic, group);
+                try (FileChannel log = FileChannel.open(getLogFile(topic), READ, WRITE);
+                     FileChannel leasesChannel = FileChannel.open(getLeaseFile(topic, group), READ, WRITE, CREATE)) {
+                    final List<Lease> leases = readLeases(leasesChannel);
+                    if (leases.removeIf(lease -> lease.id.equals(message.getId()))) {
+                        writeLeases(leasesChannel, leases);
+                        trim(topic, cursorsFile.channel, cursors, log);
+                    }
+                }
+            } catch (IOException e) {
+                throw new DeletionFailed(e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Drops the log head every group is done with.
+     */
+    private void trim(final String topic, final FileChannel cursorsChannel, final Cursors cursors, final FileChannel log)
+            throws IOException {
+        if (log.size() < TRIM_THRESHOLD || cursors.byGroup.isEmpty()) {
+            return;
+        }
+        long watermark = Long.MAX_VALUE;
+        for (Map.Entry<String, Long> cursor : cursors.byGroup.entrySet()) {
+            watermark = Math.min(watermark, cursor.getValue());
+            final Path leaseFile = getLeaseFile(topic, cursor.getKey());
+            if (Files.exists(leaseFile)) {
+                try (FileChannel leases = FileChannel.open(leaseFile, READ)) {
+                    for (Lease lease : readLeases(leases)) {
+                        watermark = Math.min(watermark, lease.offset);
+                    }
+                }
+            }
+        }
+        final long trimmed = watermark - cursors.base;
+        if (trimmed < log.size() / 2) {
+            return;
+        }
+        compact(log, trimmed);
+        cursors.base = watermark;
+        writeCursors(cursorsChannel, cursors);
+    }
+
+    /**
+     * Removes specified number of bytes from the start of the file by shifting the rest over them.
+     */
+    private void compact(final FileChannel channel, final long length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(COMPACTION_BUFFER_SIZE);
+        final long size = channel.size();
+        long readPosition = length;
+        long writePosition = 0;
+        while (readPosition < size) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), size - readPosition));
+            final int read = channel.read(buffer, readPosition);
+            if (read < 0) {
+                break;
+            }
+            readPosition += read;
+            buffer.flip();
+            writePosition = write(channel, buffer, writePosition);
+        }
+        channel.truncate(writePosition);
+    }
+
+    /**
+     * @return row starting at specified position including line separator
+     */
+    private byte[] readRow(final FileChannel log, final long position) throws IOException {
+        ByteBuffer row = ByteBuffer.allocate(ROW_BUFFER_SIZE);
+        int scanned = 0;
+        while (true) {
+            if (!row.hasRemaining()) {
+                row = ByteBuffer.allocate(row.capacity() * 2).put(row.flip());
+            }
+            if (log.read(row, position + row.position()) <= 0) {
+                throw new CorruptedFileException("Incomplete row at " + position + " of topic log.");
+            }
+            for (; scanned < row.position(); scanned++) {
+                if (row.get(scanned) == ROW_END) {
+                    return Arrays.copyOf(row.array(), scanned + 1);
+                }
+            }
+        }
+    }
+
+    private SimpleMessage toMessage(final byte[] row) {
+        return mapper.toMessage(row, 0, row.length - LINE_SEPARATOR_LENGTH);
+    }
+
+    private Cursors readCursors(final FileChannel channel) throws IOException {
+        final Cursors cursors = new Cursors();
+        final String[] lines = readAll(channel).split(System.lineSeparator());
+        if (lines[0].isEmpty()) {
+            return cursors;
+        }
+        cursors.base = Long.parseLong(lines[0]);
+        for (int line = 1; line < lines.length; line++) {
+            final String[] parts = lines[line].split(DELIMITER);
+            cursors.byGroup.put(parts[0], Long.valueOf(parts[1]));
+        }
+        return cursors;
+    }
+
+    private void writeCursors(final FileChannel channel, final Cursors cursors) throws IOException {
+        final StringBuilder contents = new StringBuilder().append(cursors.base).append(System.lineSeparator());
+        cursors.byGroup.forEach((group, cursor) -> contents.append(group)
+                                                           .append(DELIMITER)
+                                                           .append(cursor)
+                                                           .append(System.lineSeparator()));
+        rewrite(channel, contents.toString());
+    }
+
+    private List<Lease> readLeases(final FileChannel channel) throws IOException {
+        final List<Lease> leases = new ArrayList<>();
+        for (String line : readAll(channel).split(System.lineSeparator())) {
+            if (!line.isEmpty()) {
+                final String[] parts = line.split(DELIMITER);
+                leases.add(new Lease(UUID.fromString(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+            }
+        }
+        return leases;
+    }
+
+    private void writeLeases(final FileChannel channel, final List<Lease> leases) throws IOException {
+        final StringBuilder contents = new StringBuilder();
+        leases.forEach(contents::append);
+        rewrite(channel, contents.toString());
+    }
+
+    private static String readAll(final FileChannel channel) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+        while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) > 0) {
+            //Keep reading until the whole file is in the buffer
+        }
+        return new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8);
+    }
+
+    private static void rewrite(final FileChannel channel, final String contents) throws IOException {
+        channel.truncate(0);
+        write(channel, ByteBuffer.wrap(contents.getBytes(StandardCharsets.UTF_8)), 0);
+    }
+
+    /**
+     * @return position after written bytes
+     */
+    private static long write(final FileChannel channel, final ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        return position;
+    }
+
+    /**
+     * @return cursors file of the topic, missing topic is reported as missing subscription
+     */
+    private FileChannel openCursors(final String topic, final String group) throws IOException {
+        try {
+            return FileChannel.open(getCursorsFile(topic), READ, WRITE);
+        } catch (NoSuchFileException e) {
+            throw new SubscriptionNotFound("Group " + group + " is not subscribed to " + topic + ".", e);
+        }
+    }
+
+    private static Long getCursor(final Cursors cursors, final String topic, final String group) {
+        final Long cursor = cursors.byGroup.get(group);
+        if (Objects.isNull(cursor)) {
+            throw new SubscriptionNotFound("Group " + group + " is not subscribed to " + topic + ".");
+        }
+        return cursor;
+    }
+
+    private Object getMonitor(final String topic) {
+        return monitorsByTopic.computeIfAbsent(topic, name -> new Object());
+    }
+
+    /**
+     * Locks the channel, channel is closed if it cannot be locked.
+     *
+     * @return locked channel that releases the lock and closes the channel once it is closed
+     */
+    private LockedChannel tryLock(final FileChannel channel) throws IOException {
+        FileLock lock = null;
+        final long lockRelease = System.currentTimeMillis() + lockTimeout;
+        try {
+            while (Objects.isNull(lock)) {
+                try {
+                    lock = channel.tryLock();
+                } catch (OverlappingFileLockException e) {
+                    //Have to try to lock file again
+                }
+                if (Objects.isNull(lock) && System.currentTimeMillis() > lockRelease) {
+                    throw new LockTimeoutException("Unable to acquire file lock.");
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return new LockedChannel(channel, lock);
+    }
+
+    private void validate(final String message) {
+        if (message.contains(System.lineSeparator()) || message.contains(DELIMITER)) {
+            throw new InvalidMessageBodyContent(
+                    "Invalid message contents. Line separators and commas are not allowed.");
+        }
+    }
+
+    private void validateGroup(final String group) {
+        validate(group);
+        if (group.isEmpty() || group.contains(LOG_FILE_SUFFIX)) {
+            throw new InvalidMessageBodyContent("Group name must be non empty and must not contain "
+                                                        + LOG_FILE_SUFFIX + ".");
+        }
+    }
+
+    private Path getLogFile(final String topic) {
+        return Paths.get(storagePath + topic + LOG_FILE_SUFFIX + fileFormat);
+    }
+
+    private Path getCursorsFile(final String topic) {
+        return Paths.get(storagePath + topic + CURSORS_FILE_SUFFIX + fileFormat);
+    }
+
+    private Path getLeaseFile(final String topic, final String group) {
+        return Paths.get(storagePath + topic + LOG_FILE_SUFFIX + group + LOG_FILE_SUFFIX + fileFormat);
+    }
+
+    /**
+     * Channel held under a file lock.
+     */
+    private static class LockedChannel implements Closeable {
+
+        private final FileChannel channel;
+
+        private final FileLock lock;
+
+        LockedChannel(final FileChannel channel, final FileLock lock) {
+            this.channel = channel;
+            this.lock = lock;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                lock.release();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    private static class Cursors {
+
+        private final Map<String, Long> byGroup = new LinkedHashMap<>();
+
+        private long base;
+    }
+
+    private static class Lease {
+
+        private final UUID id;
+
+        private final long offset;
+
+        private final long time;
+
+        Lease(final UUID id, final long offset, final long time) {
+            this.id = id;
+            this.offset = offset;
+            this.time = time;
+        }
+
+        @Override
+        public String toString() {
+            return id + DELIMITER + offset + DELIMITER + time + System.lineSeparator();
+        }
+    }
+}
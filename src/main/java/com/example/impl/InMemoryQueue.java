@@ -0,0 +1,676 @@
+package com.example.impl;
+
+import static com.example.util.MessageArena.NIL;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+
+import com.example.model.Priority;
+import com.example.model.QueueStats;
+import com.example.model.impl.SimpleMessage;
+import com.example.util.ArenaList;
+import com.example.util.DeduplicationWindow;
+import com.example.util.MessageArena;
+import com.example.util.ReadinessSet;
+import com.example.util.TimingWheel;
+import com.example.util.WeightedRoundRobin;
+
+/**
+ * State of a single {@link InMemoryQueueService} queue. Messages are stored in a {@link MessageArena},
+ * every priority lane and the in flight list are {@link ArenaList}s of record handles. In flight list
+ * is ordered by lease time, so expired leases are always found at its head. Leases whose visibility was
+ * changed are moved to a separate list kept ordered by insertion from its tail, which is where
+ * heartbeat extensions land, so expired leases are found at one of the two heads. Message id carries handle
+ * of its record in the upper half of most significant bits, which lets delete find the record without
+ * any id index, the rest of the id guards against stale handles of reused records.
+ * <p>
+ * Grouped messages are released to their lane one at a time per group: the released message stays
+ * released while it waits in the lane and while it is in flight, later messages of the group wait in
+ * a backlog list of the group and the next one is released when the released one is deleted. Every
+ * group operation is O(1), so groups that have something released are consumed in parallel no matter
+ * how many messages other groups hold.
+ * <p>
+ * Queue of a durable service appends every push, lease and delete to the {@link WriteAheadLog} while
+ * the queue lock is held, so journal order matches the order mutations were applied in. Messages are
+ * restored from snapshots and journal with their original ids, restored record handles generally
+ * differ from the ones encoded in the ids and are looked up by id instead.
+ * <p>
+ * Implementation is not thread safe, it is guarded by the queue lock of the service.
+ */
+class InMemoryQueue {
+
+    private static final int READY = 0;
+
+    private static final int IN_FLIGHT = 1;
+
+    private static final int DELAYED = 2;
+
+    private static final int EXTENDED = 3;
+
+    private static final int BLOCKED = 4;
+
+    private static final long DELAY_TICK = 1;
+
+    private static final int DELAY_WHEEL_SIZE = 64;
+
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    private final MessageArena arena;
+
+    private final ArenaList[] lanes = new ArenaList[PRIORITIES.length];
+
+    private final ArenaList inFlight;
+
+    private final ArenaList extendedLeases;
+
+    private final WeightedRoundRobin scheduler = new WeightedRoundRobin(Priority.weights());
+
+    private final IntPredicate nonEmptyLane = lane -> !lanes[lane].isEmpty();
+
+    private final IntConsumer releaseDelayed = this::ready;
+
+    private final long idLeastSigBits = ThreadLocalRandom.current().nextLong() | 1;
+
+    private final Map<UUID, Integer> restoredHandles = new HashMap<>();
+
+    private final Map<String, MessageGroup> groupsByKey = new HashMap<>();
+
+    private final List<MessageGroup> groups = new ArrayList<>();
+
+    private final Deque<Integer> freeGroups = new ArrayDeque<>();
+
+    private final byte[] name;
+
+    private final WriteAheadLog journal;
+
+    private TimingWheel delayedMessages;
+
+    private DeduplicationWindow deduplicationIds;
+
+    private int sequence;
+
+    private int blocked;
+
+    private long readyTime = ReadinessSet.NEVER;
+
+    private long lastActivityTime;
+
+    /**
+     * @param name    of the queue used in journal records
+     * @param offHeap whether messages are stored in direct buffers outside of the heap
+     * @param journal to append mutations to or null if queue is not durable
+     */
+    InMemoryQueue(final String name, final boolean offHeap, final WriteAheadLog journal) {
+        this.name = name.getBytes(StandardCharsets.UTF_8);
+        this.journal = journal;
+        this.arena = new MessageArena(offHeap);
+        for (int lane = 0; lane < lanes.length; lane++) {
+            lanes[lane] = new ArenaList(arena);
+        }
+        this.inFlight = new ArenaList(arena);
+        this.extendedLeases = new ArenaList(arena);
+    }
+
+    /**
+     * Remembers deduplication id unless it was already seen within the window.
+     *
+     * @return false if id was seen within the window
+     */
+    boolean registerDeduplicationId(final String deduplicationId, final long window, final long now) {
+        if (Objects.isNull(deduplicationIds)) {
+            deduplicationIds = new DeduplicationWindow(window, now);
+        }
+        if (deduplicationIds.contains(deduplicationId, now)) {
+            return false;
+        }
+        deduplicationIds.register(deduplicationId, now);
+        return true;
+    }
+
+    /**
+     * Stores message at the end of its priority lane, or in the delay wheel if delay is positive. Grouped
+     * message waits in the backlog of its group if the group has a released message.
+     *
+     * @param group of the message or null if message is not grouped
+     * @return journal position of the push record or 0 if queue is not durable
+     */
+    long push(final String payload, final Priority priority, final long delay, final String group, final long now) {
+        final long deliveryTime = now + Math.max(delay, 0);
+        final int handle = store(payload, priority, deliveryTime, group, now);
+        return Objects.isNull(journal)
+                ? 0
+                : journal.appendPush(name, arena.getIdMostSigBits(handle), idLeastSigBits, priority.ordinal(), now,
+                                     deliveryTime, payload, group);
+    }
+
+    /**
+     * Deletes in flight message and pushes new payload to the target queue in one step, both changes are
+     * journaled as a single record. Target queue lock must be held as well.
+     *
+     * @return journal position of the move record, 0 if queue is not durable or -1 if message is not in
+     * flight
+     */
+    long moveTo(final UUID id, final InMemoryQueue target, final String payload, final long now) {
+        final int handle = find(id);
+        if (handle == NIL || (arena.getState(handle) != IN_FLIGHT && arena.getState(handle) != EXTENDED)) {
+            return -1;
+        }
+        final int moved = target.store(payload, Priority.NORMAL, now, null, now);
+        remove(id);
+        lastActivityTime = now;
+        return Objects.isNull(journal)
+                ? 0
+                : journal.appendMove(name, id.getMostSignificantBits(), id.getLeastSignificantBits(), target.name,
+                                     target.arena.getIdMostSigBits(moved), target.idLeastSigBits, now, payload);
+    }
+
+    /**
+     * Leases message with expired visibility timeout if there is one, otherwise leases the head of the
+     * lane selected by weighted round robin.
+     *
+     * @return leased message or null if there is nothing to lease
+     */
+    SimpleMessage pull(final long now, final long visibilityTimeout) {
+        if (Objects.nonNull(delayedMessages)) {
+            delayedMessages.advance(now, releaseDelayed);
+        }
+        int handle = pollExpired(inFlight, now, visibilityTimeout);
+        if (handle == NIL) {
+            handle = pollExpired(extendedLeases, now, visibilityTimeout);
+        }
+        if (handle == NIL) {
+            final int lane = scheduler.next(nonEmptyLane);
+            if (lane < 0) {
+                return null;
+            }
+            handle = lanes[lane].poll();
+        }
+        lastActivityTime = now;
+        final SimpleMessage message = toMessage(handle);
+        lease(handle, now);
+        if (Objects.nonNull(journal)) {
+            journal.appendLease(name, arena.getIdMostSigBits(handle), arena.getIdLeastSigBits(handle), now);
+        }
+        return message;
+    }
+
+    /**
+     * Makes in flight message expire specified time after now by moving its lease time, lease with
+     * zero timeout expires immediately.
+     *
+     * @return false if message is not in flight
+     */
+    boolean changeVisibility(final UUID id, final long timeout, final long now, final long visibilityTimeout) {
+        final int handle = find(id);
+        if (handle == NIL || !unlinkLease(handle)) {
+            return false;
+        }
+        lastActivityTime = now;
+        final long time = now + timeout - visibilityTimeout;
+        extendLease(handle, time);
+        if (Objects.nonNull(journal)) {
+            journal.appendLease(name, id.getMostSignificantBits(), id.getLeastSignificantBits(), time);
+        }
+        return true;
+    }
+
+    /**
+     * Removes message with specified id, unknown ids and delayed messages are ignored.
+     */
+    void delete(final UUID id) {
+        if (remove(id) && Objects.nonNull(journal)) {
+            journal.appendDelete(name, id.getMostSignificantBits(), id.getLeastSignificantBits());
+        }
+    }
+
+    /**
+     * Tells whether queue holds no messages and nothing was pushed, leased or had its visibility changed
+     * for specified time, deduplication ids registered by the last push must have left the window too.
+     */
+    boolean isIdle(final long now, final long idleTimeout, final long deduplicationWindow) {
+        for (ArenaList lane : lanes) {
+            if (!lane.isEmpty()) {
+                return false;
+            }
+        }
+        if (!inFlight.isEmpty() || !extendedLeases.isEmpty() || !groupsByKey.isEmpty()
+                || (Objects.nonNull(delayedMessages) && !delayedMessages.isEmpty())) {
+            return false;
+        }
+        final long idleTime = now - lastActivityTime;
+        return idleTime >= idleTimeout && (Objects.isNull(deduplicationIds) || idleTime >= deduplicationWindow);
+    }
+
+    /**
+     * Finds time a pull first has something to lease at: now if any lane has messages, otherwise when
+     * the earliest lease expires or a delayed message might become due.
+     *
+     * @return epoch millisecond or {@link ReadinessSet#NEVER} if queue holds nothing to pull
+     */
+    private long getReadyTime(final long visibilityTimeout) {
+        for (ArenaList lane : lanes) {
+            if (!lane.isEmpty()) {
+                return 0;
+            }
+        }
+        long next = ReadinessSet.NEVER;
+        if (!inFlight.isEmpty()) {
+            next = arena.getTime(inFlight.peek()) + visibilityTimeout;
+        }
+        if (!extendedLeases.isEmpty()) {
+            next = Math.min(next, arena.getTime(extendedLeases.peek()) + visibilityTimeout);
+        }
+        if (Objects.nonNull(delayedMessages)) {
+            next = Math.min(next, delayedMessages.nextExpiration());
+        }
+        return next;
+    }
+
+    /**
+     * Recomputes ready time of the queue and remembers it.
+     *
+     * @return whether ready time differs from the remembered one
+     */
+    boolean refreshReadyTime(final long visibilityTimeout) {
+        final long previous = readyTime;
+        readyTime = getReadyTime(visibilityTimeout);
+        return readyTime != previous;
+    }
+
+    /**
+     * @return ready time remembered by {@link #refreshReadyTime(long)}
+     */
+    long getRememberedReadyTime() {
+        return readyTime;
+    }
+
+    /**
+     * @return messages waiting in the lanes in lane order followed by group backlogs
+     */
+    List<SimpleMessage> getReadyMessages() {
+        final List<SimpleMessage> messages = new ArrayList<>(arena.size());
+        for (ArenaList lane : lanes) {
+            for (int handle = lane.peek(); handle != NIL; handle = arena.getNext(handle)) {
+                messages.add(toMessage(handle));
+            }
+        }
+        for (MessageGroup group : groupsByKey.values()) {
+            for (int handle = group.backlog.peek(); handle != NIL; handle = arena.getNext(handle)) {
+                messages.add(toMessage(handle));
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Reads sizes of the lanes, group backlogs, in flight list and delay wheel, age of the oldest message
+     * is taken from the lane heads.
+     */
+    QueueStats stats(final long now) {
+        long depth = blocked;
+        long oldestCreationTime = now;
+        for (ArenaList lane : lanes) {
+            depth += lane.size();
+            if (!lane.isEmpty()) {
+                oldestCreationTime = Math.min(oldestCreationTime, arena.getTime(lane.peek()));
+            }
+        }
+        return QueueStats.builder()
+                         .depth(depth)
+                         .inFlight(inFlight.size() + extendedLeases.size())
+                         .delayed(Objects.isNull(delayedMessages) ? 0 : delayedMessages.size())
+                         .oldestMessageAge(Duration.ofMillis(now - oldestCreationTime))
+                         .build();
+    }
+
+    /**
+     * Restores pushed message with its original id, message that is already stored is left as is, so
+     * journal records already reflected in a snapshot can be replayed over it.
+     *
+     * @param deliveryTime time message becomes visible, message is delayed until then
+     * @param group        of the message or null if message is not grouped
+     */
+    void restore(final UUID id,
+                 final String payload,
+                 final int priority,
+                 final long creationTime,
+                 final long deliveryTime,
+                 final String group,
+                 final long now) {
+        if (find(id) != NIL) {
+            return;
+        }
+        final int handle = arena.allocate(payload, creationTime);
+        arena.setId(handle, id.getMostSignificantBits(), id.getLeastSignificantBits());
+        arena.setPriority(handle, priority);
+        restoredHandles.put(id, handle);
+        if (Objects.isNull(group)) {
+            schedule(handle, deliveryTime, now);
+        } else {
+            enqueue(handle, group);
+        }
+    }
+
+    /**
+     * Restores lease of a stored message, leases of unknown and delayed messages are ignored. Lease
+     * that would break the order of the in flight list is restored as extended lease.
+     */
+    void restoreLease(final UUID id, final long time, final long now) {
+        final int handle = find(id);
+        if (handle == NIL) {
+            return;
+        }
+        if (arena.getState(handle) == READY) {
+            lanes[arena.getPriority(handle)].remove(handle);
+        } else if (!unlinkLease(handle)) {
+            return;
+        }
+        final int last = inFlight.peekLast();
+        if (time <= now && (last == NIL || arena.getTime(last) <= time)) {
+            lease(handle, time);
+        } else {
+            extendLease(handle, time);
+        }
+    }
+
+    /**
+     * Restores message deletion, unknown ids are ignored.
+     */
+    void restoreDelete(final UUID id) {
+        remove(id);
+    }
+
+    /**
+     * Writes every stored message as {@code int count} followed by {@code long idMostSigBits, long
+     * idLeastSigBits, int priority, byte inFlight, long time, long deliveryTime, UTF-8 payload, byte
+     * grouped, UTF group} per message, group is only written for grouped messages. Ready messages come
+     * in lane order and in flight ones in lease order, followed by group backlogs, so released message
+     * of a group is restored before the rest of the group.
+     */
+    void writeTo(final DataOutput output) throws IOException {
+        output.writeInt(arena.size());
+        for (ArenaList lane : lanes) {
+            for (int handle = lane.peek(); handle != NIL; handle = arena.getNext(handle)) {
+                writeMessage(output, handle, false, arena.getTime(handle));
+            }
+        }
+        for (int handle = inFlight.peek(); handle != NIL; handle = arena.getNext(handle)) {
+            writeMessage(output, handle, true, arena.getTime(handle));
+        }
+        for (int handle = extendedLeases.peek(); handle != NIL; handle = arena.getNext(handle)) {
+            writeMessage(output, handle, true, arena.getTime(handle));
+        }
+        for (MessageGroup group : groupsByKey.values()) {
+            for (int handle = group.backlog.peek(); handle != NIL; handle = arena.getNext(handle)) {
+                writeMessage(output, handle, false, arena.getTime(handle));
+            }
+        }
+        if (Objects.nonNull(delayedMessages)) {
+            final IOException[] failure = new IOException[1];
+            delayedMessages.forEach((handle, deliveryTime) -> {
+                try {
+                    writeMessage(output, handle, false, deliveryTime);
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            });
+            if (Objects.nonNull(failure[0])) {
+                throw failure[0];
+            }
+        }
+    }
+
+    /**
+     * Restores messages written by {@link #writeTo(DataOutput)}.
+     */
+    void readFrom(final DataInput input, final long now) throws IOException {
+        final int count = input.readInt();
+        for (int message = 0; message < count; message++) {
+            final UUID id = new UUID(input.readLong(), input.readLong());
+            final int priority = input.readInt();
+            final boolean leased = input.readBoolean();
+            final long time = input.readLong();
+            final long deliveryTime = input.readLong();
+            final byte[] payload = new byte[input.readInt()];
+            input.readFully(payload);
+            final String group = input.readBoolean() ? input.readUTF() : null;
+            restore(id, new String(payload, StandardCharsets.UTF_8), priority, time, deliveryTime, group, now);
+            if (leased) {
+                restoreLease(id, time, now);
+            }
+        }
+    }
+
+    private void writeMessage(final DataOutput output, final int handle, final boolean leased, final long deliveryTime)
+            throws IOException {
+        final byte[] payload = arena.getPayload(handle).getBytes(StandardCharsets.UTF_8);
+        output.writeLong(arena.getIdMostSigBits(handle));
+        output.writeLong(arena.getIdLeastSigBits(handle));
+        output.writeInt(arena.getPriority(handle));
+        output.writeBoolean(leased);
+        output.writeLong(arena.getTime(handle));
+        output.writeLong(deliveryTime);
+        output.writeInt(payload.length);
+        output.write(payload);
+        final int group = arena.getGroup(handle);
+        output.writeBoolean(group != NIL);
+        if (group != NIL) {
+            output.writeUTF(groups.get(group).key);
+        }
+    }
+
+    /**
+     * @return whether message was stored and removed
+     */
+    private boolean remove(final UUID id) {
+        final int handle = find(id);
+        if (handle == NIL) {
+            return false;
+        }
+        final int state = arena.getState(handle);
+        if (state == READY) {
+            lanes[arena.getPriority(handle)].remove(handle);
+        } else if (state == BLOCKED) {
+            groups.get(arena.getGroup(handle)).backlog.remove(handle);
+            blocked--;
+        } else if (!unlinkLease(handle)) {
+            return false;
+        }
+        if (arena.getGroup(handle) != NIL) {
+            releaseNext(handle);
+        }
+        arena.free(handle);
+        if (!restoredHandles.isEmpty()) {
+            restoredHandles.remove(id);
+        }
+        return true;
+    }
+
+    /**
+     * @return handle of the message with specified id or {@link MessageArena#NIL} if it is not stored
+     */
+    private int find(final UUID id) {
+        final int handle = (int) (id.getMostSignificantBits() >>> Integer.SIZE);
+        if (arena.contains(handle, id.getMostSignificantBits(), id.getLeastSignificantBits())) {
+            return handle;
+        }
+        if (restoredHandles.isEmpty()) {
+            return NIL;
+        }
+        final Integer restoredHandle = restoredHandles.get(id);
+        return Objects.isNull(restoredHandle) ? NIL : restoredHandle;
+    }
+
+    /**
+     * Places message in the delay wheel until delivery time or at the end of its lane if it is due.
+     */
+    private void schedule(final int handle, final long deliveryTime, final long now) {
+        if (deliveryTime > now) {
+            if (Objects.isNull(delayedMessages)) {
+                delayedMessages = new TimingWheel(DELAY_TICK, DELAY_WHEEL_SIZE, now);
+            }
+            if (delayedMessages.add(handle, deliveryTime)) {
+                arena.setState(handle, DELAYED);
+                return;
+            }
+        }
+        ready(handle);
+    }
+
+    /**
+     * Stores a new message with a fresh id.
+     *
+     * @return handle of the message
+     */
+    private int store(final String payload,
+                      final Priority priority,
+                      final long deliveryTime,
+                      final String group,
+                      final long now) {
+        lastActivityTime = now;
+        final int handle = arena.allocate(payload, now);
+        final long idMostSigBits = ((long) handle << Integer.SIZE) | Integer.toUnsignedLong(sequence++);
+        arena.setId(handle, idMostSigBits, idLeastSigBits);
+        arena.setPriority(handle, priority.ordinal());
+        if (Objects.isNull(group)) {
+            schedule(handle, deliveryTime, now);
+        } else {
+            enqueue(handle, group);
+        }
+        return handle;
+    }
+
+    /**
+     * Releases grouped message to its lane if its group has nothing released, otherwise appends it to
+     * the backlog of the group.
+     */
+    private void enqueue(final int handle, final String key) {
+        MessageGroup group = groupsByKey.get(key);
+        if (Objects.isNull(group)) {
+            final Integer free = freeGroups.poll();
+            group = new MessageGroup(key, Objects.isNull(free) ? groups.size() : free, arena);
+            if (Objects.isNull(free)) {
+                groups.add(group);
+            } else {
+                groups.set(free, group);
+            }
+            groupsByKey.put(key, group);
+        }
+        arena.setGroup(handle, group.index);
+        if (group.released == NIL) {
+            group.released = handle;
+            ready(handle);
+        } else {
+            arena.setState(handle, BLOCKED);
+            group.backlog.append(handle);
+            blocked++;
+        }
+    }
+
+    /**
+     * Releases the next message of the group once the released one is removed, group that has nothing
+     * left is forgotten.
+     */
+    private void releaseNext(final int handle) {
+        final MessageGroup group = groups.get(arena.getGroup(handle));
+        if (group.released == handle) {
+            group.released = group.backlog.poll();
+            if (group.released != NIL) {
+                blocked--;
+                ready(group.released);
+            }
+        }
+        if (group.released == NIL && group.backlog.isEmpty()) {
+            groupsByKey.remove(group.key);
+            groups.set(group.index, null);
+            freeGroups.push(group.index);
+        }
+    }
+
+    /**
+     * @return false if message is not in flight
+     */
+    private boolean unlinkLease(final int handle) {
+        switch (arena.getState(handle)) {
+            case IN_FLIGHT:
+                inFlight.remove(handle);
+                return true;
+            case EXTENDED:
+                extendedLeases.remove(handle);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return handle of unlinked head of the lease list if its lease expired or {@link MessageArena#NIL}
+     */
+    private int pollExpired(final ArenaList leases, final long now, final long visibilityTimeout) {
+        final int handle = leases.peek();
+        if (handle == NIL || now - arena.getTime(handle) < visibilityTimeout) {
+            return NIL;
+        }
+        leases.remove(handle);
+        return handle;
+    }
+
+    private void extendLease(final int handle, final long time) {
+        arena.setTime(handle, time);
+        arena.setState(handle, EXTENDED);
+        int prev = extendedLeases.peekLast();
+        while (prev != NIL && arena.getTime(prev) > time) {
+            prev = arena.getPrev(prev);
+        }
+        extendedLeases.insertAfter(prev, handle);
+    }
+
+    private void lease(final int handle, final long now) {
+        arena.setTime(handle, now);
+        arena.setState(handle, IN_FLIGHT);
+        inFlight.append(handle);
+    }
+
+    private void ready(final int handle) {
+        arena.setState(handle, READY);
+        lanes[arena.getPriority(handle)].append(handle);
+    }
+
+    private SimpleMessage toMessage(final int handle) {
+        return SimpleMessage.of(new UUID(arena.getIdMostSigBits(handle), arena.getIdLeastSigBits(handle)),
+                                arena.getPayload(handle),
+                                Instant.ofEpochMilli(arena.getTime(handle)));
+    }
+
+    private static class MessageGroup {
+
+        private final String key;
+
+        private final int index;
+
+        private final ArenaList backlog;
+
+        private int released = NIL;
+
+        MessageGroup(final String key, final int index, final MessageArena arena) {
+            this.key = key;
+            this.index = index;
+            this.backlog = new ArenaList(arena);
+        }
+    }
+}
@@ -1,45 +1,171 @@
 package com.example.impl;
 
-import java.util.HashMap;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.function.Predicate;
+import java.util.stream.Stream;
 
 import com.example.QueueService;
+import com.example.SnapshotQueueService;
+import com.example.exception.UnableToAccessUnderlyingStore;
 import com.example.exception.UnsupportedMessageImplementation;
+import com.example.jfr.LockWaitEvent;
+import com.example.model.Delivery;
 import com.example.model.Message;
-import com.example.model.Messages;
+import com.example.model.Priority;
+import com.example.model.PushOptions;
+import com.example.model.QueueStats;
 import com.example.model.impl.SimpleMessage;
-import com.example.util.Queues;
-import org.apache.commons.collections4.CollectionUtils;
+import com.example.util.DeduplicationWindow;
+import com.example.util.MessageArena;
+import com.example.util.ReadinessSet;
+import com.example.util.TimingWheel;
 
 /**
- * Defines in memory implementation for {@link QueueService}. Uses {@link SimpleMessage} and {@link
- * java.util.PriorityQueue} as underlying storage. Implementation is thread safe on queue name
- * level. Service strives to achieve FIFO behavior by placing messages to the {@link
- * java.util.PriorityQueue} based on addition time, providing millisecond precision. In case
- * addition time is identical random tie breaker is used to decide which message will be delivered.
- * Service supports visibility timeout parameter in milliseconds. When message is pulled visibility
- * timer starts, upon next pull if there are non deleted messages with expired timeout service will
- * return them in FIFO order. Messages that are re-pulled will be scheduled for re-pull unless they
- * are deleted by recipient.
+ * Defines in memory implementation for {@link QueueService}. Messages are stored in a per queue
+ * {@link MessageArena}, only the returned {@link SimpleMessage} is materialized on pull.
+ * Implementation is thread safe on queue name level. Each queue keeps a FIFO lane per {@link
+ * Priority}, lanes are served in weighted round robin manner so that urgent messages skip the
+ * backlog of lower lanes without starving them. Service supports visibility timeout parameter in
+ * milliseconds. When message is pulled visibility timer starts, upon next pull if there are non
+ * deleted messages with expired timeout service will return them in FIFO order. Messages that are
+ * re-pulled will be scheduled for re-pull unless they are deleted by recipient. Delayed messages are
+ * kept in a per queue {@link TimingWheel} with millisecond ticks and are moved to the end of their
+ * lane once their delay passes. Pushes with a deduplication id that was already seen within the
+ * queue {@link DeduplicationWindow} are dropped.
+ * <p>
+ * In off heap mode arena slabs are direct buffers, so payloads and metadata of queued messages do
+ * not add to the garbage collected heap and heap usage does not grow with backlog depth.
+ * <p>
+ * Durable service appends every push, lease and delete to a {@link WriteAheadLog} in the journal
+ * directory. Push returns once its record is synced, fsyncs are shared by concurrent pushes, leases
+ * and deletes are synced in the background every {@value #SYNC_INTERVAL} milliseconds, so a crash
+ * might only redeliver a message. Snapshot of every queue is written in the background periodically,
+ * journal segments it covers are deleted afterwards. On start service loads the snapshot and replays
+ * the journal written after it, messages keep their ids across restarts. Deduplication windows are
+ * not journaled and start empty after restart.
+ * <p>
+ * Every operation reports the time its queue next has something to pull to a {@link ReadinessSet},
+ * which {@link #pullAny(Collection, Duration)} takes queues from.
+ * <p>
+ * Queues are kept until {@link #evictIdleQueues(Duration)} finds them empty and idle, so services with
+ * short lived queues are expected to call it periodically.
+ * <p>
+ * Waits for a contended queue lock are recorded as {@link LockWaitEvent}.
  */
-public class InMemoryQueueService implements QueueService<SimpleMessage> {
+public class InMemoryQueueService implements SnapshotQueueService<SimpleMessage>, Closeable {
+
+    private static final long SYNC_INTERVAL = 10;
+
+    private static final String SNAPSHOT_FILE = "snapshot";
 
-    private final Map<String, Queue<SimpleMessage>> messageQueuesByTopic = new HashMap<>();
+    private static final String SNAPSHOT_TEMP_FILE = "snapshot.tmp";
 
-    private final Map<String, Queue<SimpleMessage>> messagesInProgressByTopic = new HashMap<>();
+    private final Map<String, InMemoryQueue> queuesByTopic = new ConcurrentHashMap<>();
 
     private final LockingService lockingService = new LockingService();
 
     private final long visibilityTimeout;
 
+    private final long deduplicationWindow;
+
+    private final boolean offHeap;
+
+    private final Path journalDirectory;
+
+    private final WriteAheadLog journal;
+
+    private final ScheduledExecutorService journalExecutor;
+
+    private final Object snapshotLock = new Object();
+
+    private final ReadinessSet readiness = new ReadinessSet();
+
     public InMemoryQueueService(long visibilityTimeout) {
+        this(visibilityTimeout, DeduplicationWindow.DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param visibilityTimeout   millisecond timeout for message re delivery if not deleted
+     * @param deduplicationWindow minimal time in milliseconds deduplication id is remembered for
+     */
+    public InMemoryQueueService(long visibilityTimeout, long deduplicationWindow) {
+        this(visibilityTimeout, deduplicationWindow, false);
+    }
+
+    /**
+     * @param visibilityTimeout   millisecond timeout for message re delivery if not deleted
+     * @param deduplicationWindow minimal time in milliseconds deduplication id is remembered for
+     * @param offHeap             whether messages are stored in direct buffers outside of the heap
+     */
+    public InMemoryQueueService(long visibilityTimeout, long deduplicationWindow, boolean offHeap) {
+        this.visibilityTimeout = visibilityTimeout;
+        this.deduplicationWindow = deduplicationWindow;
+        this.offHeap = offHeap;
+        this.journalDirectory = null;
+        this.journal = null;
+        this.journalExecutor = null;
+    }
+
+    /**
+     * Creates durable service, state found in the journal directory is recovered before the service
+     * is returned and is snapshotted right away.
+     *
+     * @param visibilityTimeout   millisecond timeout for message re delivery if not deleted
+     * @param deduplicationWindow minimal time in milliseconds deduplication id is remembered for
+     * @param offHeap             whether messages are stored in direct buffers outside of the heap
+     * @param journalDirectory    directory journal segments and snapshots are kept in
+     * @param snapshotInterval    milliseconds between background snapshots
+     * @throws UnableToAccessUnderlyingStore if journal directory cannot be read or written
+     */
+    public InMemoryQueueService(long visibilityTimeout,
+                                long deduplicationWindow,
+                                boolean offHeap,
+                                Path journalDirectory,
+                                long snapshotInterval) {
         this.visibilityTimeout = visibilityTimeout;
+        this.deduplicationWindow = deduplicationWindow;
+        this.offHeap = offHeap;
+        this.journalDirectory = journalDirectory;
+        this.journal = new WriteAheadLog(journalDirectory);
+        recover();
+        final long now = System.currentTimeMillis();
+        queuesByTopic.forEach((queue, messages) -> reportReadiness(queue, messages, now, true));
+        snapshot();
+        this.journalExecutor = Executors.newSingleThreadScheduledExecutor(task -> {
+            final Thread thread = new Thread(task, "in-memory-queue-journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        journalExecutor.scheduleWithFixedDelay(() -> runQuietly(() -> journal.sync(journal.position())),
+                                               SYNC_INTERVAL, SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+        journalExecutor.scheduleWithFixedDelay(() -> runQuietly(this::snapshot),
+                                               snapshotInterval, snapshotInterval, TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -47,15 +173,48 @@ public class InMemoryQueueService implements QueueService<SimpleMessage> {
      *
      * @param queue   to push message to
      * @param message string body of a message
+     * @throws com.example.exception.InvalidMessageBodyContent if message exceeds {@value
+     *                                                         MessageArena#MAX_PAYLOAD_SIZE} bytes
      */
     @Override
     public void push(String queue, String message) {
+        push(queue, message, PushOptions.defaults());
+    }
+
+    /**
+     * Pushes message to a priority lane of specified queue. Delayed message is kept aside until delay
+     * passes and is placed at the end of its lane afterwards. Grouped message is placed in the lane only
+     * once the previous message of its group is deleted, so a group has at most one message in flight
+     * while different groups are pulled in parallel. Message is silently dropped if its deduplication id
+     * was pushed to the same queue within deduplication window. Queue is created when a new message is
+     * pushed.
+     *
+     * @param queue   to push message to
+     * @param message string body of a message
+     * @param options delivery options of a message
+     * @throws com.example.exception.InvalidMessageBodyContent if message exceeds {@value
+     *                                                         MessageArena#MAX_PAYLOAD_SIZE} bytes
+     */
+    @Override
+    public void push(String queue, String message, PushOptions options) {
+        final long journalPosition;
         try {
             lockingService.lock(queue);
-            push(messageQueuesByTopic, queue, Messages.createMessage(message));
+            final long now = System.currentTimeMillis();
+            final InMemoryQueue messages = getQueue(queue);
+            if (Objects.nonNull(options.getDeduplicationId())
+                    && !messages.registerDeduplicationId(options.getDeduplicationId(), deduplicationWindow, now)) {
+                return;
+            }
+            journalPosition = messages.push(message, options.getPriority(), options.getDelay().toMillis(),
+                                            options.getGroupId(), now);
+            reportReadiness(queue, messages, now, false);
         } finally {
             lockingService.unlock(queue);
         }
+        if (Objects.nonNull(journal)) {
+            journal.sync(journalPosition);
+        }
     }
 
     /**
@@ -69,25 +228,43 @@ public class InMemoryQueueService implements QueueService<SimpleMessage> {
     public SimpleMessage pull(String queue) {
         try {
             lockingService.lock(queue);
-            final Queue<SimpleMessage> queueInProgress = messagesInProgressByTopic.get(queue);
-            final SimpleMessage messagesInProgress = pullIf(queueInProgress,
-                                                            message -> Messages.isExpired(message, visibilityTimeout));
-            if (Objects.nonNull(messagesInProgress)) {
-                push(messagesInProgressByTopic, queue, Messages.createMessage(messagesInProgress));
-                return messagesInProgress;
-            }
-            final Queue<SimpleMessage> messages = messageQueuesByTopic.get(queue);
-            final SimpleMessage nextMessage = pull(messages);
-            if (Objects.nonNull(nextMessage)) {
-                push(messagesInProgressByTopic, queue, Messages.createMessage(nextMessage));
-                return nextMessage;
-            }
-            return null;
+            final InMemoryQueue messages = queuesByTopic.get(queue);
+            return Objects.nonNull(messages) ? pull(queue, messages, false) : null;
         } finally {
             lockingService.unlock(queue);
         }
     }
 
+    /**
+     * Takes queues from the readiness set every push, pull, delete and visibility change of the service
+     * keeps up to date, so empty queues are neither locked nor looked at. Ready queues are served in
+     * round robin manner.
+     *
+     * @param queues  to pull message from
+     * @param maxWait time to wait for a message if every queue is empty
+     * @return message together with its queue or null if every queue stayed empty or waiting thread was
+     * interrupted
+     */
+    @Override
+    public Delivery<SimpleMessage> pullAny(final Collection<String> queues, final Duration maxWait) {
+        final Set<String> candidates = queues instanceof Set ? (Set<String>) queues : new HashSet<>(queues);
+        final long deadline = System.currentTimeMillis() + maxWait.toMillis();
+        String queue;
+        while (Objects.nonNull(queue = readiness.take(candidates, deadline))) {
+            try {
+                lockingService.lock(queue);
+                final InMemoryQueue messages = queuesByTopic.get(queue);
+                final SimpleMessage message = Objects.nonNull(messages) ? pull(queue, messages, true) : null;
+                if (Objects.nonNull(message)) {
+                    return Delivery.of(queue, message);
+                }
+            } finally {
+                lockingService.unlock(queue);
+            }
+        }
+        return null;
+    }
+
     /**
      * Deletes message from a specified queue. Particular implementation uses UUID as unique message
      * identifier. Identifier is encapsulated within pulled messages, so user has to provide message
@@ -101,41 +278,345 @@ public class InMemoryQueueService implements QueueService<SimpleMessage> {
         final SimpleMessage simpleMessage = tryCast(message);
         try {
             lockingService.lock(queue);
-            remove(messageQueuesByTopic, queue, simpleMessage);
-            remove(messagesInProgressByTopic, queue, simpleMessage);
+            final InMemoryQueue messages = queuesByTopic.get(queue);
+            if (Objects.nonNull(messages)) {
+                messages.delete(simpleMessage.getId());
+                reportReadiness(queue, messages, System.currentTimeMillis(), false);
+            }
         } finally {
             lockingService.unlock(queue);
         }
     }
 
-    private SimpleMessage pull(final Queue<SimpleMessage> queue) {
-        return pullIf(queue, (message) -> true);
+    /**
+     * Deletes in flight message and pushes new payload to the target queue under locks of both queues,
+     * which are taken in name order. Durable service journals both changes as a single record, so
+     * recovery sees either both or none of them. Pushed message has default options.
+     *
+     * @param sourceQueue message was pulled from
+     * @param message     to delete from the source queue
+     * @param targetQueue to push new payload to
+     * @param newPayload  string body of the pushed message
+     * @return false if message was not in flight anymore and nothing was pushed
+     * @throws com.example.exception.InvalidMessageBodyContent if payload exceeds {@value
+     *                                                         MessageArena#MAX_PAYLOAD_SIZE} bytes
+     */
+    @Override
+    public boolean moveTo(final String sourceQueue,
+                          final SimpleMessage message,
+                          final String targetQueue,
+                          final String newPayload) {
+        final SimpleMessage simpleMessage = tryCast(message);
+        final boolean sourceFirst = sourceQueue.compareTo(targetQueue) <= 0;
+        final long journalPosition;
+        lockingService.lock(sourceFirst ? sourceQueue : targetQueue);
+        try {
+            lockingService.lock(sourceFirst ? targetQueue : sourceQueue);
+            try {
+                final InMemoryQueue source = queuesByTopic.get(sourceQueue);
+                if (Objects.isNull(source)) {
+                    return false;
+                }
+                final long now = System.currentTimeMillis();
+                final InMemoryQueue target = getQueue(targetQueue);
+                journalPosition = source.moveTo(simpleMessage.getId(), target, newPayload, now);
+                if (journalPosition < 0) {
+                    return false;
+                }
+                reportReadiness(sourceQueue, source, now, false);
+                reportReadiness(targetQueue, target, now, false);
+            } finally {
+                lockingService.unlock(sourceFirst ? targetQueue : sourceQueue);
+            }
+        } finally {
+            lockingService.unlock(sourceFirst ? sourceQueue : targetQueue);
+        }
+        if (Objects.nonNull(journal)) {
+            journal.sync(journalPosition);
+        }
+        return true;
     }
 
-    private SimpleMessage pullIf(final Queue<SimpleMessage> queue,
-                                 final Predicate<SimpleMessage> predicate) {
-        if (CollectionUtils.isNotEmpty(queue)) {
-            final SimpleMessage message = queue.peek();
-            if (predicate.test(message)) {
-                return queue.poll();
+    /**
+     * Moves lease of the message, so it expires specified time after now. Lease is identified by
+     * message id only, so lease of a message redelivered to another consumer is changed as well.
+     *
+     * @param queue   message was pulled from
+     * @param message to change visibility of
+     * @param timeout time message stays invisible to consumers
+     * @return false if message is not in flight anymore
+     * @throws IllegalArgumentException if timeout is negative
+     */
+    @Override
+    public boolean changeVisibility(final String queue, final SimpleMessage message, final Duration timeout) {
+        if (timeout.isNegative()) {
+            throw new IllegalArgumentException("Visibility timeout must not be negative.");
+        }
+        final SimpleMessage simpleMessage = tryCast(message);
+        try {
+            lockingService.lock(queue);
+            final InMemoryQueue messages = queuesByTopic.get(queue);
+            final long now = System.currentTimeMillis();
+            if (Objects.isNull(messages)
+                    || !messages.changeVisibility(simpleMessage.getId(), timeout.toMillis(), now, visibilityTimeout)) {
+                return false;
             }
+            reportReadiness(queue, messages, now, false);
+            return true;
+        } finally {
+            lockingService.unlock(queue);
+        }
+    }
+
+    /**
+     * Copies messages of the queue under its lock, so the stream holds no resources and is sized.
+     *
+     * @param queue to read
+     * @return stream of messages, empty if queue does not exist
+     */
+    @Override
+    public Stream<SimpleMessage> snapshot(final String queue) {
+        final List<SimpleMessage> messages;
+        try {
+            lockingService.lock(queue);
+            final InMemoryQueue queueMessages = queuesByTopic.get(queue);
+            messages = Objects.nonNull(queueMessages) ? queueMessages.getReadyMessages() : List.of();
+        } finally {
+            lockingService.unlock(queue);
+        }
+        return messages.stream();
+    }
+
+    /**
+     * Reads counters kept by the queue, so cost does not depend on the number of messages.
+     *
+     * @param queue to describe
+     * @return statistics of the queue
+     */
+    @Override
+    public QueueStats stats(String queue) {
+        try {
+            lockingService.lock(queue);
+            final InMemoryQueue messages = queuesByTopic.get(queue);
+            return Objects.nonNull(messages)
+                    ? messages.stats(System.currentTimeMillis())
+                    : QueueStats.empty();
+        } finally {
+            lockingService.unlock(queue);
+        }
+    }
+
+    /**
+     * @return names of queues something was ever pushed to
+     */
+    @Override
+    public Set<String> listQueues() {
+        return Set.copyOf(queuesByTopic.keySet());
+    }
+
+    /**
+     * Forgets queues that hold no messages and were idle for specified time, together with their locks,
+     * deduplication ids and readiness. Each queue is checked under its lock, so a concurrent push either
+     * lands before the check and keeps the queue or waits and recreates the queue afterwards. Queues
+     * restored on start are checked whether they were locked since or not, locks of names that were
+     * pulled from but never pushed to are forgotten too. Hot path only remembers time of the last push,
+     * lease and visibility change of a queue.
+     *
+     * @param idleTimeout time queue has to be idle for, queues with deduplication ids are also kept until
+     *                    deduplication window passes
+     * @return names of evicted queues
+     */
+    public Set<String> evictIdleQueues(final Duration idleTimeout) {
+        final Set<String> evicted = new HashSet<>();
+        final Set<String> queues = new HashSet<>(queuesByTopic.keySet());
+        queues.addAll(lockingService.keys());
+        for (String queue : queues) {
+            boolean evict = false;
+            lockingService.lock(queue);
+            try {
+                final InMemoryQueue messages = queuesByTopic.get(queue);
+                evict = Objects.isNull(messages)
+                        || messages.isIdle(System.currentTimeMillis(), idleTimeout.toMillis(), deduplicationWindow);
+                if (evict && Objects.nonNull(messages)) {
+                    queuesByTopic.remove(queue);
+                    readiness.remove(queue);
+                    evicted.add(queue);
+                }
+            } finally {
+                if (evict) {
+                    lockingService.unlockAndRemove(queue);
+                } else {
+                    lockingService.unlock(queue);
+                }
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Writes snapshot of every queue and deletes journal segments it covers. Journal is rolled before
+     * the snapshot starts and queues are written one at a time under their locks, so snapshot might
+     * already reflect some records of the new segment, replaying them over the snapshot is harmless.
+     * Does nothing unless service is durable.
+     *
+     * @throws UnableToAccessUnderlyingStore if snapshot cannot be written
+     */
+    public void snapshot() {
+        if (Objects.isNull(journal)) {
+            return;
+        }
+        synchronized (snapshotLock) {
+            final long firstSegment = journal.roll();
+            final Path temporary = journalDirectory.resolve(SNAPSHOT_TEMP_FILE);
+            try {
+                try (DataOutputStream output = new DataOutputStream(
+                        new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                    output.writeLong(firstSegment);
+                    for (String queue : queuesByTopic.keySet()) {
+                        final ByteArrayOutputStream state = copyQueue(queue);
+                        if (Objects.nonNull(state)) {
+                            output.writeBoolean(true);
+                            output.writeUTF(queue);
+                            state.writeTo(output);
+                        }
+                    }
+                    output.writeBoolean(false);
+                }
+                try (FileChannel channel = FileChannel.open(temporary, WRITE)) {
+                    channel.force(true);
+                }
+                Files.move(temporary, journalDirectory.resolve(SNAPSHOT_FILE), ATOMIC_MOVE, REPLACE_EXISTING);
+            } catch (IOException e) {
+                throw new UnableToAccessUnderlyingStore(e.getMessage(), e);
+            }
+            journal.deleteSegmentsBefore(firstSegment);
+        }
+    }
+
+    /**
+     * Stops background journal work and syncs the journal. Does nothing unless service is durable.
+     */
+    @Override
+    public void close() throws IOException {
+        if (Objects.isNull(journal)) {
+            return;
+        }
+        journalExecutor.shutdown();
+        try {
+            journalExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        journal.close();
+    }
+
+    /**
+     * Pulls message under the queue lock and reports readiness of the queue afterwards.
+     *
+     * @param taken whether queue was taken from the readiness set, so it has to be reported even if its
+     *              ready time did not change
+     */
+    private SimpleMessage pull(final String queue, final InMemoryQueue messages, final boolean taken) {
+        final long now = System.currentTimeMillis();
+        try {
+            return messages.pull(now, visibilityTimeout);
+        } finally {
+            reportReadiness(queue, messages, now, taken);
+        }
+    }
+
+    /**
+     * Updates readiness set with ready time of the queue, readiness set is only locked when ready time
+     * changes, so steady pushes and pulls of a busy queue do not contend for it.
+     */
+    private void reportReadiness(final String queue,
+                                 final InMemoryQueue messages,
+                                 final long now,
+                                 final boolean force) {
+        if (messages.refreshReadyTime(visibilityTimeout) || force) {
+            readiness.update(queue, messages.getRememberedReadyTime(), now);
         }
-        return null;
     }
 
-    private void push(final Map<String, Queue<SimpleMessage>> messagesByTopic, final String topic,
-                      final SimpleMessage message) {
-        messagesByTopic.merge(topic, Queues.createPriorityQueue(message), (oldMessages, newMessages) -> {
-            oldMessages.addAll(newMessages);
-            return oldMessages;
+    private InMemoryQueue getQueue(final String queue) {
+        return queuesByTopic.computeIfAbsent(queue, name -> new InMemoryQueue(name, offHeap, journal));
+    }
+
+    /**
+     * Copies queue state to memory under its lock, so the lock is not held while writing to disk.
+     *
+     * @return state of the queue or null if queue was evicted in the meantime
+     */
+    private ByteArrayOutputStream copyQueue(final String queue) throws IOException {
+        final ByteArrayOutputStream state = new ByteArrayOutputStream();
+        try {
+            lockingService.lock(queue);
+            final InMemoryQueue messages = queuesByTopic.get(queue);
+            if (Objects.isNull(messages)) {
+                return null;
+            }
+            messages.writeTo(new DataOutputStream(state));
+        } finally {
+            lockingService.unlock(queue);
+        }
+        return state;
+    }
+
+    /**
+     * Loads the snapshot and replays journal written after it.
+     */
+    private void recover() {
+        final long now = System.currentTimeMillis();
+        long firstSegment = 0;
+        final Path snapshotFile = journalDirectory.resolve(SNAPSHOT_FILE);
+        if (Files.exists(snapshotFile)) {
+            try (DataInputStream input = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(snapshotFile)))) {
+                firstSegment = input.readLong();
+                while (input.readBoolean()) {
+                    getQueue(input.readUTF()).readFrom(input, now);
+                }
+            } catch (IOException e) {
+                throw new UnableToAccessUnderlyingStore(e.getMessage(), e);
+            }
+        }
+        journal.replay(firstSegment, new WriteAheadLog.Replayer() {
+
+            @Override
+            public void pushed(final String queue,
+                               final UUID id,
+                               final String payload,
+                               final int priority,
+                               final long creationTime,
+                               final long deliveryTime,
+                               final String group) {
+                getQueue(queue).restore(id, payload, priority, creationTime, deliveryTime, group, now);
+            }
+
+            @Override
+            public void leased(final String queue, final UUID id, final long time) {
+                final InMemoryQueue messages = queuesByTopic.get(queue);
+                if (Objects.nonNull(messages)) {
+                    messages.restoreLease(id, time, now);
+                }
+            }
+
+            @Override
+            public void deleted(final String queue, final UUID id) {
+                //Queue emptied before the crash is not recreated by deletes of its messages
+                final InMemoryQueue messages = queuesByTopic.get(queue);
+                if (Objects.nonNull(messages)) {
+                    messages.restoreDelete(id);
+                }
+            }
         });
     }
 
-    private void remove(final Map<String, Queue<SimpleMessage>> messages, final String queue,
-                        final SimpleMessage message) {
-        final Queue<SimpleMessage> queueMessages = messages.get(queue);
-        if (CollectionUtils.isNotEmpty(queueMessages)) {
-            queueMessages.remove(message);
+    private static void runQuietly(final Runnable task) {
+        try {
+            task.run();
+        } catch (UnableToAccessUnderlyingStore e) {
+            //Journal failure is reported to the next push waiting for a sync
         }
     }
 
@@ -148,22 +629,53 @@ public class InMemoryQueueService implements QueueService<SimpleMessage> {
                         + SimpleMessage.class.getCanonicalName() + " supported.");
     }
 
+    /**
+     * Lock of a queue is kept until the queue is evicted, so acquiring it does not allocate. Lock is
+     * removed while it is held, thread that acquires a removed lock afterwards finds it is not mapped
+     * anymore and retries with the current one, so every thread holding a lock holds the mapped one.
+     */
     private static class LockingService {
 
         private final Map<String, Lock> locks = new ConcurrentHashMap<>();
 
         void lock(final String key) {
-            final Lock lock = locks.compute(key, (lockKey, oldLock) -> Objects.nonNull(oldLock)
-                    ? oldLock
-                    : new ReentrantLock());
+            while (true) {
+                final Lock lock = locks.computeIfAbsent(key, lockKey -> new ReentrantLock());
+                if (!lock.tryLock()) {
+                    lockContended(key, lock);
+                }
+                if (locks.get(key) == lock) {
+                    return;
+                }
+                lock.unlock();
+            }
+        }
+
+        private static void lockContended(final String key, final Lock lock) {
+            final LockWaitEvent event = new LockWaitEvent();
+            event.begin();
             lock.lock();
+            event.end();
+            if (event.shouldCommit()) {
+                event.queue = key;
+                event.backend = "memory";
+                event.commit();
+            }
         }
 
         void unlock(final String key) {
-            locks.computeIfPresent(key, (lockKey, oldLock) -> {
-                oldLock.unlock();
-                return null;
-            });
+            locks.get(key).unlock();
+        }
+
+        /**
+         * Unlocks lock of the key held by the current thread and forgets it.
+         */
+        void unlockAndRemove(final String key) {
+            locks.remove(key).unlock();
+        }
+
+        Set<String> keys() {
+            return Set.copyOf(locks.keySet());
         }
     }
 }
@@ -0,0 +1,189 @@
+package com.example.impl;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import com.example.exception.SubscriptionNotFound;
+import com.example.model.SubscriptionStart;
+import com.example.model.impl.SimpleMessage;
+
+/**
+ * Log of a single topic together with cursors of its subscriber groups. Messages are kept once in a
+ * ring buffer indexed by their offset in the log, groups only keep offsets. Message id carries its
+ * offset in the most significant bits and a per topic random value in the least significant ones, so
+ * delete finds the message without any lookup table.
+ * <p>
+ * Head of the log is dropped once every group has read and deleted it, topic without groups retains
+ * every message so that a group subscribing from {@link SubscriptionStart#EARLIEST} receives them.
+ * Not thread safe, access is guarded by {@link InMemoryTopicService}.
+ */
+class InMemoryTopic {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final long idBits = UUID.randomUUID().getLeastSignificantBits();
+
+    private final Map<String, Subscription> subscriptions = new HashMap<>();
+
+    private String[] payloads = new String[INITIAL_CAPACITY];
+
+    private long[] creationTimes = new long[INITIAL_CAPACITY];
+
+    private long firstOffset;
+
+    private long nextOffset;
+
+    void publish(final String payload, final long now) {
+        if (nextOffset - firstOffset == payloads.length) {
+            grow();
+        }
+        final int index = index(nextOffset);
+        payloads[index] = payload;
+        creationTimes[index] = now;
+        nextOffset++;
+    }
+
+    void subscribe(final String group, final SubscriptionStart start) {
+        subscriptions.computeIfAbsent(group, name -> new Subscription(start == SubscriptionStart.EARLIEST
+                                                                              ? firstOffset
+                                                                              : nextOffset));
+    }
+
+    void unsubscribe(final String group) {
+        if (Objects.nonNull(subscriptions.remove(group))) {
+            trim();
+        }
+    }
+
+    /**
+     * Redelivers the oldest expired lease of the group if there is one, otherwise moves group cursor
+     * to the next message.
+     *
+     * @return leased message or null if group has nothing to read
+     */
+    SimpleMessage pull(final String group, final long now, final long visibilityTimeout) {
+        final Subscription subscription = getSubscription(group);
+        final long expiredOffset = subscription.expiredLease(now, visibilityTimeout);
+        if (expiredOffset >= 0) {
+            subscription.lease(expiredOffset, now);
+            return toMessage(expiredOffset);
+        }
+        if (subscription.cursor == nextOffset) {
+            return null;
+        }
+        final long offset = subscription.cursor++;
+        subscription.lease(offset, now);
+        return toMessage(offset);
+    }
+
+    void delete(final String group, final UUID id) {
+        final Subscription subscription = getSubscription(group);
+        if (id.getLeastSignificantBits() == idBits && subscription.release(id.getMostSignificantBits())) {
+            trim();
+        }
+    }
+
+    private Subscription getSubscription(final String group) {
+        final Subscription subscription = subscriptions.get(group);
+        if (Objects.isNull(subscription)) {
+            throw new SubscriptionNotFound("Group " + group + " is not subscribed.");
+        }
+        return subscription;
+    }
+
+    /**
+     * Drops messages every group is done with.
+     */
+    private void trim() {
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+        long watermark = nextOffset;
+        for (Subscription subscription : subscriptions.values()) {
+            watermark = Math.min(watermark, subscription.lowWatermark());
+        }
+        for (; firstOffset < watermark; firstOffset++) {
+            payloads[index(firstOffset)] = null;
+        }
+    }
+
+    private SimpleMessage toMessage(final long offset) {
+        final int index = index(offset);
+        return SimpleMessage.of(new UUID(offset, idBits), payloads[index],
+                                Instant.ofEpochMilli(creationTimes[index]));
+    }
+
+    private int index(final long offset) {
+        return (int) (offset & (payloads.length - 1));
+    }
+
+    private void grow() {
+        final String[] grownPayloads = new String[payloads.length * 2];
+        final long[] grownCreationTimes = new long[creationTimes.length * 2];
+        for (long offset = firstOffset; offset < nextOffset; offset++) {
+            final int index = (int) (offset & (grownPayloads.length - 1));
+            grownPayloads[index] = payloads[index(offset)];
+            grownCreationTimes[index] = creationTimes[index(offset)];
+        }
+        payloads = grownPayloads;
+        creationTimes = grownCreationTimes;
+    }
+
+    /**
+     * Cursor and leases of a subscriber group. Leases are kept in order they were taken, so the
+     * oldest one is checked for expiration first, and by offset, so the lowest offset the group still
+     * needs is known without a scan.
+     */
+    private static class Subscription {
+
+        private final Map<Long, Long> leaseTimes = new LinkedHashMap<>();
+
+        private final NavigableSet<Long> leasedOffsets = new TreeSet<>();
+
+        private long cursor;
+
+        Subscription(final long cursor) {
+            this.cursor = cursor;
+        }
+
+        /**
+         * @return offset of the oldest lease if it is expired, -1 otherwise
+         */
+        long expiredLease(final long now, final long visibilityTimeout) {
+            final Iterator<Map.Entry<Long, Long>> leases = leaseTimes.entrySet().iterator();
+            if (!leases.hasNext()) {
+                return -1;
+            }
+            final Map.Entry<Long, Long> oldest = leases.next();
+            return now - oldest.getValue() >= visibilityTimeout ? oldest.getKey() : -1;
+        }
+
+        void lease(final long offset, final long now) {
+            leaseTimes.remove(offset);
+            leaseTimes.put(offset, now);
+            leasedOffsets.add(offset);
+        }
+
+        /**
+         * @return whether offset was leased by the group
+         */
+        boolean release(final long offset) {
+            leasedOffsets.remove(offset);
+            return Objects.nonNull(leaseTimes.remove(offset));
+        }
+
+        /**
+         * @return lowest offset the group might still pull
+         */
+        long lowWatermark() {
+            return leasedOffsets.isEmpty() ? cursor : Math.min(cursor, leasedOffsets.first());
+        }
+    }
+}
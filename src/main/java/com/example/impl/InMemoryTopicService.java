@@ -0,0 +1,103 @@
+package com.example.impl;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.example.TopicService;
+import com.example.exception.SubscriptionNotFound;
+import com.example.model.SubscriptionStart;
+import com.example.model.impl.SimpleMessage;
+
+/**
+ * In memory implementation of a {@link TopicService}. Every topic keeps a single log of published
+ * messages, subscriber groups only hold offsets into it, so publishing costs the same regardless of
+ * the number of groups. Message is dropped from the log once every group has deleted it, messages of
+ * a topic without groups are retained until the first group subscribes. Implementation is thread safe
+ * on topic level. Visibility timeout behaves like in {@link InMemoryQueueService} separately for every
+ * group.
+ */
+public class InMemoryTopicService implements TopicService<SimpleMessage> {
+
+    private final Map<String, InMemoryTopic> topicsByName = new ConcurrentHashMap<>();
+
+    private final long visibilityTimeout;
+
+    /**
+     * @param visibilityTimeout millisecond timeout for message re delivery to a group if not deleted
+     */
+    public InMemoryTopicService(final long visibilityTimeout) {
+        this.visibilityTimeout = visibilityTimeout;
+    }
+
+    @Override
+    public void publish(String topic, String message) {
+        final InMemoryTopic log = getTopic(topic);
+        synchronized (log) {
+            log.publish(message, System.currentTimeMillis());
+        }
+    }
+
+    @Override
+    public void subscribe(String topic, String group, SubscriptionStart start) {
+        final InMemoryTopic log = getTopic(topic);
+        synchronized (log) {
+            log.subscribe(group, start);
+        }
+    }
+
+    @Override
+    public void unsubscribe(String topic, String group) {
+        final InMemoryTopic log = topicsByName.get(topic);
+        if (Objects.nonNull(log)) {
+            synchronized (log) {
+                log.unsubscribe(group);
+            }
+        }
+    }
+
+    /**
+     * Pulls expired message of the group if there is one, otherwise the next message after the group
+     * cursor.
+     *
+     * @param topic to pull message from
+     * @param group subscriber group consumer belongs to
+     * @return {@link SimpleMessage} or null if group has read every message
+     * @throws SubscriptionNotFound if group is not subscribed to the topic
+     */
+    @Override
+    public SimpleMessage pull(String topic, String group) {
+        final InMemoryTopic log = getExistingTopic(topic, group);
+        synchronized (log) {
+            return log.pull(group, System.currentTimeMillis(), visibilityTimeout);
+        }
+    }
+
+    /**
+     * Deletes message by its id, message pulled from another topic is ignored.
+     *
+     * @param topic   to delete message from
+     * @param group   subscriber group message was pulled by
+     * @param message to delete
+     * @throws SubscriptionNotFound if group is not subscribed to the topic
+     */
+    @Override
+    public void delete(String topic, String group, SimpleMessage message) {
+        final InMemoryTopic log = getExistingTopic(topic, group);
+        synchronized (log) {
+            log.delete(group, message.getId());
+        }
+    }
+
+    private InMemoryTopic getTopic(final String topic) {
+        return topicsByName.computeIfAbsent(topic, name -> new InMemoryTopic());
+    }
+
+    private InMemoryTopic getExistingTopic(final String topic, final String group) {
+        final InMemoryTopic log = topicsByName.get(topic);
+        if (Objects.isNull(log)) {
+            throw new SubscriptionNotFound("Group " + group + " is not subscribed to " + topic + ".");
+        }
+        return log;
+    }
+}
@@ -0,0 +1,299 @@
+package com.example.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.example.model.impl.SimpleMessage;
+import com.example.model.mapper.SimpleMessageMapper;
+
+/**
+ * Leases of the {@link FileQueueService} queue messages whose ids hash to the shard. Lease row is the
+ * message row with {@code sequence,leaseTime} in place of its creation time, where sequence numbers
+ * leases of the queue in the order they were taken, so leases taken within the same millisecond keep
+ * their order across shards. Rows written before leases had sequence are read as sequence 0.
+ * <p>
+ * Leases taken by pull are appended to the in progress file in lease order, leases whose visibility was
+ * changed are kept in the extended leases file ordered by lease time and sequence as well, so expired
+ * leases are found at the heads of both files. Extended leases file is created by the first visibility
+ * change of the shard. Moves out of the shard are journaled in its {@link MoveJournal}.
+ * <p>
+ * Shard is guarded by the in progress file lock and, within the process, by the shard guard taken
+ * before it. Every method expects both to be held, lease count of the shard is kept in its counter.
+ */
+class LeaseShard extends RowBuffers {
+
+    private static final byte DELIMITER = ',';
+
+    final int index;
+
+    final ReentrantLock guard = new ReentrantLock();
+
+    private final int leaseCounter;
+
+    FileChannel inProgress;
+
+    OptionalFile extendedLeases;
+
+    MoveJournal moves;
+
+    FileLock lock;
+
+    boolean closed;
+
+    /**
+     * Lease row whose lease time was changed, kept while the row buffer reads the extended leases file.
+     */
+    private ByteBuffer changed = ByteBuffer.allocate(0);
+
+    /**
+     * @param leaseCounter index of the counter holding the number of leases of the shard
+     */
+    LeaseShard(final String queue, final int index, final int leaseCounter) {
+        super(queue);
+        this.index = index;
+        this.leaseCounter = leaseCounter;
+    }
+
+    /**
+     * Appends lease rows to the in progress file.
+     *
+     * @param rows     buffer holding rows with lease time as their creation time
+     * @param rowCount number of rows in the buffer
+     */
+    void appendLeases(final ByteBuffer rows, final int rowCount) throws IOException {
+        long position = inProgress.size();
+        while (rows.hasRemaining()) {
+            position += inProgress.write(rows, position);
+        }
+        addLeaseCount(rowCount);
+    }
+
+    /**
+     * Removes lease row of the message from in progress or extended leases file.
+     *
+     * @return false if there is no such lease
+     */
+    boolean removeLease(final UUID messageId) throws IOException {
+        final boolean deleted = deleteRow(inProgress, messageId)
+                || Objects.nonNull(extendedLeases.get()) && deleteRow(extendedLeases.get(), messageId);
+        if (deleted) {
+            addLeaseCount(-1);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Deletes leases of the messages that still follow each other in the in progress file in the given
+     * order with a single compaction.
+     *
+     * @param leased messages in lease order
+     * @return number of leading messages that were deleted
+     */
+    int removeLeases(final List<SimpleMessage> leased) throws IOException {
+        final long start = findRow(inProgress, leased.get(0).getId());
+        if (start < 0) {
+            return 0;
+        }
+        long end = start;
+        int deleted = 0;
+        int rowLength;
+        while (deleted < leased.size() && (rowLength = readRow(inProgress, end)) > 0) {
+            MAPPER.encodeId(leased.get(deleted).getId(), id);
+            if (!view(rowLength).hasId(id)) {
+                break;
+            }
+            end += rowLength;
+            deleted++;
+        }
+        compact(inProgress, start, end);
+        addLeaseCount(-deleted);
+        return deleted;
+    }
+
+    /**
+     * Rewrites lease time of the message row and moves the row to its place in the extended leases file.
+     *
+     * @return whether message was found and its lease time changed
+     */
+    boolean changeLeaseTime(final UUID messageId, final long time) throws IOException {
+        FileChannel channel = inProgress;
+        long position = findRow(channel, messageId);
+        if (position < 0) {
+            channel = extendedLeases.get();
+            position = Objects.isNull(channel) ? -1 : findRow(channel, messageId);
+        }
+        if (position < 0) {
+            return false;
+        }
+        final FileChannel extended = extendedLeases.create();
+        final int rowLength = row.position();
+        final long sequence = getSequence(row.array(), rowLength - LINE_SEPARATOR_LENGTH);
+        final int changedLength = MAPPER.setCreationTime(row.array(), rowLength - LINE_SEPARATOR_LENGTH, time);
+        if (changed.capacity() < changedLength) {
+            changed = ByteBuffer.allocate(Math.max(changedLength, changed.capacity() * 2));
+        }
+        changed.clear();
+        changed.put(row.array(), 0, changedLength).flip();
+        compact(channel, position, position + rowLength);
+        long insertPosition = 0;
+        int extendedRowLength;
+        while ((extendedRowLength = readRow(extended, insertPosition)) > 0
+                && isLeasedBefore(extendedRowLength, time, sequence)) {
+            insertPosition += extendedRowLength;
+        }
+        insert(extended, insertPosition, changed);
+        return true;
+    }
+
+    /**
+     * @param leases lease file of the shard or null if the file does not exist
+     * @return lease time of the row at specified position of the file or {@link Long#MAX_VALUE} if there
+     * is none
+     */
+    long getLeaseTime(final FileChannel leases, final long position) throws IOException {
+        final int rowLength = Objects.isNull(leases) ? 0 : readRow(leases, position);
+        return rowLength > 0 ? view(rowLength).getCreationTime() : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return lease time of the earliest lease of the shard or {@link Long#MAX_VALUE} if there is none
+     */
+    long getEarliestLeaseTime() throws IOException {
+        return Math.min(getLeaseTime(inProgress, 0), getLeaseTime(extendedLeases.get(), 0));
+    }
+
+    /**
+     * @return whether the shard holds lease of the message
+     */
+    boolean hasLease(final UUID messageId) throws IOException {
+        return findRow(inProgress, messageId) >= 0
+                || Objects.nonNull(extendedLeases.get()) && findRow(extendedLeases.get(), messageId) >= 0;
+    }
+
+    boolean isEmpty() throws IOException {
+        return inProgress.size() == 0 && extendedLeases.size() == 0;
+    }
+
+    /**
+     * @param rowLength of the lease row in the row buffer including line separator
+     * @return whether the row is ordered before a lease with specified time and sequence
+     */
+    private boolean isLeasedBefore(final int rowLength, final long time, final long sequence) {
+        final long rowTime = view(rowLength).getCreationTime();
+        return rowTime < time
+                || rowTime == time && getSequence(row.array(), rowLength - LINE_SEPARATOR_LENGTH) <= sequence;
+    }
+
+    long countLeases() throws IOException {
+        return countRows(inProgress) + (Objects.isNull(extendedLeases.get()) ? 0 : countRows(extendedLeases.get()));
+    }
+
+    long getLeaseCount() throws IOException {
+        return getCounter(leaseCounter);
+    }
+
+    void addLeaseCount(final long delta) throws IOException {
+        addToCounter(leaseCounter, delta);
+    }
+
+    /**
+     * Releases the shard if it is held by the current thread.
+     */
+    void unlock() throws IOException {
+        if (!guard.isHeldByCurrentThread()) {
+            return;
+        }
+        try {
+            if (Objects.nonNull(lock)) {
+                final FileLock held = lock;
+                lock = null;
+                held.release();
+            }
+        } finally {
+            guard.unlock();
+        }
+    }
+
+    /**
+     * Turns message row into a lease row in place. Array must have room for {@value
+     * RowBuffers#ROW_SUFFIX_ROOM} bytes after the payload.
+     *
+     * @param row       encoded message row starting at index 0
+     * @param length    of the row without line separator
+     * @param sequence  of the lease
+     * @param leaseTime epoch millisecond lease was taken at
+     * @return length of the lease row including line separator
+     */
+    static int toLeaseRow(final byte[] row, final int length, final long sequence, final long leaseTime) {
+        int position = getDelimiter(row, length) + 1;
+        int digits = 1;
+        for (long rest = sequence / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        long remaining = sequence;
+        for (int index = position + digits - 1; index >= position; index--) {
+            row[index] = (byte) ('0' + remaining % 10);
+            remaining /= 10;
+        }
+        position += digits;
+        row[position++] = DELIMITER;
+        //Lease time replaces the placeholder digit
+        row[position] = '0';
+        return MAPPER.setCreationTime(row, position + 1, leaseTime);
+    }
+
+    /**
+     * Turns lease row into a message row with lease time as its creation time in place.
+     *
+     * @param row    encoded lease row starting at index 0
+     * @param length of the row without line separator
+     * @return length of the message row without line separator
+     */
+    static int toMessageRow(final byte[] row, final int length) {
+        final int timeDelimiter = getDelimiter(row, length);
+        final int sequenceDelimiter = getDelimiter(row, timeDelimiter);
+        if (sequenceDelimiter < 0) {
+            return length;
+        }
+        System.arraycopy(row, timeDelimiter, row, sequenceDelimiter, length - timeDelimiter);
+        return length - (timeDelimiter - sequenceDelimiter);
+    }
+
+    /**
+     * @param row    encoded lease row starting at index 0
+     * @param length of the row without line separator
+     * @return sequence of the lease or 0 if row was written before leases had sequence
+     */
+    static long getSequence(final byte[] row, final int length) {
+        final int timeDelimiter = getDelimiter(row, length);
+        final int sequenceDelimiter = getDelimiter(row, timeDelimiter);
+        if (sequenceDelimiter < 0) {
+            return 0;
+        }
+        long sequence = 0;
+        for (int position = sequenceDelimiter + 1; position < timeDelimiter; position++) {
+            sequence = sequence * 10 + (row[position] - '0');
+        }
+        return sequence;
+    }
+
+    /**
+     * @return position of the last delimiter between the payload delimiter and specified position or -1
+     * if there is none
+     */
+    private static int getDelimiter(final byte[] row, final int before) {
+        for (int position = before - 1; position > SimpleMessageMapper.ID_LENGTH; position--) {
+            if (row[position] == DELIMITER) {
+                return position;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,421 @@
+package com.example.impl;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.example.exception.CorruptedFileException;
+import com.example.exception.LockTimeoutException;
+import com.example.exception.UnableToAccessUnderlyingStore;
+import com.example.model.QueueStats;
+import com.example.model.impl.SimpleMessage;
+
+/**
+ * State of a single {@link MappedQueueService} queue, a bounded ring of fixed size slots in a memory
+ * mapped file. Control block at the start of the file holds the tail push claims slots at, the head
+ * pull claims them at, the lowest position that is not deleted yet, the position the next scan for
+ * expired leases starts at, the in flight count and the delayed count. Every slot starts with a state
+ * word made of the ring position the slot serves and its phase: free, ready, leased or delayed. All of
+ * them are updated with CAS through a {@link VarHandle} on the mapped buffer, so
+ * threads and processes mapping the same file never block each other. Payload and the rest of a slot
+ * are written before its state is published and read after the state is observed.
+ * <p>
+ * Message id carries its ring position in the most significant bits and a random stamp written with the
+ * payload in the least significant bits, so delete goes straight to the slot. Slot is freed for the
+ * push one lap ahead only on delete, so the queue is full when the tail reaches a slot whose message of
+ * the previous lap is still in flight.
+ * <p>
+ * Delayed message is published with its delivery time as the lease deadline, pull passes it at the head
+ * and leases it once a scan for expired leases finds it due, just like a lease that expired. Every pull
+ * scans up to {@value #REDELIVERY_SCAN_LIMIT} positions between the lowest not deleted position and the
+ * head starting where the previous scan of any process stopped, so every expired lease and due message
+ * is found within a bounded number of pulls however many leases are ahead of it.
+ * <p>
+ * Whole file lock is only taken to create and format a new file. Producer that dies between claiming a
+ * slot and publishing it leaves the slot unpublished, which stalls pulls at that position.
+ */
+class MappedQueue implements Closeable {
+
+    //Changed whenever layout changes, so files of another layout are not mistaken for queue files
+    private static final int MAGIC = 0x4D515546;
+
+    private static final int MAGIC_OFFSET = 0;
+
+    private static final int CAPACITY_OFFSET = 4;
+
+    private static final int SLOT_SIZE_OFFSET = 8;
+
+    //Control words sit on separate cache lines, so contention on one does not slow the others down
+    private static final int TAIL = 64;
+
+    private static final int HEAD = 128;
+
+    private static final int LOW = 192;
+
+    private static final int IN_FLIGHT = 256;
+
+    private static final int SCAN = 320;
+
+    private static final int DELAYED = 384;
+
+    private static final int HEADER_SIZE = 448;
+
+    private static final int STATE = 0;
+
+    private static final int DEADLINE = 8;
+
+    private static final int STAMP = 16;
+
+    private static final int CREATION_TIME = 24;
+
+    private static final int LENGTH = 32;
+
+    private static final int PAYLOAD = 36;
+
+    private static final long FREE = 0;
+
+    private static final long READY = 1;
+
+    private static final long LEASED = 2;
+
+    private static final long DELAYED_PHASE = 3;
+
+    private static final int PHASE_BITS = 2;
+
+    private static final int REDELIVERY_SCAN_LIMIT = 64;
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class,
+                                                                                 ByteOrder.nativeOrder());
+
+    private final FileChannel channel;
+
+    private final MappedByteBuffer buffer;
+
+    private final int capacity;
+
+    private final int slotSize;
+
+    /**
+     * Maps queue file, file that does not exist yet is created with specified geometry. Existing file is
+     * mapped with the geometry of its header, which has to match the specified one, so a process
+     * configured differently neither grows the file nor reads past its mapping.
+     *
+     * @throws CorruptedFileException   if existing file is not a queue file
+     * @throws IllegalArgumentException if existing file has different capacity or slot size
+     * @throws LockTimeoutException     if new file cannot be locked for formatting in time
+     */
+    MappedQueue(final Path file, final int capacity, final int maxPayloadSize, final long lockTimeout)
+            throws IOException {
+        this.channel = FileChannel.open(file, READ, WRITE, CREATE);
+        try {
+            final int requestedSlotSize = (PAYLOAD + maxPayloadSize + Long.BYTES - 1) / Long.BYTES * Long.BYTES;
+            final FileLock lock = tryLock(channel, lockTimeout);
+            try {
+                if (channel.size() == 0) {
+                    format(capacity, requestedSlotSize);
+                }
+                final MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+                header.order(ByteOrder.nativeOrder());
+                if (header.getInt(MAGIC_OFFSET) != MAGIC) {
+                    throw new CorruptedFileException("File " + file + " is not a queue file.");
+                }
+                this.capacity = header.getInt(CAPACITY_OFFSET);
+                this.slotSize = header.getInt(SLOT_SIZE_OFFSET);
+                if (channel.size() < HEADER_SIZE + (long) this.capacity * this.slotSize) {
+                    throw new CorruptedFileException("File " + file + " is shorter than its slots.");
+                }
+                if (this.capacity != capacity || this.slotSize != requestedSlotSize) {
+                    throw new IllegalArgumentException("File " + file + " has " + this.capacity + " slots of "
+                                                               + this.slotSize + " bytes, " + capacity + " slots of "
+                                                               + requestedSlotSize + " bytes were requested.");
+                }
+            } finally {
+                lock.release();
+            }
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                                      HEADER_SIZE + (long) this.capacity * this.slotSize);
+            buffer.order(ByteOrder.nativeOrder());
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return largest payload in bytes a slot fits
+     */
+    int getMaxPayloadSize() {
+        return slotSize - PAYLOAD;
+    }
+
+    /**
+     * @param deliveryTime epoch millisecond message becomes visible at, message is delayed if it is later
+     *                     than creation time
+     * @throws UnableToAccessUnderlyingStore if queue is full
+     */
+    void push(final byte[] payload, final long creationTime, final long deliveryTime) {
+        long position = (long) LONGS.getVolatile(buffer, TAIL);
+        while (true) {
+            final int slot = slotOffset(position);
+            final long state = (long) LONGS.getAcquire(buffer, slot + STATE);
+            if (state == state(position, FREE)) {
+                if (LONGS.compareAndSet(buffer, TAIL, position, position + 1)) {
+                    LONGS.set(buffer, slot + STAMP, ThreadLocalRandom.current().nextLong());
+                    LONGS.set(buffer, slot + CREATION_TIME, creationTime);
+                    buffer.putInt(slot + LENGTH, payload.length);
+                    for (int index = 0; index < payload.length; index++) {
+                        buffer.put(slot + PAYLOAD + index, payload[index]);
+                    }
+                    if (deliveryTime > creationTime) {
+                        LONGS.set(buffer, slot + DEADLINE, deliveryTime);
+                        LONGS.getAndAdd(buffer, DELAYED, 1L);
+                        LONGS.setRelease(buffer, slot + STATE, state(position, DELAYED_PHASE));
+                    } else {
+                        LONGS.setRelease(buffer, slot + STATE, state(position, READY));
+                    }
+                    return;
+                }
+            } else if (positionOf(state) < position) {
+                throw new UnableToAccessUnderlyingStore("Queue is full.");
+            }
+            position = (long) LONGS.getVolatile(buffer, TAIL);
+        }
+    }
+
+    /**
+     * Leases a message whose lease expired or delayed message that is due found by the next scan or, if
+     * there is none, the message at the head. Delayed messages at the head are passed.
+     *
+     * @return leased message or null if there is no message to lease
+     */
+    SimpleMessage pull(final long now, final long visibilityTimeout) {
+        final SimpleMessage redelivered = redeliver(now, visibilityTimeout);
+        if (Objects.nonNull(redelivered)) {
+            return redelivered;
+        }
+        long position = (long) LONGS.getVolatile(buffer, HEAD);
+        while (true) {
+            final int slot = slotOffset(position);
+            final long state = (long) LONGS.getAcquire(buffer, slot + STATE);
+            if (state == state(position, READY)) {
+                if (LONGS.compareAndSet(buffer, HEAD, position, position + 1)) {
+                    LONGS.set(buffer, slot + DEADLINE, now + visibilityTimeout);
+                    final SimpleMessage message = read(slot, position);
+                    LONGS.getAndAdd(buffer, IN_FLIGHT, 1L);
+                    LONGS.setRelease(buffer, slot + STATE, state(position, LEASED));
+                    return message;
+                }
+            } else if (state == state(position, DELAYED_PHASE)) {
+                //Delayed message is left to the scan for due messages
+                LONGS.compareAndSet(buffer, HEAD, position, position + 1);
+            } else if (state == state(position, FREE) || positionOf(state) < position) {
+                //Nothing is published at the head yet
+                return null;
+            }
+            position = (long) LONGS.getVolatile(buffer, HEAD);
+        }
+    }
+
+    /**
+     * @return whether message was in flight and deleted
+     */
+    boolean delete(final UUID id) {
+        final long position = id.getMostSignificantBits();
+        if (position < 0) {
+            return false;
+        }
+        final int slot = slotOffset(position);
+        final long leased = state(position, LEASED);
+        if ((long) LONGS.getAcquire(buffer, slot + STATE) != leased
+                || (long) LONGS.get(buffer, slot + STAMP) != id.getLeastSignificantBits()) {
+            return false;
+        }
+        if (!LONGS.compareAndSet(buffer, slot + STATE, leased, state(position + capacity, FREE))) {
+            return false;
+        }
+        LONGS.getAndAdd(buffer, IN_FLIGHT, -1L);
+        return true;
+    }
+
+    /**
+     * Moves lease deadline of in flight message.
+     *
+     * @return false if message is not in flight
+     */
+    boolean changeVisibility(final UUID id, final long deadline) {
+        final long position = id.getMostSignificantBits();
+        if (position < 0) {
+            return false;
+        }
+        final int slot = slotOffset(position);
+        final long leased = state(position, LEASED);
+        if ((long) LONGS.getAcquire(buffer, slot + STATE) != leased
+                || (long) LONGS.get(buffer, slot + STAMP) != id.getLeastSignificantBits()) {
+            return false;
+        }
+        LONGS.setVolatile(buffer, slot + DEADLINE, deadline);
+        return (long) LONGS.getVolatile(buffer, slot + STATE) == leased;
+    }
+
+    QueueStats stats(final long now) {
+        final long head = (long) LONGS.getVolatile(buffer, HEAD);
+        final long tail = (long) LONGS.getVolatile(buffer, TAIL);
+        final int slot = slotOffset(head);
+        final long oldestCreationTime = (long) LONGS.getAcquire(buffer, slot + STATE) == state(head, READY)
+                ? (long) LONGS.get(buffer, slot + CREATION_TIME)
+                : now;
+        return QueueStats.builder()
+                         .depth(Math.max(tail - head, 0))
+                         .inFlight((long) LONGS.getVolatile(buffer, IN_FLIGHT))
+                         .delayed((long) LONGS.getVolatile(buffer, DELAYED))
+                         .oldestMessageAge(Duration.ofMillis(Math.max(now - oldestCreationTime, 0)))
+                         .build();
+    }
+
+    /**
+     * Closes the file, mapping stays valid until buffer is garbage collected.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Scans up to {@value #REDELIVERY_SCAN_LIMIT} positions from the scan cursor, which wraps to the
+     * lowest not deleted position once it reaches the head, and leases the first expired lease or due
+     * delayed message. Cursor is only a hint shared by every process, concurrent scans that overwrite
+     * each other at worst scan some positions twice.
+     */
+    private SimpleMessage redeliver(final long now, final long visibilityTimeout) {
+        final long head = (long) LONGS.getVolatile(buffer, HEAD);
+        final long low = advanceLow(head);
+        long start = (long) LONGS.getVolatile(buffer, SCAN);
+        if (start < low || start >= head) {
+            start = low;
+        }
+        final long end = Math.min(head, start + REDELIVERY_SCAN_LIMIT);
+        for (long position = start; position < end; position++) {
+            final int slot = slotOffset(position);
+            final long state = (long) LONGS.getAcquire(buffer, slot + STATE);
+            final boolean delayed = state == state(position, DELAYED_PHASE);
+            if (state != state(position, LEASED) && !delayed) {
+                continue;
+            }
+            final long deadline = (long) LONGS.getVolatile(buffer, slot + DEADLINE);
+            if (deadline > now || !LONGS.compareAndSet(buffer, slot + DEADLINE, deadline, now + visibilityTimeout)) {
+                continue;
+            }
+            LONGS.setVolatile(buffer, SCAN, position + 1);
+            if (delayed) {
+                //Deadline was claimed above, so no other scan moves the message out of the delayed phase
+                LONGS.getAndAdd(buffer, IN_FLIGHT, 1L);
+                LONGS.getAndAdd(buffer, DELAYED, -1L);
+                final SimpleMessage message = read(slot, position);
+                LONGS.setRelease(buffer, slot + STATE, state(position, LEASED));
+                return message;
+            }
+            final SimpleMessage message = read(slot, position);
+            //Message is only valid if it was not deleted and replaced while it was read
+            VarHandle.acquireFence();
+            if ((long) LONGS.getAcquire(buffer, slot + STATE) == state) {
+                return message;
+            }
+        }
+        LONGS.setVolatile(buffer, SCAN, end);
+        return null;
+    }
+
+    /**
+     * Moves the lowest not deleted position past deleted messages.
+     *
+     * @return the lowest position that might still be in flight
+     */
+    private long advanceLow(final long head) {
+        long low = (long) LONGS.getVolatile(buffer, LOW);
+        while (low < head) {
+            final long state = (long) LONGS.getAcquire(buffer, slotOffset(low) + STATE);
+            if (positionOf(state) <= low) {
+                break;
+            }
+            if (LONGS.compareAndSet(buffer, LOW, low, low + 1)) {
+                low++;
+            } else {
+                low = (long) LONGS.getVolatile(buffer, LOW);
+            }
+        }
+        return low;
+    }
+
+    private SimpleMessage read(final int slot, final long position) {
+        final int length = Math.min(Math.max(buffer.getInt(slot + LENGTH), 0), slotSize - PAYLOAD);
+        final byte[] payload = new byte[length];
+        for (int index = 0; index < length; index++) {
+            payload[index] = buffer.get(slot + PAYLOAD + index);
+        }
+        final UUID id = new UUID(position, (long) LONGS.get(buffer, slot + STAMP));
+        return SimpleMessage.of(id, new String(payload, StandardCharsets.UTF_8),
+                                Instant.ofEpochMilli((long) LONGS.get(buffer, slot + CREATION_TIME)));
+    }
+
+    /**
+     * Writes header and marks every slot free for the first lap, magic goes last so a file cut short
+     * by a crash is not mistaken for a queue file.
+     */
+    private void format(final int newCapacity, final int newSlotSize) throws IOException {
+        final MappedByteBuffer file = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                                                  HEADER_SIZE + (long) newCapacity * newSlotSize);
+        file.order(ByteOrder.nativeOrder());
+        file.putInt(CAPACITY_OFFSET, newCapacity).putInt(SLOT_SIZE_OFFSET, newSlotSize);
+        for (int position = 0; position < newCapacity; position++) {
+            file.putLong(HEADER_SIZE + position * newSlotSize + STATE, state(position, FREE));
+        }
+        file.force();
+        file.putInt(MAGIC_OFFSET, MAGIC);
+        file.force();
+    }
+
+    private int slotOffset(final long position) {
+        return HEADER_SIZE + (int) (position % capacity) * slotSize;
+    }
+
+    private static long state(final long position, final long phase) {
+        return position << PHASE_BITS | phase;
+    }
+
+    private static long positionOf(final long state) {
+        return state >>> PHASE_BITS;
+    }
+
+    private static FileLock tryLock(final FileChannel channel, final long lockTimeout) throws IOException {
+        FileLock lock = null;
+        final long lockRelease = System.currentTimeMillis() + lockTimeout;
+        while (Objects.isNull(lock)) {
+            try {
+                lock = channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                //Have to try to lock file again
+            }
+            if (Objects.isNull(lock) && System.currentTimeMillis() > lockRelease) {
+                throw new LockTimeoutException("Unable to acquire file lock.");
+            }
+        }
+        return lock;
+    }
+}
@@ -0,0 +1,268 @@
+package com.example.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.example.QueueService;
+import com.example.exception.CorruptedFileException;
+import com.example.exception.InvalidMessageBodyContent;
+import com.example.exception.LockTimeoutException;
+import com.example.exception.UnableToAccessUnderlyingStore;
+import com.example.model.PushOptions;
+import com.example.model.QueueStats;
+import com.example.model.impl.SimpleMessage;
+
+/**
+ * Lock free {@link QueueService} shared between processes through memory mapped files. Unlike {@link
+ * FileQueueService}, which serializes every operation with exclusive file locks, queue state lives in
+ * a control block of a mapped file and is updated with CAS, so processes and threads push, pull and
+ * delete concurrently. File lock is only taken when a queue file is created. See {@link MappedQueue}
+ * for the layout.
+ * <p>
+ * Every queue is a bounded ring of fixed size slots, capacity and the largest payload are chosen when
+ * the queue file is created and push to a full queue fails. Every service that opens a queue file has
+ * to be configured with the same capacity and largest payload, operations of a service configured
+ * differently fail with {@link IllegalArgumentException}. Queue is FIFO apart from delayed messages,
+ * which keep their slot and are leased once due, priorities are ignored, deduplication and groups are
+ * not supported. Supports millisecond visibility timeout.
+ * <p>
+ * Every process must run the same {@link java.nio.ByteOrder#nativeOrder()}, which holds for processes
+ * of a single host.
+ */
+public class MappedQueueService implements QueueService<SimpleMessage>, Closeable {
+
+    public static final int DEFAULT_CAPACITY = 16 * 1024;
+
+    public static final int DEFAULT_MAX_PAYLOAD_SIZE = 1024;
+
+    private final long visibilityTimeout;
+
+    private final String storagePath;
+
+    private final String fileFormat;
+
+    private final long lockTimeout;
+
+    private final int capacity;
+
+    private final int maxPayloadSize;
+
+    private final Map<String, MappedQueue> queues = new ConcurrentHashMap<>();
+
+    public MappedQueueService(final long visibilityTimeout,
+                              final String storagePath,
+                              final String fileFormat,
+                              final long lockTimeout) {
+        this(visibilityTimeout, storagePath, fileFormat, lockTimeout, DEFAULT_CAPACITY, DEFAULT_MAX_PAYLOAD_SIZE);
+    }
+
+    /**
+     * Constructor for {@link MappedQueueService}
+     *
+     * @param visibilityTimeout millisecond timeout for message re delivery if not deleted
+     * @param fileFormat        effectively file suffix, that will be used as underlying storage
+     * @param lockTimeout       millisecond timeout of the file lock taken to create a queue file
+     * @param capacity          number of messages, in flight included, queues opened by this service
+     *                          hold
+     * @param maxPayloadSize    largest encoded payload in bytes queues opened by this service accept
+     * @throws IllegalArgumentException if queue file of specified geometry exceeds 2GB
+     */
+    public MappedQueueService(final long visibilityTimeout,
+                              final String storagePath,
+                              final String fileFormat,
+                              final long lockTimeout,
+                              final int capacity,
+                              final int maxPayloadSize) {
+        if (capacity <= 0 || maxPayloadSize < 0 || (long) capacity * (maxPayloadSize + 64) > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Queue file of " + capacity + " slots of " + maxPayloadSize
+                                                       + " bytes cannot be mapped.");
+        }
+        this.visibilityTimeout = visibilityTimeout;
+        this.storagePath = storagePath;
+        this.fileFormat = fileFormat;
+        this.lockTimeout = lockTimeout;
+        this.capacity = capacity;
+        this.maxPayloadSize = maxPayloadSize;
+    }
+
+    @Override
+    public void push(String queue, String message) {
+        final long now = System.currentTimeMillis();
+        getQueue(queue).push(encode(queue, message), now, now);
+    }
+
+    /**
+     * Pushes message to specified queue, {@link PushOptions#getPriority()} is ignored. Delayed message
+     * occupies its slot while it waits, so it counts towards the capacity of the queue.
+     *
+     * @param queue   to push message to
+     * @param message string body of a message
+     * @param options delivery options of a message
+     * @throws UnsupportedOperationException if message is deduplicated or grouped
+     * @throws InvalidMessageBodyContent     if encoded message exceeds the slot size of the queue
+     * @throws UnableToAccessUnderlyingStore if queue is full
+     */
+    @Override
+    public void push(String queue, String message, PushOptions options) {
+        if (Objects.nonNull(options.getDeduplicationId()) || Objects.nonNull(options.getGroupId())) {
+            throw new UnsupportedOperationException("Mapped queues support neither deduplication nor groups.");
+        }
+        final long now = System.currentTimeMillis();
+        getQueue(queue).push(encode(queue, message), now, now + options.getDelay().toMillis());
+    }
+
+    /**
+     * Pulls message whose visibility timeout expired or delayed message that is due, either found by a
+     * bounded scan that resumes where the previous one stopped, or otherwise the oldest message of the
+     * queue.
+     *
+     * @param queue to pull message from
+     * @return {@link SimpleMessage} or null if queue is empty or does not exist
+     */
+    @Override
+    public SimpleMessage pull(String queue) {
+        final MappedQueue mappedQueue = getExistingQueue(queue);
+        return Objects.isNull(mappedQueue) ? null : mappedQueue.pull(System.currentTimeMillis(), visibilityTimeout);
+    }
+
+    /**
+     * Removes message from specified queue, message that is not in flight is left as is.
+     *
+     * @param queue   to delete messages from
+     * @param message to delete
+     */
+    @Override
+    public void delete(String queue, SimpleMessage message) {
+        final MappedQueue mappedQueue = getExistingQueue(queue);
+        if (Objects.nonNull(mappedQueue)) {
+            mappedQueue.delete(message.getId());
+        }
+    }
+
+    /**
+     * Moves lease deadline of the message. Message released early is redelivered once a scan for expired
+     * leases reaches it. Lease is identified by message id only, so lease of a message redelivered to
+     * another consumer is changed as well.
+     *
+     * @param queue   message was pulled from
+     * @param message to change visibility of
+     * @param timeout time message stays invisible to consumers
+     * @return false if message is not in flight anymore
+     * @throws IllegalArgumentException if timeout is negative
+     */
+    @Override
+    public boolean changeVisibility(String queue, SimpleMessage message, Duration timeout) {
+        if (timeout.isNegative()) {
+            throw new IllegalArgumentException("Visibility timeout must not be negative.");
+        }
+        final MappedQueue mappedQueue = getExistingQueue(queue);
+        return Objects.nonNull(mappedQueue)
+                && mappedQueue.changeVisibility(message.getId(), System.currentTimeMillis() + timeout.toMillis());
+    }
+
+    /**
+     * Reads statistics from the control block without any locking, so counts might be off by concurrent
+     * operations. Delayed messages the head has not passed yet are counted in depth as well.
+     *
+     * @param queue to describe
+     * @return statistics of the queue
+     */
+    @Override
+    public QueueStats stats(String queue) {
+        final MappedQueue mappedQueue = getExistingQueue(queue);
+        return Objects.isNull(mappedQueue) ? QueueStats.empty() : mappedQueue.stats(System.currentTimeMillis());
+    }
+
+    /**
+     * Lists queues by their files in the storage directory.
+     *
+     * @return names of queues something was pushed to
+     */
+    @Override
+    public Set<String> listQueues() {
+        final Path probe = Paths.get(storagePath + fileFormat).toAbsolutePath();
+        final String probeName = probe.getFileName().toString();
+        final String prefix = probeName.substring(0, probeName.length() - fileFormat.length());
+        try (Stream<Path> files = Files.list(probe.getParent())) {
+            return files.map(file -> file.getFileName().toString())
+                        .filter(name -> name.length() > prefix.length() + fileFormat.length()
+                                && name.startsWith(prefix) && name.endsWith(fileFormat))
+                        .map(name -> name.substring(prefix.length(), name.length() - fileFormat.length()))
+                        .collect(Collectors.toSet());
+        } catch (IOException e) {
+            throw new UnableToAccessUnderlyingStore(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Closes files of every queue opened by this service, files are opened again on the next
+     * operation with the queue.
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (String queue : queues.keySet()) {
+            final MappedQueue mappedQueue = queues.remove(queue);
+            if (Objects.nonNull(mappedQueue)) {
+                try {
+                    mappedQueue.close();
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+        }
+        if (Objects.nonNull(failure)) {
+            throw failure;
+        }
+    }
+
+    private byte[] encode(final String queue, final String message) {
+        final byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+        if (payload.length > getQueue(queue).getMaxPayloadSize()) {
+            throw new InvalidMessageBodyContent("Message of " + payload.length + " bytes does not fit a slot of "
+                                                        + queue + ".");
+        }
+        return payload;
+    }
+
+    /**
+     * @throws CorruptedFileException   if queue file is not a queue file
+     * @throws IllegalArgumentException if queue file has different capacity or largest payload
+     * @throws LockTimeoutException     if new queue file cannot be locked for formatting in time
+     */
+    private MappedQueue getQueue(final String queue) {
+        return queues.computeIfAbsent(queue, name -> {
+            try {
+                return new MappedQueue(getFile(name), capacity, maxPayloadSize, lockTimeout);
+            } catch (IOException e) {
+                throw new UnableToAccessUnderlyingStore(e.getMessage(), e);
+            }
+        });
+    }
+
+    /**
+     * @return queue or null if nothing was ever pushed to the queue
+     */
+    private MappedQueue getExistingQueue(final String queue) {
+        final MappedQueue mappedQueue = queues.get(queue);
+        if (Objects.nonNull(mappedQueue) || !Files.exists(getFile(queue))) {
+            return mappedQueue;
+        }
+        return getQueue(queue);
+    }
+
+    private Path getFile(final String queue) {
+        return Paths.get(storagePath + queue + fileFormat);
+    }
+}
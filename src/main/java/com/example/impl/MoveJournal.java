@@ -0,0 +1,102 @@
+package com.example.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Intents of moves out of a {@link LeaseShard}, see {@link FileQueueService#moveTo}. Intent is a
+ * {@code id,movedId,targetQueue} row appended before the move pushes to the target queue and truncated
+ * away once the source lease is gone, so the journal holds intents only of moves that are running or
+ * were interrupted by a crash. Intent cut short by a crash has no line separator and is ignored. Journal
+ * file is created by the first move out of the shard.
+ * <p>
+ * Journal is read through the row buffer of its shard and guarded by the shard lock.
+ */
+class MoveJournal implements Closeable {
+
+    static final String DELIMITER = ",";
+
+    private final LeaseShard shard;
+
+    private final OptionalFile file;
+
+    MoveJournal(final LeaseShard shard, final OptionalFile file) {
+        this.shard = shard;
+        this.file = file;
+    }
+
+    boolean isEmpty() throws IOException {
+        return file.size() == 0;
+    }
+
+    /**
+     * @return size of the journal before the intent, which {@link #truncate(long)} restores once the move
+     * is complete
+     */
+    long append(final UUID id, final UUID movedId, final String targetQueue) throws IOException {
+        final FileChannel channel = file.create();
+        final long size = channel.size();
+        final ByteBuffer intent = ByteBuffer.wrap((id + DELIMITER + movedId + DELIMITER + targetQueue
+                + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+        long position = size;
+        while (intent.hasRemaining()) {
+            position += channel.write(intent, position);
+        }
+        return size;
+    }
+
+    void truncate(final long size) throws IOException {
+        file.create().truncate(size);
+    }
+
+    /**
+     * Reads intent row at specified position, row length is left as the position of the shard row
+     * buffer.
+     *
+     * @return intent or null if there is no complete row
+     */
+    String read(final long position) throws IOException {
+        final FileChannel channel = file.get();
+        final int rowLength = Objects.isNull(channel) ? 0 : shard.readRow(channel, position);
+        if (rowLength == 0) {
+            return null;
+        }
+        shard.row.position(rowLength);
+        return new String(shard.row.array(), 0, rowLength - RowBuffers.LINE_SEPARATOR_LENGTH,
+                          StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Finds the intent, its row length is left as the position of the shard row buffer.
+     *
+     * @return position of the intent or -1 if it was already removed
+     */
+    long find(final String intent) throws IOException {
+        long position = 0;
+        String found;
+        while (Objects.nonNull(found = read(position))) {
+            if (found.equals(intent)) {
+                return position;
+            }
+            position += shard.row.position();
+        }
+        return -1;
+    }
+
+    /**
+     * Removes intents between specified positions.
+     */
+    void remove(final long from, final long to) throws IOException {
+        shard.compact(file.create(), from, to);
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.impl;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Objects;
+
+/**
+ * File of a {@link FileQueueService} queue that only some queues ever write to, such as extended leases,
+ * moves and delay index files. File is created on the first write and opened once it exists, so a queue
+ * keeps no file open for a feature it does not use. Until then every access checks whether another
+ * process created the file, so callers on hot paths look at counters of the queue first.
+ * <p>
+ * File is guarded by whoever guards the files it belongs to.
+ */
+class OptionalFile implements Closeable {
+
+    private final File file;
+
+    private FileChannel channel;
+
+    OptionalFile(final String fileName) {
+        this.file = new File(fileName);
+    }
+
+    /**
+     * @return open file or null if it does not exist yet
+     */
+    FileChannel get() throws IOException {
+        if (Objects.isNull(channel) && file.exists()) {
+            channel = FileChannel.open(file.toPath(), READ, WRITE, CREATE);
+        }
+        return channel;
+    }
+
+    /**
+     * @return open file, created if it does not exist yet
+     */
+    FileChannel create() throws IOException {
+        if (Objects.isNull(channel)) {
+            channel = FileChannel.open(file.toPath(), READ, WRITE, CREATE);
+        }
+        return channel;
+    }
+
+    /**
+     * @return size of the file or 0 if it does not exist yet
+     */
+    long size() throws IOException {
+        final FileChannel opened = get();
+        return Objects.isNull(opened) ? 0 : opened.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (Objects.nonNull(channel)) {
+            channel.close();
+        }
+    }
+}
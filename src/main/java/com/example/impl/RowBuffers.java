@@ -0,0 +1,239 @@
+package com.example.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.UUID;
+
+import com.example.jfr.CompactionEvent;
+import com.example.model.mapper.SimpleMessageMapper;
+import com.example.model.mapper.SimpleMessageView;
+import jdk.jfr.EventType;
+
+/**
+ * Buffers rows and counters of {@link FileQueueService} files are read and written through, owned by
+ * whoever guards the files they are used with. Rows are read, looked up, inserted and compacted in place
+ * through the buffers, so none of these operations allocates once the row buffer fits the longest row.
+ */
+abstract class RowBuffers {
+
+    static final int LINE_SEPARATOR_LENGTH = System.lineSeparator().length();
+
+    static final byte ROW_END = (byte) System.lineSeparator().charAt(LINE_SEPARATOR_LENGTH - 1);
+
+    static final int COMPACTION_BUFFER_SIZE = 8 * 1024;
+
+    static final SimpleMessageMapper MAPPER = new SimpleMessageMapper();
+
+    /**
+     * Room left after a row read to the row buffer, so lease sequence and lease time can be written in
+     * place of its creation time.
+     */
+    static final int ROW_SUFFIX_ROOM = SimpleMessageMapper.MAX_TIME_LENGTH * 2 + 1;
+
+    private static final int ROW_BUFFER_SIZE = 256;
+
+    private static final EventType COMPACTION_EVENT = EventType.getEventType(CompactionEvent.class);
+
+    final String queue;
+
+    final ByteBuffer compaction = ByteBuffer.allocateDirect(COMPACTION_BUFFER_SIZE);
+
+    final ByteBuffer counter = ByteBuffer.allocate(Long.BYTES);
+
+    final SimpleMessageView view = new SimpleMessageView();
+
+    final byte[] id = new byte[SimpleMessageMapper.ID_LENGTH];
+
+    FileChannel counters;
+
+    ByteBuffer row = ByteBuffer.allocate(ROW_BUFFER_SIZE);
+
+    RowBuffers(final String queue) {
+        this.queue = queue;
+    }
+
+    void growRow(final int capacity) {
+        final ByteBuffer grown = ByteBuffer.allocate(Math.max(capacity, row.capacity() * 2));
+        row.flip();
+        grown.put(row);
+        row = grown;
+    }
+
+    /**
+     * @param rowLength of the row in the row buffer including line separator
+     * @return view of the row in the row buffer
+     */
+    SimpleMessageView view(final int rowLength) {
+        return view.wrap(row.array(), 0, rowLength - LINE_SEPARATOR_LENGTH);
+    }
+
+    /**
+     * Reads row starting at specified position to the row buffer, buffer is grown to fit the row with
+     * {@value #ROW_SUFFIX_ROOM} bytes to spare.
+     *
+     * @return length of the row including line separator or 0 if there is no complete row
+     */
+    int readRow(final FileChannel channel, final long position) throws IOException {
+        row.clear();
+        int scanned = 0;
+        while (true) {
+            if (!row.hasRemaining()) {
+                growRow(row.capacity() * 2);
+            }
+            if (channel.read(row, position + row.position()) <= 0) {
+                return 0;
+            }
+            final byte[] bytes = row.array();
+            for (; scanned < row.position(); scanned++) {
+                if (bytes[scanned] == ROW_END) {
+                    if (row.capacity() < scanned + 1 + ROW_SUFFIX_ROOM) {
+                        growRow(scanned + 1 + ROW_SUFFIX_ROOM);
+                    }
+                    return scanned + 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds row of the message and leaves it in the row buffer positioned at the row end. Rows are
+     * matched by raw id bytes, nothing is decoded while scanning.
+     *
+     * @return position of the row or -1 if there is no such row
+     */
+    long findRow(final FileChannel channel, final UUID messageId) throws IOException {
+        MAPPER.encodeId(messageId, id);
+        long position = 0;
+        int rowLength;
+        while ((rowLength = readRow(channel, position)) > 0) {
+            if (view(rowLength).hasId(id)) {
+                row.position(rowLength);
+                return position;
+            }
+            position += rowLength;
+        }
+        return -1;
+    }
+
+    /**
+     * @return whether row of the message was found in specified file and deleted
+     */
+    boolean deleteRow(final FileChannel channel, final UUID messageId) throws IOException {
+        final long position = findRow(channel, messageId);
+        if (position < 0) {
+            return false;
+        }
+        compact(channel, position, position + row.position());
+        return true;
+    }
+
+    /**
+     * Inserts remaining bytes of the buffer at specified position by shifting the rest of the file towards
+     * its end, the rest is copied starting from its end, so no byte is overwritten before it is copied.
+     */
+    void insert(final FileChannel channel, final long position, final ByteBuffer inserted) throws IOException {
+        final ByteBuffer buffer = compaction;
+        final int length = inserted.remaining();
+        long end = channel.size();
+        while (end > position) {
+            final int chunk = (int) Math.min(buffer.capacity(), end - position);
+            buffer.clear().limit(chunk);
+            while (buffer.hasRemaining() && channel.read(buffer, end - chunk + buffer.position()) > 0) {
+                //Chunk is read in one go unless interrupted
+            }
+            buffer.flip();
+            long writePosition = end - chunk + length;
+            while (buffer.hasRemaining()) {
+                writePosition += channel.write(buffer, writePosition);
+            }
+            end -= chunk;
+        }
+        long writePosition = position;
+        while (inserted.hasRemaining()) {
+            writePosition += channel.write(inserted, writePosition);
+        }
+    }
+
+    /**
+     * Removes bytes between specified positions by shifting the rest of the file over them.
+     */
+    void compact(final FileChannel channel, final long from, final long to) throws IOException {
+        //Pull and delete compact on every message, so event is only created while it is enabled
+        if (!COMPACTION_EVENT.isEnabled()) {
+            shift(channel, from, to);
+            return;
+        }
+        final CompactionEvent event = new CompactionEvent();
+        event.begin();
+        final long size = shift(channel, from, to);
+        event.end();
+        if (event.shouldCommit()) {
+            event.queue = queue;
+            event.bytesRemoved = to - from;
+            event.bytesMoved = size - to;
+            event.commit();
+        }
+    }
+
+    /**
+     * @return size of the file before the bytes were removed
+     */
+    private long shift(final FileChannel channel, final long from, final long to) throws IOException {
+        final ByteBuffer buffer = compaction;
+        final long size = channel.size();
+        long readPosition = to;
+        long writePosition = from;
+        while (readPosition < size) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), size - readPosition));
+            final int read = channel.read(buffer, readPosition);
+            if (read < 0) {
+                break;
+            }
+            readPosition += read;
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                writePosition += channel.write(buffer, writePosition);
+            }
+        }
+        //have to trim file size accounting for deleted message
+        channel.truncate(writePosition);
+        return size;
+    }
+
+    long countRows(final FileChannel channel) throws IOException {
+        final ByteBuffer buffer = compaction;
+        long rows = 0;
+        long position = 0;
+        int read;
+        while ((read = channel.read(buffer.clear(), position)) > 0) {
+            for (int index = 0; index < read; index++) {
+                if (buffer.get(index) == ROW_END) {
+                    rows++;
+                }
+            }
+            position += read;
+        }
+        return rows;
+    }
+
+    long getCounter(final int index) throws IOException {
+        final ByteBuffer buffer = counter.clear();
+        final long position = (long) index * Long.BYTES;
+        while (buffer.hasRemaining() && counters.read(buffer, position + buffer.position()) > 0) {
+            //Counter is read in one go unless interrupted
+        }
+        return buffer.hasRemaining() ? 0 : buffer.getLong(0);
+    }
+
+    void setCounter(final int index, final long value) throws IOException {
+        final ByteBuffer buffer = counter.clear().putLong(0, value);
+        while (buffer.hasRemaining()) {
+            counters.write(buffer, (long) index * Long.BYTES + buffer.position());
+        }
+    }
+
+    void addToCounter(final int index, final long delta) throws IOException {
+        setCounter(index, getCounter(index) + delta);
+    }
+}
@@ -1,22 +1,91 @@
 package com.example.impl;
 
-import com.amazonaws.services.sqs.AmazonSQSClient;
-import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageNotInflightException;
+import com.amazonaws.services.sqs.model.QueueAttributeName;
+import com.amazonaws.services.sqs.model.ReceiptHandleIsInvalidException;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
 import com.example.QueueService;
+import com.example.model.PushOptions;
+import com.example.model.QueueStats;
 import com.example.model.impl.AmazonSqsMessage;
 
 /**
  * {@link QueueService} that uses AmazonSQS as underlying store.
  * <p>
- *
+ * Pull receives up to {@value #MAX_BATCH_SIZE} messages with a single {@code ReceiveMessage}
+ * request and keeps the ones it did not return in a prefetch buffer of the queue shared
+ * by every consumer of this service. Number of messages received at once follows the rate messages are
+ * pulled at: it is the number of messages consumers pull within half of the queue visibility timeout,
+ * so a slow consumer receives one message at a time and does not hold leases of messages it will not
+ * get to. Buffered messages run out of lease while they wait, once less than half of the visibility
+ * timeout is left pull extends leases of the ones it expects to hand out before the extension halves
+ * again and releases the rest back to the queue, {@link #close()} releases every buffered message.
+ * <p>
  * NOTE: I had no opportunity to test this solution since amazon account creation took much longer that expected.
  */
-public class SqsQueueService implements QueueService<AmazonSqsMessage> {
+public class SqsQueueService implements QueueService<AmazonSqsMessage>, Closeable {
+
+    private static final long STATS_CACHE_TIME = 1000;
+
+    private static final int MAX_BATCH_SIZE = 10;
+
+    /**
+     * Weight of the latest interval between pulls in the smoothed interval prefetch depth is based on.
+     */
+    private static final double PULL_INTERVAL_SMOOTHING = 0.2;
+
+    private static final long UNKNOWN_VISIBILITY_TIMEOUT = -1;
+
+    private final AmazonSQS sqsClient;
+
+    /**
+     * Long polling wait of receive requests, {@code null} leaves it to the queue configuration.
+     */
+    private final Integer receiveWaitSeconds;
 
-    private final AmazonSQSClient sqsClient;
+    private final Map<String, CachedStats> statsByQueue = new ConcurrentHashMap<>();
 
-    public SqsQueueService(AmazonSQSClient sqsClient) {
+    private final Map<String, Prefetch> prefetchByQueue = new ConcurrentHashMap<>();
+
+    /**
+     * Pull waits as long as {@code ReceiveMessageWaitTimeSeconds} attribute of the queue says, which is
+     * zero unless the queue is configured otherwise, so pull of an empty queue returns {@code null} at once.
+     *
+     * @param sqsClient client of the queues
+     */
+    public SqsQueueService(AmazonSQS sqsClient) {
         this.sqsClient = sqsClient;
+        this.receiveWaitSeconds = null;
+    }
+
+    /**
+     * Pull of an empty queue blocks for up to {@code receiveWait} while SQS long polls for a message.
+     *
+     * @param sqsClient   client of the queues
+     * @param receiveWait time pull waits for a message to arrive at an empty queue, rounded up to whole
+     *                    seconds, SQS limits it to 20 seconds and zero turns long polling off
+     */
+    public SqsQueueService(AmazonSQS sqsClient, Duration receiveWait) {
+        this.sqsClient = sqsClient;
+        this.receiveWaitSeconds = toSeconds(receiveWait);
     }
 
     /**
@@ -31,22 +100,137 @@ public class SqsQueueService implements QueueService<AmazonSqsMessage> {
         sqsClient.sendMessage(queue, message);
     }
 
+    /**
+     * Pushes message to specified queue using native SQS message timer. Delay is rounded up to whole
+     * seconds, SQS limits it to 15 minutes and does not support it for FIFO queues. Deduplication id
+     * is passed as {@code MessageDeduplicationId} and group id as {@code MessageGroupId}, both are
+     * honored by FIFO queues only and FIFO queues require a group id on every message. SQS has no
+     * notion of priority within a queue, so {@link PushOptions#getPriority()} is ignored, separate
+     * queues should be used for priority traffic.
+     *
+     * @param queue   to push message to
+     * @param message string body of a message
+     * @param options delivery options of a message
+     */
+    @Override
+    public void push(String queue, String message, PushOptions options) {
+        final SendMessageRequest request = new SendMessageRequest(queue, message);
+        if (options.isDelayed()) {
+            request.setDelaySeconds((int) options.getDelay().plusMillis(999).getSeconds());
+        }
+        if (Objects.nonNull(options.getDeduplicationId())) {
+            request.setMessageDeduplicationId(options.getDeduplicationId());
+        }
+        if (Objects.nonNull(options.getGroupId())) {
+            request.setMessageGroupId(options.getGroupId());
+        }
+        sqsClient.sendMessage(request);
+    }
+
     /**
      * Pulls message from specified queue. Returns internal implementation of {@link
      * com.example.model.Message} interface. Visibility timeout is supported for queue creation ar
      * amazon CLI or service control panel.
+     * <p>
+     * Message is taken from the prefetch buffer of the queue, only empty buffer is refilled with a
+     * {@code ReceiveMessage} request, which waits for messages of an empty queue only if long polling
+     * is turned on with {@link #SqsQueueService(AmazonSQS, Duration)} or on the queue itself.
+     * Visibility timeout of the queue is read with {@code GetQueueAttributes} once pull rate calls for
+     * more than one message. Buffered message might be handed out with less than its visibility timeout
+     * left, but never with less than half of it.
      *
      * @param queue to pull message from
      * @return {@link AmazonSqsMessage} that contains encapsulated information necessary for deletion.
      */
     @Override
     public AmazonSqsMessage pull(String queue) {
-        final ReceiveMessageResult result = sqsClient.receiveMessage(queue);
-        return result.getMessages().stream().findFirst().map(
-                message -> AmazonSqsMessage.builder()
-                                           .receiptHandle(message.getReceiptHandle())
-                                           .payload(message.getBody())
-                                           .build()).orElse(null);
+        final Prefetch prefetch = prefetchByQueue.computeIfAbsent(queue, key -> new Prefetch());
+        while (true) {
+            final long now = System.currentTimeMillis();
+            final List<AmazonSqsMessage> extended = new ArrayList<>();
+            final List<AmazonSqsMessage> released = new ArrayList<>();
+            final AmazonSqsMessage buffered;
+            final long visibilityTimeout;
+            synchronized (prefetch) {
+                prefetch.recordPull(now);
+                buffered = prefetch.poll(now, extended, released);
+                visibilityTimeout = prefetch.visibilityTimeout;
+            }
+            if (!released.isEmpty()) {
+                changeVisibilityBatch(queue, released, Duration.ZERO);
+            }
+            if (!extended.isEmpty()) {
+                final List<AmazonSqsMessage> lost = changeVisibilityBatch(queue, extended,
+                                                                          Duration.ofMillis(visibilityTimeout));
+                if (!lost.isEmpty()) {
+                    synchronized (prefetch) {
+                        prefetch.buffered.removeIf(message -> lost.contains(message.message));
+                    }
+                }
+                if (lost.contains(buffered)) {
+                    continue;
+                }
+            }
+            if (Objects.nonNull(buffered)) {
+                return buffered;
+            }
+            return receive(queue, prefetch, now);
+        }
+    }
+
+    /**
+     * Receives as many messages as consumers are expected to pull within half of the visibility timeout
+     * and buffers all but the first one.
+     */
+    private AmazonSqsMessage receive(final String queue, final Prefetch prefetch, final long now) {
+        final int depth = getPrefetchDepth(queue, prefetch);
+        final List<Message> received = sqsClient.receiveMessage(new ReceiveMessageRequest(queue)
+                                                                        .withMaxNumberOfMessages(depth)
+                                                                        .withWaitTimeSeconds(receiveWaitSeconds))
+                                                .getMessages();
+        if (received.isEmpty()) {
+            return null;
+        }
+        if (received.size() > 1) {
+            synchronized (prefetch) {
+                //Lease started no later than the request was sent
+                final long leaseEnd = now + prefetch.visibilityTimeout;
+                for (Message message : received.subList(1, received.size())) {
+                    prefetch.buffered.add(new BufferedMessage(toMessage(message), leaseEnd));
+                }
+            }
+        }
+        return toMessage(received.get(0));
+    }
+
+    private int getPrefetchDepth(final String queue, final Prefetch prefetch) {
+        final double pullInterval;
+        long visibilityTimeout;
+        synchronized (prefetch) {
+            pullInterval = prefetch.pullInterval;
+            visibilityTimeout = prefetch.visibilityTimeout;
+        }
+        if (pullInterval == 0) {
+            return 1;
+        }
+        if (visibilityTimeout == UNKNOWN_VISIBILITY_TIMEOUT) {
+            final String seconds = sqsClient.getQueueAttributes(
+                    new GetQueueAttributesRequest(queue).withAttributeNames(QueueAttributeName.VisibilityTimeout))
+                                            .getAttributes().get(QueueAttributeName.VisibilityTimeout.toString());
+            visibilityTimeout = Objects.isNull(seconds) ? 0 : Long.parseLong(seconds) * 1000;
+            synchronized (prefetch) {
+                prefetch.visibilityTimeout = visibilityTimeout;
+            }
+        }
+        //Messages of a queue without visibility timeout are redelivered right away, so none are buffered
+        return (int) Math.max(1, Math.min(MAX_BATCH_SIZE, visibilityTimeout / 2 / pullInterval));
+    }
+
+    private static AmazonSqsMessage toMessage(final Message message) {
+        return AmazonSqsMessage.builder()
+                               .receiptHandle(message.getReceiptHandle())
+                               .payload(message.getBody())
+                               .build();
     }
 
     /**
@@ -60,4 +244,211 @@ public class SqsQueueService implements QueueService<AmazonSqsMessage> {
     public void delete(String queue, AmazonSqsMessage message) {
         sqsClient.deleteMessage(queue, message.getReceiptHandle());
     }
+
+    /**
+     * Changes visibility with {@code ChangeMessageVisibility}, timeout is rounded up to whole seconds
+     * and SQS limits it to 12 hours since the message was received. Receipt handle identifies the
+     * lease, so only the latest receipt of a message can change it.
+     *
+     * @param queue   url of the queue message was pulled from
+     * @param message to change visibility of
+     * @param timeout time message stays invisible to consumers
+     * @return false if receipt handle is invalid or message is not in flight anymore
+     */
+    @Override
+    public boolean changeVisibility(String queue, AmazonSqsMessage message, Duration timeout) {
+        try {
+            sqsClient.changeMessageVisibility(queue, message.getReceiptHandle(), toSeconds(timeout));
+            return true;
+        } catch (ReceiptHandleIsInvalidException | MessageNotInflightException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Changes visibility with {@code ChangeMessageVisibilityBatch} requests of up to {@value
+     * #MAX_BATCH_SIZE} messages each.
+     *
+     * @param queue    url of the queue messages were pulled from
+     * @param messages to change visibility of
+     * @param timeout  time messages stay invisible to consumers
+     * @return messages SQS failed to change visibility of
+     */
+    @Override
+    public List<AmazonSqsMessage> changeVisibilityBatch(String queue, List<AmazonSqsMessage> messages,
+                                                        Duration timeout) {
+        final int seconds = toSeconds(timeout);
+        final List<AmazonSqsMessage> lost = new ArrayList<>();
+        for (int from = 0; from < messages.size(); from += MAX_BATCH_SIZE) {
+            final List<ChangeMessageVisibilityBatchRequestEntry> entries = new ArrayList<>();
+            for (int index = from; index < Math.min(from + MAX_BATCH_SIZE, messages.size()); index++) {
+                entries.add(new ChangeMessageVisibilityBatchRequestEntry(Integer.toString(index),
+                                                                         messages.get(index).getReceiptHandle())
+                                    .withVisibilityTimeout(seconds));
+            }
+            for (BatchResultErrorEntry failed : sqsClient.changeMessageVisibilityBatch(queue, entries).getFailed()) {
+                lost.add(messages.get(Integer.parseInt(failed.getId())));
+            }
+        }
+        return lost;
+    }
+
+    /**
+     * Maps approximate message counts of {@code GetQueueAttributes} to statistics. Result is cached
+     * for {@value #STATS_CACHE_TIME} milliseconds, so frequent polling does not multiply requests.
+     * SQS reports age of the oldest message only as a CloudWatch metric, so it is left unknown.
+     *
+     * @param queue url of the queue to describe
+     * @return approximate statistics of the queue
+     */
+    @Override
+    public QueueStats stats(String queue) {
+        final long now = System.currentTimeMillis();
+        final CachedStats cached = statsByQueue.get(queue);
+        if (Objects.nonNull(cached) && now - cached.time < STATS_CACHE_TIME) {
+            return cached.stats;
+        }
+        final Map<String, String> attributes = sqsClient.getQueueAttributes(
+                new GetQueueAttributesRequest(queue).withAttributeNames(
+                        QueueAttributeName.ApproximateNumberOfMessages,
+                        QueueAttributeName.ApproximateNumberOfMessagesNotVisible,
+                        QueueAttributeName.ApproximateNumberOfMessagesDelayed)).getAttributes();
+        final QueueStats stats = QueueStats.builder()
+                                           .depth(getCount(attributes, QueueAttributeName.ApproximateNumberOfMessages))
+                                           .inFlight(getCount(attributes,
+                                                              QueueAttributeName.ApproximateNumberOfMessagesNotVisible))
+                                           .delayed(getCount(attributes,
+                                                             QueueAttributeName.ApproximateNumberOfMessagesDelayed))
+                                           .oldestMessageAge(null)
+                                           .build();
+        statsByQueue.put(queue, new CachedStats(stats, now));
+        return stats;
+    }
+
+    /**
+     * @return urls of queues visible to the client
+     */
+    @Override
+    public Set<String> listQueues() {
+        return Set.copyOf(sqsClient.listQueues().getQueueUrls());
+    }
+
+    /**
+     * Releases messages of every prefetch buffer back to their queues, so other consumers receive them
+     * without waiting for their visibility timeout. Client is left open.
+     */
+    @Override
+    public void close() {
+        for (Map.Entry<String, Prefetch> entry : prefetchByQueue.entrySet()) {
+            final List<AmazonSqsMessage> released = new ArrayList<>();
+            synchronized (entry.getValue()) {
+                for (BufferedMessage buffered : entry.getValue().buffered) {
+                    released.add(buffered.message);
+                }
+                entry.getValue().buffered.clear();
+            }
+            if (!released.isEmpty()) {
+                changeVisibilityBatch(entry.getKey(), released, Duration.ZERO);
+            }
+        }
+    }
+
+    private static int toSeconds(final Duration timeout) {
+        if (timeout.isNegative()) {
+            throw new IllegalArgumentException("Visibility timeout must not be negative.");
+        }
+        return (int) timeout.plusMillis(999).getSeconds();
+    }
+
+    private static long getCount(final Map<String, String> attributes, final QueueAttributeName name) {
+        final String count = attributes.get(name.toString());
+        return Objects.isNull(count) ? 0 : Long.parseLong(count);
+    }
+
+    /**
+     * Messages received ahead of pulls and the pull rate of a queue, guarded by its own monitor.
+     */
+    private static class Prefetch {
+
+        private final Deque<BufferedMessage> buffered = new ArrayDeque<>();
+
+        /**
+         * Visibility timeout of the queue in milliseconds.
+         */
+        private long visibilityTimeout = UNKNOWN_VISIBILITY_TIMEOUT;
+
+        private long lastPullTime;
+
+        /**
+         * Smoothed interval between pulls in milliseconds, zero until the second pull.
+         */
+        private double pullInterval;
+
+        void recordPull(final long now) {
+            if (lastPullTime > 0) {
+                final long interval = Math.max(1, now - lastPullTime);
+                pullInterval = pullInterval == 0
+                        ? interval : pullInterval + PULL_INTERVAL_SMOOTHING * (interval - pullInterval);
+            }
+            lastPullTime = now;
+        }
+
+        /**
+         * Takes the first buffered message. Messages left with less than half of visibility timeout are
+         * extended if they are expected to be pulled before half of the extension passes and released
+         * otherwise, messages whose lease already ended are dropped.
+         *
+         * @param extended collects messages whose lease has to be extended, taken message included
+         * @param released collects messages that have to be released back to the queue
+         * @return taken message or null if buffer is empty
+         */
+        AmazonSqsMessage poll(final long now,
+                              final List<AmazonSqsMessage> extended,
+                              final List<AmazonSqsMessage> released) {
+            final Iterator<BufferedMessage> iterator = buffered.iterator();
+            int position = 0;
+            while (iterator.hasNext()) {
+                final BufferedMessage message = iterator.next();
+                if (message.leaseEnd <= now) {
+                    iterator.remove();
+                } else if (message.leaseEnd - now < visibilityTimeout / 2) {
+                    if (position * pullInterval < visibilityTimeout / 2.0) {
+                        message.leaseEnd = now + visibilityTimeout;
+                        extended.add(message.message);
+                    } else {
+                        iterator.remove();
+                        released.add(message.message);
+                        continue;
+                    }
+                }
+                position++;
+            }
+            final BufferedMessage first = buffered.poll();
+            return Objects.isNull(first) ? null : first.message;
+        }
+    }
+
+    private static class BufferedMessage {
+
+        private final AmazonSqsMessage message;
+
+        private long leaseEnd;
+
+        BufferedMessage(final AmazonSqsMessage message, final long leaseEnd) {
+            this.message = message;
+            this.leaseEnd = leaseEnd;
+        }
+    }
+
+    private static class CachedStats {
+
+        private final QueueStats stats;
+
+        private final long time;
+
+        CachedStats(final QueueStats stats, final long time) {
+            this.stats = stats;
+            this.time = time;
+        }
+    }
 }
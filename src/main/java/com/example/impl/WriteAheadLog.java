@@ -0,0 +1,411 @@
+package com.example.impl;
+
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import com.example.exception.UnableToAccessUnderlyingStore;
+import com.example.model.Priority;
+import com.example.util.MessageArena;
+
+/**
+ * Sequential journal of {@link InMemoryQueue} mutations. Journal is split into numbered segment files,
+ * records are appended to the newest segment only and older segments are kept until a snapshot covers
+ * them. Every record is written as {@code int length, int crc32, body}, so a record torn by a crash is
+ * detected and ends the replay of its segment.
+ * <p>
+ * Records are gathered in a buffer and reach the disk in batches. {@link #sync(long)} makes every record
+ * appended so far durable with a single fsync, callers that wait for the sync in progress find their
+ * records covered by it once it completes, so concurrent writers share fsyncs. Positions returned by
+ * appends grow across segments.
+ * <p>
+ * Appending is thread safe.
+ */
+class WriteAheadLog implements Closeable {
+
+    private static final String SEGMENT_PREFIX = "journal-";
+
+    private static final String SEGMENT_SUFFIX = ".wal";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int MAX_RECORD_SIZE = MessageArena.MAX_PAYLOAD_SIZE * 8;
+
+    private static final byte PUSH = 1;
+
+    private static final byte LEASE = 2;
+
+    private static final byte DELETE = 3;
+
+    private static final byte MOVE = 4;
+
+    private final Path directory;
+
+    private final Object syncLock = new Object();
+
+    private final CRC32 checksum = new CRC32();
+
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    private FileChannel channel;
+
+    private long segment;
+
+    private long appended;
+
+    private volatile long synced;
+
+    /**
+     * Opens a new segment numbered after every segment found in the directory, existing segments are
+     * left for {@link #replay(long, Replayer)}.
+     */
+    WriteAheadLog(final Path directory) {
+        this.directory = directory;
+        try {
+            Files.createDirectories(directory);
+            final List<Long> segments = listSegments();
+            this.segment = segments.isEmpty() ? 0 : segments.get(segments.size() - 1) + 1;
+            this.channel = FileChannel.open(getSegmentFile(segment), WRITE, CREATE_NEW);
+        } catch (IOException e) {
+            throw new UnableToAccessUnderlyingStore(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Group of a grouped message follows the payload as {@code int length, UTF-8 group}, push records
+     * of messages without group end with the payload.
+     *
+     * @param group of the message or null if message is not grouped
+     * @return position of the record end
+     */
+    synchronized long appendPush(final byte[] queue,
+                                 final long idMostSigBits,
+                                 final long idLeastSigBits,
+                                 final int priority,
+                                 final long creationTime,
+                                 final long deliveryTime,
+                                 final String payload,
+                                 final String group) {
+        final byte[] encodedPayload = payload.getBytes(StandardCharsets.UTF_8);
+        final byte[] encodedGroup = Objects.isNull(group) ? null : group.getBytes(StandardCharsets.UTF_8);
+        final int groupLength = Objects.isNull(encodedGroup) ? 0 : Integer.BYTES + encodedGroup.length;
+        final ByteBuffer record = startRecord(PUSH, queue, 1 + Long.BYTES * 4 + Integer.BYTES + encodedPayload.length
+                + groupLength);
+        record.putLong(idMostSigBits)
+              .putLong(idLeastSigBits)
+              .put((byte) priority)
+              .putLong(creationTime)
+              .putLong(deliveryTime)
+              .putInt(encodedPayload.length)
+              .put(encodedPayload);
+        if (Objects.nonNull(encodedGroup)) {
+            record.putInt(encodedGroup.length).put(encodedGroup);
+        }
+        return endRecord();
+    }
+
+    /**
+     * Appends deletion of a message together with push of a new one to another queue as one record, so
+     * replay sees either both or none of them. Pushed message has {@link Priority#NORMAL}
+     * priority, no delay and no group.
+     *
+     * @return position of the record end
+     */
+    synchronized long appendMove(final byte[] queue,
+                                 final long idMostSigBits,
+                                 final long idLeastSigBits,
+                                 final byte[] targetQueue,
+                                 final long targetIdMostSigBits,
+                                 final long targetIdLeastSigBits,
+                                 final long creationTime,
+                                 final String payload) {
+        final byte[] encodedPayload = payload.getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer record = startRecord(MOVE, queue, Long.BYTES * 5 + Integer.BYTES * 2 + targetQueue.length
+                + encodedPayload.length);
+        record.putLong(idMostSigBits)
+              .putLong(idLeastSigBits)
+              .putInt(targetQueue.length)
+              .put(targetQueue)
+              .putLong(targetIdMostSigBits)
+              .putLong(targetIdLeastSigBits)
+              .putLong(creationTime)
+              .putInt(encodedPayload.length)
+              .put(encodedPayload);
+        return endRecord();
+    }
+
+    synchronized long appendLease(final byte[] queue, final long idMostSigBits, final long idLeastSigBits,
+                                  final long time) {
+        startRecord(LEASE, queue, Long.BYTES * 3).putLong(idMostSigBits).putLong(idLeastSigBits).putLong(time);
+        return endRecord();
+    }
+
+    synchronized long appendDelete(final byte[] queue, final long idMostSigBits, final long idLeastSigBits) {
+        startRecord(DELETE, queue, Long.BYTES * 2).putLong(idMostSigBits).putLong(idLeastSigBits);
+        return endRecord();
+    }
+
+    /**
+     * @return position after the last appended record
+     */
+    synchronized long position() {
+        return appended;
+    }
+
+    /**
+     * Makes every record up to specified position durable.
+     */
+    void sync(final long position) {
+        if (synced >= position) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (synced >= position) {
+                return;
+            }
+            final long target;
+            final FileChannel syncedChannel;
+            synchronized (this) {
+                target = appended;
+                syncedChannel = channel;
+                flush();
+            }
+            try {
+                syncedChannel.force(false);
+            } catch (IOException e) {
+                throw new UnableToAccessUnderlyingStore(e.getMessage(), e);
+            }
+            synced = target;
+        }
+    }
+
+    /**
+     * Syncs the current segment and starts a new one.
+     *
+     * @return number of the new segment
+     */
+    long roll() {
+        synchronized (syncLock) {
+            synchronized (this) {
+                try {
+                    flush();
+                    channel.force(false);
+                    channel.close();
+                    segment++;
+                    channel = FileChannel.open(getSegmentFile(segment), WRITE, CREATE_NEW);
+                } catch (IOException e) {
+                    throw new UnableToAccessUnderlyingStore(e.getMessage(), e);
+                }
+                synced = appended;
+                return segment;
+            }
+        }
+    }
+
+    /**
+     * Deletes segments numbered below specified one.
+     */
+    void deleteSegmentsBefore(final long firstSegment) {
+        try {
+            for (Long oldSegment : listSegments()) {
+                if (oldSegment < firstSegment) {
+                    Files.deleteIfExists(getSegmentFile(oldSegment));
+                }
+            }
+        } catch (IOException e) {
+            throw new UnableToAccessUnderlyingStore(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Replays records of segments from specified one up to the segment opened by this journal.
+     */
+    void replay(final long firstSegment, final Replayer replayer) {
+        try {
+            for (Long oldSegment : listSegments()) {
+                if (oldSegment >= firstSegment && oldSegment < segment) {
+                    replay(getSegmentFile(oldSegment), replayer);
+                }
+            }
+        } catch (IOException e) {
+            throw new UnableToAccessUnderlyingStore(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        sync(position());
+        synchronized (this) {
+            channel.close();
+        }
+    }
+
+    private void replay(final Path segmentFile, final Replayer replayer) throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(segmentFile)))) {
+            final CRC32 recordChecksum = new CRC32();
+            while (true) {
+                final byte[] body;
+                final int crc;
+                try {
+                    final int length = input.readInt();
+                    crc = input.readInt();
+                    if (length <= 0 || length > MAX_RECORD_SIZE) {
+                        return;
+                    }
+                    body = new byte[length];
+                    input.readFully(body);
+                } catch (EOFException e) {
+                    //Segment ends or its last record was torn by a crash
+                    return;
+                }
+                recordChecksum.reset();
+                recordChecksum.update(body);
+                if ((int) recordChecksum.getValue() != crc) {
+                    return;
+                }
+                replay(ByteBuffer.wrap(body), replayer);
+            }
+        }
+    }
+
+    private static void replay(final ByteBuffer record, final Replayer replayer) {
+        final byte type = record.get();
+        final byte[] queue = new byte[record.getInt()];
+        record.get(queue);
+        final String queueName = new String(queue, StandardCharsets.UTF_8);
+        final UUID id = new UUID(record.getLong(), record.getLong());
+        switch (type) {
+            case PUSH:
+                final int priority = record.get();
+                final long creationTime = record.getLong();
+                final long deliveryTime = record.getLong();
+                final byte[] payload = new byte[record.getInt()];
+                record.get(payload);
+                String group = null;
+                if (record.hasRemaining()) {
+                    final byte[] encodedGroup = new byte[record.getInt()];
+                    record.get(encodedGroup);
+                    group = new String(encodedGroup, StandardCharsets.UTF_8);
+                }
+                replayer.pushed(queueName, id, new String(payload, StandardCharsets.UTF_8), priority, creationTime,
+                                deliveryTime, group);
+                break;
+            case LEASE:
+                replayer.leased(queueName, id, record.getLong());
+                break;
+            case DELETE:
+                replayer.deleted(queueName, id);
+                break;
+            case MOVE:
+                final byte[] targetQueue = new byte[record.getInt()];
+                record.get(targetQueue);
+                final UUID targetId = new UUID(record.getLong(), record.getLong());
+                final long moveTime = record.getLong();
+                final byte[] movedPayload = new byte[record.getInt()];
+                record.get(movedPayload);
+                replayer.deleted(queueName, id);
+                replayer.pushed(new String(targetQueue, StandardCharsets.UTF_8), targetId,
+                                new String(movedPayload, StandardCharsets.UTF_8), Priority.NORMAL.ordinal(), moveTime,
+                                moveTime, null);
+                break;
+            default:
+                throw new UnableToAccessUnderlyingStore("Unknown journal record type " + type + ".");
+        }
+    }
+
+    private ByteBuffer startRecord(final byte type, final byte[] queue, final int fieldsLength) {
+        final int length = Integer.BYTES * 2 + 1 + Integer.BYTES + queue.length + fieldsLength;
+        if (buffer.remaining() < length) {
+            flush();
+            if (buffer.capacity() < length) {
+                buffer = ByteBuffer.allocate(length);
+            }
+        }
+        buffer.mark();
+        return buffer.putInt(length - Integer.BYTES * 2)
+                     .putInt(0)
+                     .put(type)
+                     .putInt(queue.length)
+                     .put(queue);
+    }
+
+    /**
+     * Fills in checksum of the record started by the last {@link #startRecord(byte, byte[], int)}.
+     */
+    private long endRecord() {
+        final int end = buffer.position();
+        buffer.reset();
+        final int start = buffer.position();
+        checksum.reset();
+        checksum.update(buffer.array(), start + Integer.BYTES * 2, end - start - Integer.BYTES * 2);
+        buffer.putInt(start + Integer.BYTES, (int) checksum.getValue());
+        buffer.position(end);
+        appended += end - start;
+        return appended;
+    }
+
+    /**
+     * Writes buffered records to the current segment without syncing it.
+     */
+    private void flush() {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new UnableToAccessUnderlyingStore(e.getMessage(), e);
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    private List<Long> listSegments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(file -> file.getFileName().toString())
+                        .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                        .map(name -> Long.valueOf(name.substring(SEGMENT_PREFIX.length(),
+                                                                 name.length() - SEGMENT_SUFFIX.length())))
+                        .sorted()
+                        .collect(Collectors.toList());
+        }
+    }
+
+    private Path getSegmentFile(final long segmentNumber) {
+        return directory.resolve(SEGMENT_PREFIX + segmentNumber + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Receives replayed records in order they were appended.
+     */
+    interface Replayer {
+
+        void pushed(String queue,
+                    UUID id,
+                    String payload,
+                    int priority,
+                    long creationTime,
+                    long deliveryTime,
+                    String group);
+
+        void leased(String queue, UUID id, long time);
+
+        void deleted(String queue, UUID id);
+    }
+}
@@ -0,0 +1,28 @@
+package com.example.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Removal of bytes from a queue file by shifting the rest of the file over them.
+ */
+@Name("com.example.Compaction")
+@Label("Queue File Compaction")
+@Category({"Message Queue", "File"})
+@Description("Rows removed from a queue file by copying the rest of the file over them")
+@Threshold("1 ms")
+public class CompactionEvent extends QueueEvent {
+
+    @Label("Bytes Removed")
+    @DataAmount
+    public long bytesRemoved;
+
+    @Label("Bytes Moved")
+    @Description("Bytes copied to close the gap")
+    @DataAmount
+    public long bytesMoved;
+}
@@ -0,0 +1,19 @@
+package com.example.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Opening of the files of a queue, which happens once per queue and service instance.
+ */
+@Name("com.example.FileOpen")
+@Label("Queue Files Open")
+@Category({"Message Queue", "File"})
+public class FileOpenEvent extends QueueEvent {
+
+    @Label("Counters Rebuilt")
+    @Description("Counters were rebuilt by counting rows of every queue file")
+    public boolean countersRebuilt;
+}
@@ -0,0 +1,29 @@
+package com.example.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Time spent waiting for a queue lock that was not free on the first attempt. Uncontended locks are
+ * never recorded.
+ */
+@Name("com.example.LockWait")
+@Label("Queue Lock Wait")
+@Category({"Message Queue", "Locking"})
+@Description("Wait for a queue lock held by another thread or process")
+@StackTrace(true)
+@Threshold("10 ms")
+public class LockWaitEvent extends QueueEvent {
+
+    @Label("Backend")
+    @Description("Backend that owns the lock, file or memory")
+    public String backend;
+
+    @Label("Attempts")
+    @Description("Number of failed attempts to take the lock, 0 for blocking locks")
+    public int attempts;
+}
@@ -0,0 +1,13 @@
+package com.example.jfr;
+
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+
+/**
+ * Base of the events that belong to a queue.
+ */
+abstract class QueueEvent extends Event {
+
+    @Label("Queue")
+    public String queue;
+}
@@ -0,0 +1,21 @@
+package com.example.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Decoding of a leased queue file row to a message. Committed per message, so disabled by default.
+ */
+@Name("com.example.RecordDecode")
+@Label("Record Decode")
+@Category({"Message Queue", "File"})
+@Enabled(false)
+public class RecordDecodeEvent extends QueueEvent {
+
+    @Label("Row Size")
+    @DataAmount
+    public int bytes;
+}
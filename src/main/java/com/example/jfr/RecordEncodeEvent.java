@@ -0,0 +1,21 @@
+package com.example.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Encoding of a message to a queue file row. Committed per message, so disabled by default.
+ */
+@Name("com.example.RecordEncode")
+@Label("Record Encode")
+@Category({"Message Queue", "File"})
+@Enabled(false)
+public class RecordEncodeEvent extends QueueEvent {
+
+    @Label("Row Size")
+    @DataAmount
+    public int bytes;
+}
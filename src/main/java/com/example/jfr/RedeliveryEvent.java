@@ -0,0 +1,25 @@
+package com.example.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Lease that expired without the message being deleted and was handed out again.
+ */
+@Name("com.example.Redelivery")
+@Label("Message Redelivery")
+@Category({"Message Queue"})
+@Description("Message leased again after its visibility timeout expired")
+public class RedeliveryEvent extends QueueEvent {
+
+    @Label("Message Id")
+    public String messageId;
+
+    @Label("Overdue")
+    @Description("Time passed since the lease expired")
+    @Timespan(Timespan.MILLISECONDS)
+    public long overdue;
+}
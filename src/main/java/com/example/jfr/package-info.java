@@ -0,0 +1,7 @@
+/**
+ * JDK Flight Recorder events of queue internals. Events are committed only while a recording has them
+ * enabled and most of them are created only on the slow path they describe, so they cost nothing when
+ * no recording is running. Events committed per message are disabled by default and have to be
+ * enabled explicitly, the rest have thresholds suited for continuous recording.
+ */
+package com.example.jfr;
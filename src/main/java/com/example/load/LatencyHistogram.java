@@ -0,0 +1,124 @@
+package com.example.load;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Histogram of latencies in nanoseconds with fixed memory footprint. Values are counted in buckets
+ * whose width grows with the value, so every value is reported with relative error below 1%.
+ * Recording never allocates.
+ * <p>
+ * Histogram is not thread safe, every worker records into its own histogram and histograms are merged
+ * afterwards.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final long[] counts = new long[(Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS];
+
+    private long total;
+
+    private long max;
+
+    /**
+     * @param latency in nanoseconds, negative latency is counted as zero
+     */
+    public void record(final long latency) {
+        final long value = Math.max(latency, 0);
+        counts[indexOf(value)]++;
+        total++;
+        max = Math.max(max, value);
+    }
+
+    public void merge(final LatencyHistogram other) {
+        for (int index = 0; index < counts.length; index++) {
+            counts[index] += other.counts[index];
+        }
+        total += other.total;
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * @return number of recorded latencies
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * @return the highest recorded latency in nanoseconds
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return latency in nanoseconds specified percent of recorded latencies do not exceed, 0 if nothing
+     * was recorded
+     */
+    public long getValueAt(final double percentile) {
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int index = 0; index < counts.length; index++) {
+            seen += counts[index];
+            if (seen >= rank) {
+                return Math.min(highestValueOf(index), max);
+            }
+        }
+        return 0;
+    }
+
+    public void writeTo(final DataOutput output) throws IOException {
+        int used = 0;
+        for (long count : counts) {
+            used += count == 0 ? 0 : 1;
+        }
+        output.writeLong(max);
+        output.writeInt(used);
+        for (int index = 0; index < counts.length; index++) {
+            if (counts[index] != 0) {
+                output.writeInt(index);
+                output.writeLong(counts[index]);
+            }
+        }
+    }
+
+    public static LatencyHistogram readFrom(final DataInput input) throws IOException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.max = input.readLong();
+        final int used = input.readInt();
+        for (int bucket = 0; bucket < used; bucket++) {
+            final int index = input.readInt();
+            final long count = input.readLong();
+            histogram.counts[index] = count;
+            histogram.total += count;
+        }
+        return histogram;
+    }
+
+    /**
+     * Values below {@link #SUB_BUCKETS} get a bucket each, above that every power of two range is split
+     * into {@link #SUB_BUCKETS} buckets.
+     */
+    private static int indexOf(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    private static long highestValueOf(final int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int shift = index / SUB_BUCKETS - 1;
+        final long lowest = (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
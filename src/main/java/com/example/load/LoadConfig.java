@@ -0,0 +1,290 @@
+package com.example.load;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parameters of a {@link LoadGenerator} run. Parameters that are not specified fall back to defaults:
+ * in memory backend, one producer and one consumer, 1000 messages per second for 10 seconds after a
+ * second of warmup, 100 bytes payload and fleets running as threads.
+ * <p>
+ * Backend is described as {@code memory}, {@code file:<storagePath>}, {@code mapped:<storagePath>} or
+ * {@code broker:<host>:<port>}.
+ */
+public class LoadConfig {
+
+    private final String backend;
+
+    private final String queue;
+
+    private final int producers;
+
+    private final int consumers;
+
+    private final int rate;
+
+    private final Duration duration;
+
+    private final Duration warmup;
+
+    private final Duration drainTimeout;
+
+    private final int payloadSize;
+
+    private final long visibilityTimeout;
+
+    private final boolean forked;
+
+    private LoadConfig(final LoadConfigBuilder builder) {
+        this.backend = builder.backend;
+        this.queue = builder.queue;
+        this.producers = builder.producers;
+        this.consumers = builder.consumers;
+        this.rate = builder.rate;
+        this.duration = builder.duration;
+        this.warmup = builder.warmup;
+        this.drainTimeout = builder.drainTimeout;
+        this.payloadSize = builder.payloadSize;
+        this.visibilityTimeout = builder.visibilityTimeout;
+        this.forked = builder.forked;
+    }
+
+    public String getBackend() {
+        return backend;
+    }
+
+    public String getQueue() {
+        return queue;
+    }
+
+    public int getProducers() {
+        return producers;
+    }
+
+    public int getConsumers() {
+        return consumers;
+    }
+
+    /**
+     * @return messages pushed per second by all producers together
+     */
+    public int getRate() {
+        return rate;
+    }
+
+    /**
+     * @return time producers push messages for, warmup included
+     */
+    public Duration getDuration() {
+        return duration;
+    }
+
+    /**
+     * @return time since start latencies of pushed messages are not recorded for
+     */
+    public Duration getWarmup() {
+        return warmup;
+    }
+
+    /**
+     * @return time consumers keep pulling after producers stop
+     */
+    public Duration getDrainTimeout() {
+        return drainTimeout;
+    }
+
+    public int getPayloadSize() {
+        return payloadSize;
+    }
+
+    /**
+     * @return visibility timeout of memory and file backends created for the run
+     */
+    public long getVisibilityTimeout() {
+        return visibilityTimeout;
+    }
+
+    /**
+     * @return whether every producer and consumer runs in its own JVM
+     */
+    public boolean isForked() {
+        return forked;
+    }
+
+    /**
+     * Parses {@code name=value} arguments, names match builder methods and durations are ISO-8601.
+     *
+     * @throws IllegalArgumentException if argument is malformed or unknown
+     */
+    public static LoadConfig parse(final List<String> arguments) {
+        final LoadConfigBuilder builder = builder();
+        for (String argument : arguments) {
+            final int separator = argument.indexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Argument " + argument + " is not in name=value form.");
+            }
+            final String value = argument.substring(separator + 1);
+            switch (argument.substring(0, separator)) {
+                case "backend":
+                    builder.backend(value);
+                    break;
+                case "queue":
+                    builder.queue(value);
+                    break;
+                case "producers":
+                    builder.producers(Integer.parseInt(value));
+                    break;
+                case "consumers":
+                    builder.consumers(Integer.parseInt(value));
+                    break;
+                case "rate":
+                    builder.rate(Integer.parseInt(value));
+                    break;
+                case "duration":
+                    builder.duration(Duration.parse(value));
+                    break;
+                case "warmup":
+                    builder.warmup(Duration.parse(value));
+                    break;
+                case "drainTimeout":
+                    builder.drainTimeout(Duration.parse(value));
+                    break;
+                case "payloadSize":
+                    builder.payloadSize(Integer.parseInt(value));
+                    break;
+                case "visibilityTimeout":
+                    builder.visibilityTimeout(Long.parseLong(value));
+                    break;
+                case "forked":
+                    builder.forked(Boolean.parseBoolean(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument " + argument + ".");
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return arguments {@link #parse(List)} restores this configuration from
+     */
+    public List<String> toArguments() {
+        final List<String> arguments = new ArrayList<>();
+        arguments.add("backend=" + backend);
+        arguments.add("queue=" + queue);
+        arguments.add("producers=" + producers);
+        arguments.add("consumers=" + consumers);
+        arguments.add("rate=" + rate);
+        arguments.add("duration=" + duration);
+        arguments.add("warmup=" + warmup);
+        arguments.add("drainTimeout=" + drainTimeout);
+        arguments.add("payloadSize=" + payloadSize);
+        arguments.add("visibilityTimeout=" + visibilityTimeout);
+        arguments.add("forked=" + forked);
+        return arguments;
+    }
+
+    @Override
+    public String toString() {
+        return "LoadConfig" + toArguments();
+    }
+
+    public static LoadConfigBuilder builder() {
+        return new LoadConfigBuilder();
+    }
+
+    public static class LoadConfigBuilder {
+
+        private String backend = "memory";
+
+        private String queue = "load";
+
+        private int producers = 1;
+
+        private int consumers = 1;
+
+        private int rate = 1000;
+
+        private Duration duration = Duration.ofSeconds(10);
+
+        private Duration warmup = Duration.ofSeconds(1);
+
+        private Duration drainTimeout = Duration.ofSeconds(5);
+
+        private int payloadSize = 100;
+
+        private long visibilityTimeout = 30_000;
+
+        private boolean forked;
+
+        public LoadConfigBuilder backend(final String backend) {
+            this.backend = backend;
+            return this;
+        }
+
+        public LoadConfigBuilder queue(final String queue) {
+            this.queue = queue;
+            return this;
+        }
+
+        public LoadConfigBuilder producers(final int producers) {
+            this.producers = producers;
+            return this;
+        }
+
+        public LoadConfigBuilder consumers(final int consumers) {
+            this.consumers = consumers;
+            return this;
+        }
+
+        public LoadConfigBuilder rate(final int rate) {
+            this.rate = rate;
+            return this;
+        }
+
+        public LoadConfigBuilder duration(final Duration duration) {
+            this.duration = duration;
+            return this;
+        }
+
+        public LoadConfigBuilder warmup(final Duration warmup) {
+            this.warmup = warmup;
+            return this;
+        }
+
+        public LoadConfigBuilder drainTimeout(final Duration drainTimeout) {
+            this.drainTimeout = drainTimeout;
+            return this;
+        }
+
+        public LoadConfigBuilder payloadSize(final int payloadSize) {
+            this.payloadSize = payloadSize;
+            return this;
+        }
+
+        public LoadConfigBuilder visibilityTimeout(final long visibilityTimeout) {
+            this.visibilityTimeout = visibilityTimeout;
+            return this;
+        }
+
+        public LoadConfigBuilder forked(final boolean forked) {
+            this.forked = forked;
+            return this;
+        }
+
+        /**
+         * @throws IllegalArgumentException if fleets are empty, rate is not positive or warmup is not
+         *                                  shorter than duration
+         */
+        public LoadConfig build() {
+            if (producers <= 0 || consumers <= 0 || rate <= 0) {
+                throw new IllegalArgumentException("Producers, consumers and rate must be positive.");
+            }
+            if (warmup.compareTo(duration) >= 0) {
+                throw new IllegalArgumentException("Warmup must be shorter than duration.");
+            }
+            return new LoadConfig(this);
+        }
+    }
+}
@@ -0,0 +1,357 @@
+package com.example.load;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.example.QueueService;
+import com.example.impl.BrokerQueueService;
+import com.example.impl.FileQueueService;
+import com.example.impl.InMemoryQueueService;
+import com.example.impl.MappedQueueService;
+import com.example.model.Message;
+import com.example.model.impl.SimpleMessage;
+
+/**
+ * Drives a {@link QueueService} with fleets of producers and consumers and measures end to end latency
+ * of messages, from push to pull.
+ * <p>
+ * Producers push at a fixed rate shared between them, every message carries the time it was scheduled
+ * to be pushed at. Latency is measured from that time, so when the service stalls a producer, messages
+ * that should have been pushed during the stall are reported with the wait they were subjected to
+ * instead of being silently left out. Consumers pull and delete messages until producers stop and the
+ * queue stays empty for a second, or until drain timeout passes. Queue is supposed to be used by the run
+ * only.
+ * <p>
+ * Fleets run either as threads sharing a service, or as separate JVMs each creating its own service, so
+ * contention between processes is measured as well. Usage: {@code LoadGenerator [output=<reportFile>]
+ * <name>=<value>...} with names of {@link LoadConfig}.
+ */
+public class LoadGenerator {
+
+    private static final long THREAD_START_DELAY = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final long FORK_START_DELAY = TimeUnit.SECONDS.toNanos(3);
+
+    private static final long IDLE_PULL_PAUSE = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private static final long IDLE_TIMEOUT = TimeUnit.SECONDS.toNanos(1);
+
+    private static final Set<String> LAUNCH_ARGUMENTS = Set.of("output", "worker", "start", "result");
+
+    private final LoadConfig config;
+
+    public LoadGenerator(final LoadConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * Runs both fleets as threads of this JVM sharing specified service, backend of the configuration is
+     * ignored.
+     */
+    public <T extends Message> LoadReport run(final QueueService<T> service) {
+        final long start = new EpochClock().now() + THREAD_START_DELAY;
+        final List<Callable<WorkerResult>> workers = new ArrayList<>();
+        for (int producer = 0; producer < config.getProducers(); producer++) {
+            final int index = producer;
+            workers.add(() -> produce(service, index, start));
+        }
+        for (int consumer = 0; consumer < config.getConsumers(); consumer++) {
+            workers.add(() -> consume(service, start));
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(workers.size());
+        final List<WorkerResult> results = new ArrayList<>();
+        try {
+            for (Future<WorkerResult> result : executor.invokeAll(workers)) {
+                results.add(result.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Load run was interrupted.", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Load worker failed.", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return report(results);
+    }
+
+    /**
+     * Runs every producer and consumer in its own JVM, each of them creates its own service from
+     * backend of the configuration.
+     *
+     * @throws IllegalArgumentException if backend cannot be shared between processes
+     * @throws IllegalStateException    if a worker fails
+     */
+    public LoadReport runForked() throws IOException {
+        if ("memory".equals(config.getBackend())) {
+            throw new IllegalArgumentException("In memory backend cannot be shared between processes.");
+        }
+        final long start = new EpochClock().now() + FORK_START_DELAY;
+        final Path directory = Files.createTempDirectory("load");
+        final List<Process> processes = new ArrayList<>();
+        final List<Path> resultFiles = new ArrayList<>();
+        try {
+            for (int producer = 0; producer < config.getProducers(); producer++) {
+                processes.add(fork("producer:" + producer, start, directory, resultFiles));
+            }
+            for (int consumer = 0; consumer < config.getConsumers(); consumer++) {
+                processes.add(fork("consumer", start, directory, resultFiles));
+            }
+            final List<WorkerResult> results = new ArrayList<>();
+            for (int worker = 0; worker < processes.size(); worker++) {
+                final int exitCode = processes.get(worker).waitFor();
+                if (exitCode != 0) {
+                    throw new IllegalStateException("Load worker exited with code " + exitCode + ".");
+                }
+                try (DataInputStream input = new DataInputStream(
+                        new BufferedInputStream(Files.newInputStream(resultFiles.get(worker))))) {
+                    results.add(WorkerResult.readFrom(input));
+                }
+            }
+            return report(results);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Load run was interrupted.", e);
+        } finally {
+            processes.forEach(Process::destroy);
+            for (Path resultFile : resultFiles) {
+                Files.deleteIfExists(resultFile);
+            }
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    public static void main(final String[] args) throws IOException {
+        final Map<String, String> launchArguments = new HashMap<>();
+        final List<String> configArguments = new ArrayList<>();
+        for (String argument : args) {
+            final String name = argument.substring(0, Math.max(argument.indexOf('='), 0));
+            if (LAUNCH_ARGUMENTS.contains(name)) {
+                launchArguments.put(name, argument.substring(name.length() + 1));
+            } else {
+                configArguments.add(argument);
+            }
+        }
+        final LoadConfig config = LoadConfig.parse(configArguments);
+        final LoadGenerator generator = new LoadGenerator(config);
+        if (launchArguments.containsKey("worker")) {
+            generator.runWorker(launchArguments.get("worker"), Long.parseLong(launchArguments.get("start")),
+                                Path.of(launchArguments.get("result")));
+            return;
+        }
+        final LoadReport report;
+        if (config.isForked()) {
+            report = generator.runForked();
+        } else {
+            final QueueService<SimpleMessage> service = createBackend(config);
+            try {
+                report = generator.run(service);
+            } finally {
+                close(service);
+            }
+        }
+        System.out.println(report);
+        if (launchArguments.containsKey("output")) {
+            report.writeTo(Path.of(launchArguments.get("output")));
+        }
+    }
+
+    /**
+     * @return service described by backend of specified configuration
+     */
+    private static QueueService<SimpleMessage> createBackend(final LoadConfig config) {
+        final String backend = config.getBackend();
+        if ("memory".equals(backend)) {
+            return new InMemoryQueueService(config.getVisibilityTimeout());
+        }
+        if (backend.startsWith("file:")) {
+            return new FileQueueService(config.getVisibilityTimeout(), backend.substring("file:".length()),
+                                        ".queue", "$", 10_000);
+        }
+        if (backend.startsWith("mapped:")) {
+            return new MappedQueueService(config.getVisibilityTimeout(), backend.substring("mapped:".length()),
+                                          ".ring", 10_000);
+        }
+        if (backend.startsWith("broker:")) {
+            final int portSeparator = backend.lastIndexOf(':');
+            final String host = backend.substring("broker:".length(), portSeparator);
+            final int port = Integer.parseInt(backend.substring(portSeparator + 1));
+            return new BrokerQueueService(new InetSocketAddress(host, port));
+        }
+        throw new IllegalArgumentException("Unknown backend " + backend + ".");
+    }
+
+    private Process fork(final String worker, final long start, final Path directory, final List<Path> resultFiles)
+            throws IOException {
+        final Path resultFile = directory.resolve("worker-" + resultFiles.size());
+        resultFiles.add(resultFile);
+        final List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(LoadGenerator.class.getName());
+        command.add("worker=" + worker);
+        command.add("start=" + start);
+        command.add("result=" + resultFile);
+        command.addAll(config.toArguments());
+        return new ProcessBuilder(command).inheritIO().start();
+    }
+
+    /**
+     * Runs a single worker of a forked run and writes its result to specified file.
+     */
+    private void runWorker(final String worker, final long start, final Path resultFile) throws IOException {
+        final QueueService<SimpleMessage> service = createBackend(config);
+        final WorkerResult result;
+        try {
+            result = worker.startsWith("producer:")
+                    ? produce(service, Integer.parseInt(worker.substring("producer:".length())), start)
+                    : consume(service, start);
+        } finally {
+            close(service);
+        }
+        try (DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(resultFile)))) {
+            result.writeTo(output);
+        }
+    }
+
+    /**
+     * Pushes every message scheduled for specified producer. Messages of all producers are scheduled
+     * evenly at configured rate and dealt to producers in turn. Producer that falls behind pushes
+     * overdue messages without waiting, their scheduled time is left as it was.
+     */
+    private <T> WorkerResult produce(final QueueService<T> service, final int index, final long start) {
+        final EpochClock clock = new EpochClock();
+        final long end = start + config.getDuration().toNanos();
+        final String padding = "x".repeat(Math.max(config.getPayloadSize() - 20, 0));
+        long produced = 0;
+        for (long sequence = index; ; sequence += config.getProducers()) {
+            final long scheduled = start + (long) (sequence * 1e9 / config.getRate());
+            if (scheduled >= end) {
+                break;
+            }
+            long wait;
+            while ((wait = scheduled - clock.now()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            service.push(config.getQueue(), scheduled + ":" + padding);
+            produced++;
+        }
+        return new WorkerResult(produced, 0, new LatencyHistogram());
+    }
+
+    private <T extends Message> WorkerResult consume(final QueueService<T> service, final long start) {
+        final EpochClock clock = new EpochClock();
+        final LatencyHistogram latencies = new LatencyHistogram();
+        final long measuredFrom = start + config.getWarmup().toNanos();
+        final long end = start + config.getDuration().toNanos();
+        final long deadline = end + config.getDrainTimeout().toNanos();
+        long consumed = 0;
+        long lastReceived = start;
+        long now;
+        while ((now = clock.now()) < deadline) {
+            final T message = service.pull(config.getQueue());
+            if (Objects.isNull(message)) {
+                if (now - Math.max(lastReceived, end) >= IDLE_TIMEOUT) {
+                    break;
+                }
+                LockSupport.parkNanos(IDLE_PULL_PAUSE);
+                continue;
+            }
+            lastReceived = clock.now();
+            final String payload = message.getPayload();
+            final long scheduled = Long.parseLong(payload, 0, payload.indexOf(':'), 10);
+            if (scheduled >= measuredFrom) {
+                latencies.record(lastReceived - scheduled);
+            }
+            service.delete(config.getQueue(), message);
+            consumed++;
+        }
+        return new WorkerResult(0, consumed, latencies);
+    }
+
+    private LoadReport report(final List<WorkerResult> results) {
+        final LatencyHistogram latencies = new LatencyHistogram();
+        long produced = 0;
+        long consumed = 0;
+        for (WorkerResult result : results) {
+            produced += result.produced;
+            consumed += result.consumed;
+            latencies.merge(result.latencies);
+        }
+        return new LoadReport(produced, consumed, config.getDuration().minus(config.getWarmup()), latencies);
+    }
+
+    private static void close(final QueueService<?> service) throws IOException {
+        if (service instanceof Closeable) {
+            ((Closeable) service).close();
+        }
+    }
+
+    /**
+     * Wall clock in nanoseconds since epoch that advances with {@link System#nanoTime()}, so it is
+     * precise within a JVM and comparable between JVMs of a single host.
+     */
+    private static class EpochClock {
+
+        private final long originNanoTime = System.nanoTime();
+
+        private final long originEpochNanos;
+
+        EpochClock() {
+            final Instant now = Instant.now();
+            this.originEpochNanos = TimeUnit.SECONDS.toNanos(now.getEpochSecond()) + now.getNano();
+        }
+
+        long now() {
+            return originEpochNanos + System.nanoTime() - originNanoTime;
+        }
+    }
+
+    private static class WorkerResult {
+
+        private final long produced;
+
+        private final long consumed;
+
+        private final LatencyHistogram latencies;
+
+        WorkerResult(final long produced, final long consumed, final LatencyHistogram latencies) {
+            this.produced = produced;
+            this.consumed = consumed;
+            this.latencies = latencies;
+        }
+
+        void writeTo(final DataOutputStream output) throws IOException {
+            output.writeLong(produced);
+            output.writeLong(consumed);
+            latencies.writeTo(output);
+        }
+
+        static WorkerResult readFrom(final DataInputStream input) throws IOException {
+            return new WorkerResult(input.readLong(), input.readLong(), LatencyHistogram.readFrom(input));
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.load;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Outcome of a {@link LoadGenerator} run. Latency of a message is measured from the time it was
+ * scheduled to be pushed rather than the time it actually was, so a stalled producer does not hide the
+ * messages it failed to push in time.
+ */
+public class LoadReport {
+
+    private final long produced;
+
+    private final long consumed;
+
+    private final Duration measuredTime;
+
+    private final LatencyHistogram latencies;
+
+    LoadReport(final long produced, final long consumed, final Duration measuredTime,
+               final LatencyHistogram latencies) {
+        this.produced = produced;
+        this.consumed = consumed;
+        this.measuredTime = measuredTime;
+        this.latencies = latencies;
+    }
+
+    /**
+     * @return number of pushed messages, warmup included
+     */
+    public long getProduced() {
+        return produced;
+    }
+
+    /**
+     * @return number of pulled and deleted messages, warmup included
+     */
+    public long getConsumed() {
+        return consumed;
+    }
+
+    /**
+     * @return number of consumed messages scheduled after warmup
+     */
+    public long getMeasured() {
+        return latencies.getTotal();
+    }
+
+    /**
+     * @return measured messages consumed per second
+     */
+    public double getThroughput() {
+        return latencies.getTotal() * 1e9 / measuredTime.toNanos();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return end to end latency specified percent of measured messages do not exceed
+     */
+    public Duration getLatency(final double percentile) {
+        return Duration.ofNanos(latencies.getValueAt(percentile));
+    }
+
+    public Duration getMaxLatency() {
+        return Duration.ofNanos(latencies.getMax());
+    }
+
+    /**
+     * Writes report as {@code name=value} lines, latencies are in microseconds.
+     */
+    public void writeTo(final Path file) throws IOException {
+        Files.write(file, List.of("produced=" + produced,
+                                  "consumed=" + consumed,
+                                  "measured=" + getMeasured(),
+                                  "throughput=" + String.format(Locale.ROOT, "%.1f", getThroughput()),
+                                  "p50=" + getLatency(50).toNanos() / 1000,
+                                  "p99=" + getLatency(99).toNanos() / 1000,
+                                  "p999=" + getLatency(99.9).toNanos() / 1000,
+                                  "max=" + getMaxLatency().toNanos() / 1000));
+    }
+
+    @Override
+    public String toString() {
+        return "LoadReport{" +
+                "produced=" + produced +
+                ", consumed=" + consumed +
+                ", measured=" + getMeasured() +
+                ", throughput=" + String.format(Locale.ROOT, "%.1f", getThroughput()) +
+                ", p50=" + getLatency(50) +
+                ", p99=" + getLatency(99) +
+                ", p999=" + getLatency(99.9) +
+                ", max=" + getMaxLatency() +
+                '}';
+    }
+}
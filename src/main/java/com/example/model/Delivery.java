@@ -0,0 +1,39 @@
+package com.example.model;
+
+/**
+ * Message pulled from one of several queues together with the queue it was pulled from, which is
+ * needed to delete the message.
+ *
+ * @param <T> message type supported by queue
+ */
+public class Delivery<T> {
+
+    private final String queue;
+
+    private final T message;
+
+    private Delivery(final String queue, final T message) {
+        this.queue = queue;
+        this.message = message;
+    }
+
+    public static <T> Delivery<T> of(final String queue, final T message) {
+        return new Delivery<>(queue, message);
+    }
+
+    public String getQueue() {
+        return queue;
+    }
+
+    public T getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return "Delivery{" +
+                "queue='" + queue + '\'' +
+                ", message=" + message +
+                '}';
+    }
+}
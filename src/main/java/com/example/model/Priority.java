@@ -0,0 +1,38 @@
+package com.example.model;
+
+/**
+ * Priority levels supported within a single queue. Each level is served from a separate FIFO lane,
+ * lanes are dequeued in weighted round robin manner so that lower levels are not starved while
+ * higher levels have a backlog.
+ */
+public enum Priority {
+
+    HIGH(4),
+    NORMAL(2),
+    LOW(1);
+
+    private final int weight;
+
+    Priority(final int weight) {
+        this.weight = weight;
+    }
+
+    /**
+     * @return share of pulls given to the level when every level has messages
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * @return weights of every level in declaration order
+     */
+    public static int[] weights() {
+        final Priority[] priorities = values();
+        final int[] weights = new int[priorities.length];
+        for (int index = 0; index < priorities.length; index++) {
+            weights[index] = priorities[index].weight;
+        }
+        return weights;
+    }
+}
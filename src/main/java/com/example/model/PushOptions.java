@@ -0,0 +1,118 @@
+package com.example.model;
+
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * Optional parameters of a pushed message. Options that are not specified fall back to defaults:
+ * no delay, {@link Priority#NORMAL} priority, no deduplication and no group.
+ */
+public class PushOptions {
+
+    private static final PushOptions DEFAULTS = builder().build();
+
+    private final Duration delay;
+
+    private final Priority priority;
+
+    private final String deduplicationId;
+
+    private final String groupId;
+
+    private PushOptions(final Duration delay,
+                        final Priority priority,
+                        final String deduplicationId,
+                        final String groupId) {
+        this.delay = delay;
+        this.priority = priority;
+        this.deduplicationId = deduplicationId;
+        this.groupId = groupId;
+    }
+
+    public static PushOptions defaults() {
+        return DEFAULTS;
+    }
+
+    public Duration getDelay() {
+        return delay;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return id used to drop repeated pushes of the same message within deduplication window, null if
+     * message is not deduplicated
+     */
+    public String getDeduplicationId() {
+        return deduplicationId;
+    }
+
+    /**
+     * @return group message is delivered in order with, only one message of a group is in flight at a
+     * time, null if message is not grouped
+     */
+    public String getGroupId() {
+        return groupId;
+    }
+
+    public boolean isDelayed() {
+        return !delay.isNegative() && !delay.isZero();
+    }
+
+    public static PushOptionsBuilder builder() {
+        return new PushOptionsBuilder();
+    }
+
+    public static class PushOptionsBuilder {
+
+        private Duration delay;
+
+        private Priority priority;
+
+        private String deduplicationId;
+
+        private String groupId;
+
+        public PushOptionsBuilder delay(final Duration delay) {
+            this.delay = delay;
+            return this;
+        }
+
+        public PushOptionsBuilder priority(final Priority priority) {
+            this.priority = priority;
+            return this;
+        }
+
+        public PushOptionsBuilder deduplicationId(final String deduplicationId) {
+            this.deduplicationId = deduplicationId;
+            return this;
+        }
+
+        public PushOptionsBuilder groupId(final String groupId) {
+            this.groupId = groupId;
+            return this;
+        }
+
+        /**
+         * @throws IllegalArgumentException if grouped message is delayed, prioritized or group id is empty
+         */
+        public PushOptions build() {
+            final PushOptions options = new PushOptions(Objects.requireNonNullElse(delay, Duration.ZERO),
+                                                        Objects.requireNonNullElse(priority, Priority.NORMAL),
+                                                        deduplicationId,
+                                                        groupId);
+            if (Objects.nonNull(groupId)) {
+                if (groupId.isEmpty()) {
+                    throw new IllegalArgumentException("Group id must not be empty.");
+                }
+                if (options.isDelayed() || options.getPriority() != Priority.NORMAL) {
+                    throw new IllegalArgumentException(
+                            "Grouped messages are delivered in push order, they cannot be delayed or prioritized.");
+                }
+            }
+            return options;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.example.model;
+
+import java.time.Duration;
+
+/**
+ * Point in time statistics of a single queue. Backends that share queues between processes report
+ * approximate values.
+ */
+public class QueueStats {
+
+    private static final QueueStats EMPTY = builder().build();
+
+    private final long depth;
+
+    private final long inFlight;
+
+    private final long delayed;
+
+    private final Duration oldestMessageAge;
+
+    private QueueStats(final long depth, final long inFlight, final long delayed, final Duration oldestMessageAge) {
+        this.depth = depth;
+        this.inFlight = inFlight;
+        this.delayed = delayed;
+        this.oldestMessageAge = oldestMessageAge;
+    }
+
+    /**
+     * @return statistics of a queue that holds no messages
+     */
+    public static QueueStats empty() {
+        return EMPTY;
+    }
+
+    /**
+     * @return number of messages available for pull
+     */
+    public long getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return number of pulled messages that are not deleted yet
+     */
+    public long getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return number of messages waiting for their delay to pass
+     */
+    public long getDelayed() {
+        return delayed;
+    }
+
+    /**
+     * @return time the oldest message available for pull has been waiting, zero if there is no such
+     * message and null if backend does not track it
+     */
+    public Duration getOldestMessageAge() {
+        return oldestMessageAge;
+    }
+
+    @Override
+    public String toString() {
+        return "QueueStats{" +
+                "depth=" + depth +
+                ", inFlight=" + inFlight +
+                ", delayed=" + delayed +
+                ", oldestMessageAge=" + oldestMessageAge +
+                '}';
+    }
+
+    public static QueueStatsBuilder builder() {
+        return new QueueStatsBuilder();
+    }
+
+    public static class QueueStatsBuilder {
+
+        private long depth;
+
+        private long inFlight;
+
+        private long delayed;
+
+        private Duration oldestMessageAge = Duration.ZERO;
+
+        public QueueStatsBuilder depth(final long depth) {
+            this.depth = depth;
+            return this;
+        }
+
+        public QueueStatsBuilder inFlight(final long inFlight) {
+            this.inFlight = inFlight;
+            return this;
+        }
+
+        public QueueStatsBuilder delayed(final long delayed) {
+            this.delayed = delayed;
+            return this;
+        }
+
+        public QueueStatsBuilder oldestMessageAge(final Duration oldestMessageAge) {
+            this.oldestMessageAge = oldestMessageAge;
+            return this;
+        }
+
+        public QueueStats build() {
+            return new QueueStats(depth, inFlight, delayed, oldestMessageAge);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.example.model;
+
+/**
+ * Position in a topic log a new subscriber group starts reading from.
+ */
+public enum SubscriptionStart {
+
+    /**
+     * Group receives only messages published after it subscribed.
+     */
+    LATEST,
+
+    /**
+     * Group receives every message still retained by the topic, including the ones published before
+     * it subscribed.
+     */
+    EARLIEST
+}
@@ -71,6 +71,14 @@ public class SimpleMessage implements Comparable<SimpleMessage>, Message {
         return creationTime.compareTo(message.getCreationTime());
     }
 
+    /**
+     * Creates message without going through a builder, meant for hot paths that create a message per
+     * call.
+     */
+    public static SimpleMessage of(final UUID id, final String payload, final Instant creationTime) {
+        return new SimpleMessage(id, payload, creationTime);
+    }
+
     public static StringMessageBuilder builder() {
         return new StringMessageBuilder();
     }
@@ -1,15 +1,37 @@
 package com.example.model.mapper;
 
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.UUID;
 
 import com.example.exception.RowMappingException;
 import com.example.model.impl.SimpleMessage;
 
+/**
+ * Maps {@link SimpleMessage} to {@code id,payload,epochMillis} rows and back. Besides string rows
+ * mapper works with UTF-8 encoded rows in place, so hot paths can read and rewrite rows held in a
+ * reusable buffer without splitting them into intermediate strings. Rows held in a buffer are read
+ * through {@link SimpleMessageView}.
+ */
 public class SimpleMessageMapper {
 
+    /**
+     * Maximal number of bytes creation time takes in a row.
+     */
+    public static final int MAX_TIME_LENGTH = 20;
+
+    /**
+     * Number of bytes message id takes in a row.
+     */
+    public static final int ID_LENGTH = 36;
+
     private static final String DELIMITER = ",";
 
+    private static final byte DELIMITER_BYTE = ',';
+
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+
     public String toString(final SimpleMessage message) {
         return message.getId() + DELIMITER + message.getPayload() + DELIMITER + message
                 .getCreationTime().toEpochMilli() + System.lineSeparator();
@@ -27,4 +49,113 @@ public class SimpleMessageMapper {
             throw new RowMappingException(e.getMessage(), e);
         }
     }
+
+    /**
+     * @param row    buffer holding encoded row
+     * @param offset of the row
+     * @param length of the row without line separator
+     */
+    public SimpleMessage toMessage(final byte[] row, final int offset, final int length) {
+        return new SimpleMessageView().wrap(row, offset, length).toMessage();
+    }
+
+    /**
+     * Writes canonical form of the id rows are written with, so {@link SimpleMessageView#hasId(byte[])}
+     * compares it with rows byte by byte.
+     *
+     * @param id     to encode
+     * @param target array of at least {@value #ID_LENGTH} bytes
+     */
+    public void encodeId(final UUID id, final byte[] target) {
+        encodeHex(id.getMostSignificantBits() >>> 32, target, 0, 8);
+        target[8] = '-';
+        encodeHex(id.getMostSignificantBits() >>> 16, target, 9, 4);
+        target[13] = '-';
+        encodeHex(id.getMostSignificantBits(), target, 14, 4);
+        target[18] = '-';
+        encodeHex(id.getLeastSignificantBits() >>> 48, target, 19, 4);
+        target[23] = '-';
+        encodeHex(id.getLeastSignificantBits(), target, 24, 12);
+    }
+
+    /**
+     * Replaces creation time of a row in place and terminates it with line separator. Array must have
+     * room for {@value #MAX_TIME_LENGTH} bytes of time and the separator after the payload.
+     *
+     * @param row          encoded row starting at index 0
+     * @param length       of the row without line separator
+     * @param creationTime new epoch millisecond creation time
+     * @return length of the updated row including line separator
+     */
+    public int setCreationTime(final byte[] row, final int length, final long creationTime) {
+        int position = getTimeOffset(row, 0, length);
+        int digits = 1;
+        for (long rest = creationTime / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        long remaining = creationTime;
+        for (int index = position + digits - 1; index >= position; index--) {
+            row[index] = (byte) ('0' + remaining % 10);
+            remaining /= 10;
+        }
+        position += digits;
+        final String separator = System.lineSeparator();
+        for (int index = 0; index < separator.length(); index++) {
+            row[position++] = (byte) separator.charAt(index);
+        }
+        return position;
+    }
+
+    static int getTimeOffset(final byte[] row, final int offset, final int length) {
+        for (int position = offset + length - 1; position > offset + ID_LENGTH; position--) {
+            if (row[position] == DELIMITER_BYTE) {
+                return position + 1;
+            }
+        }
+        throw new RowMappingException("Row has no payload delimiter.");
+    }
+
+    /**
+     * Parses 16 hex digits of the canonical UUID form starting from the specified digit, dashes are
+     * skipped.
+     */
+    static long parseHex(final byte[] row, final int offset, final int firstDigit) {
+        long bits = 0;
+        int digit = 0;
+        for (int position = offset; position < offset + ID_LENGTH; position++) {
+            final byte symbol = row[position];
+            if (symbol == '-') {
+                continue;
+            }
+            if (digit >= firstDigit && digit < firstDigit + 16) {
+                bits = (bits << 4) | hexValue(symbol);
+            }
+            digit++;
+        }
+        return bits;
+    }
+
+    /**
+     * Writes the lowest digits of the value as lower case hex digits, as {@link UUID#toString()} does.
+     */
+    private static void encodeHex(final long value, final byte[] target, final int offset, final int digits) {
+        long rest = value;
+        for (int index = offset + digits - 1; index >= offset; index--) {
+            target[index] = HEX_DIGITS[(int) (rest & 0xF)];
+            rest >>>= 4;
+        }
+    }
+
+    private static int hexValue(final byte symbol) {
+        if (symbol >= '0' && symbol <= '9') {
+            return symbol - '0';
+        }
+        if (symbol >= 'a' && symbol <= 'f') {
+            return symbol - 'a' + 10;
+        }
+        if (symbol >= 'A' && symbol <= 'F') {
+            return symbol - 'A' + 10;
+        }
+        throw new RowMappingException("Invalid message id symbol " + (char) symbol + ".");
+    }
 }
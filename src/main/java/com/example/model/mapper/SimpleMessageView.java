@@ -0,0 +1,112 @@
+package com.example.model.mapper;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.UUID;
+
+import com.example.exception.RowMappingException;
+import com.example.model.Message;
+import com.example.model.impl.SimpleMessage;
+
+/**
+ * Reusable view of an encoded {@code id,payload,epochMillis} row held in a buffer. View decodes
+ * nothing when it is moved to a row, id is compared as raw bytes, creation time is parsed once on the
+ * first access and payload is decoded only when asked for, so scans over many rows do not build a
+ * message per row.
+ * <p>
+ * View is valid only while the buffer holds the row, it is not thread safe and is meant to be owned
+ * by whatever owns the buffer.
+ */
+public class SimpleMessageView implements Message {
+
+    private byte[] row;
+
+    private int offset;
+
+    private int length;
+
+    private int timeOffset;
+
+    private long creationTime;
+
+    /**
+     * Moves view to another row.
+     *
+     * @param row    buffer holding encoded row
+     * @param offset of the row
+     * @param length of the row without line separator
+     * @return this view
+     */
+    public SimpleMessageView wrap(final byte[] row, final int offset, final int length) {
+        this.row = row;
+        this.offset = offset;
+        this.length = length;
+        this.timeOffset = -1;
+        this.creationTime = -1;
+        return this;
+    }
+
+    /**
+     * @param id encoded with {@link SimpleMessageMapper#encodeId(UUID, byte[])}
+     * @return true if row holds message with specified id
+     */
+    public boolean hasId(final byte[] id) {
+        if (length <= SimpleMessageMapper.ID_LENGTH) {
+            return false;
+        }
+        for (int index = SimpleMessageMapper.ID_LENGTH - 1; index >= 0; index--) {
+            if (row[offset + index] != id[index]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public UUID getId() {
+        return new UUID(SimpleMessageMapper.parseHex(row, offset, 0), SimpleMessageMapper.parseHex(row, offset, 16));
+    }
+
+    @Override
+    public String getPayload() {
+        final int payloadOffset = offset + SimpleMessageMapper.ID_LENGTH + 1;
+        return new String(row, payloadOffset, getTimeOffset() - 1 - payloadOffset, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return epoch millisecond creation time of the row
+     */
+    public long getCreationTime() {
+        if (creationTime >= 0) {
+            return creationTime;
+        }
+        final int end = offset + length;
+        int position = getTimeOffset();
+        if (position == end) {
+            throw new RowMappingException("Row has no creation time.");
+        }
+        long time = 0;
+        for (; position < end; position++) {
+            final int digit = row[position] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new RowMappingException("Invalid creation time of a row.");
+            }
+            time = time * 10 + digit;
+        }
+        creationTime = time;
+        return time;
+    }
+
+    /**
+     * @return message decoded from the row, which stays valid once view is moved
+     */
+    public SimpleMessage toMessage() {
+        return SimpleMessage.of(getId(), getPayload(), Instant.ofEpochMilli(getCreationTime()));
+    }
+
+    private int getTimeOffset() {
+        if (timeOffset < 0) {
+            timeOffset = SimpleMessageMapper.getTimeOffset(row, offset, length);
+        }
+        return timeOffset;
+    }
+}
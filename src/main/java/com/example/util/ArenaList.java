@@ -0,0 +1,113 @@
+package com.example.util;
+
+import static com.example.util.MessageArena.NIL;
+
+/**
+ * Doubly linked list of {@link MessageArena} records. Links are stored in the records themselves, so
+ * list keeps only its head, tail and size on heap and a record can belong to one list at a time.
+ * Every operation is O(1).
+ * <p>
+ * Implementation is not thread safe, callers are expected to guard it with their own locks.
+ */
+public class ArenaList {
+
+    private final MessageArena arena;
+
+    private int head = NIL;
+
+    private int tail = NIL;
+
+    private int size;
+
+    public ArenaList(final MessageArena arena) {
+        this.arena = arena;
+    }
+
+    public void append(final int handle) {
+        arena.setNext(handle, NIL);
+        arena.setPrev(handle, tail);
+        if (tail == NIL) {
+            head = handle;
+        } else {
+            arena.setNext(tail, handle);
+        }
+        tail = handle;
+        size++;
+    }
+
+    /**
+     * Links record right after specified one, {@link MessageArena#NIL} stands for the list head.
+     */
+    public void insertAfter(final int prev, final int handle) {
+        final int next = prev == NIL ? head : arena.getNext(prev);
+        arena.setPrev(handle, prev);
+        arena.setNext(handle, next);
+        if (prev == NIL) {
+            head = handle;
+        } else {
+            arena.setNext(prev, handle);
+        }
+        if (next == NIL) {
+            tail = handle;
+        } else {
+            arena.setPrev(next, handle);
+        }
+        size++;
+    }
+
+    /**
+     * Unlinks record from the list, record must belong to the list.
+     */
+    public void remove(final int handle) {
+        final int prev = arena.getPrev(handle);
+        final int next = arena.getNext(handle);
+        if (prev == NIL) {
+            head = next;
+        } else {
+            arena.setNext(prev, next);
+        }
+        if (next == NIL) {
+            tail = prev;
+        } else {
+            arena.setPrev(next, prev);
+        }
+        arena.setNext(handle, NIL);
+        arena.setPrev(handle, NIL);
+        size--;
+    }
+
+    /**
+     * @return handle of the first record or {@link MessageArena#NIL} if list is empty
+     */
+    public int peek() {
+        return head;
+    }
+
+    /**
+     * @return handle of the last record or {@link MessageArena#NIL} if list is empty
+     */
+    public int peekLast() {
+        return tail;
+    }
+
+    /**
+     * Unlinks the first record.
+     *
+     * @return handle of unlinked record or {@link MessageArena#NIL} if list is empty
+     */
+    public int poll() {
+        final int handle = head;
+        if (handle != NIL) {
+            remove(handle);
+        }
+        return handle;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+}
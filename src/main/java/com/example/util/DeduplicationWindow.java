@@ -0,0 +1,202 @@
+package com.example.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Remembers deduplication ids seen within a time window. Window is split into generations of
+ * {@code window} milliseconds, ids are remembered for the current and the previous generation, so
+ * an id is recognized for at least {@code window} and at most twice as long.
+ * <p>
+ * Each generation has a bloom filter, so ids that were never seen, which is the common case, are
+ * rejected without touching the exact cache. Exact cache keeps the most recent {@value
+ * #EXACT_CAPACITY} ids and answers whether an id reported by the filter was really seen. When
+ * traffic within the window exceeds exact cache capacity filter answers alone, in which case a new
+ * id is mistaken for a duplicate with probability of about {@value #FALSE_POSITIVE_RATE}. Memory
+ * usage is bounded no matter how many ids are registered.
+ * <p>
+ * Filter of a generation is allocated once an id is registered in it, filter of the generation that
+ * leaves the window is cleared and reused for the next one, so a window that never sees an id holds no
+ * filter and a busy one holds two for its whole life.
+ * <p>
+ * Implementation is not thread safe, callers are expected to guard it with their own locks.
+ */
+public class DeduplicationWindow {
+
+    /**
+     * Default window length in milliseconds, matches deduplication interval of SQS FIFO queues.
+     */
+    public static final long DEFAULT_WINDOW = 300_000;
+
+    private static final int EXACT_CAPACITY = 16_384;
+
+    private static final int EXPECTED_IDS = 65_536;
+
+    private static final double FALSE_POSITIVE_RATE = 0.0001;
+
+    private final long window;
+
+    private final Map<String, Long> recentIds = new LinkedHashMap<>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Long> eldest) {
+            if (size() > EXACT_CAPACITY) {
+                evictedGeneration = Math.max(evictedGeneration, eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private IdFilter currentFilter;
+
+    private IdFilter previousFilter;
+
+    private long generation;
+
+    private long evictedGeneration = Long.MIN_VALUE;
+
+    public DeduplicationWindow(final long window, final long startTime) {
+        this.window = window;
+        this.generation = Math.floorDiv(startTime, window);
+    }
+
+    /**
+     * @param id   deduplication id
+     * @param time current epoch millisecond
+     * @return true if id was registered within the window
+     */
+    public boolean contains(final String id, final long time) {
+        rotate(time);
+        if (!IdFilter.mightContain(currentFilter, id) && !IdFilter.mightContain(previousFilter, id)) {
+            return false;
+        }
+        final Long seenGeneration = recentIds.get(id);
+        if (Objects.nonNull(seenGeneration)) {
+            return seenGeneration >= generation - 1;
+        }
+        return evictedGeneration >= generation - 1;
+    }
+
+    /**
+     * Registers id as seen at the specified time. Ids registered with time outside of the window are
+     * ignored.
+     *
+     * @param id   deduplication id
+     * @param time epoch millisecond id was seen at
+     */
+    public void register(final String id, final long time) {
+        final long idGeneration = Math.floorDiv(time, window);
+        rotate(time);
+        if (idGeneration < generation - 1) {
+            return;
+        }
+        if (idGeneration == generation) {
+            currentFilter = IdFilter.put(currentFilter, id);
+        } else {
+            previousFilter = IdFilter.put(previousFilter, id);
+        }
+        recentIds.remove(id);
+        recentIds.put(id, idGeneration);
+    }
+
+    /**
+     * Forgets every id and starts the window over, filters are kept for reuse.
+     *
+     * @param startTime current epoch millisecond
+     */
+    public void clear(final long startTime) {
+        generation = Math.floorDiv(startTime, window);
+        IdFilter.clear(currentFilter);
+        IdFilter.clear(previousFilter);
+        recentIds.clear();
+        evictedGeneration = Long.MIN_VALUE;
+    }
+
+    private void rotate(final long time) {
+        final long timeGeneration = Math.floorDiv(time, window);
+        if (timeGeneration <= generation) {
+            return;
+        }
+        final IdFilter retiring = previousFilter;
+        if (timeGeneration == generation + 1) {
+            previousFilter = currentFilter;
+            currentFilter = retiring;
+        } else {
+            IdFilter.clear(currentFilter);
+        }
+        IdFilter.clear(retiring);
+        generation = timeGeneration;
+        final Iterator<Long> generations = recentIds.values().iterator();
+        while (generations.hasNext() && generations.next() < generation - 1) {
+            generations.remove();
+        }
+    }
+
+    /**
+     * Bloom filter sized for {@value #EXPECTED_IDS} ids at {@value #FALSE_POSITIVE_RATE} false positive
+     * rate, which unlike Guava one can be cleared. Bit positions are derived from halves of a 128 bit
+     * murmur3 hash the way Guava does it.
+     */
+    private static class IdFilter {
+
+        private static final HashFunction HASH = Hashing.murmur3_128();
+
+        private static final int BITS = (int) (-EXPECTED_IDS * Math.log(FALSE_POSITIVE_RATE)
+                / (Math.log(2) * Math.log(2)));
+
+        private static final int HASHES = Math.max(1, (int) Math.round((double) BITS / EXPECTED_IDS * Math.log(2)));
+
+        private final long[] bits = new long[(BITS + Long.SIZE - 1) / Long.SIZE];
+
+        /**
+         * @return filter the id was put to, allocated if there was none
+         */
+        static IdFilter put(final IdFilter filter, final String id) {
+            final IdFilter target = Objects.isNull(filter) ? new IdFilter() : filter;
+            final ByteBuffer hash = hash(id);
+            long combined = hash.getLong(0);
+            final long step = hash.getLong(Long.BYTES);
+            for (int index = 0; index < HASHES; index++) {
+                final int bit = (int) ((combined & Long.MAX_VALUE) % BITS);
+                target.bits[bit >>> 6] |= 1L << bit;
+                combined += step;
+            }
+            return target;
+        }
+
+        static boolean mightContain(final IdFilter filter, final String id) {
+            if (Objects.isNull(filter)) {
+                return false;
+            }
+            final ByteBuffer hash = hash(id);
+            long combined = hash.getLong(0);
+            final long step = hash.getLong(Long.BYTES);
+            for (int index = 0; index < HASHES; index++) {
+                final int bit = (int) ((combined & Long.MAX_VALUE) % BITS);
+                if ((filter.bits[bit >>> 6] & 1L << bit) == 0) {
+                    return false;
+                }
+                combined += step;
+            }
+            return true;
+        }
+
+        static void clear(final IdFilter filter) {
+            if (Objects.nonNull(filter)) {
+                Arrays.fill(filter.bits, 0);
+            }
+        }
+
+        private static ByteBuffer hash(final String id) {
+            return ByteBuffer.wrap(HASH.hashString(id, StandardCharsets.UTF_8).asBytes());
+        }
+    }
+}
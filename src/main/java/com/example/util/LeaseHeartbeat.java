@@ -0,0 +1,101 @@
+package com.example.util;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.example.QueueService;
+
+/**
+ * Keeps leases of messages that take long to handle alive. Tracked messages of every queue have their
+ * visibility extended together with {@link QueueService#changeVisibilityBatch(String, List, Duration)}
+ * on a background thread every interval, so a handler can run longer than the visibility timeout of
+ * the service while a crashed handler still has its message redelivered soon. Messages that are not in
+ * flight anymore stop being tracked.
+ * <p>
+ * Message must be tracked right after it is pulled, first extension comes within an interval, so
+ * interval must be shorter than visibility timeout of the service. Handler untracks message once it is
+ * deleted or releases it to have it redelivered right away.
+ *
+ * @param <T> message type supported by queue
+ */
+public class LeaseHeartbeat<T> implements Closeable {
+
+    private final QueueService<T> service;
+
+    private final Duration extension;
+
+    private final Map<String, Set<T>> messagesByQueue = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService executor;
+
+    /**
+     * @param extension time tracked messages stay invisible after every heartbeat
+     * @param interval  time between heartbeats
+     * @throws IllegalArgumentException if interval is not shorter than extension
+     */
+    public LeaseHeartbeat(final QueueService<T> service, final Duration extension, final Duration interval) {
+        if (interval.compareTo(extension) >= 0) {
+            throw new IllegalArgumentException("Heartbeat interval must be shorter than extension.");
+        }
+        this.service = service;
+        this.extension = extension;
+        this.executor = Executors.newSingleThreadScheduledExecutor(task -> {
+            final Thread thread = new Thread(task, "lease-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::beat, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public void track(final String queue, final T message) {
+        messagesByQueue.computeIfAbsent(queue, name -> ConcurrentHashMap.newKeySet()).add(message);
+    }
+
+    public void untrack(final String queue, final T message) {
+        final Set<T> messages = messagesByQueue.get(queue);
+        if (messages != null) {
+            messages.remove(message);
+        }
+    }
+
+    /**
+     * Stops tracking message and makes it visible right away, so a failed message is retried without
+     * waiting for its lease to expire.
+     *
+     * @return false if message is not in flight anymore
+     */
+    public boolean release(final String queue, final T message) {
+        untrack(queue, message);
+        return service.changeVisibility(queue, message, Duration.ZERO);
+    }
+
+    /**
+     * Stops heartbeats, leases of tracked messages expire as usual.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private void beat() {
+        for (Map.Entry<String, Set<T>> entry : messagesByQueue.entrySet()) {
+            final List<T> messages = new ArrayList<>(entry.getValue());
+            if (messages.isEmpty()) {
+                continue;
+            }
+            try {
+                service.changeVisibilityBatch(entry.getKey(), messages, extension).forEach(entry.getValue()::remove);
+            } catch (RuntimeException e) {
+                //Leases are extended on the next heartbeat unless they expire before
+            }
+        }
+    }
+}
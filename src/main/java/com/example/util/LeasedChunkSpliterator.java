@@ -0,0 +1,141 @@
+package com.example.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Spliterator that drains a queue chunk by chunk. Chunk of messages is leased from the queue, handed
+ * out one message at a time and committed as a whole once its last message was consumed, so a consumer
+ * that fails or a stream that is short circuited leaves the rest of its chunk to be redelivered once
+ * visibility timeout expires.
+ * <p>
+ * Splitting leases another chunk for the split off spliterator, which keeps leasing chunks of the same
+ * queue once it is consumed, so every thread of a parallel stream drains the queue on its own. Number
+ * of splits is limited by the parallelism of the common pool, so at most that many chunks are leased
+ * ahead of consumption. Spliterator is not ordered: chunks are consumed in parallel and a chunk that
+ * fails is redelivered after later ones.
+ *
+ * @param <T> message type supported by queue
+ */
+public class LeasedChunkSpliterator<T> implements Spliterator<T> {
+
+    private final Chunks<T> chunks;
+
+    private final AtomicInteger splits;
+
+    private List<T> chunk;
+
+    private int index;
+
+    private boolean drained;
+
+    private LeasedChunkSpliterator(final Chunks<T> chunks, final AtomicInteger splits, final List<T> chunk) {
+        this.chunks = chunks;
+        this.splits = splits;
+        this.chunk = chunk;
+    }
+
+    /**
+     * @return sequential stream of messages leased from specified chunks
+     */
+    public static <T> Stream<T> stream(final Chunks<T> chunks) {
+        final AtomicInteger splits = new AtomicInteger(ForkJoinPool.getCommonPoolParallelism());
+        return StreamSupport.stream(new LeasedChunkSpliterator<>(chunks, splits, List.of()), false);
+    }
+
+    /**
+     * Chunks that pull messages one by one and delete every message of a consumed chunk, for queues
+     * that are unable to lease or commit many messages at once.
+     *
+     * @param pull      pulls next message or returns null once queue is empty
+     * @param delete    deletes consumed message
+     * @param chunkSize maximal number of messages in a chunk
+     */
+    public static <T> Chunks<T> pulling(final Supplier<T> pull, final Consumer<T> delete, final int chunkSize) {
+        return new Chunks<>() {
+
+            @Override
+            public List<T> next() {
+                final List<T> messages = new ArrayList<>();
+                T message;
+                while (messages.size() < chunkSize && Objects.nonNull(message = pull.get())) {
+                    messages.add(message);
+                }
+                return messages;
+            }
+
+            @Override
+            public void commit(final List<T> chunk) {
+                chunk.forEach(delete);
+            }
+        };
+    }
+
+    @Override
+    public boolean tryAdvance(final Consumer<? super T> action) {
+        while (index == chunk.size()) {
+            if (!chunk.isEmpty()) {
+                final List<T> consumed = chunk;
+                chunk = List.of();
+                chunks.commit(consumed);
+            }
+            if (drained) {
+                return false;
+            }
+            chunk = chunks.next();
+            index = 0;
+            drained = chunk.isEmpty();
+        }
+        action.accept(chunk.get(index++));
+        return true;
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+        if (drained || splits.getAndDecrement() <= 0) {
+            return null;
+        }
+        final List<T> split = chunks.next();
+        if (split.isEmpty()) {
+            drained = true;
+            return null;
+        }
+        return new LeasedChunkSpliterator<>(chunks, splits, split);
+    }
+
+    @Override
+    public long estimateSize() {
+        return drained ? chunk.size() - index : Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return NONNULL | CONCURRENT;
+    }
+
+    /**
+     * Leases and commits chunks of a queue. Implementation must be thread safe.
+     *
+     * @param <T> message type supported by queue
+     */
+    public interface Chunks<T> {
+
+        /**
+         * @return next chunk of leased messages, empty chunk once there is nothing to pull
+         */
+        List<T> next();
+
+        /**
+         * Deletes every message of a chunk returned by {@link #next()} once all of them were consumed.
+         */
+        void commit(List<T> chunk);
+    }
+}
@@ -0,0 +1,293 @@
+package com.example.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.example.exception.InvalidMessageBodyContent;
+
+/**
+ * Slab allocated storage of message records. Every record is addressed by an int handle and has a
+ * fixed size metadata slot holding list links, message id, time, priority, state, group and a
+ * reference to a payload block. Payloads are stored as UTF-8 in power of two sized blocks, up to {@value
+ * #MAX_PAYLOAD_SIZE} bytes. Slots and blocks are carved out of {@link ByteBuffer} slabs and freed ones
+ * are reused through free lists that are threaded through the slabs themselves, so on heap footprint
+ * of the arena is a handful of slab references no matter how many records are stored.
+ * <p>
+ * Slabs are direct buffers when arena is created as direct, which keeps records out of the garbage
+ * collected heap altogether, or regular heap buffers otherwise.
+ * <p>
+ * Implementation is not thread safe, callers are expected to guard it with their own locks.
+ */
+public class MessageArena {
+
+    public static final int NIL = -1;
+
+    public static final int MAX_PAYLOAD_SIZE = 1 << 20;
+
+    private static final int SLOT_SIZE = 48;
+
+    private static final int SLOTS_PER_SLAB = 256;
+
+    private static final int NEXT = 0;
+
+    private static final int PREV = 4;
+
+    private static final int ID_MOST = 8;
+
+    private static final int ID_LEAST = 16;
+
+    private static final int TIME = 24;
+
+    private static final int PAYLOAD_BLOCK = 32;
+
+    private static final int PAYLOAD_LENGTH = 36;
+
+    private static final int PAYLOAD_CLASS = 40;
+
+    private static final int STATE = 41;
+
+    private static final int PRIORITY = 42;
+
+    private static final int GROUP = 44;
+
+    private static final int MIN_BLOCK_SHIFT = 4;
+
+    private static final int MAX_BLOCK_SHIFT = 20;
+
+    private static final int BLOCK_SLAB_SIZE = 16 * 1024;
+
+    private final boolean direct;
+
+    private final List<ByteBuffer> slotSlabs = new ArrayList<>();
+
+    private final List<List<ByteBuffer>> blockSlabs = new ArrayList<>();
+
+    private final int[] freeBlocks = new int[MAX_BLOCK_SHIFT - MIN_BLOCK_SHIFT + 1];
+
+    private final int[] usedBlocks = new int[MAX_BLOCK_SHIFT - MIN_BLOCK_SHIFT + 1];
+
+    private int freeSlot = NIL;
+
+    private int usedSlots;
+
+    private int size;
+
+    private byte[] scratch = new byte[64];
+
+    public MessageArena(final boolean direct) {
+        this.direct = direct;
+        for (int blockClass = 0; blockClass < freeBlocks.length; blockClass++) {
+            blockSlabs.add(new ArrayList<>());
+            freeBlocks[blockClass] = NIL;
+        }
+    }
+
+    /**
+     * Stores a new record. List links and group are set to {@link #NIL}, state and priority to 0 and id
+     * is left blank until {@link #setId(int, long, long)} is called.
+     *
+     * @return handle of the record
+     * @throws InvalidMessageBodyContent if encoded payload exceeds {@value #MAX_PAYLOAD_SIZE} bytes
+     */
+    public int allocate(final String payload, final long time) {
+        final byte[] encoded = payload.getBytes(StandardCharsets.UTF_8);
+        if (encoded.length > MAX_PAYLOAD_SIZE) {
+            throw new InvalidMessageBodyContent(
+                    "Message payload of " + encoded.length + " bytes exceeds " + MAX_PAYLOAD_SIZE + " bytes.");
+        }
+        final int blockClass = blockClass(encoded.length);
+        final int block = allocateBlock(blockClass);
+        final ByteBuffer blockSlab = blockSlab(blockClass, block);
+        blockSlab.position(blockOffset(blockClass, block));
+        blockSlab.put(encoded);
+
+        final int handle = allocateSlot();
+        final ByteBuffer slab = slotSlab(handle);
+        final int offset = slotOffset(handle);
+        slab.putInt(offset + NEXT, NIL);
+        slab.putInt(offset + PREV, NIL);
+        slab.putLong(offset + ID_MOST, 0);
+        slab.putLong(offset + ID_LEAST, 0);
+        slab.putLong(offset + TIME, time);
+        slab.putInt(offset + PAYLOAD_BLOCK, block);
+        slab.putInt(offset + PAYLOAD_LENGTH, encoded.length);
+        slab.put(offset + PAYLOAD_CLASS, (byte) blockClass);
+        slab.put(offset + STATE, (byte) 0);
+        slab.put(offset + PRIORITY, (byte) 0);
+        slab.putInt(offset + GROUP, NIL);
+        size++;
+        return handle;
+    }
+
+    /**
+     * Releases record and its payload block for reuse. Record must be unlinked from any list first.
+     */
+    public void free(final int handle) {
+        final ByteBuffer slab = slotSlab(handle);
+        final int offset = slotOffset(handle);
+        final int blockClass = slab.get(offset + PAYLOAD_CLASS);
+        final int block = slab.getInt(offset + PAYLOAD_BLOCK);
+        blockSlab(blockClass, block).putInt(blockOffset(blockClass, block), freeBlocks[blockClass]);
+        freeBlocks[blockClass] = block;
+        slab.putLong(offset + ID_MOST, 0);
+        slab.putLong(offset + ID_LEAST, 0);
+        slab.putInt(offset + NEXT, freeSlot);
+        freeSlot = handle;
+        size--;
+    }
+
+    /**
+     * @return true if handle points to a live record with specified id, blank id never matches
+     */
+    public boolean contains(final int handle, final long idMostSigBits, final long idLeastSigBits) {
+        if (handle < 0 || handle >= usedSlots) {
+            return false;
+        }
+        final ByteBuffer slab = slotSlab(handle);
+        final int offset = slotOffset(handle);
+        return slab.getLong(offset + ID_MOST) == idMostSigBits
+                && slab.getLong(offset + ID_LEAST) == idLeastSigBits
+                && (idMostSigBits != 0 || idLeastSigBits != 0);
+    }
+
+    public String getPayload(final int handle) {
+        final ByteBuffer slab = slotSlab(handle);
+        final int offset = slotOffset(handle);
+        final int blockClass = slab.get(offset + PAYLOAD_CLASS);
+        final int block = slab.getInt(offset + PAYLOAD_BLOCK);
+        final int length = slab.getInt(offset + PAYLOAD_LENGTH);
+        if (scratch.length < length) {
+            scratch = new byte[Integer.highestOneBit(length) << 1];
+        }
+        final ByteBuffer blockSlab = blockSlab(blockClass, block);
+        blockSlab.position(blockOffset(blockClass, block));
+        blockSlab.get(scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    public void setId(final int handle, final long idMostSigBits, final long idLeastSigBits) {
+        final ByteBuffer slab = slotSlab(handle);
+        final int offset = slotOffset(handle);
+        slab.putLong(offset + ID_MOST, idMostSigBits);
+        slab.putLong(offset + ID_LEAST, idLeastSigBits);
+    }
+
+    public long getIdMostSigBits(final int handle) {
+        return slotSlab(handle).getLong(slotOffset(handle) + ID_MOST);
+    }
+
+    public long getIdLeastSigBits(final int handle) {
+        return slotSlab(handle).getLong(slotOffset(handle) + ID_LEAST);
+    }
+
+    public long getTime(final int handle) {
+        return slotSlab(handle).getLong(slotOffset(handle) + TIME);
+    }
+
+    public void setTime(final int handle, final long time) {
+        slotSlab(handle).putLong(slotOffset(handle) + TIME, time);
+    }
+
+    public int getState(final int handle) {
+        return slotSlab(handle).get(slotOffset(handle) + STATE);
+    }
+
+    public void setState(final int handle, final int state) {
+        slotSlab(handle).put(slotOffset(handle) + STATE, (byte) state);
+    }
+
+    public int getPriority(final int handle) {
+        return slotSlab(handle).get(slotOffset(handle) + PRIORITY);
+    }
+
+    public void setPriority(final int handle, final int priority) {
+        slotSlab(handle).put(slotOffset(handle) + PRIORITY, (byte) priority);
+    }
+
+    public int getGroup(final int handle) {
+        return slotSlab(handle).getInt(slotOffset(handle) + GROUP);
+    }
+
+    public void setGroup(final int handle, final int group) {
+        slotSlab(handle).putInt(slotOffset(handle) + GROUP, group);
+    }
+
+    public int getNext(final int handle) {
+        return slotSlab(handle).getInt(slotOffset(handle) + NEXT);
+    }
+
+    public void setNext(final int handle, final int next) {
+        slotSlab(handle).putInt(slotOffset(handle) + NEXT, next);
+    }
+
+    public int getPrev(final int handle) {
+        return slotSlab(handle).getInt(slotOffset(handle) + PREV);
+    }
+
+    public void setPrev(final int handle, final int prev) {
+        slotSlab(handle).putInt(slotOffset(handle) + PREV, prev);
+    }
+
+    /**
+     * @return number of live records
+     */
+    public int size() {
+        return size;
+    }
+
+    private int allocateSlot() {
+        if (freeSlot != NIL) {
+            final int handle = freeSlot;
+            freeSlot = getNext(handle);
+            return handle;
+        }
+        if (usedSlots == slotSlabs.size() * SLOTS_PER_SLAB) {
+            slotSlabs.add(allocateSlab(SLOTS_PER_SLAB * SLOT_SIZE));
+        }
+        return usedSlots++;
+    }
+
+    private int allocateBlock(final int blockClass) {
+        final int free = freeBlocks[blockClass];
+        if (free != NIL) {
+            freeBlocks[blockClass] = blockSlab(blockClass, free).getInt(blockOffset(blockClass, free));
+            return free;
+        }
+        final List<ByteBuffer> slabs = blockSlabs.get(blockClass);
+        if (usedBlocks[blockClass] == slabs.size() * blocksPerSlab(blockClass)) {
+            slabs.add(allocateSlab(blocksPerSlab(blockClass) << (blockClass + MIN_BLOCK_SHIFT)));
+        }
+        return usedBlocks[blockClass]++;
+    }
+
+    private ByteBuffer allocateSlab(final int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private ByteBuffer slotSlab(final int handle) {
+        return slotSlabs.get(handle / SLOTS_PER_SLAB);
+    }
+
+    private int slotOffset(final int handle) {
+        return (handle % SLOTS_PER_SLAB) * SLOT_SIZE;
+    }
+
+    private ByteBuffer blockSlab(final int blockClass, final int block) {
+        return blockSlabs.get(blockClass).get(block / blocksPerSlab(blockClass));
+    }
+
+    private int blockOffset(final int blockClass, final int block) {
+        return (block % blocksPerSlab(blockClass)) << (blockClass + MIN_BLOCK_SHIFT);
+    }
+
+    private static int blocksPerSlab(final int blockClass) {
+        return Math.max(1, BLOCK_SLAB_SIZE >> (blockClass + MIN_BLOCK_SHIFT));
+    }
+
+    private static int blockClass(final int length) {
+        final int shift = 32 - Integer.numberOfLeadingZeros(Math.max(length, 1) - 1);
+        return Math.max(shift, MIN_BLOCK_SHIFT) - MIN_BLOCK_SHIFT;
+    }
+}
@@ -0,0 +1,149 @@
+package com.example.util;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Set of queues that have something to pull, kept up to date by the operations that change it rather
+ * than found by polling every queue. Queue is reported together with the time it becomes ready, queues
+ * ready in the future wait in a set ordered by that time and join ready ones once it passes.
+ * <p>
+ * Ready queues are served in round robin manner: taken queue leaves the set and joins it at the end
+ * once its owner reports it ready again, while reporting a queue that is already ready keeps its
+ * place. Finding a queue costs O(ready queues) regardless of how many queues are known. Reported time
+ * might be earlier than the queue actually becomes ready, taker then finds nothing and reports the
+ * queue again, it must never be later.
+ * <p>
+ * Implementation is thread safe.
+ */
+public class ReadinessSet {
+
+    /**
+     * Ready time of a queue that has nothing to pull and nothing that becomes pullable by itself.
+     */
+    public static final long NEVER = Long.MAX_VALUE;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition changed = lock.newCondition();
+
+    private final Set<String> ready = new LinkedHashSet<>();
+
+    private final TreeSet<Pending> pending = new TreeSet<>();
+
+    private final Map<String, Pending> pendingByKey = new HashMap<>();
+
+    /**
+     * Reports time the queue has something to pull at.
+     *
+     * @param key       of the queue
+     * @param readyTime epoch millisecond queue becomes ready at or {@link #NEVER}
+     * @param now       current epoch millisecond
+     */
+    public void update(final String key, final long readyTime, final long now) {
+        lock.lock();
+        try {
+            final Pending previous = pendingByKey.remove(key);
+            if (Objects.nonNull(previous)) {
+                pending.remove(previous);
+            }
+            if (readyTime <= now) {
+                if (ready.add(key)) {
+                    changed.signalAll();
+                }
+                return;
+            }
+            ready.remove(key);
+            if (readyTime != NEVER) {
+                final Pending entry = new Pending(key, readyTime);
+                pendingByKey.put(key, entry);
+                pending.add(entry);
+                if (pending.first() == entry) {
+                    changed.signalAll();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the ready queue that waits the longest among specified ones, waiting for one to become
+     * ready until the deadline. Taken queue must be reported again once it is pulled from.
+     *
+     * @param keys     queues to choose from
+     * @param deadline epoch millisecond to give up at
+     * @return taken queue or null if none became ready in time or the thread was interrupted
+     */
+    public String take(final Set<String> keys, final long deadline) {
+        lock.lock();
+        try {
+            while (true) {
+                final long now = System.currentTimeMillis();
+                final String key = poll(keys, now);
+                if (Objects.nonNull(key) || now >= deadline) {
+                    return key;
+                }
+                final long wakeUp = pending.isEmpty() ? deadline : Math.min(deadline, pending.first().time);
+                try {
+                    changed.await(wakeUp - now, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forgets the queue.
+     */
+    public void remove(final String key) {
+        update(key, NEVER, Long.MIN_VALUE);
+    }
+
+    private String poll(final Set<String> keys, final long now) {
+        while (!pending.isEmpty() && pending.first().time <= now) {
+            final Pending due = pending.pollFirst();
+            pendingByKey.remove(due.key);
+            ready.add(due.key);
+        }
+        final Iterator<String> iterator = ready.iterator();
+        while (iterator.hasNext()) {
+            final String key = iterator.next();
+            if (keys.contains(key)) {
+                iterator.remove();
+                return key;
+            }
+        }
+        return null;
+    }
+
+    private static class Pending implements Comparable<Pending> {
+
+        private final String key;
+
+        private final long time;
+
+        Pending(final String key, final long time) {
+            this.key = key;
+            this.time = time;
+        }
+
+        @Override
+        public int compareTo(final Pending other) {
+            final int byTime = Long.compare(time, other.time);
+            return byTime != 0 ? byTime : key.compareTo(other.key);
+        }
+    }
+}
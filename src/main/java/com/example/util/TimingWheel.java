@@ -0,0 +1,247 @@
+package com.example.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * Hierarchical timing wheel for scheduling int values, like message handles, to be released at a given
+ * epoch millisecond. The lowest level has {@code wheelSize} buckets of {@code tick} milliseconds each,
+ * every next level is created lazily with a tick equal to the whole span of the previous one. Insertion
+ * is O(1), advancing the wheel costs O(buckets passed) bounded by the number of levels times {@code
+ * wheelSize}, no matter how many values are scheduled. Values are never released before their
+ * expiration time. Buckets keep values and expiration times in primitive arrays, so neither insertion
+ * nor advancing allocates once buckets have grown to their working size.
+ * <p>
+ * Earliest expiration is cached: insertion lowers it and advancing looks for the next one only when
+ * it released something, so {@link #nextExpiration()} is O(1).
+ * <p>
+ * Implementation is not thread safe, callers are expected to guard it with their own locks.
+ */
+public class TimingWheel {
+
+    private final List<Level> levels = new ArrayList<>();
+
+    private final Bucket due = new Bucket();
+
+    private final int wheelSize;
+
+    private long now;
+
+    private int size;
+
+    private long nextExpiration = Long.MAX_VALUE;
+
+    public TimingWheel(final long tick, final int wheelSize, final long startTime) {
+        this.wheelSize = wheelSize;
+        this.now = startTime;
+        levels.add(new Level(tick, wheelSize, startTime));
+    }
+
+    /**
+     * Schedules value for release at the specified time.
+     *
+     * @param value      to schedule
+     * @param expiration epoch millisecond after which value is released
+     * @return false if expiration time has already passed and value was not scheduled
+     */
+    public boolean add(final int value, final long expiration) {
+        if (expiration <= now) {
+            return false;
+        }
+        place(value, expiration);
+        size++;
+        nextExpiration = Math.min(nextExpiration, expiration);
+        return true;
+    }
+
+    /**
+     * Moves wheel to the specified time releasing every value whose expiration time has passed.
+     *
+     * @param time    current epoch millisecond
+     * @param expired receives released values
+     */
+    public void advance(final long time, final IntConsumer expired) {
+        if (time <= now) {
+            return;
+        }
+        now = time;
+        if (size == 0) {
+            for (int index = 0; index < levels.size(); index++) {
+                final Level level = levels.get(index);
+                level.currentTime = level.floor(time);
+            }
+            return;
+        }
+        for (int index = 0; index < levels.size(); index++) {
+            levels.get(index).advance(time, due);
+            for (int entry = 0; entry < due.size; entry++) {
+                if (due.expirations[entry] <= time) {
+                    size--;
+                    expired.accept(due.values[entry]);
+                } else {
+                    place(due.values[entry], due.expirations[entry]);
+                }
+            }
+            due.size = 0;
+        }
+        if (time >= nextExpiration) {
+            nextExpiration = findNextExpiration();
+        }
+    }
+
+    /**
+     * Visits every scheduled value in no particular order without releasing it.
+     *
+     * @param action receives value and its expiration time
+     */
+    public void forEach(final EntryConsumer action) {
+        for (Level level : levels) {
+            for (Bucket bucket : level.buckets) {
+                for (int entry = 0; entry < bucket.size; entry++) {
+                    action.accept(bucket.values[entry], bucket.expirations[entry]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return epoch millisecond no value is released before or {@link Long#MAX_VALUE} if wheel is empty,
+     * might be earlier than the earliest expiration but never later
+     */
+    public long nextExpiration() {
+        return size == 0 ? Long.MAX_VALUE : Math.max(nextExpiration, now + 1);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Finds the earliest expiration within the earliest non empty bucket of each level. Costs
+     * O(levels times {@code wheelSize}).
+     */
+    private long findNextExpiration() {
+        if (size == 0) {
+            return Long.MAX_VALUE;
+        }
+        long next = Long.MAX_VALUE;
+        for (Level level : levels) {
+            for (int index = 0; index < level.buckets.length; index++) {
+                final long bucketTime = level.currentTime + index * level.tick;
+                if (bucketTime >= next) {
+                    break;
+                }
+                final Bucket bucket = level.bucket(bucketTime);
+                if (bucket.size > 0) {
+                    next = Math.min(next, bucket.earliestExpiration());
+                    break;
+                }
+            }
+        }
+        return next;
+    }
+
+    private void place(final int value, final long expiration) {
+        Level level = levels.get(0);
+        int index = 0;
+        while (expiration >= level.currentTime + level.interval) {
+            index++;
+            if (index == levels.size()) {
+                levels.add(new Level(level.interval, wheelSize, level.currentTime));
+            }
+            level = levels.get(index);
+        }
+        level.bucket(expiration).add(value, expiration);
+    }
+
+    /**
+     * Receives scheduled value together with its expiration time.
+     */
+    @FunctionalInterface
+    public interface EntryConsumer {
+
+        void accept(int value, long expiration);
+    }
+
+    private static class Level {
+
+        private final long tick;
+
+        private final long interval;
+
+        private final Bucket[] buckets;
+
+        private long currentTime;
+
+        Level(final long tick, final int wheelSize, final long startTime) {
+            this.tick = tick;
+            this.interval = tick * wheelSize;
+            this.buckets = new Bucket[wheelSize];
+            for (int i = 0; i < wheelSize; i++) {
+                buckets[i] = new Bucket();
+            }
+            this.currentTime = floor(startTime);
+        }
+
+        /**
+         * Moves every entry from the current bucket up to the one containing specified time to due.
+         */
+        void advance(final long time, final Bucket due) {
+            final long target = floor(time);
+            final long passed = Math.min((target - currentTime) / tick, buckets.length - 1);
+            for (long bucketTime = currentTime; bucketTime <= currentTime + passed * tick; bucketTime += tick) {
+                final Bucket bucket = bucket(bucketTime);
+                for (int entry = 0; entry < bucket.size; entry++) {
+                    due.add(bucket.values[entry], bucket.expirations[entry]);
+                }
+                bucket.size = 0;
+            }
+            currentTime = target;
+        }
+
+        long floor(final long time) {
+            return time - Math.floorMod(time, tick);
+        }
+
+        private Bucket bucket(final long time) {
+            return buckets[(int) Math.floorMod(time / tick, (long) buckets.length)];
+        }
+    }
+
+    /**
+     * Values and their expiration times in insertion order.
+     */
+    private static class Bucket {
+
+        private int[] values = new int[0];
+
+        private long[] expirations = new long[0];
+
+        private int size;
+
+        void add(final int value, final long expiration) {
+            if (size == values.length) {
+                final int capacity = Math.max(4, size * 2);
+                values = Arrays.copyOf(values, capacity);
+                expirations = Arrays.copyOf(expirations, capacity);
+            }
+            values[size] = value;
+            expirations[size] = expiration;
+            size++;
+        }
+
+        long earliestExpiration() {
+            long earliest = Long.MAX_VALUE;
+            for (int entry = 0; entry < size; entry++) {
+                earliest = Math.min(earliest, expirations[entry]);
+            }
+            return earliest;
+        }
+    }
+}
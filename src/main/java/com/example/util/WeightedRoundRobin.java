@@ -0,0 +1,48 @@
+package com.example.util;
+
+import java.util.function.IntPredicate;
+
+/**
+ * Smooth weighted round robin selection over a fixed number of lanes. Every lane that has work gets
+ * a share of selections proportional to its weight, selections of a single lane are spread evenly
+ * instead of being served in bursts. Lanes without work do not accumulate credit.
+ * <p>
+ * Implementation is not thread safe, callers are expected to guard it with their own locks.
+ */
+public class WeightedRoundRobin {
+
+    private final int[] weights;
+
+    private final int[] credits;
+
+    public WeightedRoundRobin(final int... weights) {
+        this.weights = weights.clone();
+        this.credits = new int[weights.length];
+    }
+
+    /**
+     * Selects next lane to serve. On equal credit lane with lower index is selected.
+     *
+     * @param ready tells whether lane with specified index has work
+     * @return index of selected lane or -1 if no lane has work
+     */
+    public int next(final IntPredicate ready) {
+        int selected = -1;
+        int total = 0;
+        for (int lane = 0; lane < weights.length; lane++) {
+            if (ready.test(lane)) {
+                credits[lane] += weights[lane];
+                total += weights[lane];
+                if (selected < 0 || credits[lane] > credits[selected]) {
+                    selected = lane;
+                }
+            } else {
+                credits[lane] = 0;
+            }
+        }
+        if (selected >= 0) {
+            credits[selected] -= total;
+        }
+        return selected;
+    }
+}
@@ -0,0 +1,250 @@
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import com.example.broker.BrokerProtocol;
+import com.example.broker.QueueBroker;
+import com.example.exception.InvalidMessageBodyContent;
+import com.example.exception.UnableToAccessUnderlyingStore;
+import com.example.impl.BrokerQueueService;
+import com.example.impl.InMemoryQueueService;
+import com.example.model.Delivery;
+import com.example.model.Priority;
+import com.example.model.PushOptions;
+import com.example.model.QueueStats;
+import com.example.model.impl.SimpleMessage;
+import com.example.util.MessageArena;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class BrokerQueueServiceTest {
+
+    private static final String TEST_QUEUE = "testQueue";
+
+    private final long visibilityTimeout = 500;
+
+    private QueueBroker broker;
+
+    private BrokerQueueService unit;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        broker = new QueueBroker(new InMemoryQueueService(visibilityTimeout),
+                                 new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)).start();
+        unit = new BrokerQueueService(broker.getAddress());
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        unit.close();
+        broker.close();
+    }
+
+    @Test
+    void testPushPullAndDelete() throws InterruptedException {
+        final String message = UUID.randomUUID().toString();
+        unit.push(TEST_QUEUE, message);
+        final SimpleMessage actual = unit.pull(TEST_QUEUE);
+        assertNotNull(actual);
+        assertEquals(message, actual.getPayload());
+        unit.delete(TEST_QUEUE, actual);
+        Thread.sleep(visibilityTimeout);
+        assertNull(unit.pull(TEST_QUEUE));
+    }
+
+    @Test
+    void testPullForNonExistingQueue() {
+        assertNull(unit.pull(TEST_QUEUE));
+    }
+
+    @Test
+    void testVisibilityTimeout() throws InterruptedException {
+        unit.push(TEST_QUEUE, UUID.randomUUID().toString());
+        final SimpleMessage message = unit.pull(TEST_QUEUE);
+        Thread.sleep(visibilityTimeout);
+        final SimpleMessage repeatedMessage = unit.pull(TEST_QUEUE);
+        assertNotNull(repeatedMessage);
+        assertEquals(message.getId(), repeatedMessage.getId());
+    }
+
+    @Test
+    void testChangeVisibility() {
+        unit.push(TEST_QUEUE, UUID.randomUUID().toString());
+        final SimpleMessage message = unit.pull(TEST_QUEUE);
+        assertTrue(unit.changeVisibility(TEST_QUEUE, message, Duration.ZERO));
+        assertEquals(message.getId(), unit.pull(TEST_QUEUE).getId());
+        unit.delete(TEST_QUEUE, message);
+        assertFalse(unit.changeVisibility(TEST_QUEUE, message, Duration.ZERO));
+    }
+
+    @Test
+    void testPullAny() {
+        final String otherQueue = TEST_QUEUE + "Other";
+        assertNull(unit.pullAny(List.of(TEST_QUEUE, otherQueue), Duration.ZERO));
+        unit.push(otherQueue, "other");
+        final Delivery<SimpleMessage> delivery = unit.pullAny(List.of(TEST_QUEUE, otherQueue),
+                                                              Duration.ofMillis(visibilityTimeout));
+        assertEquals(otherQueue, delivery.getQueue());
+        assertEquals("other", delivery.getMessage().getPayload());
+    }
+
+    @Test
+    void testPullAnyWaitsOnBrokerWithoutHoldingUpOtherCalls() throws InterruptedException {
+        final String otherQueue = TEST_QUEUE + "Other";
+        final CompletableFuture<Delivery<SimpleMessage>> waiting = CompletableFuture.supplyAsync(
+                () -> unit.pullAny(List.of(TEST_QUEUE, otherQueue), Duration.ofSeconds(10)));
+        Thread.sleep(100);
+        //Calls made while pull any waits on the broker are answered meanwhile
+        assertNull(unit.pull(TEST_QUEUE));
+        assertFalse(waiting.isDone());
+        unit.push(otherQueue, "other");
+        final Delivery<SimpleMessage> delivery = waiting.join();
+        assertEquals(otherQueue, delivery.getQueue());
+        assertEquals("other", delivery.getMessage().getPayload());
+    }
+
+    @Test
+    void testPushOptionsReachBackend() throws InterruptedException {
+        final String delayedMessage = UUID.randomUUID().toString();
+        final String urgentMessage = UUID.randomUUID().toString();
+        unit.push(TEST_QUEUE, delayedMessage, Duration.ofMillis(visibilityTimeout));
+        unit.push(TEST_QUEUE, UUID.randomUUID().toString());
+        unit.push(TEST_QUEUE, urgentMessage, Priority.HIGH);
+        final SimpleMessage actualUrgentMessage = unit.pull(TEST_QUEUE);
+        assertEquals(urgentMessage, actualUrgentMessage.getPayload());
+        unit.delete(TEST_QUEUE, actualUrgentMessage);
+        Thread.sleep(visibilityTimeout);
+        assertNotEquals(delayedMessage, unit.pull(TEST_QUEUE).getPayload());
+        assertEquals(delayedMessage, unit.pull(TEST_QUEUE).getPayload());
+    }
+
+    @Test
+    void testMoveTo() {
+        final String targetQueue = TEST_QUEUE + "Target";
+        unit.push(TEST_QUEUE, "raw");
+        final SimpleMessage message = unit.pull(TEST_QUEUE);
+        assertTrue(unit.moveTo(TEST_QUEUE, message, targetQueue, "processed"));
+        assertFalse(unit.moveTo(TEST_QUEUE, message, targetQueue, "duplicate"));
+        assertEquals("processed", unit.pull(targetQueue).getPayload());
+    }
+
+    @Test
+    void testGroupReachesBackend() {
+        final PushOptions options = PushOptions.builder().groupId("group").build();
+        unit.push(TEST_QUEUE, "first", options);
+        unit.push(TEST_QUEUE, "second", options);
+        final SimpleMessage first = unit.pull(TEST_QUEUE);
+        assertEquals("first", first.getPayload());
+        assertNull(unit.pull(TEST_QUEUE));
+        unit.delete(TEST_QUEUE, first);
+        assertEquals("second", unit.pull(TEST_QUEUE).getPayload());
+    }
+
+    @Test
+    void testClientsShareQueue() throws IOException {
+        try (BrokerQueueService otherClient = new BrokerQueueService(broker.getAddress())) {
+            final String message = UUID.randomUUID().toString();
+            otherClient.push(TEST_QUEUE, message);
+            assertEquals(message, unit.pull(TEST_QUEUE).getPayload());
+        }
+    }
+
+    @Test
+    void testConcurrentCallersArePipelined() {
+        final int messageNum = 1_000;
+        final List<String> expectedMessages = IntStream.range(0, messageNum)
+                                                       .mapToObj(sequence -> UUID.randomUUID().toString())
+                                                       .collect(Collectors.toList());
+        expectedMessages.parallelStream().forEach(message -> unit.push(TEST_QUEUE, message));
+        final Set<String> pulled = ConcurrentHashMap.newKeySet();
+        CompletableFuture.allOf(IntStream.range(0, 4)
+                                         .mapToObj(consumer -> CompletableFuture.runAsync(() -> {
+                                             SimpleMessage message;
+                                             while ((message = unit.pull(TEST_QUEUE)) != null) {
+                                                 pulled.add(message.getPayload());
+                                                 unit.delete(TEST_QUEUE, message);
+                                             }
+                                         }))
+                                         .toArray(CompletableFuture[]::new))
+                         .join();
+        assertEquals(Set.copyOf(expectedMessages), pulled);
+    }
+
+    @Test
+    void testStatsAndQueuesOfBackend() {
+        unit.push(TEST_QUEUE, UUID.randomUUID().toString());
+        unit.push(TEST_QUEUE, UUID.randomUUID().toString());
+        unit.pull(TEST_QUEUE);
+        final QueueStats stats = unit.stats(TEST_QUEUE);
+        assertEquals(1, stats.getDepth());
+        assertEquals(1, stats.getInFlight());
+        assertNotNull(stats.getOldestMessageAge());
+        assertEquals(Set.of(TEST_QUEUE), unit.listQueues());
+    }
+
+    @Test
+    void testBackendFailureIsRethrown() {
+        final String tooLargeMessage = "a".repeat(MessageArena.MAX_PAYLOAD_SIZE + 1);
+        assertThrows(InvalidMessageBodyContent.class, () -> unit.push(TEST_QUEUE, tooLargeMessage));
+        assertNull(unit.pull(TEST_QUEUE));
+    }
+
+    @Test
+    void testMalformedRequestFailsWithoutDroppingConnection() throws IOException {
+        final byte[] queue = BrokerProtocol.encode(TEST_QUEUE);
+        final ByteBuffer frames = ByteBuffer.allocate(256);
+        final int pushLength = 1 + Integer.BYTES + BrokerProtocol.sizeOf(queue) * 2 + Long.BYTES + 1
+                + Integer.BYTES * 2;
+        frames.putInt(pushLength).put(BrokerProtocol.PUSH).putInt(1);
+        BrokerProtocol.putString(frames, queue);
+        BrokerProtocol.putString(frames, queue);
+        frames.putLong(0).put((byte) Priority.values().length).putInt(-1).putInt(-1);
+        frames.putInt(1 + Integer.BYTES + BrokerProtocol.sizeOf(queue)).put(BrokerProtocol.PULL).putInt(2);
+        BrokerProtocol.putString(frames, queue);
+        try (Socket socket = new Socket(broker.getAddress().getAddress(), broker.getAddress().getPort())) {
+            //Both requests are pipelined, so the second one is read before the first one is answered
+            socket.getOutputStream().write(frames.array(), 0, frames.position());
+            final DataInputStream input = new DataInputStream(socket.getInputStream());
+            input.readInt();
+            assertEquals(1, input.readInt());
+            assertEquals(BrokerProtocol.FAILURE, input.readByte());
+            final byte[] error = new byte[input.readInt()];
+            input.readFully(error);
+            assertEquals("Unknown priority " + Priority.values().length + ".",
+                         new String(error, StandardCharsets.UTF_8));
+            assertEquals(Integer.BYTES + 2, input.readInt());
+            assertEquals(2, input.readInt());
+            assertEquals(BrokerProtocol.OK, input.readByte());
+            assertEquals(0, input.readByte());
+        }
+    }
+
+    @Test
+    void testCallFailsAfterBrokerStops() throws IOException {
+        broker.close();
+        assertThrows(UnableToAccessUnderlyingStore.class, () -> unit.pull(TEST_QUEUE));
+    }
+}
@@ -1,30 +1,53 @@
 package com.example;
 
 import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
+import com.example.exception.LockTimeoutException;
 import com.example.impl.FileQueueService;
+import com.example.jfr.CompactionEvent;
+import com.example.jfr.RecordDecodeEvent;
+import com.example.jfr.RecordEncodeEvent;
+import com.example.model.Delivery;
 import com.example.model.Message;
+import com.example.model.Priority;
+import com.example.model.PushOptions;
+import com.example.model.QueueStats;
 import com.example.model.impl.SimpleMessage;
+import jdk.jfr.Event;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordingFile;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -40,12 +63,19 @@ class FileQueueTest {
 
     private String queue;
 
-    private QueueService<SimpleMessage> queueService;
+    private FileQueueService queueService;
 
     private long visibilityTimeout = 500;
 
     private long lockTimeout = 10_000;
 
+    /**
+     * Returned message of about 200 bytes and five file locks, three lanes and a shard locked by pull and
+     * a shard locked by delete, JDK allocates about 130 bytes of lock and lock table entry on every lock
+     * acquisition.
+     */
+    private static final long MAX_ALLOCATED_BYTES_PER_MESSAGE = 1024;
+
     @BeforeEach
     void setUp() {
         queue = UUID.randomUUID().toString();
@@ -54,9 +84,27 @@ class FileQueueTest {
 
     @AfterEach
     void tearDown() throws IOException {
+        queueService.close();
         try {
             Files.delete(Paths.get(storage + queue + fileFormat));
             Files.delete(Paths.get(storage + queue + inProgressSuffix + fileFormat));
+            Files.deleteIfExists(Paths.get(storage + queue + "@" + fileFormat));
+            Files.deleteIfExists(Paths.get(storage + queue + "#high" + fileFormat));
+            Files.deleteIfExists(Paths.get(storage + queue + "#high@" + fileFormat));
+            Files.deleteIfExists(Paths.get(storage + queue + "#low" + fileFormat));
+            Files.deleteIfExists(Paths.get(storage + queue + "#low@" + fileFormat));
+            Files.deleteIfExists(Paths.get(storage + queue + "!" + fileFormat));
+            Files.deleteIfExists(Paths.get(storage + queue + "~" + fileFormat));
+            Files.deleteIfExists(Paths.get(storage + queue + inProgressSuffix + "^" + fileFormat));
+            Files.deleteIfExists(Paths.get(storage + queue + inProgressSuffix + "&" + fileFormat));
+            for (int shard = 1; shard < 8; shard++) {
+                Files.deleteIfExists(Paths.get(storage + queue + inProgressSuffix + shard + fileFormat));
+                Files.deleteIfExists(Paths.get(storage + queue + inProgressSuffix + shard + "^" + fileFormat));
+                Files.deleteIfExists(Paths.get(storage + queue + inProgressSuffix + shard + "&" + fileFormat));
+            }
+            Files.deleteIfExists(Paths.get(storage + queue + inProgressSuffix + "+" + fileFormat));
+            Files.deleteIfExists(Paths.get(storage + queue + "%" + fileFormat));
+            Files.deleteIfExists(Paths.get(storage + queue + inProgressSuffix + "%" + fileFormat));
         } catch (NoSuchFileException e) {
             //Ignore exception, when file does not exist the goal is fulfilled
         }
@@ -121,6 +169,432 @@ class FileQueueTest {
         assertNull(actualMessageFromEmptyQueue);
     }
 
+    @Test
+    void testDelayedPush() throws InterruptedException {
+        final String delayedMessage = UUID.randomUUID().toString();
+        queueService.push(queue, delayedMessage, Duration.ofMillis(visibilityTimeout));
+        assertNull(queueService.pull(queue));
+        Thread.sleep(visibilityTimeout * 2);
+        final Message actualMessage = queueService.pull(queue);
+        assertNotNull(actualMessage);
+        assertEquals(delayedMessage, actualMessage.getPayload());
+    }
+
+    @Test
+    void testDelayedPushKeepsBucketOrder() throws InterruptedException {
+        final String laterMessage = UUID.randomUUID().toString();
+        final String earlierMessage = UUID.randomUUID().toString();
+        queueService.push(queue, laterMessage, Duration.ofMillis(visibilityTimeout));
+        queueService.push(queue, earlierMessage, Duration.ofMillis(visibilityTimeout / 2));
+        Thread.sleep(visibilityTimeout * 2);
+        assertEquals(earlierMessage, queueService.pull(queue).getPayload());
+        assertEquals(laterMessage, queueService.pull(queue).getPayload());
+    }
+
+    @Test
+    void testUrgentMessageSkipsBacklog() {
+        createMessages(5, queue);
+        final String urgentMessage = UUID.randomUUID().toString();
+        queueService.push(queue, urgentMessage, Priority.HIGH);
+        assertEquals(urgentMessage, queueService.pull(queue).getPayload());
+    }
+
+    @Test
+    void testLowPriorityIsNotStarved() {
+        final String lowMessage = UUID.randomUUID().toString();
+        queueService.push(queue, lowMessage, Priority.LOW);
+        createMessages(3, queue);
+        IntStream.range(0, 3)
+                 .forEach(sequence -> queueService.push(queue, UUID.randomUUID().toString(), Priority.HIGH));
+        final List<String> pulled = IntStream.range(0, 7)
+                                             .mapToObj(sequence -> queueService.pull(queue).getPayload())
+                                             .collect(Collectors.toList());
+        assertTrue(pulled.contains(lowMessage));
+    }
+
+    @Test
+    void testDeduplicatedPushAcrossInstances() throws IOException {
+        try (FileQueueService otherInstance = new FileQueueService(visibilityTimeout, storage, fileFormat,
+                                                                   inProgressSuffix, lockTimeout)) {
+            final PushOptions options = PushOptions.builder().deduplicationId(UUID.randomUUID().toString()).build();
+            final String message = UUID.randomUUID().toString();
+            queueService.push(queue, message, options);
+            otherInstance.push(queue, message, options);
+            queueService.push(queue, message, options);
+            assertEquals(message, queueService.pull(queue).getPayload());
+            assertNull(queueService.pull(queue));
+        }
+    }
+
+    @Test
+    void testPullAndDeleteAllocateOnlyReturnedMessage() {
+        final int messageNum = 1_000;
+        pullAndDeleteAll(createMessages(messageNum, queue).size());
+        createMessages(messageNum, queue);
+        final long allocatedBefore = getAllocatedBytes();
+        pullAndDeleteAll(messageNum);
+        final long allocatedPerMessage = (getAllocatedBytes() - allocatedBefore) / messageNum;
+        assertTrue(allocatedPerMessage <= MAX_ALLOCATED_BYTES_PER_MESSAGE,
+                   "Pull and delete allocated " + allocatedPerMessage + " bytes per message");
+    }
+
+    @Test
+    void testStats() throws IOException, InterruptedException {
+        assertEquals(0, queueService.stats(queue).getDepth());
+        createMessages(3, queue);
+        queueService.push(queue, UUID.randomUUID().toString(), PushOptions.builder()
+                                                                         .priority(Priority.HIGH)
+                                                                         .delay(Duration.ofMillis(visibilityTimeout))
+                                                                         .build());
+        Thread.sleep(10);
+        queueService.delete(queue, queueService.pull(queue));
+        queueService.pull(queue);
+        assertStats(1, 1, 1, queueService.stats(queue));
+        Thread.sleep(visibilityTimeout * 2);
+        queueService.pull(queue);
+        //Expired message is leased again and the released delayed message joins its lane
+        assertStats(2, 1, 0, queueService.stats(queue));
+        try (FileQueueService otherService = new FileQueueService(visibilityTimeout, storage, fileFormat,
+                                                                  inProgressSuffix, lockTimeout)) {
+            assertStats(2, 1, 0, otherService.stats(queue));
+            assertTrue(otherService.listQueues().contains(queue));
+        }
+    }
+
+    @Test
+    void testChangeVisibility() throws InterruptedException {
+        createMessages(3, queue);
+        final SimpleMessage extended = queueService.pull(queue);
+        final SimpleMessage released = queueService.pull(queue);
+        final SimpleMessage expiring = queueService.pull(queue);
+        assertTrue(queueService.changeVisibility(queue, extended, Duration.ofMillis(visibilityTimeout * 3)));
+        assertTrue(queueService.changeVisibility(queue, released, Duration.ZERO));
+        assertEquals(released.getId(), queueService.pull(queue).getId());
+        Thread.sleep(visibilityTimeout);
+        assertEquals(expiring.getId(), queueService.pull(queue).getId());
+        assertEquals(released.getId(), queueService.pull(queue).getId());
+        assertNull(queueService.pull(queue));
+        queueService.delete(queue, expiring);
+        queueService.delete(queue, released);
+        Thread.sleep(visibilityTimeout * 2);
+        assertEquals(extended.getId(), queueService.pull(queue).getId());
+        queueService.delete(queue, extended);
+        assertFalse(queueService.changeVisibility(queue, extended, Duration.ZERO));
+    }
+
+    @Test
+    void testPullAny() throws IOException {
+        final List<String> queues = List.of("non-existing-queue", queue);
+        assertNull(queueService.pullAny(queues, Duration.ZERO));
+        queueService.push(queue, "own");
+        assertEquals("own", queueService.pullAny(queues, Duration.ZERO).getMessage().getPayload());
+        try (FileQueueService otherProcess = new FileQueueService(visibilityTimeout, storage, fileFormat,
+                                                                  inProgressSuffix, lockTimeout)) {
+            otherProcess.push(queue, "foreign");
+        }
+        final Delivery<SimpleMessage> delivery = queueService.pullAny(queues, Duration.ofMillis(visibilityTimeout));
+        assertEquals(queue, delivery.getQueue());
+        assertEquals("foreign", delivery.getMessage().getPayload());
+    }
+
+    @Test
+    void testPullAnyNoticesVisibilityChangeOfOtherProcess() throws Exception {
+        queueService.push(queue, "leased");
+        final SimpleMessage leased = queueService.pull(queue);
+        assertTrue(queueService.changeVisibility(queue, leased, Duration.ofMinutes(1)));
+        final CompletableFuture<Delivery<SimpleMessage>> waiting = CompletableFuture.supplyAsync(
+                () -> queueService.pullAny(List.of(queue), Duration.ofMinutes(1)));
+        Thread.sleep(visibilityTimeout);
+        try (FileQueueService otherProcess = new FileQueueService(visibilityTimeout, storage, fileFormat,
+                                                                  inProgressSuffix, lockTimeout)) {
+            assertTrue(otherProcess.changeVisibility(queue, leased, Duration.ZERO));
+        }
+        assertEquals(leased.getId(), waiting.get(visibilityTimeout * 4, TimeUnit.MILLISECONDS).getMessage().getId());
+    }
+
+    @Test
+    void testEvictIdleQueues() throws IOException {
+        try (FileQueueService otherProcess = new FileQueueService(visibilityTimeout, storage, fileFormat,
+                                                                  inProgressSuffix, lockTimeout)) {
+            otherProcess.push(queue, UUID.randomUUID().toString());
+            assertFalse(queueService.evictIdleQueues(Duration.ZERO).contains(queue));
+            otherProcess.delete(queue, otherProcess.pull(queue));
+            assertFalse(queueService.evictIdleQueues(Duration.ofHours(1)).contains(queue));
+            assertTrue(queueService.evictIdleQueues(Duration.ZERO).contains(queue));
+            assertFalse(Files.exists(Paths.get(storage + queue + fileFormat)));
+            assertFalse(queueService.listQueues().contains(queue));
+            otherProcess.push(queue, "recreated");
+        }
+        assertEquals("recreated", queueService.pull(queue).getPayload());
+    }
+
+    @Test
+    void testGroupHasOneMessageInFlight() throws InterruptedException {
+        final PushOptions first = PushOptions.builder().groupId("first").build();
+        queueService.push(queue, "first-1", first);
+        queueService.push(queue, "ungrouped");
+        queueService.push(queue, "first-2", first);
+        queueService.push(queue, "second-1", PushOptions.builder().groupId("second").build());
+        final SimpleMessage leased = queueService.pull(queue);
+        assertEquals("first-1", leased.getPayload());
+        final SimpleMessage ungrouped = queueService.pull(queue);
+        final SimpleMessage second = queueService.pull(queue);
+        assertEquals(List.of("ungrouped", "second-1"), List.of(ungrouped.getPayload(), second.getPayload()));
+        assertNull(queueService.pull(queue));
+        queueService.delete(queue, ungrouped);
+        queueService.delete(queue, second);
+        assertEquals(1, queueService.stats(queue).getDepth());
+        Thread.sleep(visibilityTimeout);
+        assertEquals(leased.getId(), queueService.pull(queue).getId());
+        queueService.delete(queue, leased);
+        assertEquals("first-2", queueService.pull(queue).getPayload());
+    }
+
+    @Test
+    void testGroupReleasedByOtherInstance() throws IOException {
+        final PushOptions group = PushOptions.builder().groupId("group").build();
+        queueService.push(queue, "group-1", group);
+        queueService.push(queue, "group-2", group);
+        final SimpleMessage leased = queueService.pull(queue);
+        assertNull(queueService.pull(queue));
+        try (FileQueueService otherService = new FileQueueService(visibilityTimeout, storage, fileFormat,
+                                                                  inProgressSuffix, lockTimeout)) {
+            otherService.delete(queue, leased);
+            otherService.push(queue, "other-1", PushOptions.builder().groupId("other").build());
+        }
+        assertEquals("group-2", queueService.pull(queue).getPayload());
+        assertEquals("other-1", queueService.pull(queue).getPayload());
+        assertNull(queueService.pull(queue));
+    }
+
+    @Test
+    void testMoveTo() {
+        final String targetQueue = queue + "Target";
+        queueService.push(queue, "raw");
+        final SimpleMessage message = queueService.pull(queue);
+        assertTrue(queueService.moveTo(queue, message, targetQueue, "processed"));
+        assertFalse(queueService.moveTo(queue, message, targetQueue, "duplicate"));
+        assertEquals(0, queueService.stats(queue).getInFlight());
+        final SimpleMessage processed = queueService.pull(targetQueue);
+        assertEquals("processed", processed.getPayload());
+        queueService.delete(targetQueue, processed);
+        //Removes files of the target queue
+        assertTrue(queueService.evictIdleQueues(Duration.ZERO).contains(targetQueue));
+    }
+
+    @Test
+    void testMoveCompletedAfterCrash() throws IOException, InterruptedException {
+        final String targetQueue = queue + "Target";
+        queueService.push(queue, "raw");
+        final SimpleMessage message = queueService.pull(queue);
+        //State left by a process that crashed after pushing to the target queue but before removing the lease
+        queueService.push(targetQueue, "processed");
+        final UUID movedId;
+        try (Stream<SimpleMessage> snapshot = queueService.snapshot(targetQueue)) {
+            movedId = snapshot.findFirst().orElseThrow().getId();
+        }
+        writeMoveIntent(message, movedId, targetQueue);
+        queueService.close();
+        queueService = new FileQueueService(visibilityTimeout, storage, fileFormat, inProgressSuffix, lockTimeout);
+        assertEquals(0, queueService.stats(queue).getInFlight());
+        Thread.sleep(visibilityTimeout);
+        assertNull(queueService.pull(queue));
+        final SimpleMessage processed = queueService.pull(targetQueue);
+        assertEquals("processed", processed.getPayload());
+        queueService.delete(targetQueue, processed);
+        assertTrue(queueService.evictIdleQueues(Duration.ZERO).contains(targetQueue));
+    }
+
+    @Test
+    void testMoveRolledBackAfterCrash() throws IOException, InterruptedException {
+        final String targetQueue = queue + "Target";
+        queueService.push(queue, "raw");
+        final SimpleMessage message = queueService.pull(queue);
+        //State left by a process that crashed before pushing to the target queue
+        writeMoveIntent(message, UUID.randomUUID(), targetQueue);
+        queueService.close();
+        queueService = new FileQueueService(visibilityTimeout, storage, fileFormat, inProgressSuffix, lockTimeout);
+        assertEquals(1, queueService.stats(queue).getInFlight());
+        assertNull(queueService.pull(targetQueue));
+        Thread.sleep(visibilityTimeout);
+        assertEquals("raw", queueService.pull(queue).getPayload());
+        //Intent is gone, so reopening the queue does not resolve it again
+        queueService.close();
+        queueService = new FileQueueService(visibilityTimeout, storage, fileFormat, inProgressSuffix, lockTimeout);
+        assertEquals(1, queueService.stats(queue).getInFlight());
+        assertTrue(queueService.evictIdleQueues(Duration.ZERO).contains(targetQueue));
+    }
+
+    @Test
+    void testFlightRecorderEvents() throws IOException, InterruptedException {
+        final Path dump = Files.createTempFile("queue", ".jfr");
+        try (Recording recording = new Recording()) {
+            for (Class<? extends Event> event : List.of(CompactionEvent.class, RecordEncodeEvent.class,
+                                                        RecordDecodeEvent.class)) {
+                recording.enable(event).withThreshold(Duration.ZERO);
+            }
+            recording.start();
+            queueService.push(queue, "message");
+            queueService.pull(queue);
+            Thread.sleep(visibilityTimeout);
+            queueService.delete(queue, queueService.pull(queue));
+            recording.stop();
+            recording.dump(dump);
+            final Set<String> events = RecordingFile.readAllEvents(dump).stream()
+                                                    .map(event -> event.getEventType().getName())
+                                                    .collect(Collectors.toSet());
+            assertTrue(events.containsAll(Set.of("com.example.FileOpen", "com.example.Compaction",
+                                                 "com.example.RecordEncode", "com.example.RecordDecode",
+                                                 "com.example.Redelivery")), events.toString());
+        } finally {
+            Files.delete(dump);
+        }
+    }
+
+    @Test
+    void testDrain() {
+        final List<String> expectedMessages = createMessages(2_500, queue);
+        queueService.push(queue, "urgent", Priority.HIGH);
+        queueService.push(queue, "grouped", PushOptions.builder().groupId("group").build());
+        final List<String> drained = queueService.drain(queue).parallel()
+                                                 .map(Message::getPayload)
+                                                 .collect(Collectors.toList());
+        assertEquals(expectedMessages.size() + 2, drained.size());
+        assertTrue(drained.containsAll(expectedMessages));
+        assertTrue(drained.containsAll(List.of("urgent", "grouped")));
+        final QueueStats stats = queueService.stats(queue);
+        assertEquals(0, stats.getDepth());
+        assertEquals(0, stats.getInFlight());
+    }
+
+    @Test
+    void testUnconsumedChunkIsRedelivered() throws InterruptedException {
+        final List<String> expectedMessages = createMessages(3, queue);
+        assertEquals(expectedMessages.get(0), queueService.drain(queue).findFirst().orElseThrow().getPayload());
+        assertNull(queueService.pull(queue));
+        Thread.sleep(visibilityTimeout);
+        assertEquals(expectedMessages, queueService.drain(queue)
+                                                   .map(Message::getPayload)
+                                                   .collect(Collectors.toList()));
+    }
+
+    @Test
+    void testSnapshot() {
+        final List<String> expectedMessages = createMessages(1_000, queue);
+        queueService.push(queue, "grouped", PushOptions.builder().groupId("group").build());
+        queueService.push(queue, "urgent", Priority.HIGH);
+        final SimpleMessage leased = queueService.pull(queue);
+        final List<String> expectedSnapshot = new ArrayList<>(expectedMessages);
+        expectedSnapshot.add("grouped");
+        try (Stream<SimpleMessage> snapshot = queueService.snapshot(queue)) {
+            assertEquals(expectedSnapshot, snapshot.parallel().map(Message::getPayload).collect(Collectors.toList()));
+        }
+        assertEquals("urgent", leased.getPayload());
+        assertEquals(expectedMessages.size() + 1, queueService.stats(queue).getDepth());
+    }
+
+    @Test
+    void testConsumersOfBothInstancesShareLeaseShards() throws IOException, InterruptedException {
+        final List<String> expectedMessages = createMessages(200, queue);
+        final Set<String> pulled = ConcurrentHashMap.newKeySet();
+        try (FileQueueService otherProcess = new FileQueueService(visibilityTimeout, storage, fileFormat,
+                                                                  inProgressSuffix, lockTimeout)) {
+            final SimpleMessage expired = otherProcess.pull(queue);
+            CompletableFuture.allOf(Stream.of(queueService, otherProcess, queueService, otherProcess)
+                                          .map(service -> CompletableFuture.runAsync(() -> {
+                                              SimpleMessage message;
+                                              while ((message = service.pull(queue)) != null) {
+                                                  pulled.add(message.getPayload());
+                                                  service.delete(queue, message);
+                                              }
+                                          }))
+                                          .toArray(CompletableFuture[]::new))
+                             .join();
+            assertEquals(expectedMessages.size() - 1, pulled.size());
+            assertEquals(1, queueService.stats(queue).getInFlight());
+            Thread.sleep(visibilityTimeout);
+            final SimpleMessage redelivered = queueService.pull(queue);
+            assertEquals(expired.getId(), redelivered.getId());
+            otherProcess.delete(queue, redelivered);
+            assertEquals(0, otherProcess.stats(queue).getInFlight());
+        }
+        assertNull(queueService.pull(queue));
+    }
+
+    @Test
+    void testDeletesOfOtherShardsDoNotWaitForPull() throws IOException {
+        final List<SimpleMessage> leased = new ArrayList<>();
+        while (leased.stream().noneMatch(message -> getShard(message) == 0)
+                || leased.stream().allMatch(message -> getShard(message) == 0)) {
+            createMessages(1, queue);
+            leased.add(queueService.pull(queue));
+        }
+        queueService.close();
+        queueService = new FileQueueService(visibilityTimeout, storage, fileFormat, inProgressSuffix, 100);
+        //Lane and the first shard are locked as if another process was pulling
+        try (FileChannel lane = FileChannel.open(Path.of(storage + queue + fileFormat), WRITE);
+             FileChannel firstShard = FileChannel.open(Path.of(storage + queue + inProgressSuffix + fileFormat),
+                                                       WRITE);
+             FileLock laneLock = lane.lock();
+             FileLock shardLock = firstShard.lock()) {
+            leased.stream()
+                  .filter(message -> getShard(message) != 0)
+                  .forEach(message -> queueService.delete(queue, message));
+            assertThrows(LockTimeoutException.class, () -> queueService.pull(queue));
+            final SimpleMessage firstShardMessage = leased.stream()
+                                                          .filter(message -> getShard(message) == 0)
+                                                          .findFirst()
+                                                          .orElseThrow();
+            assertThrows(LockTimeoutException.class, () -> queueService.delete(queue, firstShardMessage));
+        }
+        leased.stream()
+              .filter(message -> getShard(message) == 0)
+              .forEach(message -> queueService.delete(queue, message));
+        assertEquals(0, queueService.stats(queue).getInFlight());
+    }
+
+    @Test
+    void testFilesOfUnusedFeaturesAreNotCreated() {
+        createMessages(2, queue);
+        pullAndDeleteAll(2);
+        for (int shard = 0; shard < 8; shard++) {
+            final String shardSuffix = inProgressSuffix + (shard == 0 ? "" : shard);
+            assertFalse(Files.exists(Paths.get(storage + queue + shardSuffix + "^" + fileFormat)));
+            assertFalse(Files.exists(Paths.get(storage + queue + shardSuffix + "&" + fileFormat)));
+        }
+        assertFalse(Files.exists(Paths.get(storage + queue + "@" + fileFormat)));
+    }
+
+    private void writeMoveIntent(final SimpleMessage message, final UUID movedId, final String targetQueue)
+            throws IOException {
+        final int shard = getShard(message);
+        Files.writeString(Paths.get(storage + queue + inProgressSuffix + (shard == 0 ? "" : shard) + "&" + fileFormat),
+                          message.getId() + "," + movedId + "," + targetQueue + System.lineSeparator());
+    }
+
+    private static int getShard(final SimpleMessage message) {
+        return Math.floorMod(message.getId().hashCode(), 8);
+    }
+
+    private void pullAndDeleteAll(final int messageNum) {
+        for (int sequence = 0; sequence < messageNum; sequence++) {
+            queueService.delete(queue, queueService.pull(queue));
+        }
+    }
+
+    private static long getAllocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static void assertStats(final long depth, final long inFlight, final long delayed,
+                                    final QueueStats stats) {
+        assertEquals(depth, stats.getDepth(), stats.toString());
+        assertEquals(inFlight, stats.getInFlight(), stats.toString());
+        assertEquals(delayed, stats.getDelayed(), stats.toString());
+        assertTrue(stats.getOldestMessageAge().toMillis() >= 10, stats.toString());
+    }
+
     private List<String> createMessages(final int messageNum, final String targetQueue) {
         final List<String> expectedMessages = new ArrayList<>();
         IntStream.range(0, messageNum).forEach(sequence -> {
@@ -0,0 +1,166 @@
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import com.example.exception.SubscriptionNotFound;
+import com.example.impl.FileTopicService;
+import com.example.model.SubscriptionStart;
+import com.example.model.impl.SimpleMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class FileTopicTest {
+
+    private static final String FIRST_GROUP = "first";
+
+    private static final String SECOND_GROUP = "second";
+
+    //Default storage at the root of a project
+    private final String storage = "D:\\delete\\";
+
+    private final String fileFormat = ".queue";
+
+    private final long visibilityTimeout = 500;
+
+    private final long lockTimeout = 10_000;
+
+    private String topic;
+
+    private FileTopicService unit;
+
+    @BeforeEach
+    void setUp() {
+        topic = UUID.randomUUID().toString();
+        unit = new FileTopicService(visibilityTimeout, storage, fileFormat, lockTimeout);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        try (Stream<Path> files = Files.list(Paths.get(""))) {
+            for (Path file : files.filter(file -> file.getFileName().toString().startsWith(storage + topic))
+                                  .collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    void testEveryGroupReceivesMessage() {
+        unit.subscribe(topic, FIRST_GROUP, SubscriptionStart.LATEST);
+        unit.subscribe(topic, SECOND_GROUP, SubscriptionStart.LATEST);
+        final String message = publish(1).get(0);
+        final SimpleMessage first = unit.pull(topic, FIRST_GROUP);
+        final SimpleMessage second = unit.pull(topic, SECOND_GROUP);
+        assertEquals(message, first.getPayload());
+        assertEquals(first.getId(), second.getId());
+        assertNull(unit.pull(topic, FIRST_GROUP));
+    }
+
+    @Test
+    void testMessageIsStoredOnce() throws IOException {
+        unit.subscribe(topic, FIRST_GROUP, SubscriptionStart.LATEST);
+        unit.subscribe(topic, SECOND_GROUP, SubscriptionStart.LATEST);
+        final List<String> messages = publish(10);
+        final List<String> rows = Files.readAllLines(Paths.get(storage + topic + "%" + fileFormat),
+                                                     StandardCharsets.UTF_8);
+        assertEquals(messages, rows.stream().map(row -> row.split(",")[1]).collect(Collectors.toList()));
+    }
+
+    @Test
+    void testGroupsReadInPublishOrder() {
+        unit.subscribe(topic, FIRST_GROUP, SubscriptionStart.LATEST);
+        final List<String> expectedMessages = publish(20);
+        final List<String> actualMessages = IntStream.range(0, expectedMessages.size())
+                                                     .mapToObj(sequence -> unit.pull(topic, FIRST_GROUP))
+                                                     .map(SimpleMessage::getPayload)
+                                                     .collect(Collectors.toList());
+        assertEquals(expectedMessages, actualMessages);
+    }
+
+    @Test
+    void testSubscriptionStart() {
+        final String retainedMessage = publish(1).get(0);
+        unit.subscribe(topic, FIRST_GROUP, SubscriptionStart.EARLIEST);
+        unit.subscribe(topic, SECOND_GROUP, SubscriptionStart.LATEST);
+        final String newMessage = publish(1).get(0);
+        assertEquals(retainedMessage, unit.pull(topic, FIRST_GROUP).getPayload());
+        assertEquals(newMessage, unit.pull(topic, FIRST_GROUP).getPayload());
+        assertEquals(newMessage, unit.pull(topic, SECOND_GROUP).getPayload());
+        assertNull(unit.pull(topic, SECOND_GROUP));
+    }
+
+    @Test
+    void testDeleteIsPerGroup() throws InterruptedException {
+        unit.subscribe(topic, FIRST_GROUP, SubscriptionStart.LATEST);
+        unit.subscribe(topic, SECOND_GROUP, SubscriptionStart.LATEST);
+        publish(1);
+        unit.delete(topic, FIRST_GROUP, unit.pull(topic, FIRST_GROUP));
+        final SimpleMessage message = unit.pull(topic, SECOND_GROUP);
+        Thread.sleep(visibilityTimeout);
+        assertNull(unit.pull(topic, FIRST_GROUP));
+        assertEquals(message.getId(), unit.pull(topic, SECOND_GROUP).getId());
+    }
+
+    @Test
+    void testLogHeadIsTrimmedOnceEveryGroupIsDone() throws IOException {
+        unit.subscribe(topic, FIRST_GROUP, SubscriptionStart.LATEST);
+        unit.subscribe(topic, SECOND_GROUP, SubscriptionStart.LATEST);
+        final List<String> messages = publish(1_000);
+        final Path log = Paths.get(storage + topic + "%" + fileFormat);
+        final long publishedSize = Files.size(log);
+        messages.forEach(message -> unit.delete(topic, FIRST_GROUP, unit.pull(topic, FIRST_GROUP)));
+        assertEquals(publishedSize, Files.size(log));
+        for (String message : messages) {
+            final SimpleMessage actual = unit.pull(topic, SECOND_GROUP);
+            assertEquals(message, actual.getPayload());
+            unit.delete(topic, SECOND_GROUP, actual);
+        }
+        assertTrue(Files.size(log) < publishedSize);
+        final String newMessage = publish(1).get(0);
+        assertEquals(newMessage, unit.pull(topic, FIRST_GROUP).getPayload());
+    }
+
+    @Test
+    void testGroupStateIsSharedBetweenServices() {
+        unit.subscribe(topic, FIRST_GROUP, SubscriptionStart.LATEST);
+        publish(2);
+        final FileTopicService otherService = new FileTopicService(visibilityTimeout, storage, fileFormat,
+                                                                   lockTimeout);
+        final SimpleMessage first = unit.pull(topic, FIRST_GROUP);
+        final SimpleMessage second = otherService.pull(topic, FIRST_GROUP);
+        assertNotEquals(first.getId(), second.getId());
+        assertNull(unit.pull(topic, FIRST_GROUP));
+    }
+
+    @Test
+    void testPullForUnknownGroup() {
+        assertThrows(SubscriptionNotFound.class, () -> unit.pull(topic, FIRST_GROUP));
+        unit.subscribe(topic, FIRST_GROUP, SubscriptionStart.LATEST);
+        unit.unsubscribe(topic, FIRST_GROUP);
+        assertThrows(SubscriptionNotFound.class, () -> unit.pull(topic, FIRST_GROUP));
+    }
+
+    private List<String> publish(final int messageNum) {
+        final List<String> messages = IntStream.range(0, messageNum)
+                                               .mapToObj(sequence -> UUID.randomUUID().toString())
+                                               .collect(Collectors.toList());
+        messages.forEach(message -> unit.publish(topic, message));
+        return messages;
+    }
+}
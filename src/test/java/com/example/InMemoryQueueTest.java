@@ -1,30 +1,54 @@
 package com.example;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import com.example.impl.InMemoryQueueService;
+import com.example.model.Delivery;
 import com.example.model.Message;
+import com.example.model.Priority;
+import com.example.model.PushOptions;
+import com.example.model.QueueStats;
 import com.example.model.impl.SimpleMessage;
+import com.example.util.DeduplicationWindow;
+import com.example.util.LeaseHeartbeat;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 class InMemoryQueueTest {
 
-    private QueueService<SimpleMessage> unit;
+    private SnapshotQueueService<SimpleMessage> unit;
 
     private static final String TEST_QUEUE = "testQueue";
 
     private int visibilityTimeout = 500;
 
+    /**
+     * Returned message with its id, payload and creation time.
+     */
+    private static final long MAX_ALLOCATED_BYTES_PER_MESSAGE = 256;
+
     @BeforeEach
     void beforeEach() {
         unit = new InMemoryQueueService(visibilityTimeout);
@@ -79,7 +103,461 @@ class InMemoryQueueTest {
         assertNull(messageAfterDelete);
     }
 
+    @Test
+    void testReleasedMessageIsRedeliveredRightAway() {
+        createMessages(2);
+        final SimpleMessage first = unit.pull(TEST_QUEUE);
+        final SimpleMessage second = unit.pull(TEST_QUEUE);
+        assertTrue(unit.changeVisibility(TEST_QUEUE, second, Duration.ZERO));
+        assertEquals(second.getId(), unit.pull(TEST_QUEUE).getId());
+        assertNull(unit.pull(TEST_QUEUE));
+        unit.delete(TEST_QUEUE, first);
+        assertFalse(unit.changeVisibility(TEST_QUEUE, first, Duration.ZERO));
+    }
+
+    @Test
+    void testExtendedMessageStaysInvisible() throws InterruptedException {
+        createMessages(2);
+        final SimpleMessage extended = unit.pull(TEST_QUEUE);
+        final SimpleMessage expiring = unit.pull(TEST_QUEUE);
+        assertTrue(unit.changeVisibility(TEST_QUEUE, extended, Duration.ofMillis(visibilityTimeout * 3)));
+        Thread.sleep(visibilityTimeout);
+        assertEquals(expiring.getId(), unit.pull(TEST_QUEUE).getId());
+        assertNull(unit.pull(TEST_QUEUE));
+        unit.delete(TEST_QUEUE, expiring);
+        Thread.sleep(visibilityTimeout * 2);
+        assertEquals(extended.getId(), unit.pull(TEST_QUEUE).getId());
+    }
+
+    @Test
+    void testHeartbeatKeepsLeaseAlive() throws InterruptedException {
+        unit.push(TEST_QUEUE, UUID.randomUUID().toString());
+        final SimpleMessage message = unit.pull(TEST_QUEUE);
+        try (LeaseHeartbeat<SimpleMessage> heartbeat = new LeaseHeartbeat<>(
+                unit, Duration.ofMillis(visibilityTimeout), Duration.ofMillis(visibilityTimeout / 5))) {
+            heartbeat.track(TEST_QUEUE, message);
+            Thread.sleep(visibilityTimeout * 2);
+            assertNull(unit.pull(TEST_QUEUE));
+            assertTrue(heartbeat.release(TEST_QUEUE, message));
+            assertEquals(message.getId(), unit.pull(TEST_QUEUE).getId());
+        }
+    }
+
+    @Test
+    void testPullAnyServesReadyQueuesInTurn() {
+        final List<String> queues = IntStream.range(0, 100)
+                                             .mapToObj(index -> TEST_QUEUE + index)
+                                             .collect(Collectors.toList());
+        IntStream.range(0, 3).forEach(sequence -> {
+            unit.push(queues.get(10), "first");
+            unit.push(queues.get(90), "second");
+        });
+        final List<String> pulledFrom = IntStream.range(0, 6)
+                                                 .mapToObj(sequence -> unit.pullAny(queues, Duration.ZERO))
+                                                 .map(Delivery::getQueue)
+                                                 .collect(Collectors.toList());
+        assertEquals(List.of(queues.get(10), queues.get(90), queues.get(10), queues.get(90), queues.get(10),
+                             queues.get(90)), pulledFrom);
+        assertNull(unit.pullAny(queues, Duration.ZERO));
+    }
+
+    @Test
+    void testPullAnyWaitsForPushAndLeaseExpiry() throws InterruptedException {
+        final String otherQueue = TEST_QUEUE + "Other";
+        final Thread producer = new Thread(() -> {
+            try {
+                Thread.sleep(visibilityTimeout / 5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            unit.push(otherQueue, "late");
+        });
+        producer.start();
+        final Delivery<SimpleMessage> pushed = unit.pullAny(List.of(TEST_QUEUE, otherQueue),
+                                                            Duration.ofMillis(visibilityTimeout * 2));
+        producer.join();
+        assertEquals(otherQueue, pushed.getQueue());
+        assertEquals("late", pushed.getMessage().getPayload());
+        final long start = System.currentTimeMillis();
+        final Delivery<SimpleMessage> redelivered = unit.pullAny(Set.of(TEST_QUEUE, otherQueue),
+                                                                 Duration.ofMillis(visibilityTimeout * 2));
+        assertTrue(System.currentTimeMillis() - start >= visibilityTimeout / 2);
+        assertEquals(pushed.getMessage().getId(), redelivered.getMessage().getId());
+        unit.delete(otherQueue, redelivered.getMessage());
+        assertNull(unit.pullAny(Set.of(TEST_QUEUE, otherQueue), Duration.ofMillis(visibilityTimeout / 5)));
+    }
+
+    @Test
+    void testPullAnyWaitsForDelayedMessage() {
+        unit.push(TEST_QUEUE, "delayed", Duration.ofMillis(visibilityTimeout / 2));
+        assertNull(unit.pullAny(Set.of(TEST_QUEUE), Duration.ZERO));
+        assertEquals("delayed", unit.pullAny(Set.of(TEST_QUEUE), Duration.ofMillis(visibilityTimeout))
+                                    .getMessage().getPayload());
+    }
+
+    @Test
+    void testGroupHasOneMessageInFlight() throws InterruptedException {
+        final PushOptions first = PushOptions.builder().groupId("first").build();
+        unit.push(TEST_QUEUE, "first-1", first);
+        unit.push(TEST_QUEUE, "first-2", first);
+        unit.push(TEST_QUEUE, "second-1", PushOptions.builder().groupId("second").build());
+        unit.push(TEST_QUEUE, "ungrouped");
+        final SimpleMessage leased = unit.pull(TEST_QUEUE);
+        assertEquals("first-1", leased.getPayload());
+        final SimpleMessage second = unit.pull(TEST_QUEUE);
+        final SimpleMessage ungrouped = unit.pull(TEST_QUEUE);
+        assertEquals(List.of("second-1", "ungrouped"), List.of(second.getPayload(), ungrouped.getPayload()));
+        assertNull(unit.pull(TEST_QUEUE));
+        unit.delete(TEST_QUEUE, second);
+        unit.delete(TEST_QUEUE, ungrouped);
+        assertEquals(1, unit.stats(TEST_QUEUE).getDepth());
+        Thread.sleep(visibilityTimeout);
+        assertEquals(leased.getId(), unit.pull(TEST_QUEUE).getId());
+        unit.delete(TEST_QUEUE, leased);
+        assertEquals("first-2", unit.pull(TEST_QUEUE).getPayload());
+    }
+
+    @Test
+    void testGroupedMessageCannotBeDelayed() {
+        assertThrows(IllegalArgumentException.class, () -> PushOptions.builder()
+                                                                      .groupId("group")
+                                                                      .delay(Duration.ofMillis(visibilityTimeout))
+                                                                      .build());
+    }
+
+    @Test
+    void testDrain() {
+        final List<String> expectedMessages = createMessages(250);
+        assertEquals(Set.copyOf(expectedMessages), unit.drain(TEST_QUEUE).parallel()
+                                                       .map(Message::getPayload)
+                                                       .collect(Collectors.toSet()));
+        assertEquals(0, unit.stats(TEST_QUEUE).getInFlight());
+        assertNull(unit.pull(TEST_QUEUE));
+    }
+
+    @Test
+    void testSnapshot() {
+        final List<String> expectedMessages = createMessages(3);
+        final SimpleMessage leased = unit.pull(TEST_QUEUE);
+        assertEquals(expectedMessages.subList(1, 3), unit.snapshot(TEST_QUEUE)
+                                                         .map(Message::getPayload)
+                                                         .collect(Collectors.toList()));
+        assertEquals(expectedMessages.get(0), leased.getPayload());
+        assertEquals(2, unit.stats(TEST_QUEUE).getDepth());
+    }
+
+    @Test
+    void testMoveTo() {
+        final String targetQueue = TEST_QUEUE + "Target";
+        unit.push(TEST_QUEUE, "raw");
+        final SimpleMessage message = unit.pull(TEST_QUEUE);
+        assertTrue(unit.moveTo(TEST_QUEUE, message, targetQueue, "processed"));
+        assertFalse(unit.moveTo(TEST_QUEUE, message, targetQueue, "duplicate"));
+        assertEquals(0, unit.stats(TEST_QUEUE).getInFlight());
+        assertEquals("processed", unit.pull(targetQueue).getPayload());
+        assertNull(unit.pull(targetQueue));
+    }
+
+    @Test
+    void testEvictIdleQueues() throws InterruptedException {
+        final InMemoryQueueService service = new InMemoryQueueService(visibilityTimeout);
+        final String busyQueue = TEST_QUEUE + "Busy";
+        service.push(TEST_QUEUE, UUID.randomUUID().toString());
+        service.push(busyQueue, UUID.randomUUID().toString());
+        service.delete(TEST_QUEUE, service.pull(TEST_QUEUE));
+        assertEquals(Set.of(), service.evictIdleQueues(Duration.ofMillis(visibilityTimeout)));
+        Thread.sleep(visibilityTimeout);
+        assertEquals(Set.of(TEST_QUEUE), service.evictIdleQueues(Duration.ofMillis(visibilityTimeout)));
+        assertEquals(Set.of(busyQueue), service.listQueues());
+        final String message = UUID.randomUUID().toString();
+        service.push(TEST_QUEUE, message);
+        assertEquals(message, service.pull(TEST_QUEUE).getPayload());
+    }
+
+    @Test
+    void testEvictionKeepsQueueWithDeduplicationIds() {
+        final InMemoryQueueService service = new InMemoryQueueService(visibilityTimeout, visibilityTimeout * 10);
+        final PushOptions options = PushOptions.builder().deduplicationId(UUID.randomUUID().toString()).build();
+        service.push(TEST_QUEUE, UUID.randomUUID().toString(), options);
+        service.delete(TEST_QUEUE, service.pull(TEST_QUEUE));
+        assertEquals(Set.of(), service.evictIdleQueues(Duration.ZERO));
+        service.push(TEST_QUEUE, UUID.randomUUID().toString(), options);
+        assertNull(service.pull(TEST_QUEUE));
+    }
+
+    @Test
+    void testDelayedPush() throws InterruptedException {
+        final String delayedMessage = UUID.randomUUID().toString();
+        unit.push(TEST_QUEUE, delayedMessage, Duration.ofMillis(visibilityTimeout));
+        assertNull(unit.pull(TEST_QUEUE));
+        Thread.sleep(visibilityTimeout);
+        final Message actualMessage = unit.pull(TEST_QUEUE);
+        assertNotNull(actualMessage);
+        assertEquals(delayedMessage, actualMessage.getPayload());
+    }
+
+    @Test
+    void testDelayedPushIsQueuedAfterReadyMessages() throws InterruptedException {
+        final String delayedMessage = UUID.randomUUID().toString();
+        final String readyMessage = UUID.randomUUID().toString();
+        unit.push(TEST_QUEUE, delayedMessage, Duration.ofMillis(visibilityTimeout));
+        unit.push(TEST_QUEUE, readyMessage);
+        Thread.sleep(visibilityTimeout);
+        assertEquals(readyMessage, unit.pull(TEST_QUEUE).getPayload());
+        assertEquals(delayedMessage, unit.pull(TEST_QUEUE).getPayload());
+    }
+
+    @Test
+    void testUrgentMessageSkipsBacklog() {
+        createMessages(10);
+        final String urgentMessage = UUID.randomUUID().toString();
+        unit.push(TEST_QUEUE, urgentMessage, Priority.HIGH);
+        assertEquals(urgentMessage, unit.pull(TEST_QUEUE).getPayload());
+    }
+
+    @Test
+    void testPriorityLanesAreWeighted() {
+        final int messagesPerLane = 7;
+        for (Priority priority : Priority.values()) {
+            IntStream.range(0, messagesPerLane)
+                     .forEach(sequence -> unit.push(TEST_QUEUE, priority.name(), priority));
+        }
+        final List<String> pulled = IntStream.range(0, messagesPerLane)
+                                             .mapToObj(sequence -> unit.pull(TEST_QUEUE).getPayload())
+                                             .collect(Collectors.toList());
+        for (Priority priority : Priority.values()) {
+            assertEquals(priority.getWeight(), pulled.stream().filter(priority.name()::equals).count());
+        }
+    }
+
+    @Test
+    void testDeduplicatedPush() {
+        final PushOptions options = PushOptions.builder().deduplicationId(UUID.randomUUID().toString()).build();
+        final String message = UUID.randomUUID().toString();
+        unit.push(TEST_QUEUE, message, options);
+        unit.push(TEST_QUEUE, message, options);
+        assertEquals(message, unit.pull(TEST_QUEUE).getPayload());
+        assertNull(unit.pull(TEST_QUEUE));
+    }
+
+    @Test
+    void testDeduplicationWindowExpires() throws InterruptedException {
+        final long deduplicationWindow = 100;
+        unit = new InMemoryQueueService(visibilityTimeout, deduplicationWindow);
+        final PushOptions options = PushOptions.builder().deduplicationId(UUID.randomUUID().toString()).build();
+        unit.push(TEST_QUEUE, UUID.randomUUID().toString(), options);
+        Thread.sleep(deduplicationWindow * 2);
+        unit.push(TEST_QUEUE, UUID.randomUUID().toString(), options);
+        assertNotNull(unit.pull(TEST_QUEUE));
+        assertNotNull(unit.pull(TEST_QUEUE));
+    }
+
+    @Test
+    void testOffHeapPushPullAndDelete() throws InterruptedException {
+        unit = new InMemoryQueueService(visibilityTimeout, DeduplicationWindow.DEFAULT_WINDOW, true);
+        final List<String> expectedMessages = createMessages(3);
+        for (String expectedMessage : expectedMessages) {
+            final SimpleMessage actual = unit.pull(TEST_QUEUE);
+            assertEquals(expectedMessage, actual.getPayload());
+            unit.delete(TEST_QUEUE, actual);
+        }
+        Thread.sleep(visibilityTimeout);
+        assertNull(unit.pull(TEST_QUEUE));
+    }
+
+    @Test
+    void testOffHeapPayloadsOfDifferentSizes() {
+        unit = new InMemoryQueueService(visibilityTimeout, DeduplicationWindow.DEFAULT_WINDOW, true);
+        final List<String> expectedMessages = IntStream.of(0, 1, 100, 70_000)
+                                                       .mapToObj(length -> "\u00e9".repeat(length))
+                                                       .collect(Collectors.toList());
+        expectedMessages.forEach(message -> unit.push(TEST_QUEUE, message));
+        expectedMessages.forEach(message -> assertEquals(message, unit.pull(TEST_QUEUE).getPayload()));
+    }
+
+    @Test
+    void testDeleteOfStaleMessageKeepsReusedRecord() throws InterruptedException {
+        unit.push(TEST_QUEUE, UUID.randomUUID().toString());
+        final SimpleMessage deleted = unit.pull(TEST_QUEUE);
+        unit.delete(TEST_QUEUE, deleted);
+        final String message = UUID.randomUUID().toString();
+        unit.push(TEST_QUEUE, message);
+        unit.delete(TEST_QUEUE, deleted);
+        assertEquals(message, unit.pull(TEST_QUEUE).getPayload());
+    }
+
+    @Test
+    void testStats() throws InterruptedException {
+        assertEquals(0, unit.stats(TEST_QUEUE).getDepth());
+        createMessages(3);
+        unit.push(TEST_QUEUE, UUID.randomUUID().toString(), Duration.ofMillis(visibilityTimeout * 10));
+        Thread.sleep(10);
+        unit.pull(TEST_QUEUE);
+        final QueueStats stats = unit.stats(TEST_QUEUE);
+        assertEquals(2, stats.getDepth());
+        assertEquals(1, stats.getInFlight());
+        assertEquals(1, stats.getDelayed());
+        assertTrue(stats.getOldestMessageAge().toMillis() >= 10);
+        assertEquals(Set.of(TEST_QUEUE), unit.listQueues());
+    }
+
+    @Test
+    void testPullAndDeleteAllocateOnlyReturnedMessage() {
+        final int messageNum = 20_000;
+        pullAndDeleteAll(createMessages(messageNum).size());
+        createMessages(messageNum);
+        final long allocatedBefore = getAllocatedBytes();
+        pullAndDeleteAll(messageNum);
+        final long allocatedPerMessage = (getAllocatedBytes() - allocatedBefore) / messageNum;
+        assertTrue(allocatedPerMessage <= MAX_ALLOCATED_BYTES_PER_MESSAGE,
+                   "Pull and delete allocated " + allocatedPerMessage + " bytes per message");
+    }
+
+    @Test
+    void testDurableQueueIsRecoveredFromJournal(@TempDir final Path journalDirectory)
+            throws IOException, InterruptedException {
+        final SimpleMessage leased;
+        final String delayed = UUID.randomUUID().toString();
+        final List<String> remaining;
+        try (InMemoryQueueService durable = createDurableService(journalDirectory)) {
+            createMessages(durable, 3);
+            durable.push(TEST_QUEUE, delayed, Duration.ofMillis(visibilityTimeout * 3));
+            durable.delete(TEST_QUEUE, durable.pull(TEST_QUEUE));
+            leased = durable.pull(TEST_QUEUE);
+            remaining = createMessages(durable, 2);
+        }
+        try (InMemoryQueueService recovered = createDurableService(journalDirectory)) {
+            final List<SimpleMessage> pulled = List.of(recovered.pull(TEST_QUEUE), recovered.pull(TEST_QUEUE),
+                                                       recovered.pull(TEST_QUEUE));
+            assertEquals(remaining, List.of(pulled.get(1).getPayload(), pulled.get(2).getPayload()));
+            recovered.delete(TEST_QUEUE, leased);
+            pulled.forEach(message -> recovered.delete(TEST_QUEUE, message));
+        }
+        try (InMemoryQueueService recovered = createDurableService(journalDirectory)) {
+            Thread.sleep(visibilityTimeout * 3);
+            assertEquals(delayed, recovered.pull(TEST_QUEUE).getPayload());
+            assertNull(recovered.pull(TEST_QUEUE));
+        }
+    }
+
+    @Test
+    void testGroupsAreRecovered(@TempDir final Path journalDirectory) throws IOException {
+        final PushOptions options = PushOptions.builder().groupId("group").build();
+        final SimpleMessage leased;
+        try (InMemoryQueueService durable = createDurableService(journalDirectory)) {
+            durable.push(TEST_QUEUE, "snapshotted-1", options);
+            durable.push(TEST_QUEUE, "snapshotted-2", options);
+            leased = durable.pull(TEST_QUEUE);
+            durable.snapshot();
+            durable.push(TEST_QUEUE, "journaled", options);
+        }
+        try (InMemoryQueueService recovered = createDurableService(journalDirectory)) {
+            assertNull(recovered.pull(TEST_QUEUE));
+            recovered.delete(TEST_QUEUE, leased);
+            recovered.delete(TEST_QUEUE, recovered.pull(TEST_QUEUE));
+            assertEquals("journaled", recovered.pull(TEST_QUEUE).getPayload());
+        }
+    }
+
+    @Test
+    void testMoveIsRecovered(@TempDir final Path journalDirectory) throws IOException {
+        final String targetQueue = TEST_QUEUE + "Target";
+        try (InMemoryQueueService durable = createDurableService(journalDirectory)) {
+            durable.push(TEST_QUEUE, "raw");
+            assertTrue(durable.moveTo(TEST_QUEUE, durable.pull(TEST_QUEUE), targetQueue, "processed"));
+        }
+        try (InMemoryQueueService recovered = createDurableService(journalDirectory)) {
+            assertEquals(0, recovered.stats(TEST_QUEUE).getInFlight());
+            assertEquals("processed", recovered.pull(targetQueue).getPayload());
+        }
+    }
+
+    @Test
+    void testLeaseSurvivesRestart(@TempDir final Path journalDirectory) throws IOException, InterruptedException {
+        final SimpleMessage leased;
+        try (InMemoryQueueService durable = createDurableService(journalDirectory)) {
+            createMessages(durable, 1);
+            leased = durable.pull(TEST_QUEUE);
+        }
+        try (InMemoryQueueService recovered = createDurableService(journalDirectory)) {
+            assertNull(recovered.pull(TEST_QUEUE));
+            Thread.sleep(visibilityTimeout);
+            assertEquals(leased.getId(), recovered.pull(TEST_QUEUE).getId());
+        }
+    }
+
+    @Test
+    void testRecoveredQueueIsEvicted(@TempDir final Path journalDirectory) throws IOException {
+        try (InMemoryQueueService durable = createDurableService(journalDirectory)) {
+            createMessages(durable, 1);
+            durable.delete(TEST_QUEUE, durable.pull(TEST_QUEUE));
+        }
+        try (InMemoryQueueService recovered = createDurableService(journalDirectory)) {
+            assertEquals(Set.of(TEST_QUEUE), recovered.evictIdleQueues(Duration.ZERO));
+            assertEquals(Set.of(), recovered.listQueues());
+        }
+    }
+
+    @Test
+    void testJournalTailIsReplayedOverSnapshot(@TempDir final Path journalDirectory) throws IOException {
+        final List<String> expectedMessages;
+        try (InMemoryQueueService durable = createDurableService(journalDirectory)) {
+            final List<String> snapshotted = createMessages(durable, 2);
+            durable.snapshot();
+            durable.delete(TEST_QUEUE, durable.pull(TEST_QUEUE));
+            expectedMessages = new ArrayList<>(snapshotted.subList(1, 2));
+            expectedMessages.addAll(createMessages(durable, 2));
+        }
+        try (Stream<Path> journalFiles = Files.list(journalDirectory)) {
+            //Snapshot and the only segment written after it
+            assertEquals(2, journalFiles.count());
+        }
+        try (InMemoryQueueService recovered = createDurableService(journalDirectory)) {
+            assertEquals(expectedMessages, IntStream.range(0, expectedMessages.size())
+                                                    .mapToObj(sequence -> recovered.pull(TEST_QUEUE).getPayload())
+                                                    .collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    void testTornJournalRecordIsIgnored(@TempDir final Path journalDirectory) throws IOException {
+        final List<String> expectedMessages;
+        try (InMemoryQueueService durable = createDurableService(journalDirectory)) {
+            expectedMessages = createMessages(durable, 2);
+        }
+        try (Stream<Path> journalFiles = Files.list(journalDirectory)) {
+            final Path lastSegment = journalFiles.filter(file -> file.toString().endsWith(".wal"))
+                                                 .max(Comparator.naturalOrder())
+                                                 .orElseThrow();
+            Files.write(lastSegment, new byte[]{0, 0, 0, 64, 1, 2, 3}, StandardOpenOption.APPEND);
+        }
+        try (InMemoryQueueService recovered = createDurableService(journalDirectory)) {
+            assertEquals(expectedMessages, List.of(recovered.pull(TEST_QUEUE).getPayload(),
+                                                   recovered.pull(TEST_QUEUE).getPayload()));
+        }
+    }
+
+    private InMemoryQueueService createDurableService(final Path journalDirectory) {
+        return new InMemoryQueueService(visibilityTimeout, DeduplicationWindow.DEFAULT_WINDOW, false,
+                                        journalDirectory, 60_000);
+    }
+
+    private void pullAndDeleteAll(final int messageNum) {
+        for (int sequence = 0; sequence < messageNum; sequence++) {
+            unit.delete(TEST_QUEUE, unit.pull(TEST_QUEUE));
+        }
+    }
+
+    private static long getAllocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
     private List<String> createMessages(final int numMessages) {
+        return createMessages(unit, numMessages);
+    }
+
+    private static List<String> createMessages(final QueueService<SimpleMessage> unit, final int numMessages) {
         final List<String> expectedMessages = new ArrayList<>();
         IntStream.range(0, numMessages)
                  .forEach(sequence -> {
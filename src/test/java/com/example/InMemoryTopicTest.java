@@ -0,0 +1,118 @@
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import com.example.exception.SubscriptionNotFound;
+import com.example.impl.InMemoryTopicService;
+import com.example.model.SubscriptionStart;
+import com.example.model.impl.SimpleMessage;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class InMemoryTopicTest {
+
+    private static final String TEST_TOPIC = "testTopic";
+
+    private static final String FIRST_GROUP = "first";
+
+    private static final String SECOND_GROUP = "second";
+
+    private final long visibilityTimeout = 500;
+
+    private TopicService<SimpleMessage> unit;
+
+    @BeforeEach
+    void beforeEach() {
+        unit = new InMemoryTopicService(visibilityTimeout);
+    }
+
+    @Test
+    void testEveryGroupReceivesSameStoredMessage() {
+        unit.subscribe(TEST_TOPIC, FIRST_GROUP, SubscriptionStart.LATEST);
+        unit.subscribe(TEST_TOPIC, SECOND_GROUP, SubscriptionStart.LATEST);
+        unit.publish(TEST_TOPIC, UUID.randomUUID().toString());
+        final SimpleMessage first = unit.pull(TEST_TOPIC, FIRST_GROUP);
+        final SimpleMessage second = unit.pull(TEST_TOPIC, SECOND_GROUP);
+        assertEquals(first.getId(), second.getId());
+        assertSame(first.getPayload(), second.getPayload());
+        assertNull(unit.pull(TEST_TOPIC, FIRST_GROUP));
+    }
+
+    @Test
+    void testGroupsReadInPublishOrder() {
+        unit.subscribe(TEST_TOPIC, FIRST_GROUP, SubscriptionStart.LATEST);
+        final List<String> expectedMessages = publish(100);
+        final List<String> actualMessages = IntStream.range(0, expectedMessages.size())
+                                                     .mapToObj(sequence -> unit.pull(TEST_TOPIC, FIRST_GROUP))
+                                                     .map(SimpleMessage::getPayload)
+                                                     .collect(Collectors.toList());
+        assertEquals(expectedMessages, actualMessages);
+    }
+
+    @Test
+    void testSubscriptionStart() {
+        final String retainedMessage = publish(1).get(0);
+        unit.subscribe(TEST_TOPIC, FIRST_GROUP, SubscriptionStart.EARLIEST);
+        unit.subscribe(TEST_TOPIC, SECOND_GROUP, SubscriptionStart.LATEST);
+        final String newMessage = publish(1).get(0);
+        assertEquals(retainedMessage, unit.pull(TEST_TOPIC, FIRST_GROUP).getPayload());
+        assertEquals(newMessage, unit.pull(TEST_TOPIC, FIRST_GROUP).getPayload());
+        assertEquals(newMessage, unit.pull(TEST_TOPIC, SECOND_GROUP).getPayload());
+        assertNull(unit.pull(TEST_TOPIC, SECOND_GROUP));
+    }
+
+    @Test
+    void testDeleteIsPerGroup() throws InterruptedException {
+        unit.subscribe(TEST_TOPIC, FIRST_GROUP, SubscriptionStart.LATEST);
+        unit.subscribe(TEST_TOPIC, SECOND_GROUP, SubscriptionStart.LATEST);
+        publish(1);
+        unit.delete(TEST_TOPIC, FIRST_GROUP, unit.pull(TEST_TOPIC, FIRST_GROUP));
+        final SimpleMessage message = unit.pull(TEST_TOPIC, SECOND_GROUP);
+        Thread.sleep(visibilityTimeout);
+        assertNull(unit.pull(TEST_TOPIC, FIRST_GROUP));
+        assertEquals(message.getId(), unit.pull(TEST_TOPIC, SECOND_GROUP).getId());
+    }
+
+    @Test
+    void testConsumersOfGroupShareMessages() {
+        unit.subscribe(TEST_TOPIC, FIRST_GROUP, SubscriptionStart.LATEST);
+        publish(2);
+        assertNotEquals(unit.pull(TEST_TOPIC, FIRST_GROUP).getId(), unit.pull(TEST_TOPIC, FIRST_GROUP).getId());
+        assertNull(unit.pull(TEST_TOPIC, FIRST_GROUP));
+    }
+
+    @Test
+    void testRetainedMessagesAfterEveryGroupDeletedThem() {
+        unit.subscribe(TEST_TOPIC, FIRST_GROUP, SubscriptionStart.LATEST);
+        publish(1);
+        unit.delete(TEST_TOPIC, FIRST_GROUP, unit.pull(TEST_TOPIC, FIRST_GROUP));
+        final String retainedMessage = publish(1).get(0);
+        unit.subscribe(TEST_TOPIC, SECOND_GROUP, SubscriptionStart.EARLIEST);
+        assertEquals(retainedMessage, unit.pull(TEST_TOPIC, SECOND_GROUP).getPayload());
+    }
+
+    @Test
+    void testPullForUnknownGroup() {
+        assertThrows(SubscriptionNotFound.class, () -> unit.pull(TEST_TOPIC, FIRST_GROUP));
+        unit.subscribe(TEST_TOPIC, FIRST_GROUP, SubscriptionStart.LATEST);
+        unit.unsubscribe(TEST_TOPIC, FIRST_GROUP);
+        assertThrows(SubscriptionNotFound.class, () -> unit.pull(TEST_TOPIC, FIRST_GROUP));
+    }
+
+    private List<String> publish(final int messageNum) {
+        final List<String> messages = IntStream.range(0, messageNum)
+                                               .mapToObj(sequence -> UUID.randomUUID().toString())
+                                               .collect(Collectors.toList());
+        messages.forEach(message -> unit.publish(TEST_TOPIC, message));
+        return messages;
+    }
+}
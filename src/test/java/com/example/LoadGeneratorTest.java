@@ -0,0 +1,115 @@
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.example.broker.QueueBroker;
+import com.example.impl.InMemoryQueueService;
+import com.example.load.LatencyHistogram;
+import com.example.load.LoadConfig;
+import com.example.load.LoadGenerator;
+import com.example.load.LoadReport;
+import com.example.model.impl.SimpleMessage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class LoadGeneratorTest {
+
+    private static final long VISIBILITY_TIMEOUT = 30_000;
+
+    @Test
+    void testHistogramPercentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (long latency = 1; latency <= 10_000; latency++) {
+            histogram.record(latency * 1000);
+        }
+        assertEquals(10_000, histogram.getTotal());
+        assertEquals(10_000_000, histogram.getMax());
+        assertEquals(5_000_000, histogram.getValueAt(50), 50_000);
+        assertEquals(9_900_000, histogram.getValueAt(99), 99_000);
+        assertEquals(9_990_000, histogram.getValueAt(99.9), 99_900);
+        assertEquals(10_000_000, histogram.getValueAt(100));
+    }
+
+    @Test
+    void testThreadFleetsReportToFile(@TempDir final Path directory) throws IOException {
+        final LoadConfig config = LoadConfig.builder()
+                                            .producers(2)
+                                            .consumers(2)
+                                            .rate(2000)
+                                            .duration(Duration.ofSeconds(1))
+                                            .warmup(Duration.ofMillis(200))
+                                            .build();
+        final LoadReport report = new LoadGenerator(config).run(new InMemoryQueueService(VISIBILITY_TIMEOUT));
+        assertEquals(2000, report.getProduced());
+        assertEquals(report.getProduced(), report.getConsumed());
+        assertEquals(1600, report.getMeasured());
+        final Path reportFile = directory.resolve("report");
+        report.writeTo(reportFile);
+        assertTrue(Files.readAllLines(reportFile).contains("measured=1600"));
+    }
+
+    @Test
+    void testStalledProducerIsCorrected() {
+        final AtomicBoolean stalled = new AtomicBoolean();
+        final QueueService<SimpleMessage> unit = new InMemoryQueueService(VISIBILITY_TIMEOUT) {
+            @Override
+            public void push(final String queue, final String message) {
+                if (stalled.compareAndSet(false, true)) {
+                    try {
+                        Thread.sleep(500);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                super.push(queue, message);
+            }
+        };
+        final LoadConfig config = LoadConfig.builder()
+                                            .rate(1000)
+                                            .duration(Duration.ofSeconds(1))
+                                            .warmup(Duration.ofMillis(1))
+                                            .build();
+        final LoadReport report = new LoadGenerator(config).run(unit);
+        //Every message scheduled during the stall waited for it, not only the stalled one
+        assertTrue(report.getLatency(99).compareTo(Duration.ofMillis(400)) > 0);
+        assertTrue(report.getLatency(50).compareTo(Duration.ofMillis(100)) < 0);
+    }
+
+    @Test
+    void testForkedFleetsShareBroker() throws IOException {
+        final QueueBroker broker = new QueueBroker(new InMemoryQueueService(VISIBILITY_TIMEOUT),
+                                                   new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)).start();
+        try {
+            final LoadConfig config = LoadConfig.builder()
+                                                .backend("broker:" + broker.getAddress().getHostString() + ":"
+                                                                 + broker.getAddress().getPort())
+                                                .producers(2)
+                                                .rate(500)
+                                                .duration(Duration.ofSeconds(1))
+                                                .warmup(Duration.ofMillis(200))
+                                                .forked(true)
+                                                .build();
+            final LoadReport report = new LoadGenerator(config).runForked();
+            assertEquals(500, report.getProduced());
+            assertEquals(report.getProduced(), report.getConsumed());
+        } finally {
+            broker.close();
+        }
+    }
+
+    @Test
+    void testInMemoryBackendCannotBeForked() {
+        final LoadConfig config = LoadConfig.builder().forked(true).build();
+        assertThrows(IllegalArgumentException.class, () -> new LoadGenerator(config).runForked());
+    }
+}
@@ -0,0 +1,273 @@
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import com.example.exception.InvalidMessageBodyContent;
+import com.example.exception.UnableToAccessUnderlyingStore;
+import com.example.impl.MappedQueueService;
+import com.example.load.LoadConfig;
+import com.example.load.LoadGenerator;
+import com.example.load.LoadReport;
+import com.example.model.PushOptions;
+import com.example.model.QueueStats;
+import com.example.model.impl.SimpleMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MappedQueueTest {
+
+    private static final String TEST_QUEUE = "testQueue";
+
+    private static final String FILE_FORMAT = ".ring";
+
+    private static final long VISIBILITY_TIMEOUT = 300;
+
+    private static final int CAPACITY = 64;
+
+    @TempDir
+    Path directory;
+
+    private MappedQueueService unit;
+
+    @BeforeEach
+    void setUp() {
+        unit = newService();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        unit.close();
+    }
+
+    @Test
+    void testPushPullAndDelete() throws InterruptedException {
+        final String message = UUID.randomUUID().toString();
+        unit.push(TEST_QUEUE, message);
+        final SimpleMessage actual = unit.pull(TEST_QUEUE);
+        assertEquals(message, actual.getPayload());
+        unit.delete(TEST_QUEUE, actual);
+        Thread.sleep(VISIBILITY_TIMEOUT);
+        assertNull(unit.pull(TEST_QUEUE));
+    }
+
+    @Test
+    void testPullForNonExistingQueue() {
+        assertNull(unit.pull(TEST_QUEUE));
+        assertEquals(Set.of(), unit.listQueues());
+    }
+
+    @Test
+    void testChangeVisibility() throws InterruptedException {
+        unit.push(TEST_QUEUE, UUID.randomUUID().toString());
+        final SimpleMessage message = unit.pull(TEST_QUEUE);
+        assertTrue(unit.changeVisibility(TEST_QUEUE, message, Duration.ofMillis(VISIBILITY_TIMEOUT * 2)));
+        Thread.sleep(VISIBILITY_TIMEOUT);
+        assertNull(unit.pull(TEST_QUEUE));
+        assertTrue(unit.changeVisibility(TEST_QUEUE, message, Duration.ZERO));
+        assertEquals(message.getId(), unit.pull(TEST_QUEUE).getId());
+        unit.delete(TEST_QUEUE, message);
+        assertFalse(unit.changeVisibility(TEST_QUEUE, message, Duration.ZERO));
+    }
+
+    @Test
+    void testPullAnyPollsEveryQueue() {
+        final String otherQueue = TEST_QUEUE + "Other";
+        assertNull(unit.pullAny(List.of(TEST_QUEUE, otherQueue), Duration.ofMillis(VISIBILITY_TIMEOUT / 10)));
+        unit.push(otherQueue, "other");
+        assertEquals(otherQueue, unit.pullAny(List.of(TEST_QUEUE, otherQueue), Duration.ZERO).getQueue());
+    }
+
+    @Test
+    void testMessagesAreFifo() {
+        final List<String> messages = IntStream.range(0, CAPACITY)
+                                               .mapToObj(sequence -> UUID.randomUUID().toString())
+                                               .collect(Collectors.toList());
+        messages.forEach(message -> unit.push(TEST_QUEUE, message));
+        for (String message : messages) {
+            final SimpleMessage actual = unit.pull(TEST_QUEUE);
+            assertEquals(message, actual.getPayload());
+            unit.delete(TEST_QUEUE, actual);
+        }
+        assertNull(unit.pull(TEST_QUEUE));
+    }
+
+    @Test
+    void testVisibilityTimeout() throws InterruptedException {
+        unit.push(TEST_QUEUE, UUID.randomUUID().toString());
+        final SimpleMessage message = unit.pull(TEST_QUEUE);
+        assertNull(unit.pull(TEST_QUEUE));
+        Thread.sleep(VISIBILITY_TIMEOUT);
+        final SimpleMessage repeatedMessage = unit.pull(TEST_QUEUE);
+        assertNotNull(repeatedMessage);
+        assertEquals(message.getId(), repeatedMessage.getId());
+        unit.delete(TEST_QUEUE, message);
+        Thread.sleep(VISIBILITY_TIMEOUT);
+        assertNull(unit.pull(TEST_QUEUE));
+    }
+
+    @Test
+    void testQueueIsFullUntilOldestMessageIsDeleted() {
+        IntStream.range(0, CAPACITY).forEach(sequence -> unit.push(TEST_QUEUE, UUID.randomUUID().toString()));
+        assertThrows(UnableToAccessUnderlyingStore.class, () -> unit.push(TEST_QUEUE, "overflow"));
+        final SimpleMessage oldest = unit.pull(TEST_QUEUE);
+        assertThrows(UnableToAccessUnderlyingStore.class, () -> unit.push(TEST_QUEUE, "overflow"));
+        unit.delete(TEST_QUEUE, oldest);
+        unit.push(TEST_QUEUE, "overflow");
+    }
+
+    @Test
+    void testUnsupportedPushes() {
+        assertThrows(InvalidMessageBodyContent.class, () -> unit.push(TEST_QUEUE, "a".repeat(2048)));
+        assertThrows(UnsupportedOperationException.class,
+                     () -> unit.push(TEST_QUEUE, "grouped", PushOptions.builder().groupId("group").build()));
+    }
+
+    @Test
+    void testDelayedPush() throws InterruptedException {
+        unit.push(TEST_QUEUE, "delayed", Duration.ofMillis(VISIBILITY_TIMEOUT));
+        unit.push(TEST_QUEUE, "ready");
+        final SimpleMessage ready = unit.pull(TEST_QUEUE);
+        assertEquals("ready", ready.getPayload());
+        assertNull(unit.pull(TEST_QUEUE));
+        assertEquals(1, unit.stats(TEST_QUEUE).getDelayed());
+        unit.delete(TEST_QUEUE, ready);
+        Thread.sleep(VISIBILITY_TIMEOUT);
+        final SimpleMessage delayed = unit.pull(TEST_QUEUE);
+        assertEquals("delayed", delayed.getPayload());
+        assertEquals(0, unit.stats(TEST_QUEUE).getDelayed());
+        assertEquals(1, unit.stats(TEST_QUEUE).getInFlight());
+        unit.delete(TEST_QUEUE, delayed);
+        assertNull(unit.pull(TEST_QUEUE));
+    }
+
+    @Test
+    void testExpiredLeaseFarFromOldestIsRedelivered() throws IOException {
+        final int messageNum = CAPACITY * 4;
+        try (MappedQueueService service = new MappedQueueService(VISIBILITY_TIMEOUT, directory + File.separator,
+                                                                 FILE_FORMAT, 1000, messageNum, 1024)) {
+            IntStream.range(0, messageNum).forEach(sequence -> service.push(TEST_QUEUE, Integer.toString(sequence)));
+            final List<SimpleMessage> leased = IntStream.range(0, messageNum)
+                                                        .mapToObj(sequence -> service.pull(TEST_QUEUE))
+                                                        .collect(Collectors.toList());
+            final SimpleMessage released = leased.get(messageNum - 10);
+            assertTrue(service.changeVisibility(TEST_QUEUE, released, Duration.ZERO));
+            //Every pull scans the next part of leased messages until it reaches the released one
+            SimpleMessage redelivered = null;
+            for (int pull = 0; pull < messageNum && Objects.isNull(redelivered); pull++) {
+                redelivered = service.pull(TEST_QUEUE);
+            }
+            assertNotNull(redelivered);
+            assertEquals(released.getId(), redelivered.getId());
+        }
+    }
+
+    @Test
+    void testQueueFileKeepsItsCapacity() throws IOException {
+        unit.push(TEST_QUEUE, "kept");
+        final Path file = directory.resolve(TEST_QUEUE + FILE_FORMAT);
+        final long size = Files.size(file);
+        for (int capacity : new int[]{CAPACITY / 16, CAPACITY * 16}) {
+            try (MappedQueueService reconfigured = new MappedQueueService(VISIBILITY_TIMEOUT,
+                                                                          directory + File.separator, FILE_FORMAT,
+                                                                          1000, capacity, 1024)) {
+                assertThrows(IllegalArgumentException.class, () -> reconfigured.push(TEST_QUEUE, "rejected"));
+            }
+        }
+        assertEquals(size, Files.size(file));
+        assertEquals("kept", unit.pull(TEST_QUEUE).getPayload());
+    }
+
+    @Test
+    void testStats() {
+        unit.push(TEST_QUEUE, UUID.randomUUID().toString());
+        unit.push(TEST_QUEUE, UUID.randomUUID().toString());
+        unit.pull(TEST_QUEUE);
+        final QueueStats stats = unit.stats(TEST_QUEUE);
+        assertEquals(1, stats.getDepth());
+        assertEquals(1, stats.getInFlight());
+        assertEquals(0, stats.getDelayed());
+        assertEquals(Set.of(TEST_QUEUE), unit.listQueues());
+    }
+
+    @Test
+    void testServicesShareQueueFile() throws IOException {
+        final int messageNum = 10_000;
+        final Set<String> expectedMessages = IntStream.range(0, messageNum)
+                                                      .mapToObj(sequence -> UUID.randomUUID().toString())
+                                                      .collect(Collectors.toSet());
+        final Set<String> pulled = ConcurrentHashMap.newKeySet();
+        final List<MappedQueueService> services = List.of(newService(), newService(), newService(), newService());
+        final CompletableFuture<?> producers = CompletableFuture.runAsync(
+                () -> expectedMessages.parallelStream().forEach(message -> {
+                    while (true) {
+                        try {
+                            services.get(Math.floorMod(message.hashCode(), 2)).push(TEST_QUEUE, message);
+                            return;
+                        } catch (UnableToAccessUnderlyingStore e) {
+                            Thread.onSpinWait();
+                        }
+                    }
+                }));
+        CompletableFuture.allOf(services.stream()
+                                        .skip(2)
+                                        .map(service -> CompletableFuture.runAsync(() -> {
+                                            while (pulled.size() < messageNum) {
+                                                final SimpleMessage message = service.pull(TEST_QUEUE);
+                                                if (message != null) {
+                                                    pulled.add(message.getPayload());
+                                                    service.delete(TEST_QUEUE, message);
+                                                }
+                                            }
+                                        }))
+                                        .toArray(CompletableFuture[]::new))
+                         .join();
+        producers.join();
+        for (MappedQueueService service : services) {
+            service.close();
+        }
+        assertEquals(expectedMessages, pulled);
+        assertEquals(0, unit.stats(TEST_QUEUE).getInFlight());
+    }
+
+    @Test
+    void testProcessesShareQueueFile() throws IOException {
+        final LoadConfig config = LoadConfig.builder()
+                                            .backend("mapped:" + directory + File.separator)
+                                            .producers(2)
+                                            .consumers(2)
+                                            .rate(1000)
+                                            .duration(Duration.ofSeconds(1))
+                                            .warmup(Duration.ofMillis(200))
+                                            .forked(true)
+                                            .build();
+        final LoadReport report = new LoadGenerator(config).runForked();
+        assertEquals(1000, report.getProduced());
+        assertEquals(report.getProduced(), report.getConsumed());
+    }
+
+    private MappedQueueService newService() {
+        return new MappedQueueService(VISIBILITY_TIMEOUT, directory + File.separator, FILE_FORMAT, 1000, CAPACITY,
+                                      1024);
+    }
+}
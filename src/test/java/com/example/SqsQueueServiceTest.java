@@ -1,21 +1,51 @@
 package com.example;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
-import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.AbstractAmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageResult;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesResult;
+import com.amazonaws.services.sqs.model.ListQueuesResult;
 import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageNotInflightException;
+import com.amazonaws.services.sqs.model.QueueAttributeName;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
 import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
 import com.example.impl.SqsQueueService;
+import com.example.model.PushOptions;
+import com.example.model.QueueStats;
 import com.example.model.impl.AmazonSqsMessage;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
-import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
@@ -23,13 +53,17 @@ import org.mockito.junit.jupiter.MockitoExtension;
 class SqsQueueServiceTest {
 
     @Mock
-    private AmazonSQSClient mockClient;
+    private AmazonSQS mockClient;
 
-    @InjectMocks
     private SqsQueueService unit;
 
     private final static String TEST_QUEUE = "test";
 
+    @BeforeEach
+    void setUp() {
+        unit = new SqsQueueService(mockClient);
+    }
+
     @Test
     void testPush() {
         final String message = UUID.randomUUID().toString();
@@ -38,6 +72,32 @@ class SqsQueueServiceTest {
         verifyNoMoreInteractions(mockClient);
     }
 
+    @Test
+    void testDelayedPush() {
+        final String message = UUID.randomUUID().toString();
+        unit.push(TEST_QUEUE, message, Duration.ofMillis(1500));
+        verify(mockClient).sendMessage(new SendMessageRequest(TEST_QUEUE, message).withDelaySeconds(2));
+        verifyNoMoreInteractions(mockClient);
+    }
+
+    @Test
+    void testDeduplicatedPush() {
+        final String message = UUID.randomUUID().toString();
+        final String deduplicationId = UUID.randomUUID().toString();
+        unit.push(TEST_QUEUE, message, PushOptions.builder().deduplicationId(deduplicationId).build());
+        verify(mockClient).sendMessage(new SendMessageRequest(TEST_QUEUE, message)
+                                               .withMessageDeduplicationId(deduplicationId));
+        verifyNoMoreInteractions(mockClient);
+    }
+
+    @Test
+    void testGroupedPush() {
+        final String message = UUID.randomUUID().toString();
+        unit.push(TEST_QUEUE, message, PushOptions.builder().groupId("group").build());
+        verify(mockClient).sendMessage(new SendMessageRequest(TEST_QUEUE, message).withMessageGroupId("group"));
+        verifyNoMoreInteractions(mockClient);
+    }
+
     @Test
     void testPull() {
         final String receiptHandle = UUID.randomUUID().toString();
@@ -45,14 +105,60 @@ class SqsQueueServiceTest {
         createMessage(receiptHandle, body);
         final ReceiveMessageResult result = new ReceiveMessageResult();
         result.setMessages(List.of(createMessage(receiptHandle, body)));
-        when(mockClient.receiveMessage(TEST_QUEUE)).thenReturn(result);
+        final ReceiveMessageRequest request = new ReceiveMessageRequest(TEST_QUEUE).withMaxNumberOfMessages(1);
+        when(mockClient.receiveMessage(request)).thenReturn(result);
         final AmazonSqsMessage actualMessage = unit.pull(TEST_QUEUE);
         assertEquals(receiptHandle, actualMessage.getReceiptHandle());
         assertEquals(body, actualMessage.getPayload());
-        verify(mockClient).receiveMessage(TEST_QUEUE);
+        verify(mockClient).receiveMessage(request);
         verifyNoMoreInteractions(mockClient);
     }
 
+    @Test
+    void testPullPrefetchesBatches() {
+        final FakeSqsClient fakeClient = new FakeSqsClient(30);
+        final List<String> expectedMessages = IntStream.range(0, 25)
+                                                       .mapToObj(index -> UUID.randomUUID().toString())
+                                                       .collect(Collectors.toList());
+        expectedMessages.forEach(message -> fakeClient.sendMessage(TEST_QUEUE, message));
+        final SqsQueueService prefetchingUnit = new SqsQueueService(fakeClient, Duration.ZERO);
+        final List<String> pulled = new ArrayList<>();
+        AmazonSqsMessage message;
+        while ((message = prefetchingUnit.pull(TEST_QUEUE)) != null) {
+            pulled.add(message.getPayload());
+            prefetchingUnit.delete(TEST_QUEUE, message);
+        }
+        assertEquals(expectedMessages, pulled);
+        //One message before pull rate is known, then batches of ten and a request that finds queue empty
+        assertEquals(5, fakeClient.receiveRequests.size());
+        assertEquals(List.of(1, 10, 10, 10, 10), fakeClient.receiveRequests
+                .stream()
+                .map(ReceiveMessageRequest::getMaxNumberOfMessages)
+                .collect(Collectors.toList()));
+        assertTrue(fakeClient.receiveRequests.stream().allMatch(request -> request.getWaitTimeSeconds() == 0));
+    }
+
+    @Test
+    void testBufferedLeasesAreExtendedOrReleased() throws InterruptedException {
+        final FakeSqsClient fakeClient = new FakeSqsClient(2);
+        IntStream.range(0, 12).forEach(index -> fakeClient.sendMessage(TEST_QUEUE, Integer.toString(index)));
+        final SqsQueueService prefetchingUnit = new SqsQueueService(fakeClient, Duration.ZERO);
+        final Set<String> pulled = new HashSet<>();
+        pulled.add(prefetchingUnit.pull(TEST_QUEUE).getPayload());
+        pulled.add(prefetchingUnit.pull(TEST_QUEUE).getPayload());
+        assertEquals(1, fakeClient.countVisible());
+        //Less than half of the visibility timeout is left, consumer slowed down
+        Thread.sleep(1100);
+        final AmazonSqsMessage message = prefetchingUnit.pull(TEST_QUEUE);
+        assertNotNull(message);
+        assertTrue(pulled.add(message.getPayload()));
+        assertTrue(fakeClient.visibilityChanges.stream().anyMatch(change -> change.getVisibilityTimeout() == 2));
+        assertTrue(fakeClient.visibilityChanges.stream().anyMatch(change -> change.getVisibilityTimeout() == 0));
+        assertTrue(fakeClient.countVisible() > 1);
+        prefetchingUnit.close();
+        assertEquals(12 - pulled.size(), fakeClient.countVisible());
+    }
+
     private Message createMessage(String receiptHandle, String body) {
         final Message message = new Message();
         message.setReceiptHandle(receiptHandle);
@@ -71,4 +177,156 @@ class SqsQueueServiceTest {
         verify(mockClient).deleteMessage(TEST_QUEUE, receiptHandle);
         verifyNoMoreInteractions(mockClient);
     }
+
+    @Test
+    void testStatsAreCached() {
+        final GetQueueAttributesRequest request = new GetQueueAttributesRequest(TEST_QUEUE).withAttributeNames(
+                QueueAttributeName.ApproximateNumberOfMessages,
+                QueueAttributeName.ApproximateNumberOfMessagesNotVisible,
+                QueueAttributeName.ApproximateNumberOfMessagesDelayed);
+        when(mockClient.getQueueAttributes(request)).thenReturn(new GetQueueAttributesResult().withAttributes(Map.of(
+                QueueAttributeName.ApproximateNumberOfMessages.toString(), "5",
+                QueueAttributeName.ApproximateNumberOfMessagesNotVisible.toString(), "2",
+                QueueAttributeName.ApproximateNumberOfMessagesDelayed.toString(), "1")));
+        final QueueStats stats = unit.stats(TEST_QUEUE);
+        assertEquals(5, stats.getDepth());
+        assertEquals(2, stats.getInFlight());
+        assertEquals(1, stats.getDelayed());
+        assertNull(stats.getOldestMessageAge());
+        assertSame(stats, unit.stats(TEST_QUEUE));
+        verify(mockClient).getQueueAttributes(request);
+        verifyNoMoreInteractions(mockClient);
+    }
+
+    @Test
+    void testChangeVisibility() {
+        final AmazonSqsMessage message = AmazonSqsMessage.builder().receiptHandle("handle").build();
+        assertTrue(unit.changeVisibility(TEST_QUEUE, message, Duration.ofMillis(1500)));
+        verify(mockClient).changeMessageVisibility(TEST_QUEUE, "handle", 2);
+        when(mockClient.changeMessageVisibility(TEST_QUEUE, "handle", 0))
+                .thenThrow(new MessageNotInflightException("Message is not in flight."));
+        assertFalse(unit.changeVisibility(TEST_QUEUE, message, Duration.ZERO));
+    }
+
+    @Test
+    void testChangeVisibilityBatch() {
+        final List<AmazonSqsMessage> messages = IntStream.range(0, 12)
+                                                         .mapToObj(index -> AmazonSqsMessage.builder()
+                                                                                            .receiptHandle("h" + index)
+                                                                                            .build())
+                                                         .collect(Collectors.toList());
+        when(mockClient.changeMessageVisibilityBatch(eq(TEST_QUEUE), anyList()))
+                .thenReturn(new ChangeMessageVisibilityBatchResult().withFailed(
+                        new BatchResultErrorEntry().withId("3")))
+                .thenReturn(new ChangeMessageVisibilityBatchResult());
+        assertEquals(List.of(messages.get(3)),
+                     unit.changeVisibilityBatch(TEST_QUEUE, messages, Duration.ofSeconds(30)));
+        verify(mockClient).changeMessageVisibilityBatch(TEST_QUEUE, IntStream.range(0, 10)
+                .mapToObj(index -> new ChangeMessageVisibilityBatchRequestEntry(Integer.toString(index), "h" + index)
+                        .withVisibilityTimeout(30))
+                .collect(Collectors.toList()));
+        verify(mockClient).changeMessageVisibilityBatch(TEST_QUEUE, List.of(
+                new ChangeMessageVisibilityBatchRequestEntry("10", "h10").withVisibilityTimeout(30),
+                new ChangeMessageVisibilityBatchRequestEntry("11", "h11").withVisibilityTimeout(30)));
+        verifyNoMoreInteractions(mockClient);
+    }
+
+    @Test
+    void testListQueues() {
+        when(mockClient.listQueues()).thenReturn(new ListQueuesResult().withQueueUrls(TEST_QUEUE));
+        assertEquals(Set.of(TEST_QUEUE), unit.listQueues());
+    }
+
+    /**
+     * Single in memory queue with SQS lease semantics, every receipt gets a new receipt handle.
+     */
+    private static class FakeSqsClient extends AbstractAmazonSQS {
+
+        private final long visibilityTimeoutSeconds;
+
+        private final List<FakeMessage> messages = new ArrayList<>();
+
+        private final List<ReceiveMessageRequest> receiveRequests = new ArrayList<>();
+
+        private final List<ChangeMessageVisibilityBatchRequestEntry> visibilityChanges = new ArrayList<>();
+
+        FakeSqsClient(final long visibilityTimeoutSeconds) {
+            this.visibilityTimeoutSeconds = visibilityTimeoutSeconds;
+        }
+
+        @Override
+        public synchronized SendMessageResult sendMessage(final String queueUrl, final String body) {
+            messages.add(new FakeMessage(body));
+            return new SendMessageResult();
+        }
+
+        @Override
+        public synchronized ReceiveMessageResult receiveMessage(final ReceiveMessageRequest request) {
+            receiveRequests.add(request);
+            final long now = System.currentTimeMillis();
+            final List<Message> received = new ArrayList<>();
+            for (FakeMessage message : messages) {
+                if (received.size() < request.getMaxNumberOfMessages() && message.visibleAt <= now) {
+                    message.receiptHandle = UUID.randomUUID().toString();
+                    message.visibleAt = now + visibilityTimeoutSeconds * 1000;
+                    received.add(new Message().withBody(message.body).withReceiptHandle(message.receiptHandle));
+                }
+            }
+            return new ReceiveMessageResult().withMessages(received);
+        }
+
+        @Override
+        public synchronized ChangeMessageVisibilityBatchResult changeMessageVisibilityBatch(
+                final String queueUrl, final List<ChangeMessageVisibilityBatchRequestEntry> entries) {
+            final long now = System.currentTimeMillis();
+            final ChangeMessageVisibilityBatchResult result = new ChangeMessageVisibilityBatchResult();
+            for (ChangeMessageVisibilityBatchRequestEntry entry : entries) {
+                visibilityChanges.add(entry);
+                final FakeMessage message = find(entry.getReceiptHandle());
+                if (Objects.isNull(message) || message.visibleAt <= now) {
+                    result.withFailed(new BatchResultErrorEntry().withId(entry.getId()));
+                } else {
+                    message.visibleAt = now + entry.getVisibilityTimeout() * 1000L;
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public synchronized DeleteMessageResult deleteMessage(final String queueUrl, final String receiptHandle) {
+            messages.remove(find(receiptHandle));
+            return new DeleteMessageResult();
+        }
+
+        @Override
+        public GetQueueAttributesResult getQueueAttributes(final GetQueueAttributesRequest request) {
+            return new GetQueueAttributesResult().withAttributes(Map.of(
+                    QueueAttributeName.VisibilityTimeout.toString(), Long.toString(visibilityTimeoutSeconds)));
+        }
+
+        synchronized long countVisible() {
+            final long now = System.currentTimeMillis();
+            return messages.stream().filter(message -> message.visibleAt <= now).count();
+        }
+
+        private FakeMessage find(final String receiptHandle) {
+            return messages.stream()
+                           .filter(message -> receiptHandle.equals(message.receiptHandle))
+                           .findFirst()
+                           .orElse(null);
+        }
+    }
+
+    private static class FakeMessage {
+
+        private final String body;
+
+        private String receiptHandle;
+
+        private long visibleAt;
+
+        FakeMessage(final String body) {
+            this.body = body;
+        }
+    }
 }